@@ -0,0 +1,94 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import connection.BufferUtils;
+import connection.Connection;
+import connection.Server;
+import proxy.ClientProxy;
+
+/**
+ * Measures the ClientProxy dispatching the commands of an authenticated session to the Server
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientProxyBenchmark {
+
+    /**
+     * The commands of a session once authenticated
+     */
+    private static final String COMMANDS = "STAT\r\nLIST\r\nUIDL\r\nLIST 3\r\nUIDL 3\r\nRETR 1\r\nTOP 2 10\r\nDELE 2\r\nNOOP\r\n";
+
+    /**
+     * The commands, as views of a direct buffer
+     */
+    private ByteBuffer[] commands;
+
+    /**
+     * The Connection the commands are read from
+     */
+    private LoopbackConnection loopback;
+
+    /**
+     * The proxy under test
+     */
+    private ClientProxy proxy;
+
+    /**
+     * Connect the Connection
+     * @throws IOException
+     */
+    @Setup
+    public void setup() throws IOException {
+        // The proxy logs every command at INFO, which would measure the console instead
+        Logger.getRootLogger().setLevel(Level.WARN);
+        commands = MimeCorpus.lines(COMMANDS.getBytes(BufferUtils.CHARSET));
+        loopback = new LoopbackConnection();
+        proxy = new ClientProxy(new HashMap<String, Server>());
+    }
+
+    /**
+     * Close the Connection
+     * @throws IOException
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        loopback.close();
+    }
+
+    /**
+     * Dispatch the commands, then drop what was queued for the Server and the responses expected
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Benchmark
+    public void dispatch() throws IOException, InterruptedException {
+        Connection connection = loopback.get();
+        for (ByteBuffer command : commands) {
+            proxy.proxy(command, connection);
+        }
+        connection.getServerBuffer().getWriteBuffer().discard();
+        connection.clearPending();
+    }
+}
@@ -0,0 +1,111 @@
+package benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import connection.BufferUtils;
+import proxy.Command;
+import proxy.CommandParser;
+
+/**
+ * Compares the CommandParser with the parsing it replaced: decoding the line, splitting it and looking the verb
+ * up with Enum.valueOf, unknown verbs costing an exception
+ * Every invocation parses a batch of lines as a Client session sends them, read into a direct buffer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParserBenchmark {
+
+    /**
+     * The lines parsed, known and unknown verbs in both cases
+     */
+    private static final String[] LINES = {
+        "USER alice\r\n", "PASS secret\r\n", "STAT\r\n", "LIST\r\n", "UIDL\r\n", "RETR 1\r\n", "retr 12\r\n",
+        "DELE 12\r\n", "TOP 3 10\r\n", "LIST 7\r\n", "NOOP\r\n", "XTND XMIT\r\n", "capa\r\n", "QUIT\r\n"
+    };
+
+    /**
+     * The lines, as views of a direct buffer
+     */
+    private ByteBuffer[] lines;
+
+    /**
+     * The parser under test
+     */
+    private CommandParser<Command> parser = new CommandParser<>(Command.class, Command.UNKNOWN);
+
+    /**
+     * Read the lines into a direct buffer, like the LineDecoder does
+     */
+    @Setup
+    public void setup() {
+        ByteBuffer read = ByteBuffer.allocateDirect(1024);
+        lines = new ByteBuffer[LINES.length];
+        for (int i = 0; i < LINES.length; i++) {
+            int start = read.position();
+            read.put(LINES[i].getBytes(BufferUtils.CHARSET));
+            ByteBuffer line = read.duplicate();
+            line.position(start);
+            line.limit(read.position());
+            lines[i] = line.slice();
+        }
+    }
+
+    /**
+     * Parse the lines by splitting decoded Strings
+     * @param hole The sink of the results
+     * @throws CharacterCodingException
+     */
+    @Benchmark
+    public void splitValueOf(Blackhole hole) throws CharacterCodingException {
+        for (ByteBuffer buffer : lines) {
+            String line = BufferUtils.bufferToString(buffer);
+            String command[] = line.split(" ");
+            Command com;
+            try {
+                com = Command.valueOf(command[0].trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                com = Command.UNKNOWN;
+            }
+            hole.consume(com);
+            if (command.length == 2) {
+                try {
+                    hole.consume(Integer.parseInt(command[1].trim()));
+                } catch (NumberFormatException e) {
+                    hole.consume(-1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse the lines with the CommandParser
+     * @param hole The sink of the results
+     */
+    @Benchmark
+    public void commandParser(Blackhole hole) {
+        for (ByteBuffer buffer : lines) {
+            hole.consume(parser.parse(buffer));
+            if (parser.getArgumentCount() == 1) {
+                hole.consume(parser.getNumber(0));
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import transformations.Leetifier;
+import transformations.LineSink;
+import transformations.StreamTransformer;
+import transformations.TransformationPipeline;
+
+/**
+ * Measures leetifying the text parts of a RETR response as its lines go through the TransformationPipeline
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LeetifierBenchmark {
+
+    /**
+     * The size of the Mail leetified, in bytes
+     */
+    @Param({"4096", "65536", "1048576"})
+    public int size;
+
+    /**
+     * The response as generated, copied over the lines before every invocation
+     */
+    private ByteBuffer original;
+
+    /**
+     * The buffer the lines are views of, leetified in place
+     */
+    private ByteBuffer bytes;
+
+    /**
+     * The lines of the response
+     */
+    private ByteBuffer[] lines;
+
+    /**
+     * Generate the response
+     * @throws IOException
+     */
+    @Setup
+    public void setup() throws IOException {
+        byte[] response = MimeCorpus.response(size, 1);
+        original = ByteBuffer.allocateDirect(response.length);
+        original.put(response);
+        original.flip();
+        bytes = ByteBuffer.allocateDirect(response.length);
+        bytes.put(original.duplicate());
+        bytes.flip();
+        lines = MimeCorpus.lines(bytes);
+    }
+
+    /**
+     * Leetify the text parts of the response through the pipeline, the sink only consuming the lines
+     * @param hole The sink of the lines
+     * @throws IOException
+     */
+    @Benchmark
+    public void leet(final Blackhole hole) throws IOException {
+        bytes.clear();
+        bytes.put(original.duplicate());
+        TransformationPipeline pipeline = new TransformationPipeline(
+                Collections.<StreamTransformer>singletonList(new Leetifier()), new LineSink() {
+                    @Override
+                    public void write(ByteBuffer lines) {
+                        hole.consume(lines);
+                    }
+                });
+        for (ByteBuffer line : lines) {
+            pipeline.line(line);
+        }
+    }
+}
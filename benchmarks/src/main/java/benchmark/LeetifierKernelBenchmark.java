@@ -0,0 +1,92 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import transformations.Leetifier;
+
+/**
+ * Measures the throughput of leetifying whole buffers in place, without framing lines
+ * The bytes secondary result is the number of bytes leetified per second, 1e9 of them being 1 GB/s
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LeetifierKernelBenchmark {
+
+    /**
+     * The size of the Mail leetified, in bytes
+     */
+    @Param({"4096", "65536", "1048576"})
+    public int size;
+
+    /**
+     * If the buffer is direct, like the ones of the BufferPool, rather than backed by an array
+     */
+    @Param({"true", "false"})
+    public boolean direct;
+
+    /**
+     * The bytes leetified, over and over: once leetified they are left as they are but still go through the tables
+     */
+    private ByteBuffer bytes;
+
+    /**
+     * The leetifier, keeping the tag state from one invocation to the next
+     */
+    private Leetifier leetifier = new Leetifier();
+
+    /**
+     * The counter of the bytes leetified
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+
+        /**
+         * The number of bytes leetified
+         */
+        public long bytes;
+    }
+
+    /**
+     * Generate the Mail
+     * @throws IOException
+     */
+    @Setup
+    public void setup() throws IOException {
+        byte[] response = MimeCorpus.response(size, 1);
+        bytes = direct ? ByteBuffer.allocateDirect(response.length) : ByteBuffer.allocate(response.length);
+        bytes.put(response);
+        bytes.flip();
+    }
+
+    /**
+     * Leetify the whole buffer
+     * @param counter The counter of the bytes leetified
+     * @return The buffer
+     */
+    @Benchmark
+    public ByteBuffer leet(Bytes counter) {
+        leetifier.leet(bytes, false);
+        counter.bytes += bytes.remaining();
+        return bytes;
+    }
+}
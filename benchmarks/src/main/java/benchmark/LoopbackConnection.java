@@ -0,0 +1,86 @@
+package benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+import connection.Connection;
+import connection.State;
+
+/**
+ * An authenticated Connection whose Client and Server sides are loopback sockets, for the proxies to run on
+ * The sockets are registered to a Selector that is never selected and tasks run on the calling Thread, so nothing is
+ * written: the benchmarks drop what the proxies queue
+ */
+public class LoopbackConnection {
+
+    /**
+     * The Selector the channels are registered to
+     */
+    private Selector selector;
+
+    /**
+     * The peers of the Client and Server sockets
+     */
+    private SocketChannel clientPeer, serverPeer;
+
+    /**
+     * The Connection
+     */
+    private Connection connection;
+
+    /**
+     * Connect both sides and authenticate the Connection
+     * @throws IOException
+     */
+    public LoopbackConnection() throws IOException {
+        selector = Selector.open();
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        clientPeer = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel client = listener.accept();
+        serverPeer = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel server = listener.accept();
+        listener.close();
+        client.configureBlocking(false);
+        server.configureBlocking(false);
+
+        connection = new Connection(client, selector, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                task.run();
+            }
+        });
+        client.register(selector, SelectionKey.OP_READ, connection);
+        connection.connectToServer(server);
+        connection.serverConnected();
+        connection.setAwaitingGreeting(false);
+        server.register(selector, SelectionKey.OP_READ, connection);
+        connection.setUser("alice");
+        connection.setState(State.TRANSACTION);
+    }
+
+    /**
+     * Get the Connection
+     * @return The authenticated Connection
+     */
+    public Connection get() {
+        return connection;
+    }
+
+    /**
+     * Close the Connection and the peers
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        connection.close();
+        clientPeer.close();
+        serverPeer.close();
+        selector.close();
+    }
+}
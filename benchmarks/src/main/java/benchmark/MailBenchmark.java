@@ -0,0 +1,73 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import mail.Mail;
+
+/**
+ * Measures spooling a retrieved Mail, which indexes its MIME structure as the lines are added
+ * The Spool is the one configured by spoolStore
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MailBenchmark {
+
+    /**
+     * The size of the Mail, in bytes
+     */
+    @Param({"4096", "65536", "1048576"})
+    public int size;
+
+    /**
+     * The lines of the Mail, without the status line and the ending dot
+     */
+    private ByteBuffer[] lines;
+
+    /**
+     * Generate the Mail
+     * @throws IOException
+     */
+    @Setup
+    public void setup() throws IOException {
+        ByteBuffer[] response = MimeCorpus.lines(MimeCorpus.response(size, 1));
+        lines = new ByteBuffer[response.length - 2];
+        System.arraycopy(response, 1, lines, 0, lines.length);
+    }
+
+    /**
+     * Add every line to a new Mail and read its sections, then free it
+     * @param hole The sink of the sections
+     * @throws IOException
+     */
+    @Benchmark
+    public void add(Blackhole hole) throws IOException {
+        Mail mail = new Mail();
+        try {
+            for (ByteBuffer line : lines) {
+                mail.add(line);
+            }
+            hole.consume(mail.getSections());
+        } finally {
+            mail.release();
+        }
+    }
+}
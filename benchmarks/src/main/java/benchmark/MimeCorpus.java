@@ -0,0 +1,178 @@
+package benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.codec.binary.Base64;
+
+import connection.BufferUtils;
+
+/**
+ * Generates the RETR responses and images the benchmarks run on
+ * A Mail is a multipart/mixed holding a multipart/alternative with a plain text and an HTML body, a small JPEG image
+ * and a binary attachment, both base64 encoded. Text fills three quarters of the requested size and the attachment
+ * the rest. The same size and seed always give the same bytes
+ */
+public final class MimeCorpus {
+
+    /**
+     * The words the text bodies are made of
+     */
+    private static final String[] WORDS = {
+        "the", "proxy", "relays", "every", "message", "between", "client", "and", "origin", "server", "while",
+        "transforming", "text", "parts", "rotating", "images", "mailbox", "retrieve", "delete", "capability",
+        "Lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit", "sed", "do", "eiusmod"
+    };
+
+    /**
+     * The side of the image every Mail holds, in pixels
+     */
+    private static final int IMAGE_SIDE = 64;
+
+    /**
+     * Not instantiable
+     */
+    private MimeCorpus() {
+    }
+
+    /**
+     * Generate the RETR response holding a Mail, dot-stuffed and ended by the line with a single dot
+     * @param size The approximate size of the Mail, in bytes
+     * @param seed The seed of the content
+     * @return The bytes of the response
+     * @throws IOException
+     */
+    public static byte[] response(int size, long seed) throws IOException {
+        Random random = new Random(seed);
+        StringBuilder mail = new StringBuilder(size + 4096);
+        mail.append("From: Alice <alice@example.com>\r\n");
+        mail.append("To: Bob <bob@example.com>\r\n");
+        mail.append("Subject: Benchmark ").append(size).append("\r\n");
+        mail.append("MIME-Version: 1.0\r\n");
+        mail.append("Content-Type: multipart/mixed; boundary=\"mixed\"\r\n\r\n");
+        mail.append("--mixed\r\n");
+        mail.append("Content-Type: multipart/alternative; boundary=\"alternative\"\r\n\r\n");
+        mail.append("--alternative\r\n");
+        mail.append("Content-Type: text/plain; charset=ISO-8859-1\r\n\r\n");
+        text(mail, random, size * 3 / 8, false);
+        mail.append("--alternative\r\n");
+        mail.append("Content-Type: text/html; charset=ISO-8859-1\r\n\r\n");
+        text(mail, random, size * 3 / 8, true);
+        mail.append("--alternative--\r\n");
+        mail.append("--mixed\r\n");
+        mail.append("Content-Type: image/jpeg\r\nContent-Transfer-Encoding: base64\r\n\r\n");
+        mail.append(new String(Base64.encodeBase64Chunked(image(IMAGE_SIDE, seed)), BufferUtils.CHARSET));
+        mail.append("--mixed\r\n");
+        mail.append("Content-Type: application/octet-stream\r\nContent-Transfer-Encoding: base64\r\n\r\n");
+        byte[] attachment = new byte[size / 4 * 3 / 4];
+        random.nextBytes(attachment);
+        mail.append(new String(Base64.encodeBase64Chunked(attachment), BufferUtils.CHARSET));
+        mail.append("--mixed--\r\n");
+
+        StringBuilder response = new StringBuilder(mail.length() + 4096);
+        response.append("+OK ").append(mail.length()).append(" octets\r\n");
+        int start = 0;
+        while (start < mail.length()) {
+            if (mail.charAt(start) == '.') {
+                response.append('.');
+            }
+            int end = mail.indexOf("\r\n", start) + 2;
+            response.append(mail, start, end);
+            start = end;
+        }
+        response.append(".\r\n");
+        return response.toString().getBytes(BufferUtils.CHARSET);
+    }
+
+    /**
+     * Append lines of words, with markup if they are HTML
+     * @param out The destination
+     * @param random The source of the words
+     * @param size The number of bytes to append, approximately
+     * @param html If the words are wrapped in tags
+     */
+    private static void text(StringBuilder out, Random random, int size, boolean html) {
+        int end = out.length() + size;
+        StringBuilder line = new StringBuilder();
+        while (out.length() < end) {
+            line.setLength(0);
+            if (html) {
+                line.append("<p class=\"body\">");
+            }
+            while (line.length() < 70) {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                if (html && random.nextInt(8) == 0) {
+                    line.append("<b>").append(word).append("</b> ");
+                } else {
+                    line.append(word).append(' ');
+                }
+            }
+            if (html) {
+                line.append("</p>");
+            }
+            out.append(line).append("\r\n");
+        }
+    }
+
+    /**
+     * Generate a JPEG image of gradients and noise
+     * @param side The width and height of the image, in pixels
+     * @param seed The seed of the noise
+     * @return The bytes of the image
+     * @throws IOException
+     */
+    public static byte[] image(int side, long seed) throws IOException {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                int red = x * 255 / side;
+                int green = y * 255 / side;
+                int blue = random.nextInt(64) + 96;
+                image.setRGB(x, y, (red << 16) | (green << 8) | blue);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Split a response into lines held by a direct buffer, as the LineDecoder hands them to the proxy
+     * @param response The bytes of the response
+     * @return The lines, each including its terminator
+     */
+    public static ByteBuffer[] lines(byte[] response) {
+        ByteBuffer bytes = ByteBuffer.allocateDirect(response.length);
+        bytes.put(response);
+        bytes.flip();
+        return lines(bytes);
+    }
+
+    /**
+     * Split the remaining bytes of a buffer into lines
+     * @param bytes The bytes of the response, left untouched
+     * @return The lines, each including its terminator, sharing the content of the buffer
+     */
+    public static ByteBuffer[] lines(ByteBuffer bytes) {
+        List<ByteBuffer> lines = new ArrayList<>();
+        int start = bytes.position();
+        for (int i = start; i < bytes.limit(); i++) {
+            if (bytes.get(i) == '\n') {
+                ByteBuffer line = bytes.duplicate();
+                line.limit(i + 1);
+                line.position(start);
+                lines.add(line.slice());
+                start = i + 1;
+            }
+        }
+        return lines.toArray(new ByteBuffer[lines.size()]);
+    }
+}
@@ -0,0 +1,80 @@
+package benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import transformations.Rotation;
+
+/**
+ * Measures rotating images of several sides: JPEG ones are rotated without decoding their pixels, PNG ones by reversing
+ * their raster
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RotationBenchmark {
+
+    /**
+     * The side of the image, in pixels
+     */
+    @Param({"64", "256", "1024"})
+    public int side;
+
+    /**
+     * The format of the image
+     */
+    @Param({"jpg", "png"})
+    public String format;
+
+    /**
+     * The image
+     */
+    private byte[] image;
+
+    /**
+     * Generate the image
+     * @throws IOException
+     */
+    @Setup
+    public void setup() throws IOException {
+        // The rotation logs the size of every image at INFO, which would measure the console instead
+        Logger.getRootLogger().setLevel(Level.WARN);
+        image = MimeCorpus.image(side, 1);
+        if (!format.equals("jpg")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(ImageIO.read(new ByteArrayInputStream(image)), format, out);
+            image = out.toByteArray();
+        }
+    }
+
+    /**
+     * Rotate the image
+     * @return The rotated image
+     * @throws IOException
+     */
+    @Benchmark
+    public byte[] rotation() throws IOException {
+        return new Rotation().imageRotation(image);
+    }
+}
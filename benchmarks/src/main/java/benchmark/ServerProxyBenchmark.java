@@ -0,0 +1,99 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import connection.Connection;
+import connection.Server;
+import proxy.Command;
+import proxy.PendingCommand;
+import proxy.ServerProxy;
+
+/**
+ * Measures the ServerProxy relaying a RETR response to the Client line by line, without transformations
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerProxyBenchmark {
+
+    /**
+     * The size of the Mail relayed, in bytes
+     */
+    @Param({"4096", "65536", "1048576"})
+    public int size;
+
+    /**
+     * The lines of the RETR response
+     */
+    private ByteBuffer[] response;
+
+    /**
+     * The Connection the response is relayed on
+     */
+    private LoopbackConnection loopback;
+
+    /**
+     * The proxy under test
+     */
+    private ServerProxy proxy;
+
+    /**
+     * Generate the response and connect the Connection
+     * @throws IOException
+     */
+    @Setup
+    public void setup() throws IOException {
+        // The proxy logs every command at INFO, which would measure the console instead
+        Logger.getRootLogger().setLevel(Level.WARN);
+        response = MimeCorpus.lines(MimeCorpus.response(size, 1));
+        loopback = new LoopbackConnection();
+        proxy = new ServerProxy(new HashMap<String, Server>());
+    }
+
+    /**
+     * Close the Connection
+     * @throws IOException
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        loopback.close();
+    }
+
+    /**
+     * Relay the response to a RETR, then drop what was queued for the Client
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ParseException
+     */
+    @Benchmark
+    public void relay() throws IOException, InterruptedException, ParseException {
+        Connection connection = loopback.get();
+        connection.addPending(new PendingCommand(Command.RETR, true));
+        for (ByteBuffer line : response) {
+            proxy.proxy(line, connection);
+        }
+        connection.getClientBuffer().getWriteBuffer().discard();
+    }
+}
@@ -0,0 +1,119 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import statistics.LatencyHistogram;
+import statistics.Statistics;
+import statistics.StatusCode;
+
+/**
+ * Compares the Statistics counters with the synchronized ones they replaced, updated from several Threads, and
+ * measures recording a latency
+ * Every invocation of the counters records what the proxy records for a relayed response line: its bytes and,
+ * on the first line, a response with its Status Code. Run with -t to change the number of Threads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class StatisticsBenchmark {
+
+    /**
+     * The synchronized counters, as Statistics kept them
+     */
+    private final Locked locked = new Locked();
+
+    /**
+     * The striped counters
+     */
+    private final Statistics statistics = Statistics.getInstance();
+
+    /**
+     * A latency histogram
+     */
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    /**
+     * The duration recorded, growing to spread over the buckets
+     */
+    private long duration;
+
+    /**
+     * Record a response line with synchronized counters
+     */
+    @Benchmark
+    public void synchronizedCounters() {
+        locked.addResponse(StatusCode.OK);
+        locked.processResponse(76);
+    }
+
+    /**
+     * Record a response line with striped counters
+     */
+    @Benchmark
+    public void stripedCounters() {
+        statistics.addResponse(StatusCode.OK);
+        statistics.processResponse(76);
+    }
+
+    /**
+     * Record a latency, which must not allocate: check with -prof gc
+     */
+    @Benchmark
+    public void latencyHistogram() {
+        duration = (duration + 7919) & 0xFFFFFFF;
+        histogram.record(duration);
+    }
+
+    /**
+     * The counters of the responses as they were kept before, behind the monitor of the singleton
+     */
+    private static class Locked {
+
+        /**
+         * The number of responses
+         */
+        private long count;
+
+        /**
+         * The number of bytes of the responses
+         */
+        private long bytes;
+
+        /**
+         * The number of responses with each Status Code
+         */
+        private long[] codes = new long[StatusCode.values().length];
+
+        /**
+         * Count a response
+         * @param code The Status Code of the response
+         */
+        synchronized void addResponse(StatusCode code) {
+            count++;
+            codes[code.ordinal()]++;
+        }
+
+        /**
+         * Count the bytes of a response
+         * @param size The number of bytes
+         */
+        synchronized void processResponse(long size) {
+            bytes += size;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package benchmark.load;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import benchmark.MimeCorpus;
+import connection.BufferUtils;
+
+/**
+ * A POP3 origin serving the same synthetic mailbox to every user, on the loopback interface
+ * Every password is accepted and DELE is acknowledged without removing anything, so sessions can be repeated
+ * forever. Responses are rendered once, so serving them costs little more than writing their bytes
+ */
+public class FakeOrigin implements Closeable {
+
+    /**
+     * The bytes of the RETR responses, by message number minus one
+     */
+    private byte[][] messages;
+
+    /**
+     * The sizes of the messages, in octets
+     */
+    private int[] octets;
+
+    /**
+     * The bytes of the responses to STAT, LIST and UIDL
+     */
+    private byte[] stat, list, uidl;
+
+    /**
+     * The socket accepting the connections
+     */
+    private ServerSocket listener;
+
+    /**
+     * The Threads serving the connections, one for each
+     */
+    private ExecutorService sessions = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "origin-session");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Generate the mailbox and start accepting connections
+     * @param port The port to listen on, or 0 for any
+     * @param count The number of messages in the mailbox
+     * @param size The approximate size of every message, in bytes
+     * @throws IOException
+     */
+    public FakeOrigin(int port, int count, int size) throws IOException {
+        messages = new byte[count][];
+        octets = new int[count];
+        long total = 0;
+        StringBuilder list = new StringBuilder("+OK " + count + " messages\r\n");
+        StringBuilder uidl = new StringBuilder("+OK\r\n");
+        for (int i = 0; i < count; i++) {
+            messages[i] = MimeCorpus.response(size, i);
+            // The status line and the ending dot are not part of the message
+            octets[i] = messages[i].length - (indexOf(messages[i], (byte) '\n') + 1) - 3;
+            total += octets[i];
+            list.append(i + 1).append(' ').append(octets[i]).append("\r\n");
+            uidl.append(i + 1).append(" msg-").append(i + 1).append("\r\n");
+        }
+        this.stat = ("+OK " + count + " " + total + "\r\n").getBytes(BufferUtils.CHARSET);
+        this.list = list.append(".\r\n").toString().getBytes(BufferUtils.CHARSET);
+        this.uidl = uidl.append(".\r\n").toString().getBytes(BufferUtils.CHARSET);
+
+        listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "origin-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Get the port the origin listens on
+     * @return The port
+     */
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    /**
+     * Accept connections until the origin is closed
+     */
+    private void accept() {
+        while (!listener.isClosed()) {
+            try {
+                final Socket socket = listener.accept();
+                sessions.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    /**
+     * Serve the commands of a connection until it sends QUIT or closes
+     * @param socket The connection
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), BufferUtils.CHARSET));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+            write(out, "+OK fake origin ready\r\n");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] command = line.split(" ");
+                String verb = command[0].toUpperCase();
+                int number = command.length > 1 ? number(command[1]) : 0;
+                boolean exists = number >= 1 && number <= messages.length;
+                if (verb.equals("QUIT")) {
+                    write(out, "+OK bye\r\n");
+                    break;
+                } else if (verb.equals("USER") || verb.equals("PASS") || verb.equals("NOOP") || verb.equals("RSET")) {
+                    write(out, "+OK\r\n");
+                } else if (verb.equals("STAT")) {
+                    out.write(stat);
+                } else if (verb.equals("LIST") && command.length == 1) {
+                    out.write(list);
+                } else if (verb.equals("UIDL") && command.length == 1) {
+                    out.write(uidl);
+                } else if (verb.equals("LIST") && exists) {
+                    write(out, "+OK " + number + " " + octets[number - 1] + "\r\n");
+                } else if (verb.equals("UIDL") && exists) {
+                    write(out, "+OK " + number + " msg-" + number + "\r\n");
+                } else if (verb.equals("RETR") && exists) {
+                    out.write(messages[number - 1]);
+                } else if (verb.equals("DELE") && exists) {
+                    write(out, "+OK message " + number + " deleted\r\n");
+                } else if (verb.equals("CAPA")) {
+                    write(out, "+OK\r\nUSER\r\nUIDL\r\n.\r\n");
+                } else {
+                    write(out, "-ERR unsupported command\r\n");
+                }
+                out.flush();
+            }
+            out.flush();
+        } catch (SocketException e) {
+            // The peer reset the connection
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Stop accepting connections
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        listener.close();
+        sessions.shutdownNow();
+    }
+
+    /**
+     * Write a reply
+     * @param out The destination
+     * @param reply The reply, including its terminator
+     * @throws IOException
+     */
+    private static void write(OutputStream out, String reply) throws IOException {
+        out.write(reply.getBytes(BufferUtils.CHARSET));
+    }
+
+    /**
+     * Read a message number
+     * @param argument The argument of the command
+     * @return The number, or 0 if it is not a number
+     */
+    private static int number(String argument) {
+        try {
+            return Integer.parseInt(argument.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Find the first occurrence of a byte
+     * @param bytes The bytes to search
+     * @param b The byte to find
+     * @return The index of the byte, or -1
+     */
+    private static int indexOf(byte[] bytes, byte b) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,356 @@
+package benchmark.load;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import config.Configuration;
+import connection.Server;
+import core.Main;
+
+/**
+ * Runs POP3 sessions through the proxy on many connections at once and reports throughput and latencies
+ * Every connection repeats USER, PASS, LIST, RETR and QUIT as a distinct user until the run ends. By default the
+ * proxy runs in this process and its default Server is a FakeOrigin, so nothing leaves the machine. Settings are
+ * System properties:
+ * <ul>
+ * <li>load.connections: the number of concurrent connections, 16</li>
+ * <li>load.duration and load.warmup: the seconds measured and the seconds before, 30 and 5</li>
+ * <li>load.messages and load.size: the messages in the mailbox and their size in bytes, 10 and 65536</li>
+ * <li>load.retrievals: the RETR commands of every session, 1</li>
+ * <li>load.embedded: if the proxy runs in this process, true; otherwise load.proxyHost and load.proxyPort locate
+ * it and load.originPort is the port of the FakeOrigin it must use</li>
+ * <li>load.logging: if the embedded proxy logs below WARN, false</li>
+ * </ul>
+ * The embedded proxy is configured like any other, with -Dproxy.name=value overriding general.properties
+ */
+public class LoadDriver {
+
+    /**
+     * The host of the proxy
+     */
+    private String host;
+
+    /**
+     * The port of the proxy
+     */
+    private int port;
+
+    /**
+     * The number of concurrent connections
+     */
+    private int connections;
+
+    /**
+     * The number of messages in the mailbox
+     */
+    private int messages;
+
+    /**
+     * The number of RETR commands of every session
+     */
+    private int retrievals;
+
+    /**
+     * The time the measured sessions start from, in nanoseconds
+     */
+    private long measureFrom;
+
+    /**
+     * The time no session starts after, in nanoseconds
+     */
+    private long end;
+
+    /**
+     * Create a driver
+     * @param host The host of the proxy
+     * @param port The port of the proxy
+     * @param connections The number of concurrent connections
+     * @param messages The number of messages in the mailbox
+     * @param retrievals The number of RETR commands of every session
+     */
+    public LoadDriver(String host, int port, int connections, int messages, int retrievals) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.messages = messages;
+        this.retrievals = retrievals;
+    }
+
+    /**
+     * Start the origin and, unless told otherwise, the proxy, then drive the load and print the report
+     * @param args Unused, settings are System properties
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int messages = Integer.getInteger("load.messages", 10);
+        int size = Integer.getInteger("load.size", 65536);
+        FakeOrigin origin = new FakeOrigin(Integer.getInteger("load.originPort", 0), messages, size);
+        String host = System.getProperty("load.proxyHost", "127.0.0.1");
+        int port;
+        if (Boolean.parseBoolean(System.getProperty("load.embedded", "true"))) {
+            if (!Boolean.getBoolean("load.logging")) {
+                Logger.getRootLogger().setLevel(Level.WARN);
+            }
+            Server server = Configuration.getInstance().getDefaultServer();
+            server.setName("127.0.0.1");
+            server.setPort(origin.getPort());
+            Thread proxy = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Main.main(new String[0]);
+                }
+            }, "proxy-main");
+            proxy.setDaemon(true);
+            proxy.start();
+            port = Configuration.getInstance().getDefaultListenerClientPort();
+            awaitListening(host, port);
+        } else {
+            port = Integer.getInteger("load.proxyPort", 4040);
+        }
+        System.out.println("Origin on port " + origin.getPort() + ", proxy on " + host + ":" + port);
+
+        int connections = Integer.getInteger("load.connections", 16);
+        int retrievals = Integer.getInteger("load.retrievals", 1);
+        LoadDriver driver = new LoadDriver(host, port, connections, messages, retrievals);
+        Result result = driver.run(Integer.getInteger("load.warmup", 5), Integer.getInteger("load.duration", 30));
+        System.out.println(connections + " connections, " + messages + " messages of " + size + " bytes, "
+                + retrievals + " RETR per session");
+        result.print(System.out);
+        origin.close();
+        System.exit(0);
+    }
+
+    /**
+     * Wait until a port accepts connections
+     * @param host The host
+     * @param port The port
+     * @throws IOException If the port does not accept connections after 10 seconds
+     * @throws InterruptedException
+     */
+    private static void awaitListening(String host, int port) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            try {
+                new Socket(host, port).close();
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Run the sessions on every connection until the time is up
+     * @param warmup The seconds the sessions run before being measured
+     * @param duration The seconds the sessions are measured
+     * @return The measures
+     * @throws InterruptedException
+     */
+    public Result run(int warmup, int duration) throws InterruptedException {
+        measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup);
+        end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+        Worker[] workers = new Worker[connections];
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            workers[i] = new Worker(i);
+            threads[i] = new Thread(workers[i], "load-" + i);
+            threads[i].start();
+        }
+        Result result = new Result();
+        long last = measureFrom;
+        for (int i = 0; i < connections; i++) {
+            threads[i].join();
+            result.add(workers[i]);
+            last = Math.max(last, workers[i].last);
+        }
+        result.elapsed = last - measureFrom;
+        return result;
+    }
+
+    /**
+     * A connection repeating sessions
+     */
+    private class Worker implements Runnable {
+
+        /**
+         * The number of the connection, which names its user
+         */
+        private int id;
+
+        /**
+         * The durations of the measured sessions
+         */
+        private Samples sessions = new Samples();
+
+        /**
+         * The durations of the measured RETR commands, from sending them to their last byte
+         */
+        private Samples retrieved = new Samples();
+
+        /**
+         * The durations from sending the measured RETR commands to their first byte
+         */
+        private Samples firstBytes = new Samples();
+
+        /**
+         * The number of measured sessions that failed
+         */
+        private long errors;
+
+        /**
+         * The number of bytes of the measured RETR responses
+         */
+        private long bytes;
+
+        /**
+         * The time the last measured session ended, in nanoseconds
+         */
+        private long last;
+
+        /**
+         * Create a connection
+         * @param id The number of the connection
+         */
+        Worker(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            Random random = new Random(id);
+            while (System.nanoTime() < end) {
+                long start = System.nanoTime();
+                boolean measured = start >= measureFrom;
+                try (Pop3Client client = new Pop3Client(host, port)) {
+                    expect(client, false);
+                    client.send("USER user" + id);
+                    expect(client, false);
+                    client.send("PASS secret");
+                    expect(client, false);
+                    client.send("LIST");
+                    expect(client, true);
+                    for (int i = 0; i < retrievals; i++) {
+                        long sent = System.nanoTime();
+                        client.send("RETR " + (random.nextInt(messages) + 1));
+                        long length = expect(client, true);
+                        if (measured) {
+                            retrieved.add(System.nanoTime() - sent);
+                            firstBytes.add(client.getFirstByte() - sent);
+                            bytes += length;
+                        }
+                    }
+                    client.send("QUIT");
+                    expect(client, false);
+                    if (measured) {
+                        last = System.nanoTime();
+                        sessions.add(last - start);
+                    }
+                } catch (IOException e) {
+                    if (measured) {
+                        errors++;
+                        last = System.nanoTime();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Read a response, which must be positive
+         * @param client The client reading it
+         * @param multiLine If the response spans several lines
+         * @return The number of bytes of the response
+         * @throws IOException If the response was negative or the connection failed
+         */
+        private long expect(Pop3Client client, boolean multiLine) throws IOException {
+            long length = client.response(multiLine);
+            if (!client.isOk()) {
+                throw new IOException("Negative response");
+            }
+            return length;
+        }
+    }
+
+    /**
+     * The measures of every connection
+     */
+    public static class Result {
+
+        /**
+         * The durations of the sessions
+         */
+        private Samples sessions = new Samples();
+
+        /**
+         * The durations of the RETR commands
+         */
+        private Samples retrieved = new Samples();
+
+        /**
+         * The times to first byte of the RETR commands
+         */
+        private Samples firstBytes = new Samples();
+
+        /**
+         * The number of sessions that failed
+         */
+        private long errors;
+
+        /**
+         * The number of bytes retrieved
+         */
+        private long bytes;
+
+        /**
+         * The time from the end of the warmup to the end of the last session, in nanoseconds
+         */
+        private long elapsed;
+
+        /**
+         * Add the measures of a connection
+         * @param worker The connection
+         */
+        private void add(Worker worker) {
+            sessions.addAll(worker.sessions);
+            retrieved.addAll(worker.retrieved);
+            firstBytes.addAll(worker.firstBytes);
+            errors += worker.errors;
+            bytes += worker.bytes;
+        }
+
+        /**
+         * Print the throughput and the latencies
+         * @param out The destination
+         */
+        public void print(PrintStream out) {
+            double seconds = Math.max(elapsed, 1) / 1e9;
+            out.printf("Sessions:  %d in %.1f s (%.1f/s), %d errors%n", sessions.size(), seconds,
+                    sessions.size() / seconds, errors);
+            out.printf("Retrieved: %d messages, %.1f MB (%.1f MB/s)%n", retrieved.size(), bytes / 1e6,
+                    bytes / 1e6 / seconds);
+            out.printf("%-18s %10s %10s %10s%n", "Latency (ms)", "p50", "p99", "max");
+            line(out, "session", sessions);
+            line(out, "RETR", retrieved);
+            line(out, "RETR first byte", firstBytes);
+        }
+
+        /**
+         * Print the percentiles of a duration
+         * @param out The destination
+         * @param name The name of the duration
+         * @param samples The durations
+         */
+        private void line(PrintStream out, String name, Samples samples) {
+            out.printf("%-18s %10.2f %10.2f %10.2f%n", name, samples.percentile(50), samples.percentile(99),
+                    samples.percentile(100));
+        }
+    }
+}
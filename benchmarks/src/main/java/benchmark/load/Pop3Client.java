@@ -0,0 +1,178 @@
+package benchmark.load;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import connection.BufferUtils;
+
+/**
+ * A blocking POP3 client that reads responses without keeping them, only counting their bytes
+ * The time the first byte of every response arrived is recorded, to measure the time to first byte
+ */
+public class Pop3Client implements Closeable {
+
+    /**
+     * The connection to the proxy
+     */
+    private Socket socket;
+
+    /**
+     * The stream the responses are read from
+     */
+    private InputStream in;
+
+    /**
+     * The stream the commands are written to
+     */
+    private OutputStream out;
+
+    /**
+     * The bytes read and not consumed yet
+     */
+    private byte[] buffer = new byte[64 * 1024];
+
+    /**
+     * The position of the next byte to consume
+     */
+    private int position;
+
+    /**
+     * The number of bytes in the buffer
+     */
+    private int limit;
+
+    /**
+     * If the first byte of the response being read arrived
+     */
+    private boolean started;
+
+    /**
+     * The time the first byte of the last response arrived, in nanoseconds
+     */
+    private long firstByte;
+
+    /**
+     * If the last response was positive
+     */
+    private boolean ok;
+
+    /**
+     * Connect to a proxy
+     * @param host The host of the proxy
+     * @param port The port of the proxy
+     * @throws IOException
+     */
+    public Pop3Client(String host, int port) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port));
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+    }
+
+    /**
+     * Send a command
+     * @param command The command, without its terminator
+     * @throws IOException
+     */
+    public void send(String command) throws IOException {
+        out.write((command + "\r\n").getBytes(BufferUtils.CHARSET));
+        out.flush();
+    }
+
+    /**
+     * Read a response
+     * @param multiLine If a positive response spans several lines
+     * @return The number of bytes of the response
+     * @throws IOException If the connection failed or was closed
+     */
+    public long response(boolean multiLine) throws IOException {
+        started = false;
+        long length = 0;
+        byte first = next();
+        length++;
+        while (next() != '\n') {
+            length++;
+        }
+        length++;
+        ok = first == '+';
+        if (!ok || !multiLine) {
+            return length;
+        }
+        // 0: inside a line, 1: at the start of a line, 2: after a dot starting a line, 3: after ".\r"
+        int state = 1;
+        while (true) {
+            byte b = next();
+            length++;
+            switch (state) {
+            case 1:
+                state = b == '.' ? 2 : b == '\n' ? 1 : 0;
+                break;
+            case 2:
+                state = b == '\r' ? 3 : b == '\n' ? 1 : 0;
+                break;
+            case 3:
+                if (b == '\n') {
+                    return length;
+                }
+                state = 0;
+                break;
+            default:
+                if (b == '\n') {
+                    state = 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Consume the next byte, reading when none is left
+     * @return The byte
+     * @throws IOException If the connection failed or was closed
+     */
+    private byte next() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer);
+            position = 0;
+            if (limit < 0) {
+                limit = 0;
+                throw new EOFException("Connection closed by the proxy");
+            }
+        }
+        if (!started) {
+            started = true;
+            firstByte = System.nanoTime();
+        }
+        return buffer[position++];
+    }
+
+    /**
+     * Get the time the first byte of the last response arrived
+     * @return The time, in nanoseconds
+     */
+    public long getFirstByte() {
+        return firstByte;
+    }
+
+    /**
+     * Check if the last response was positive
+     * @return If the response started with +OK
+     */
+    public boolean isOk() {
+        return ok;
+    }
+
+    /**
+     * Close the connection
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,72 @@
+package benchmark.load;
+
+import java.util.Arrays;
+
+/**
+ * A growing list of durations, sorted to read its percentiles
+ * Only used by one Thread until the samples of every Thread are merged
+ */
+public class Samples {
+
+    /**
+     * The durations, in nanoseconds
+     */
+    private long[] values = new long[1024];
+
+    /**
+     * The number of durations
+     */
+    private int count;
+
+    /**
+     * If the values are sorted
+     */
+    private boolean sorted;
+
+    /**
+     * Add a duration
+     * @param nanos The duration, in nanoseconds
+     */
+    public void add(long nanos) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+        }
+        values[count++] = nanos;
+        sorted = false;
+    }
+
+    /**
+     * Add every duration of other samples
+     * @param other The samples to add
+     */
+    public void addAll(Samples other) {
+        for (int i = 0; i < other.count; i++) {
+            add(other.values[i]);
+        }
+    }
+
+    /**
+     * Get the number of durations
+     * @return The number of durations
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Get a percentile
+     * @param percentile The percentile, between 0 and 100
+     * @return The duration, in milliseconds, or 0 if there are no samples
+     */
+    public double percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        if (!sorted) {
+            Arrays.sort(values, 0, count);
+            sorted = true;
+        }
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return values[Math.max(0, Math.min(count - 1, index))] / 1e6;
+    }
+}
@@ -1,6 +1,7 @@
 package admin;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -9,9 +10,12 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import connection.Server;
 import proxy.AdminCommand;
+import proxy.CommandParser;
 import config.Configuration;
 import connection.AdminConnection;
 import connection.AdminState;
+import connection.OutboundQueue;
+import statistics.Latencies;
 import statistics.Statistics;
 import transformations.Leetifier;
 import transformations.Rotation;
@@ -24,6 +28,11 @@ public class Admin {
     private static final String UNKNOWN_COMMAND = "-ERR Unknown command\r\n";
     private AtomicBoolean finished;
 
+    /**
+     * The parser of the commands, only used by the admin event loop
+     */
+    private CommandParser<AdminCommand> command = new CommandParser<>(AdminCommand.class, AdminCommand.UNKNOWN);
+
     /**
      * An Admin to parse and execute the commands from our protocol
      */
@@ -36,21 +45,15 @@ public class Admin {
 
     /**
      * Parses the corresponding line and executes the command
+     * @param line The line read, including its terminator
      */
-    public void parse(String line, AdminConnection connection) throws IOException, InterruptedException {
+    public void parse(ByteBuffer line, AdminConnection connection) throws IOException, InterruptedException {
 
-        String command[] = line.split(" ");
-        AdminCommand adminCommand;
-
-        try {
-            adminCommand = AdminCommand.valueOf(command[0].trim().toUpperCase());
-        } catch(IllegalArgumentException e) {
-            adminCommand = AdminCommand.UNKNOWN;
-        }
+        AdminCommand adminCommand = command.parse(line);
         switch(adminCommand) {
 
             case AUTH:
-                if (connection.getState() == AdminState.AUTHORIZATION_ADMIN && command.length == 2 && command[1].equals(pass)) {
+                if (connection.getState() == AdminState.AUTHORIZATION_ADMIN && command.getArgumentCount() == 1 && pass.equals(command.getArgument(0))) {
                     connection.setState(AdminState.TRANSACTION);
                     connection.setLastCommand(AdminCommand.AUTH);
                     writeToChannel(connection.getChannel(), "+OK Welcome master\r\n", connection.getBuffer().getWriteBuffer(), adminSelector);
@@ -59,7 +62,7 @@ public class Admin {
                 }
                 break;
             case LISTUSERS:
-                if (connection.getState() == AdminState.TRANSACTION && command.length == 1) {
+                if (connection.getState() == AdminState.TRANSACTION && command.getArgumentCount() == 0) {
                     writeToChannel(connection.getChannel(), "+OK " + userToServerMap.keySet().size() + " users", connection.getBuffer().getWriteBuffer(), adminSelector);
                     for (String name : userToServerMap.keySet()) {
                         writeToChannel(connection.getChannel(), name + "\r\n", connection.getBuffer().getWriteBuffer(), adminSelector);
@@ -71,22 +74,32 @@ public class Admin {
                 }
                 break;
             case SETSERVER:
-                if (connection.getState() == AdminState.TRANSACTION && command.length == 4 && command[3].matches("^-?[0-9]+(\\.[0-9]+)?$")) {
-                    userToServerMap.put(command[1], new Server(command[2], Integer.parseInt(command[3])));
-                    writeToChannel(connection.getChannel(), "+OK Server " + command[2] + ":" + command[3] + " set for " + command[1] + "\r\n", connection.getBuffer().getWriteBuffer(), adminSelector);
+                if (connection.getState() == AdminState.TRANSACTION && command.getArgumentCount() == 3 && command.getNumber(2) != -1) {
+                    String user = command.getArgument(0);
+                    String host = command.getArgument(1);
+                    int port = command.getNumber(2);
+                    userToServerMap.put(user, new Server(host, port));
+                    writeToChannel(connection.getChannel(), "+OK Server " + host + ":" + port + " set for " + user + "\r\n", connection.getBuffer().getWriteBuffer(), adminSelector);
                 } else {
                     writeToChannel(connection.getChannel(), UNKNOWN_COMMAND, connection.getBuffer().getWriteBuffer(), adminSelector);
                 }
                 break;
             case RETRSTATS:
-                if (connection.getState() == AdminState.TRANSACTION && command.length == 1) {
+                if (connection.getState() == AdminState.TRANSACTION && command.getArgumentCount() == 0) {
                     writeToChannel(connection.getChannel(), Statistics.getInstance().getCondensedStatistics(), connection.getBuffer().getWriteBuffer(), adminSelector);
                 } else {
                     writeToChannel(connection.getChannel(), UNKNOWN_COMMAND, connection.getBuffer().getWriteBuffer(), adminSelector);
                 }
                 break;
+            case LATENCY:
+                if (connection.getState() == AdminState.TRANSACTION && command.getArgumentCount() == 0) {
+                    writeToChannel(connection.getChannel(), Latencies.getInstance().getCondensedLatencies(), connection.getBuffer().getWriteBuffer(), adminSelector);
+                } else {
+                    writeToChannel(connection.getChannel(), UNKNOWN_COMMAND, connection.getBuffer().getWriteBuffer(), adminSelector);
+                }
+                break;
             case TOGGLELEET:
-                if (connection.getState() == AdminState.TRANSACTION && command.length == 1) {
+                if (connection.getState() == AdminState.TRANSACTION && command.getArgumentCount() == 0) {
                     boolean v;
                     do {
                         v = Leetifier.enabled.get();
@@ -102,7 +115,7 @@ public class Admin {
                 }
                 break;
             case TOGGLEROTATION:
-                if (connection.getState() == AdminState.TRANSACTION && command.length == 1) {
+                if (connection.getState() == AdminState.TRANSACTION && command.getArgumentCount() == 0) {
                     boolean v;
                     do {
                         v = Rotation.enabled.get();
@@ -118,7 +131,7 @@ public class Admin {
                 }
                 break;
             case FINALIZE:
-                if (connection.getState() == AdminState.TRANSACTION && command.length == 1) {
+                if (connection.getState() == AdminState.TRANSACTION && command.getArgumentCount() == 0) {
                     finished.set(true);
                 } else {
                     writeToChannel(connection.getChannel(), UNKNOWN_COMMAND, connection.getBuffer().getWriteBuffer(), adminSelector);
@@ -144,9 +157,9 @@ public class Admin {
      * @throws InterruptedException
      * @throws IOException
      */
-    protected void writeToChannel(SocketChannel channel, String line, StringBuffer buffer, Selector selector) throws InterruptedException, IOException{
+    protected void writeToChannel(SocketChannel channel, String line, OutboundQueue buffer, Selector selector) throws InterruptedException, IOException{
         SelectionKey key = channel.keyFor(selector);
-        buffer.append(line);
+        buffer.add(line);
         key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
     }
 }
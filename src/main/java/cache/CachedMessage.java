@@ -0,0 +1,108 @@
+package cache;
+
+import connection.OutboundQueue;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A transformed RETR response found in the MessageCache, held until it is sent to a Client
+ * A response held in memory is shared by every Client it is sent to. One held on disk is read through a channel
+ * opened when it was found, so it stays readable even if the cache drops its file meanwhile
+ */
+public class CachedMessage {
+
+    /**
+     * The class Logger
+     */
+    private static transient Logger LOGGER = Logger.getLogger(CachedMessage.class);
+
+    /**
+     * The bytes of the response held in memory, or null
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * The file holding the response, or null
+     */
+    private FileChannel file;
+
+    /**
+     * The size of the response
+     */
+    private long size;
+
+    /**
+     * Hold a response found in memory
+     * @param buffer A view of the bytes of the response
+     */
+    CachedMessage(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.size = buffer.remaining();
+    }
+
+    /**
+     * Hold a response found on disk
+     * @param file The channel opened on its file
+     * @param size The size of the response
+     */
+    CachedMessage(FileChannel file, long size) {
+        this.file = file;
+        this.size = size;
+    }
+
+    /**
+     * Get the size of the response
+     * @return The size, in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Queue the response to be sent to a channel, without copying it
+     * The file is closed once it was sent, the CachedMessage must not be used afterwards
+     * @param queue The queue of the channel
+     */
+    public void sendTo(OutboundQueue queue) {
+        if (buffer != null) {
+            queue.addBuffer(buffer);
+            buffer = null;
+            return;
+        }
+        final FileChannel sent = file;
+        file = null;
+        queue.addRegion(sent, 0, size);
+        queue.addTask(new Runnable() {
+            @Override
+            public void run() {
+                close(sent);
+            }
+        });
+    }
+
+    /**
+     * Drop the response without sending it
+     */
+    public void release() {
+        buffer = null;
+        if (file != null) {
+            close(file);
+            file = null;
+        }
+    }
+
+    /**
+     * Close the file of a response
+     * @param channel The channel opened on the file
+     */
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.error("Error closing cached message.");
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package cache;
+
+/**
+ * An approximate count of how often keys were seen lately, the TinyLFU admission filter of the MessageCache
+ * A count-min sketch of 4-bit counters: every key increments one counter in each of four rows and its
+ * frequency is the smallest of them. Once enough increments were recorded every counter is halved, so the
+ * counts follow what is popular now
+ */
+public class FrequencySketch {
+
+    /**
+     * The seeds of the hashes of the four rows
+     */
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    /**
+     * The mask clearing the bit a counter gets from its neighbour when the table is halved
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * The mask of the lowest bit of every counter
+     */
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    /**
+     * The largest count of a counter
+     */
+    private static final int MAX_COUNT = 15;
+
+    /**
+     * The counters, sixteen per long
+     */
+    private long[] table;
+
+    /**
+     * The number of longs of the table minus one, a power of two minus one
+     */
+    private int mask;
+
+    /**
+     * The number of increments after which the counters are halved
+     */
+    private int sampleSize;
+
+    /**
+     * The number of increments since the counters were last halved
+     */
+    private int size;
+
+    /**
+     * Create the sketch
+     * @param maximum The number of keys the counts should be accurate for
+     */
+    public FrequencySketch(int maximum) {
+        int length = 16;
+        while (length < maximum && length < (1 << 24)) {
+            length <<= 1;
+        }
+        this.table = new long[length];
+        this.mask = length - 1;
+        this.sampleSize = 10 * length;
+    }
+
+    /**
+     * Get the approximate number of times a key was seen lately
+     * @param hash The hash of the key
+     * @return The count, at most 15
+     */
+    public int frequency(int hash) {
+        int spread = spread(hash);
+        int start = (spread & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(spread, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Record that a key was seen, halving every count once enough keys were recorded
+     * @param hash The hash of the key
+     */
+    public void increment(int hash) {
+        int spread = spread(hash);
+        int start = (spread & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(spread, i), start + i);
+        }
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Increment a counter unless it is saturated
+     * @param index The long holding the counter
+     * @param counter The position of the counter in the long
+     * @return If the counter was incremented
+     */
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long counterMask = 0xfL << offset;
+        if ((table[index] & counterMask) != counterMask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halve every counter
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (odd >>> 2)) >>> 1;
+    }
+
+    /**
+     * Get the long of a row holding the counter of a key
+     * @param hash The spread hash of the key
+     * @param row The row
+     * @return The index of the long
+     */
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    /**
+     * Mix a hash, so keys differing in few bits use unrelated counters
+     * @param hash The hash of the key
+     * @return The spread hash
+     */
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
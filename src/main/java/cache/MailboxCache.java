@@ -0,0 +1,172 @@
+package cache;
+
+import config.Configuration;
+import connection.Server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton
+ * The last LIST and UIDL responses of every maildrop, so polling Clients are answered without the Server
+ * listing a maildrop that did not change
+ * A session checks a snapshot once, with STAT and the UIDL of its last message, then answers its listings from it
+ * until it deletes a message. Sessions that delete messages drop the snapshot of their maildrop. The least
+ * recently used snapshots are dropped once there are too many
+ */
+public class MailboxCache {
+
+    /**
+     * The MailboxCache instance
+     */
+    private static MailboxCache instance;
+
+    /**
+     * The snapshots, by Server and user, in LRU order
+     */
+    private Map<String, MailboxSnapshot> snapshots;
+
+    /**
+     * The listings answered from a snapshot
+     */
+    private AtomicLong hits = new AtomicLong();
+
+    /**
+     * The checks sent to Servers, and the ones that found the snapshot outdated
+     */
+    private AtomicLong checks = new AtomicLong(), stale = new AtomicLong();
+
+    /**
+     * The snapshots dropped because a session changed their maildrop
+     */
+    private AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Load the number of snapshots kept
+     */
+    private MailboxCache() {
+        final int maxEntries = Configuration.getInstance().getMailboxCacheSize();
+        this.snapshots = new LinkedHashMap<String, MailboxSnapshot>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MailboxSnapshot> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get singleton
+     * @return The MailboxCache instance
+     */
+    public static synchronized MailboxCache getInstance() {
+        if (instance == null) {
+            instance = new MailboxCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Check if mailbox listings are cached
+     * @return If the mailbox cache is enabled
+     */
+    public static boolean isEnabled() {
+        return Configuration.getInstance().isMailboxCache();
+    }
+
+    /**
+     * Get the key of a maildrop
+     * @param server The Server holding the maildrop
+     * @param user The owner of the maildrop
+     * @return The key
+     */
+    public static String key(Server server, String user) {
+        return server.getName() + ":" + server.getPort() + "/" + user;
+    }
+
+    /**
+     * Get the snapshot of a maildrop
+     * @param key The key of the maildrop
+     * @return The snapshot, to be checked before it is used, or null
+     */
+    public synchronized MailboxSnapshot get(String key) {
+        return snapshots.get(key);
+    }
+
+    /**
+     * Keep the snapshot of a maildrop, replacing the previous one
+     * @param key The key of the maildrop
+     * @param snapshot The snapshot
+     */
+    public synchronized void put(String key, MailboxSnapshot snapshot) {
+        snapshots.put(key, snapshot);
+    }
+
+    /**
+     * Drop the snapshot of a maildrop that changed, or may change
+     * @param key The key of the maildrop
+     */
+    public synchronized void invalidate(String key) {
+        if (snapshots.remove(key) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record a listing answered from a snapshot
+     */
+    public void hit() {
+        hits.incrementAndGet();
+    }
+
+    /**
+     * Record the outcome of a check
+     * @param current If the snapshot was current
+     */
+    public void checked(boolean current) {
+        checks.incrementAndGet();
+        if (!current) {
+            stale.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the listings answered from a snapshot
+     * @return The number of listings answered from a snapshot
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the checks sent to Servers
+     * @return The number of checks
+     */
+    public long getChecks() {
+        return checks.get();
+    }
+
+    /**
+     * Get the checks that found the snapshot outdated
+     * @return The number of outdated snapshots
+     */
+    public long getStale() {
+        return stale.get();
+    }
+
+    /**
+     * Get the snapshots dropped because a session changed their maildrop
+     * @return The number of invalidations
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Get the number of snapshots kept
+     * @return The number of snapshots
+     */
+    public synchronized int size() {
+        return snapshots.size();
+    }
+}
@@ -0,0 +1,126 @@
+package cache;
+
+import connection.BufferUtils;
+import proxy.Command;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the multi-line LIST and UIDL responses relayed during a session into a MailboxSnapshot
+ * A response is only kept if it numbers the messages from one without gaps, and the snapshot only once both
+ * responses list the same number of messages
+ */
+public class MailboxCapture {
+
+    /**
+     * Bytes of the line ending a multi-line response
+     */
+    private static final byte[] END_LINE = ".\r\n".getBytes(BufferUtils.CHARSET), ERR = "-ERR".getBytes(BufferUtils.CHARSET);
+
+    /**
+     * The response being collected, or null if it is not kept
+     */
+    private StringBuilder response;
+
+    /**
+     * The values listed by the response being collected, by message number minus one
+     */
+    private List<String> values = new ArrayList<>();
+
+    /**
+     * The last complete LIST response, or null
+     */
+    private String list;
+
+    /**
+     * The sizes it listed
+     */
+    private long[] sizes;
+
+    /**
+     * The last complete UIDL response, or null
+     */
+    private String uidl;
+
+    /**
+     * The unique ids it listed
+     */
+    private String[] uids;
+
+    /**
+     * Collect a line of a multi-line LIST or UIDL response
+     * @param command LIST_MULTI or UIDL_MULTI
+     * @param line The line, left untouched
+     * @param first If it is the status line
+     * @return The snapshot, once both responses were collected, or null
+     * @throws IOException
+     */
+    public MailboxSnapshot line(Command command, ByteBuffer line, boolean first) throws IOException {
+        if (first) {
+            values.clear();
+            response = BufferUtils.startsWith(line, ERR) ? null : new StringBuilder(BufferUtils.bufferToString(line));
+            return null;
+        }
+        if (response == null) {
+            return null;
+        }
+        String text = BufferUtils.bufferToString(line);
+        response.append(text);
+        if (BufferUtils.equals(line, END_LINE)) {
+            return end(command);
+        }
+        String[] fields = MailboxListing.fields(text);
+        if (fields == null || !fields[0].equals(String.valueOf(values.size() + 1))) {
+            // Messages deleted in the session leave gaps
+            response = null;
+            return null;
+        }
+        values.add(fields[1]);
+        return null;
+    }
+
+    /**
+     * Keep a complete response, building the snapshot if the other one was kept
+     * @param command LIST_MULTI or UIDL_MULTI
+     * @return The snapshot, or null
+     */
+    private MailboxSnapshot end(Command command) {
+        if (command == Command.LIST_MULTI) {
+            long[] listed = new long[values.size()];
+            try {
+                for (int i = 0; i < listed.length; i++) {
+                    listed[i] = Long.parseLong(values.get(i));
+                }
+            } catch (NumberFormatException e) {
+                response = null;
+                return null;
+            }
+            list = response.toString();
+            sizes = listed;
+        } else {
+            uidl = response.toString();
+            uids = values.toArray(new String[values.size()]);
+        }
+        response = null;
+        if (list == null || uidl == null || sizes.length != uids.length) {
+            return null;
+        }
+        MailboxSnapshot snapshot = new MailboxSnapshot(list, uidl, sizes, uids);
+        clear();
+        return snapshot;
+    }
+
+    /**
+     * Drop what was collected, once the maildrop may have changed
+     */
+    public void clear() {
+        response = null;
+        list = null;
+        uidl = null;
+        sizes = null;
+        uids = null;
+    }
+}
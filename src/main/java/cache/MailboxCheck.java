@@ -0,0 +1,98 @@
+package cache;
+
+import proxy.Command;
+
+/**
+ * A check that a cached MailboxSnapshot is still current, sent to the Server in place of a listing
+ * The Server is asked for STAT and for the unique id of the last message of the snapshot; the listing
+ * is only sent to it if they differ
+ */
+public class MailboxCheck {
+
+    /**
+     * The snapshot checked
+     */
+    private MailboxSnapshot snapshot;
+
+    /**
+     * The listing the Client asked for, LIST_MULTI or UIDL_MULTI
+     */
+    private Command command;
+
+    /**
+     * The listing Command, as the Client sent it
+     */
+    private String line;
+
+    /**
+     * If the replies read so far match the snapshot
+     */
+    private boolean current = true;
+
+    /**
+     * Create a check
+     * @param snapshot The snapshot checked
+     * @param command The listing the Client asked for, LIST_MULTI or UIDL_MULTI
+     * @param line The listing Command, including its terminator
+     */
+    public MailboxCheck(MailboxSnapshot snapshot, Command command, String line) {
+        this.snapshot = snapshot;
+        this.command = command;
+        this.line = line;
+    }
+
+    /**
+     * Compare the reply to STAT with the snapshot
+     * @param reply The reply, without its terminator
+     */
+    public void stat(String reply) {
+        String[] fields = reply.trim().split("\\s+");
+        try {
+            current &= fields.length >= 3 && fields[0].equals("+OK") && Integer.parseInt(fields[1]) == snapshot.getCount()
+                    && Long.parseLong(fields[2]) == snapshot.getSize();
+        } catch (NumberFormatException e) {
+            current = false;
+        }
+    }
+
+    /**
+     * Compare the reply to the UIDL of the last message with the snapshot
+     * @param reply The reply, without its terminator
+     */
+    public void uid(String reply) {
+        String[] fields = MailboxListing.fields(reply);
+        current &= reply.startsWith("+OK") && fields != null && fields[1].equals(snapshot.getLastUid());
+    }
+
+    /**
+     * Check if the replies read match the snapshot
+     * @return If the snapshot is current
+     */
+    public boolean isCurrent() {
+        return current;
+    }
+
+    /**
+     * Get the snapshot checked
+     * @return The snapshot checked
+     */
+    public MailboxSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Get the listing the Client asked for
+     * @return LIST_MULTI or UIDL_MULTI
+     */
+    public Command getCommand() {
+        return command;
+    }
+
+    /**
+     * Get the listing Command, as the Client sent it
+     * @return The Command, including its terminator
+     */
+    public String getLine() {
+        return line;
+    }
+}
@@ -0,0 +1,114 @@
+package cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The unique ids and sizes the Server listed for the messages of a maildrop during a session
+ * Messages are numbered per session, so the listing is what turns a RETR into a key of the MessageCache
+ */
+public class MailboxListing {
+
+    /**
+     * The unique ids, by message number
+     */
+    private Map<Integer, String> uids = new HashMap<>();
+
+    /**
+     * The sizes, by message number
+     */
+    private Map<Integer, Long> sizes = new HashMap<>();
+
+    /**
+     * Record a line listing a unique id, either "n uid" or "+OK n uid"
+     * @param line The line, without its terminator
+     */
+    public void uidLine(String line) {
+        String[] fields = fields(line);
+        if (fields != null) {
+            uids.put(Integer.valueOf(fields[0]), fields[1]);
+        }
+    }
+
+    /**
+     * Record a line listing a size, either "n size" or "+OK n size"
+     * @param line The line, without its terminator
+     */
+    public void sizeLine(String line) {
+        String[] fields = fields(line);
+        if (fields != null) {
+            try {
+                sizes.put(Integer.valueOf(fields[0]), Long.valueOf(fields[1]));
+            } catch (NumberFormatException e) {
+                // Not a size, the message is not cached
+            }
+        }
+    }
+
+    /**
+     * Split a listing line into a message number and a value
+     * @param line The line, without its terminator
+     * @return The number and the value, or null if the line lists neither
+     */
+    static String[] fields(String line) {
+        String[] fields = line.trim().split("\\s+");
+        int first = fields.length > 0 && fields[0].startsWith("+") ? 1 : 0;
+        if (fields.length < first + 2) {
+            return null;
+        }
+        try {
+            Integer.parseInt(fields[first]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new String[] { fields[first], fields[first + 1] };
+    }
+
+    /**
+     * Get the unique id of a message
+     * @param message The message number
+     * @return The unique id, or null if it was not listed
+     */
+    public String getUid(int message) {
+        return uids.get(message);
+    }
+
+    /**
+     * Get the size of a message
+     * @param message The message number
+     * @return The size, or -1 if it was not listed
+     */
+    public long getSize(int message) {
+        Long size = sizes.get(message);
+        return size == null ? -1 : size;
+    }
+
+    /**
+     * Replace the listing with the messages of a snapshot
+     * @param snapshot The cached listing of the maildrop
+     */
+    public void load(MailboxSnapshot snapshot) {
+        clear();
+        for (int message = 1; message <= snapshot.getCount(); message++) {
+            uids.put(message, snapshot.getUid(message));
+            sizes.put(message, snapshot.getSize(message));
+        }
+    }
+
+    /**
+     * Forget a message, once it was deleted
+     * @param message The message number
+     */
+    public void remove(int message) {
+        uids.remove(message);
+        sizes.remove(message);
+    }
+
+    /**
+     * Forget every message, when another maildrop is opened
+     */
+    public void clear() {
+        uids.clear();
+        sizes.clear();
+    }
+}
@@ -0,0 +1,104 @@
+package cache;
+
+import proxy.Command;
+
+/**
+ * The multi-line LIST and UIDL responses of a maildrop, as a session that had not changed it got them
+ * A snapshot is still current if the Server reports the same number of messages and total size, and the
+ * same unique id for the last message: messages are only appended, and a deletion changes the count
+ */
+public class MailboxSnapshot {
+
+    /**
+     * The LIST response, from the status line to the terminating dot
+     */
+    private String list;
+
+    /**
+     * The UIDL response, from the status line to the terminating dot
+     */
+    private String uidl;
+
+    /**
+     * The sizes of the messages, by message number minus one
+     */
+    private long[] sizes;
+
+    /**
+     * The unique ids of the messages, by message number minus one
+     */
+    private String[] uids;
+
+    /**
+     * The total size of the messages
+     */
+    private long size;
+
+    /**
+     * Create a snapshot
+     * @param list The LIST response
+     * @param uidl The UIDL response
+     * @param sizes The sizes of the messages, numbered from one
+     * @param uids The unique ids of the messages, numbered from one
+     */
+    public MailboxSnapshot(String list, String uidl, long[] sizes, String[] uids) {
+        this.list = list;
+        this.uidl = uidl;
+        this.sizes = sizes;
+        this.uids = uids;
+        for (long messageSize : sizes) {
+            this.size += messageSize;
+        }
+    }
+
+    /**
+     * Get the response to a multi-line listing
+     * @param command LIST_MULTI or UIDL_MULTI
+     * @return The response, including its terminating dot
+     */
+    public String getResponse(Command command) {
+        return command == Command.UIDL_MULTI ? uidl : list;
+    }
+
+    /**
+     * Get the number of messages
+     * @return The number of messages
+     */
+    public int getCount() {
+        return sizes.length;
+    }
+
+    /**
+     * Get the total size of the messages, as STAT reports it
+     * @return The total size, in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Get the unique id of the last message
+     * @return The unique id, or null if the maildrop is empty
+     */
+    public String getLastUid() {
+        return uids.length == 0 ? null : uids[uids.length - 1];
+    }
+
+    /**
+     * Get the size of a message
+     * @param message The message number
+     * @return The size, in bytes
+     */
+    long getSize(int message) {
+        return sizes[message - 1];
+    }
+
+    /**
+     * Get the unique id of a message
+     * @param message The message number
+     * @return The unique id
+     */
+    String getUid(int message) {
+        return uids[message - 1];
+    }
+}
@@ -0,0 +1,563 @@
+package cache;
+
+import config.Configuration;
+import mail.Spool;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton
+ * A size-bounded cache of transformed RETR responses, so a message fetched again is served without the Server
+ * or the transformers
+ * Responses are held in memory under W-TinyLFU eviction: new ones enter a small LRU window, and leaving it they
+ * only displace the least recently used response of the main space if the FrequencySketch saw them more often.
+ * The main space is split in a probation segment and a protected one for responses hit again. Responses leaving
+ * the memory, and the ones too large for it, are written to files kept in LRU order. The lookups of every event
+ * loop take the same lock, but only once per RETR; files are written without holding it
+ */
+public class MessageCache {
+
+    /**
+     * The class Logger
+     */
+    private static transient Logger LOGGER = Logger.getLogger(MessageCache.class);
+
+    /**
+     * The MessageCache instance
+     */
+    private static MessageCache instance;
+
+    /**
+     * The prefix and suffix of the files of the cache
+     */
+    private static final String FILE_PREFIX = "message", FILE_SUFFIX = ".cache";
+
+    /**
+     * The size of the copies between streams and buffers
+     */
+    private static final int COPY_SIZE = 16 * 1024;
+
+    /**
+     * The size of a typical response, to size the FrequencySketch
+     */
+    private static final int TYPICAL_SIZE = 32 * 1024;
+
+    /**
+     * The admission window, in LRU order
+     */
+    private LinkedHashMap<MessageKey, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The responses of the main space that were not hit since they entered it, in LRU order
+     */
+    private LinkedHashMap<MessageKey, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The responses of the main space hit since they entered it, in LRU order
+     */
+    private LinkedHashMap<MessageKey, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The responses held on disk, in LRU order
+     */
+    private LinkedHashMap<MessageKey, Entry> disk = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The admission filter
+     */
+    private FrequencySketch sketch;
+
+    /**
+     * The sizes of the responses of each segment, only written holding the lock
+     */
+    private volatile long windowBytes, probationBytes, protectedBytes, diskBytes;
+
+    /**
+     * The capacities of the segments
+     */
+    private long windowCapacity, mainCapacity, protectedCapacity, diskCapacity;
+
+    /**
+     * The size above which a response skips the memory
+     */
+    private long maxMemoryEntry;
+
+    /**
+     * The size above which a response is not cached
+     */
+    private long maxEntrySize;
+
+    /**
+     * The directory of the files
+     */
+    private File directory;
+
+    /**
+     * The lookups served from memory, from disk, and not served
+     */
+    private AtomicLong hits = new AtomicLong(), diskHits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * The responses dropped from the memory and from the disk
+     */
+    private AtomicLong evictions = new AtomicLong(), diskEvictions = new AtomicLong();
+
+    /**
+     * Load the capacities and clear the files left by a previous run
+     */
+    private MessageCache() {
+        Configuration configuration = Configuration.getInstance();
+        long memory = configuration.getMessageCacheMemory();
+        this.windowCapacity = Math.max(1, memory / 100);
+        this.mainCapacity = memory - windowCapacity;
+        this.protectedCapacity = mainCapacity * 4 / 5;
+        this.maxMemoryEntry = memory / 8;
+        this.diskCapacity = configuration.getMessageCacheDisk();
+        this.maxEntrySize = diskCapacity > 0 ? Math.max(maxMemoryEntry, diskCapacity / 8) : maxMemoryEntry;
+        this.sketch = new FrequencySketch((int) Math.min(1 << 24, (memory + diskCapacity) / TYPICAL_SIZE));
+        this.directory = new File(configuration.getMessageCacheDirectory());
+        if (diskCapacity > 0) {
+            if (!directory.exists()) {
+                directory.mkdirs();
+            }
+            File[] stale = directory.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    return file.getName().startsWith(FILE_PREFIX) && file.getName().endsWith(FILE_SUFFIX);
+                }
+            });
+            if (stale != null) {
+                for (File file : stale) {
+                    delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get singleton
+     * @return The MessageCache instance
+     */
+    public static synchronized MessageCache getInstance() {
+        if (instance == null) {
+            instance = new MessageCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Check if transformed responses are cached
+     * @return If the message cache is enabled
+     */
+    public static boolean isEnabled() {
+        return Configuration.getInstance().isMessageCache();
+    }
+
+    /**
+     * Get the size above which a response is not cached
+     * @return The size, in bytes
+     */
+    public long getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * Look a response up, counting the lookup for the admission of the key
+     * @param key The key of the response
+     * @return The response, to be sent or released, or null if it is not cached
+     */
+    public CachedMessage get(MessageKey key) {
+        synchronized (this) {
+            sketch.increment(key.hashCode());
+            Entry entry = window.get(key);
+            if (entry == null) {
+                entry = probation.remove(key);
+                if (entry != null) {
+                    probationBytes -= entry.size;
+                    protectedSegment.put(key, entry);
+                    protectedBytes += entry.size;
+                    demoteProtected();
+                }
+            }
+            if (entry == null) {
+                entry = protectedSegment.get(key);
+            }
+            if (entry != null) {
+                hits.incrementAndGet();
+                return new CachedMessage(entry.buffer.duplicate());
+            }
+            entry = disk.get(key);
+            if (entry != null) {
+                try {
+                    CachedMessage message = new CachedMessage(FileChannel.open(entry.file.toPath(), StandardOpenOption.READ), entry.size);
+                    diskHits.incrementAndGet();
+                    return message;
+                } catch (IOException e) {
+                    LOGGER.error("Could not open cached message " + entry.file);
+                    disk.remove(key);
+                    diskBytes -= entry.size;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Cache a transformed response, unless it is already cached or too large
+     * The response is copied, the Spool is left to the caller
+     * @param key The key of the response
+     * @param spool The Spool holding the response
+     */
+    public void put(MessageKey key, Spool spool) {
+        long size = spool.size();
+        if (size == 0 || size > maxEntrySize || contains(key)) {
+            return;
+        }
+        try {
+            if (size <= maxMemoryEntry) {
+                ByteBuffer bytes = read(spool);
+                List<Entry> evicted;
+                synchronized (this) {
+                    if (containsLocked(key)) {
+                        return;
+                    }
+                    evicted = insert(new Entry(key, bytes));
+                }
+                for (Entry entry : evicted) {
+                    spill(entry);
+                }
+            } else if (diskCapacity > 0) {
+                admitToDisk(new Entry(key, write(spool), size));
+            }
+        } catch (IOException e) {
+            LOGGER.error("Could not cache message " + key + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Check if a response is cached, in memory or on disk
+     * @param key The key of the response
+     * @return If it is cached
+     */
+    private synchronized boolean contains(MessageKey key) {
+        return containsLocked(key);
+    }
+
+    /**
+     * Check if a response is cached, holding the lock
+     * @param key The key of the response
+     * @return If it is cached
+     */
+    private boolean containsLocked(MessageKey key) {
+        return window.containsKey(key) || probation.containsKey(key) || protectedSegment.containsKey(key) || disk.containsKey(key);
+    }
+
+    /**
+     * Add a response to the window, moving the least recent ones out of it while it is too large
+     * Must hold the lock
+     * @param entry The response
+     * @return The responses leaving the memory
+     */
+    private List<Entry> insert(Entry entry) {
+        window.put(entry.key, entry);
+        windowBytes += entry.size;
+        List<Entry> evicted = new ArrayList<>();
+        while (windowBytes > windowCapacity && window.size() > 1) {
+            Entry candidate = removeEldest(window);
+            windowBytes -= candidate.size;
+            admit(candidate, evicted);
+        }
+        return evicted;
+    }
+
+    /**
+     * Move a response leaving the window to the main space, if it was seen more often than every response
+     * it would displace
+     * The victims are only evicted once the candidate won against all of them
+     * Must hold the lock
+     * @param candidate The response leaving the window
+     * @param evicted The responses leaving the memory, the candidate or its victims
+     */
+    private void admit(Entry candidate, List<Entry> evicted) {
+        int frequency = sketch.frequency(candidate.key.hashCode());
+        long excess = probationBytes + protectedBytes + candidate.size - mainCapacity;
+        Iterator<Entry> fromProbation = probation.values().iterator();
+        Iterator<Entry> fromProtected = protectedSegment.values().iterator();
+        List<Entry> victims = new ArrayList<>();
+        while (excess > 0) {
+            Entry victim = fromProbation.hasNext() ? fromProbation.next() : fromProtected.hasNext() ? fromProtected.next() : null;
+            if (victim == null || sketch.frequency(victim.key.hashCode()) >= frequency) {
+                evicted.add(candidate);
+                evictions.incrementAndGet();
+                return;
+            }
+            victims.add(victim);
+            excess -= victim.size;
+        }
+        for (Entry victim : victims) {
+            if (probation.remove(victim.key) != null) {
+                probationBytes -= victim.size;
+            } else {
+                protectedSegment.remove(victim.key);
+                protectedBytes -= victim.size;
+            }
+            evicted.add(victim);
+            evictions.incrementAndGet();
+        }
+        probation.put(candidate.key, candidate);
+        probationBytes += candidate.size;
+    }
+
+    /**
+     * Move the least recent responses of the protected segment back to probation while it is too large
+     * Must hold the lock
+     */
+    private void demoteProtected() {
+        while (protectedBytes > protectedCapacity && protectedSegment.size() > 1) {
+            Entry entry = removeEldest(protectedSegment);
+            protectedBytes -= entry.size;
+            probation.put(entry.key, entry);
+            probationBytes += entry.size;
+        }
+    }
+
+    /**
+     * Write a response leaving the memory to disk, if the disk holds responses of its size
+     * @param entry The response
+     */
+    private void spill(Entry entry) {
+        if (diskCapacity < entry.size || maxEntrySize < entry.size) {
+            return;
+        }
+        try {
+            admitToDisk(new Entry(entry.key, write(entry.buffer), entry.size));
+        } catch (IOException e) {
+            LOGGER.error("Could not write cached message " + entry.key + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Add a response written to a file to the disk, dropping the least recent ones while it is too large
+     * @param entry The response
+     */
+    private void admitToDisk(Entry entry) {
+        List<File> dropped = new ArrayList<>();
+        synchronized (this) {
+            if (containsLocked(entry.key)) {
+                dropped.add(entry.file);
+            } else {
+                disk.put(entry.key, entry);
+                diskBytes += entry.size;
+                while (diskBytes > diskCapacity && disk.size() > 1) {
+                    Entry victim = removeEldest(disk);
+                    diskBytes -= victim.size;
+                    diskEvictions.incrementAndGet();
+                    dropped.add(victim.file);
+                }
+            }
+        }
+        for (File file : dropped) {
+            delete(file);
+        }
+    }
+
+    /**
+     * Remove the least recent response of a segment
+     * @param segment The segment, not empty
+     * @return The response removed
+     */
+    private static Entry removeEldest(LinkedHashMap<MessageKey, Entry> segment) {
+        Iterator<Entry> eldest = segment.values().iterator();
+        Entry entry = eldest.next();
+        eldest.remove();
+        return entry;
+    }
+
+    /**
+     * Copy a Spool to a direct buffer
+     * @param spool The Spool
+     * @return The buffer, holding the bytes of the Spool
+     * @throws IOException
+     */
+    private static ByteBuffer read(Spool spool) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocateDirect((int) spool.size());
+        byte[] chunk = new byte[COPY_SIZE];
+        try (InputStream in = spool.openStream()) {
+            int n;
+            while (bytes.hasRemaining() && (n = in.read(chunk, 0, Math.min(chunk.length, bytes.remaining()))) > 0) {
+                bytes.put(chunk, 0, n);
+            }
+        }
+        bytes.flip();
+        return bytes;
+    }
+
+    /**
+     * Write a Spool to a new file
+     * @param spool The Spool
+     * @return The file
+     * @throws IOException
+     */
+    private File write(Spool spool) throws IOException {
+        File file = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, directory);
+        try (InputStream in = spool.openStream()) {
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            delete(file);
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * Write a buffer to a new file
+     * @param bytes The buffer, left untouched
+     * @return The file
+     * @throws IOException
+     */
+    private File write(ByteBuffer bytes) throws IOException {
+        File file = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, directory);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer source = bytes.duplicate();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        } catch (IOException e) {
+            delete(file);
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * Delete a file of the cache
+     * Clients still reading it keep their channel open on it
+     * @param file The file
+     */
+    private static void delete(File file) {
+        if (!file.delete()) {
+            LOGGER.error("Could not delete cached message " + file);
+        }
+    }
+
+    /**
+     * Get the lookups served from memory
+     * @return The number of lookups served from memory
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the lookups served from disk
+     * @return The number of lookups served from disk
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * Get the lookups not served
+     * @return The number of lookups not served
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the responses dropped from the memory, moved to disk if it holds them
+     * @return The number of responses dropped from the memory
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the responses dropped from the disk
+     * @return The number of responses dropped from the disk
+     */
+    public long getDiskEvictions() {
+        return diskEvictions.get();
+    }
+
+    /**
+     * Get the size of the responses held in memory
+     * @return The size, in bytes
+     */
+    public long getMemoryBytes() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    /**
+     * Get the size of the responses held on disk
+     * @return The size, in bytes
+     */
+    public long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * A cached response, held in memory or in a file
+     */
+    private static class Entry {
+
+        /**
+         * The key of the response
+         */
+        private MessageKey key;
+
+        /**
+         * The bytes of the response held in memory, or null
+         */
+        private ByteBuffer buffer;
+
+        /**
+         * The file holding the response, or null
+         */
+        private File file;
+
+        /**
+         * The size of the response
+         */
+        private long size;
+
+        /**
+         * Create a response held in memory
+         * @param key The key of the response
+         * @param buffer The bytes of the response
+         */
+        Entry(MessageKey key, ByteBuffer buffer) {
+            this.key = key;
+            this.buffer = buffer;
+            this.size = buffer.remaining();
+        }
+
+        /**
+         * Create a response held in a file
+         * @param key The key of the response
+         * @param file The file
+         * @param size The size of the response
+         */
+        Entry(MessageKey key, File file, long size) {
+            this.key = key;
+            this.file = file;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package cache;
+
+import mail.Spool;
+import mail.SpoolStore;
+import transformations.Deferred;
+import transformations.DeferringSink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A LineSink copying a transformed RETR response to a Spool while passing it on, to cache it once it is complete
+ * A response that grows larger than the cache may hold is not copied further.
+ * The lines written after a place kept for later are held until it is filled, so the copy stays in order: the place
+ * may be filled by another Thread, so the copy is only touched holding the lock of the capture
+ */
+public class MessageCapture implements DeferringSink {
+
+    /**
+     * The sink the response is passed on to
+     */
+    private DeferringSink next;
+
+    /**
+     * The key the response is cached with
+     */
+    private MessageKey key;
+
+    /**
+     * The copy of the response, or null if it is not cached
+     */
+    private Spool spool;
+
+    /**
+     * The size above which the response is not cached
+     */
+    private long limit;
+
+    /**
+     * The size of the response copied so far, including the lines held
+     */
+    private long size;
+
+    /**
+     * The places not copied yet, in order, each with the lines written after it
+     */
+    private Deque<Place> places = new ArrayDeque<>();
+
+    /**
+     * If the response is cached once its places are copied
+     */
+    private boolean committed;
+
+    /**
+     * Create a capture
+     * @param key The key the response is cached with
+     * @param next The sink the response is passed on to
+     * @throws IOException
+     */
+    public MessageCapture(MessageKey key, DeferringSink next) throws IOException {
+        this.key = key;
+        this.next = next;
+        this.limit = MessageCache.getInstance().getMaxEntrySize();
+        this.spool = SpoolStore.getInstance().create();
+    }
+
+    @Override
+    public void write(ByteBuffer lines) throws IOException {
+        synchronized (this) {
+            if (spool != null) {
+                if (!grow(lines.remaining())) {
+                    release();
+                } else if (places.isEmpty()) {
+                    spool.write(lines.duplicate());
+                } else {
+                    places.getLast().hold(lines);
+                }
+            }
+        }
+        next.write(lines);
+    }
+
+    @Override
+    public Deferred defer() throws IOException {
+        Deferred passed = next.defer();
+        synchronized (this) {
+            if (spool == null) {
+                return passed;
+            }
+            Place place = new Place(passed);
+            places.addLast(place);
+            return place;
+        }
+    }
+
+    /**
+     * Cache the response once it was completely passed on, or once its places are filled
+     */
+    public synchronized void commit() {
+        committed = true;
+        if (spool != null && places.isEmpty()) {
+            MessageCache.getInstance().put(key, spool);
+            release();
+        }
+    }
+
+    /**
+     * Drop the copy of the response
+     */
+    public synchronized void release() {
+        if (spool != null) {
+            spool.release();
+            spool = null;
+        }
+        places.clear();
+    }
+
+    /**
+     * Count bytes in the size of the copy
+     * Must hold the lock
+     * @param length The number of bytes
+     * @return If the copy is still small enough to be cached
+     */
+    private boolean grow(long length) {
+        size += length;
+        return size <= limit;
+    }
+
+    /**
+     * Copy the places filled at the head of the queue and the lines held after them, caching the response once they all are
+     * Must hold the lock
+     * @throws IOException
+     */
+    private void drain() throws IOException {
+        while (spool != null && !places.isEmpty() && places.getFirst().lines != null) {
+            Place place = places.removeFirst();
+            spool.write(place.lines);
+            for (ByteBuffer held : place.after) {
+                spool.write(held);
+            }
+        }
+        if (committed) {
+            commit();
+        }
+    }
+
+    /**
+     * A place kept in the response, passed on to the next sink
+     */
+    private class Place implements Deferred {
+
+        /**
+         * The place kept in the next sink
+         */
+        private Deferred passed;
+
+        /**
+         * The lines of the place, or null before it is filled
+         */
+        private ByteBuffer lines;
+
+        /**
+         * Copies of the lines written after the place, up to the next one
+         */
+        private List<ByteBuffer> after = new ArrayList<>();
+
+        /**
+         * Create a place
+         * @param passed The place kept in the next sink
+         */
+        Place(Deferred passed) {
+            this.passed = passed;
+        }
+
+        /**
+         * Hold a copy of lines written after the place
+         * Must hold the lock of the capture
+         * @param written The lines, left untouched
+         */
+        void hold(ByteBuffer written) {
+            ByteBuffer copy = ByteBuffer.allocate(written.remaining());
+            copy.put(written.duplicate());
+            copy.flip();
+            after.add(copy);
+        }
+
+        @Override
+        public void fill(ByteBuffer filled) throws IOException {
+            synchronized (MessageCapture.this) {
+                if (spool != null) {
+                    try {
+                        if (!grow(filled.remaining())) {
+                            release();
+                        } else {
+                            // The next sink moves the position of the lines as it writes them
+                            lines = filled.duplicate();
+                            drain();
+                        }
+                    } catch (IOException e) {
+                        release();
+                    }
+                }
+            }
+            passed.fill(filled);
+        }
+    }
+}
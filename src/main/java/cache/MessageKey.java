@@ -0,0 +1,120 @@
+package cache;
+
+import connection.Server;
+import transformations.Leetifier;
+import transformations.Rotation;
+
+/**
+ * The key of a transformed message in the MessageCache
+ * A unique id is only unique in the maildrop of a user on a Server, and the size it was listed with guards
+ * against Servers reusing ids. The transformations applied are part of the key, so toggling them never serves
+ * a message transformed differently
+ */
+public final class MessageKey {
+
+    /**
+     * The Server holding the maildrop, as name:port
+     */
+    private String server;
+
+    /**
+     * The owner of the maildrop
+     */
+    private String user;
+
+    /**
+     * The unique id of the message, as listed by UIDL
+     */
+    private String uid;
+
+    /**
+     * The size of the message, as listed by LIST
+     */
+    private long size;
+
+    /**
+     * The names of the transformations applied, in order
+     */
+    private String transformers;
+
+    /**
+     * The hash of the key
+     */
+    private int hash;
+
+    /**
+     * Create a key
+     * @param server The Server holding the maildrop
+     * @param user The owner of the maildrop
+     * @param uid The unique id of the message
+     * @param size The size the message was listed with
+     * @param transformers The names of the transformations applied
+     */
+    public MessageKey(Server server, String user, String uid, long size, String transformers) {
+        this.server = server.getName() + ":" + server.getPort();
+        this.user = user;
+        this.uid = uid;
+        this.size = size;
+        this.transformers = transformers;
+        int h = this.server.hashCode();
+        h = 31 * h + user.hashCode();
+        h = 31 * h + uid.hashCode();
+        h = 31 * h + (int) (size ^ (size >>> 32));
+        this.hash = 31 * h + transformers.hashCode();
+    }
+
+    /**
+     * Get the names of the transformations enabled now, in the order they are applied
+     * @return The names, or null if no transformation is enabled
+     */
+    public static String activeTransformers() {
+        boolean leet = Leetifier.enabled.get();
+        boolean rotation = Rotation.enabled.get();
+        if (leet && rotation) {
+            return "leet+rotation";
+        }
+        if (leet) {
+            return "leet";
+        }
+        return rotation ? "rotation" : null;
+    }
+
+    /**
+     * Get the names of the transformations applied
+     * @return The names of the transformations, in order
+     */
+    public String getTransformers() {
+        return transformers;
+    }
+
+    /**
+     * Get the size the message was listed with
+     * @return The size of the original message, in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MessageKey)) {
+            return false;
+        }
+        MessageKey other = (MessageKey) o;
+        return hash == other.hash && size == other.size && uid.equals(other.uid) && user.equals(other.user)
+                && server.equals(other.server) && transformers.equals(other.transformers);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return user + "@" + server + "/" + uid + "(" + size + ")" + transformers;
+    }
+}
@@ -1,7 +1,6 @@
 package config;
 
 import connection.Server;
-import mail.Mail;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -13,6 +12,11 @@ import java.util.Properties;
  */
 public class Configuration {
 
+    /**
+     * The prefix of the System properties overriding the properties file, e.g. -Dproxy.reactorThreads=4
+     */
+    public static final String OVERRIDE_PREFIX = "proxy.";
+
     /**
      * The Configuration instance
      */
@@ -38,18 +42,153 @@ public class Configuration {
      */
     private int defaultListenerAdminPort;
 
+    /**
+     * The port on which the Admin event loop serves the metrics, 0 if they are not served
+     */
+    private int metricsPort;
+
     /**
      * The default buffer size
      */
     private int bufferSize;
 
+    /**
+     * The size of the buffer leased for a read
+     */
+    private int readBufferSize;
+
+    /**
+     * The memory that the BufferPool may keep in free buffers
+     */
+    private long bufferPoolMemory;
+
+    /**
+     * The number of event loops serving Client and Server connections
+     */
+    private int reactorThreads;
+
+    /**
+     * If transformations are applied to RETR responses as they arrive instead of on the spooled Mail
+     */
+    private boolean streamingTransformations;
+
+    /**
+     * The time to wait for a connection to a Server to be established, in milliseconds
+     */
+    private long connectTimeout;
+
+    /**
+     * The number of Threads resolving Server names
+     */
+    private int resolverThreads;
+
+    /**
+     * The maximum number of Server names waiting for a resolver Thread
+     */
+    private int resolverQueueSize;
+
+    /**
+     * If authenticated Server sessions are pooled across Client sessions
+     */
+    private boolean upstreamPool;
+
+    /**
+     * The maximum number of pooled Server sessions
+     */
+    private int upstreamPoolMaxIdle;
+
+    /**
+     * The time a Server session may stay pooled, in milliseconds
+     */
+    private long upstreamPoolIdleTime;
+
+    /**
+     * The time after its login beyond which a Server session is no longer pooled, in milliseconds
+     */
+    private long upstreamPoolMaxLifetime;
+
+    /**
+     * The time without messages after which a pooled Server session is sent a NOOP, in milliseconds
+     */
+    private long upstreamPoolKeepAlive;
+
+    /**
+     * The kind of Spool holding the Mails: memory, file or spill
+     */
+    private String spoolStore;
+
+    /**
+     * The size above which a spilling Spool is moved to a file
+     */
+    private long spoolMemoryThreshold;
+
+    /**
+     * The directory of the file Spools
+     */
+    private String spoolDirectory;
+
+    /**
+     * If transformed RETR responses are cached across Client sessions
+     */
+    private boolean messageCache;
+
+    /**
+     * The memory the message cache may hold, in bytes
+     */
+    private long messageCacheMemory;
+
+    /**
+     * The disk space the message cache may hold, in bytes
+     */
+    private long messageCacheDisk;
+
+    /**
+     * The directory of the messages cached on disk
+     */
+    private String messageCacheDirectory;
+
+    /**
+     * If the LIST and UIDL responses of maildrops are cached across Client sessions
+     */
+    private boolean mailboxCache;
+
+    /**
+     * The number of maildrops whose listings are cached
+     */
+    private int mailboxCacheSize;
+
+    /**
+     * The number of Threads applying transformations to spooled Mails
+     */
+    private int transformationThreads;
+
+    /**
+     * The largest number of parts of a spooled Mail transformed at the same time, one after another if 1
+     */
+    private int transformationParallelism;
+
+    /**
+     * The number of spooled Mails that may wait for a transformation Thread
+     */
+    private int transformationQueueSize;
+
+    /**
+     * The memory queued for a channel, leased chunks counting for their capacity, above which the other channel of the connection is not read
+     */
+    private long writeHighWaterMark;
+
+    /**
+     * The memory queued for a channel, leased chunks counting for their capacity, at which the other channel of the connection is read again
+     */
+    private long writeLowWaterMark;
+
     /**
      * The default Admin password
      */
     private String adminPassword;
 
     /**
-     * Loads default configuration from properties file
+     * Loads default configuration from properties file, overridden by the System properties with the override prefix
      */
     private Configuration() {
         Properties properties = new Properties();
@@ -59,13 +198,50 @@ public class Configuration {
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(OVERRIDE_PREFIX)) {
+                properties.setProperty(name.substring(OVERRIDE_PREFIX.length()), System.getProperty(name));
+            }
+        }
         this.defaultServer = new Server(properties.getProperty("defaultServerName", "localhost"), Integer.valueOf(properties.getProperty("defaultPOP3ServerPort", "110")));
         this.defaultListenerClientPort = Integer.valueOf(properties.getProperty("defaultListenerClientPort", "4040"));
         this.defaultListenerServerPort = Integer.valueOf(properties.getProperty("defaultListenerServerPort", "4041"));
         this.defaultListenerAdminPort = Integer.valueOf(properties.getProperty("defaultListenerAdminPort", "4042"));
+        this.metricsPort = Integer.valueOf(properties.getProperty("metricsPort", "0"));
         this.bufferSize = Integer.valueOf(properties.getProperty("bufferSize", "1024")) * 1024;
+        this.readBufferSize = Integer.valueOf(properties.getProperty("readBufferSize", "16")) * 1024;
+        this.bufferPoolMemory = Long.valueOf(properties.getProperty("bufferPoolMemory", "65536")) * 1024;
+        this.reactorThreads = Integer.valueOf(properties.getProperty("reactorThreads", "0"));
+        if (this.reactorThreads <= 0) {
+            this.reactorThreads = Runtime.getRuntime().availableProcessors();
+        }
+        this.streamingTransformations = Boolean.valueOf(properties.getProperty("streamingTransformations", "false"));
+        this.connectTimeout = Long.valueOf(properties.getProperty("connectTimeout", "10000"));
+        this.resolverThreads = Math.max(1, Integer.valueOf(properties.getProperty("resolverThreads", "8")));
+        this.resolverQueueSize = Math.max(1, Integer.valueOf(properties.getProperty("resolverQueueSize", "256")));
+        this.upstreamPool = Boolean.valueOf(properties.getProperty("upstreamPool", "false"));
+        this.upstreamPoolMaxIdle = Integer.valueOf(properties.getProperty("upstreamPoolMaxIdle", "64"));
+        this.upstreamPoolIdleTime = Long.valueOf(properties.getProperty("upstreamPoolIdleTime", "60000"));
+        this.upstreamPoolMaxLifetime = Long.valueOf(properties.getProperty("upstreamPoolMaxLifetime", "300000"));
+        this.upstreamPoolKeepAlive = Long.valueOf(properties.getProperty("upstreamPoolKeepAlive", "30000"));
+        this.spoolStore = properties.getProperty("spoolStore", "spill");
+        this.spoolMemoryThreshold = Long.valueOf(properties.getProperty("spoolMemoryThreshold", "256")) * 1024;
+        this.spoolDirectory = properties.getProperty("spoolDirectory", "mails");
+        this.messageCache = Boolean.valueOf(properties.getProperty("messageCache", "false"));
+        this.messageCacheMemory = Long.valueOf(properties.getProperty("messageCacheMemory", "65536")) * 1024;
+        this.messageCacheDisk = Long.valueOf(properties.getProperty("messageCacheDisk", "1048576")) * 1024;
+        this.messageCacheDirectory = properties.getProperty("messageCacheDirectory", "cache");
+        this.mailboxCache = Boolean.valueOf(properties.getProperty("mailboxCache", "false"));
+        this.mailboxCacheSize = Math.max(1, Integer.valueOf(properties.getProperty("mailboxCacheSize", "10000")));
+        this.transformationThreads = Integer.valueOf(properties.getProperty("transformationThreads", "0"));
+        if (this.transformationThreads <= 0) {
+            this.transformationThreads = Runtime.getRuntime().availableProcessors();
+        }
+        this.transformationParallelism = Math.max(1, Integer.valueOf(properties.getProperty("transformationParallelism", "1")));
+        this.transformationQueueSize = Math.max(1, Integer.valueOf(properties.getProperty("transformationQueueSize", "64")));
+        this.writeHighWaterMark = Long.valueOf(properties.getProperty("writeHighWaterMark", "256")) * 1024;
+        this.writeLowWaterMark = Math.min(this.writeHighWaterMark, Long.valueOf(properties.getProperty("writeLowWaterMark", "64")) * 1024);
         this.adminPassword = properties.getProperty("adminPassword", "protos");
-        Mail.cantMails = Integer.valueOf(properties.getProperty("cantMails"));
     }
 
     /**
@@ -111,6 +287,14 @@ public class Configuration {
         return this.defaultListenerAdminPort;
     }
 
+    /**
+     * Get the port on which the Admin event loop serves the metrics
+     * @return The port on which the metrics are served, 0 if they are not served
+     */
+    public int getMetricsPort() {
+        return this.metricsPort;
+    }
+
     /**
      * Get the default buffer size
      * @return The default buffer size
@@ -119,6 +303,214 @@ public class Configuration {
         return this.bufferSize;
     }
 
+    /**
+     * Get the size of the buffer leased for a read
+     * @return The size of the buffer leased for a read
+     */
+    public int getReadBufferSize() {
+        return this.readBufferSize;
+    }
+
+    /**
+     * Get the memory that the BufferPool may keep in free buffers
+     * @return The memory that the BufferPool may keep, in bytes
+     */
+    public long getBufferPoolMemory() {
+        return this.bufferPoolMemory;
+    }
+
+    /**
+     * Get the number of event loops serving Client and Server connections
+     * @return The number of event loops, one per available processor unless configured
+     */
+    public int getReactorThreads() {
+        return this.reactorThreads;
+    }
+
+    /**
+     * Check if transformations are applied to RETR responses as they arrive
+     * @return If transformations are applied as the response arrives instead of on the spooled Mail
+     */
+    public boolean isStreamingTransformations() {
+        return this.streamingTransformations;
+    }
+
+    /**
+     * Get the time to wait for a connection to a Server to be established
+     * @return The connect timeout, in milliseconds
+     */
+    public long getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    /**
+     * Get the number of Threads resolving Server names
+     * @return The number of resolver Threads
+     */
+    public int getResolverThreads() {
+        return this.resolverThreads;
+    }
+
+    /**
+     * Get the number of Server names that may wait for a resolver Thread, connections beyond it failing at once
+     * @return The capacity of the resolver queue
+     */
+    public int getResolverQueueSize() {
+        return this.resolverQueueSize;
+    }
+
+    /**
+     * Check if authenticated Server sessions are pooled across Client sessions
+     * @return If the UpstreamPool is enabled
+     */
+    public boolean isUpstreamPool() {
+        return this.upstreamPool;
+    }
+
+    /**
+     * Get the maximum number of pooled Server sessions
+     * @return The maximum number of pooled Server sessions
+     */
+    public int getUpstreamPoolMaxIdle() {
+        return this.upstreamPoolMaxIdle;
+    }
+
+    /**
+     * Get the time a Server session may stay pooled
+     * @return The time a Server session may stay pooled, in milliseconds
+     */
+    public long getUpstreamPoolIdleTime() {
+        return this.upstreamPoolIdleTime;
+    }
+
+    /**
+     * Get the time after its login beyond which a Server session is no longer pooled nor reused
+     * @return The maximum lifetime of a pooled Server session, in milliseconds
+     */
+    public long getUpstreamPoolMaxLifetime() {
+        return this.upstreamPoolMaxLifetime;
+    }
+
+    /**
+     * Get the time without messages after which a pooled Server session is sent a NOOP
+     * @return The keepalive interval, in milliseconds
+     */
+    public long getUpstreamPoolKeepAlive() {
+        return this.upstreamPoolKeepAlive;
+    }
+
+    /**
+     * Get the kind of Spool holding the Mails
+     * @return memory, file or spill
+     */
+    public String getSpoolStore() {
+        return this.spoolStore;
+    }
+
+    /**
+     * Get the size above which a spilling Spool is moved to a file
+     * @return The threshold, in bytes
+     */
+    public long getSpoolMemoryThreshold() {
+        return this.spoolMemoryThreshold;
+    }
+
+    /**
+     * Get the directory of the file Spools
+     * @return The directory of the file Spools
+     */
+    public String getSpoolDirectory() {
+        return this.spoolDirectory;
+    }
+
+    /**
+     * Check if transformed RETR responses are cached across Client sessions
+     * @return If the message cache is enabled
+     */
+    public boolean isMessageCache() {
+        return this.messageCache;
+    }
+
+    /**
+     * Get the memory the message cache may hold
+     * @return The memory of the message cache, in bytes
+     */
+    public long getMessageCacheMemory() {
+        return this.messageCacheMemory;
+    }
+
+    /**
+     * Get the disk space the message cache may hold
+     * @return The disk space of the message cache, in bytes, 0 if it only holds messages in memory
+     */
+    public long getMessageCacheDisk() {
+        return this.messageCacheDisk;
+    }
+
+    /**
+     * Get the directory of the messages cached on disk
+     * @return The directory of the messages cached on disk
+     */
+    public String getMessageCacheDirectory() {
+        return this.messageCacheDirectory;
+    }
+
+    /**
+     * Check if the LIST and UIDL responses of maildrops are cached across Client sessions
+     * @return If the mailbox cache is enabled
+     */
+    public boolean isMailboxCache() {
+        return this.mailboxCache;
+    }
+
+    /**
+     * Get the number of maildrops whose listings are cached
+     * @return The number of maildrops
+     */
+    public int getMailboxCacheSize() {
+        return this.mailboxCacheSize;
+    }
+
+    /**
+     * Get the number of Threads applying transformations to spooled Mails
+     * @return The number of transformation Threads
+     */
+    public int getTransformationThreads() {
+        return this.transformationThreads;
+    }
+
+    /**
+     * Get the largest number of parts of a spooled Mail transformed at the same time
+     * @return The number of parts, 1 if they are transformed one after another
+     */
+    public int getTransformationParallelism() {
+        return this.transformationParallelism;
+    }
+
+    /**
+     * Get the number of spooled Mails that may wait for a transformation Thread
+     * @return The capacity of the transformation queue
+     */
+    public int getTransformationQueueSize() {
+        return this.transformationQueueSize;
+    }
+
+    /**
+     * Get the memory queued for a channel, leased chunks counting for their capacity, above which the other channel of the connection is not read
+     * @return The high-water mark, in bytes
+     */
+    public long getWriteHighWaterMark() {
+        return this.writeHighWaterMark;
+    }
+
+    /**
+     * Get the memory queued for a channel, leased chunks counting for their capacity, at which the other channel of the connection is read again
+     * @return The low-water mark, in bytes
+     */
+    public long getWriteLowWaterMark() {
+        return this.writeLowWaterMark;
+    }
+
     /**
      * Get the default Admin password
      * @return The default Admin password
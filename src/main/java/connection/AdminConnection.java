@@ -49,7 +49,7 @@ public class AdminConnection {
     public AdminConnection(SocketChannel channel, Selector selector) throws IOException{
         this.selector = selector;
         this.state = AdminState.AUTHORIZATION_ADMIN;
-        this.buffer = new DoubleBuffer(Configuration.getInstance().getBufferSize());
+        this.buffer = new DoubleBuffer(Configuration.getInstance().getReadBufferSize());
         this.channel = channel;
     }
 
@@ -115,5 +115,6 @@ public class AdminConnection {
         } catch (IOException e) {
             LOGGER.error("Error closing Admin socket.");
         }
+        buffer.release();
     }
 }
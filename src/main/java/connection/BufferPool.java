@@ -0,0 +1,186 @@
+package connection;
+
+import config.Configuration;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton
+ * A bounded pool of direct ByteBuffers grouped in size classes
+ */
+public class BufferPool {
+
+    /**
+     * The BufferPool instance
+     */
+    private static BufferPool instance;
+
+    /**
+     * The size of the smallest class
+     */
+    private static final int MIN_SIZE = 4 * 1024;
+
+    /**
+     * The buffer size of every class, growing four times from one class to the next
+     */
+    private int[] sizes;
+
+    /**
+     * The free buffers of every class
+     */
+    private Queue<ByteBuffer>[] free;
+
+    /**
+     * The number of free buffers of every class
+     */
+    private AtomicInteger[] freeCount;
+
+    /**
+     * The maximum number of free buffers kept for every class
+     */
+    private int[] maxFree;
+
+    /**
+     * The number of leases served with a pooled buffer
+     */
+    private AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of leases that had to allocate a new buffer
+     */
+    private AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create the size classes up to the configured buffer size, splitting the pool memory evenly between them
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private BufferPool() {
+        int maxSize = Math.max(MIN_SIZE, Configuration.getInstance().getBufferSize());
+        int classes = 1;
+        for (long size = MIN_SIZE; size < maxSize; size *= 4) {
+            classes++;
+        }
+        this.sizes = new int[classes];
+        this.free = new Queue[classes];
+        this.freeCount = new AtomicInteger[classes];
+        this.maxFree = new int[classes];
+        long memoryPerClass = Configuration.getInstance().getBufferPoolMemory() / classes;
+        int size = MIN_SIZE;
+        for (int i = 0; i < classes; i++) {
+            sizes[i] = Math.min(size, maxSize);
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCount[i] = new AtomicInteger();
+            maxFree[i] = (int) Math.max(1, memoryPerClass / sizes[i]);
+            size *= 4;
+        }
+    }
+
+    /**
+     * Get singleton
+     * @return The BufferPool instance
+     */
+    public static synchronized BufferPool getInstance() {
+        if (instance == null) {
+            instance = new BufferPool();
+        }
+        return instance;
+    }
+
+    /**
+     * Lease a cleared buffer of at least the given size
+     * Sizes above the largest class are served with the largest class
+     * @param size The minimum capacity of the buffer
+     * @return A buffer that should be given back with {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = classOf(size);
+        ByteBuffer buffer = free[sizeClass].poll();
+        if (buffer != null) {
+            freeCount[sizeClass].decrementAndGet();
+            hits.incrementAndGet();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return ByteBuffer.allocateDirect(sizes[sizeClass]);
+    }
+
+    /**
+     * Give back a leased buffer, it is dropped if its class is already full
+     * @param buffer The buffer to give back
+     */
+    public void release(ByteBuffer buffer) {
+        int sizeClass = classOf(buffer.capacity());
+        if (!buffer.isDirect() || sizes[sizeClass] != buffer.capacity()) {
+            return;
+        }
+        if (freeCount[sizeClass].incrementAndGet() > maxFree[sizeClass]) {
+            freeCount[sizeClass].decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        free[sizeClass].offer(buffer);
+    }
+
+    /**
+     * Get the capacity of the next class after a given capacity
+     * @param capacity The current capacity
+     * @return The capacity of the next class, or the same capacity if there is no larger class
+     */
+    public int nextSize(int capacity) {
+        return sizes[classOf(Math.min(capacity + 1, getMaxSize()))];
+    }
+
+    /**
+     * Get the capacity of the largest class
+     * @return The capacity of the largest class
+     */
+    public int getMaxSize() {
+        return sizes[sizes.length - 1];
+    }
+
+    /**
+     * Get the number of leases served with a pooled buffer
+     * @return The number of pool hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of leases that had to allocate a new buffer
+     * @return The number of pool misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the memory held by the free buffers
+     * @return The bytes held by the pool
+     */
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            bytes += (long) freeCount[i].get() * sizes[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the class serving a given size
+     * @param size The minimum capacity
+     * @return The index of the smallest class that fits the size, or the largest class
+     */
+    private int classOf(int size) {
+        for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i] >= size) {
+                return i;
+            }
+        }
+        return sizes.length - 1;
+    }
+}
@@ -2,12 +2,19 @@ package connection;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Utilities to manage ByteBuffers
  */
 public class BufferUtils {
 
+    /**
+     * The Charset used to map bytes to chars one to one
+     */
+    public static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
     /**
      * Convert ByteBuffer to String
      * @param buf ByteBuffer to convert
@@ -15,6 +22,76 @@ public class BufferUtils {
      * @throws CharacterCodingException
      */
 	public static String bufferToString(ByteBuffer buf) throws CharacterCodingException{
-		return new String(buf.array(), 0, buf.remaining());
+		byte[] bytes = new byte[buf.remaining()];
+		buf.duplicate().get(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+    /**
+     * Convert a line to String, without its line terminator
+     * @param line The line to convert
+     * @return String
+     * @throws CharacterCodingException
+     */
+	public static String lineToString(ByteBuffer line) throws CharacterCodingException {
+		int end = line.limit();
+		while (end > line.position() && (line.get(end - 1) == '\n' || line.get(end - 1) == '\r')) {
+			end--;
+		}
+		ByteBuffer content = line.duplicate();
+		content.limit(end);
+		return bufferToString(content);
+	}
+
+    /**
+     * Check if the remaining bytes of a ByteBuffer start with a prefix
+     * @param buf The ByteBuffer to check
+     * @param prefix The prefix to look for
+     * @return If the ByteBuffer starts with the prefix
+     */
+	public static boolean startsWith(ByteBuffer buf, byte[] prefix) {
+		if (buf.remaining() < prefix.length) {
+			return false;
+		}
+		int position = buf.position();
+		for (int i = 0; i < prefix.length; i++) {
+			if (buf.get(position + i) != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+    /**
+     * Check if the remaining bytes of a ByteBuffer start with a prefix, ignoring the case of ASCII letters
+     * @param buf The ByteBuffer to check
+     * @param prefix The prefix to look for, in lower case
+     * @return If the ByteBuffer starts with the prefix
+     */
+	public static boolean startsWithIgnoreCase(ByteBuffer buf, byte[] prefix) {
+		if (buf.remaining() < prefix.length) {
+			return false;
+		}
+		int position = buf.position();
+		for (int i = 0; i < prefix.length; i++) {
+			byte b = buf.get(position + i);
+			if (b >= 'A' && b <= 'Z') {
+				b += 'a' - 'A';
+			}
+			if (b != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+    /**
+     * Check if the remaining bytes of a ByteBuffer are equal to a byte array
+     * @param buf The ByteBuffer to check
+     * @param bytes The bytes to compare with
+     * @return If the remaining bytes are the given ones
+     */
+	public static boolean equals(ByteBuffer buf, byte[] bytes) {
+		return buf.remaining() == bytes.length && startsWith(buf, bytes);
 	}
 }
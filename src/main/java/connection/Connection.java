@@ -1,14 +1,24 @@
 package connection;
 
+import cache.MailboxCapture;
+import cache.MailboxListing;
+import cache.MailboxSnapshot;
+import cache.MessageCapture;
 import config.Configuration;
 import mail.Mail;
 import org.apache.log4j.Logger;
 import proxy.Command;
+import proxy.PendingCommand;
+import transformations.TransformationPipeline;
 
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * A connection between a user and a server
@@ -21,30 +31,108 @@ public class Connection {
     private static transient Logger LOGGER = Logger.getLogger(Connection.class);
 
     /**
-     * The Client Selector
+     * The reasons to stop reading from a channel: the transformation queue is full, the other channel
+     * has more bytes queued than the high-water mark, a retrieved Mail is being transformed and the
+     * responses after it must wait, or a cached listing is being checked with the Server and the
+     * Commands after it must wait
+     */
+    public static final int TRANSFORMATIONS_FULL = 1, PEER_BACKLOG = 2, TRANSFORMING = 4, CHECKING_MAILBOX = 8;
+
+    /**
+     * The Selector of the event loop owning both the Client and the Server channels
      */
     private Selector selector;
 
+    /**
+     * The event loop owning both the Client and the Server channels, to run tasks on it from other threads
+     */
+    private Executor loop;
+
     /**
      * The current State of the connection
      */
     private State state;
 
     /**
-     * The last Command that the client sent
+     * The last Command that the client sent, the one a PASS must follow
      */
     private Command lastCommand;
 
     /**
-     * The last Mail marked for deletion
+     * The Commands sent to the Server and not answered yet, with the replies of the proxy behind them, in order
      */
-    private String mailToDelete;
+    private Deque<PendingCommand> pending = new ArrayDeque<>();
 
     /**
-     * The current Mail being transferred
+     * The user the Client logged in as
+     */
+    private String user;
+
+    /**
+     * The Server the user is proxied to
+     */
+    private Server upstream;
+
+    /**
+     * The digest of the credentials the user logged in with, or null if the session can not be pooled
+     */
+    private String passwordDigest;
+
+    /**
+     * The time the Server session logged in, carried across the Client sessions reusing it from the UpstreamPool
+     */
+    private long loginTime;
+
+    /**
+     * If the USER command was answered by the proxy, expecting a pooled session to be used
+     */
+    private boolean pooledLogin;
+
+    /**
+     * If the maildrop may have been changed during the session
+     */
+    private boolean mailboxModified;
+
+    /**
+     * If the greeting of the Server was not read yet
+     */
+    private boolean awaitingGreeting;
+
+    /**
+     * The current Mail being transferred, created when the first line is spooled
      */
     private Mail mail;
 
+    /**
+     * If the current retrieval is relayed to the Client as it arrives instead of being spooled
+     */
+    private boolean streaming;
+
+    /**
+     * The pipeline transforming the current retrieval as it arrives, or null
+     */
+    private TransformationPipeline pipeline;
+
+    /**
+     * The copy of the current retrieval made for the MessageCache as it is transformed, or null
+     */
+    private MessageCapture capture;
+
+    /**
+     * The unique ids and sizes the Server listed during the session
+     */
+    private MailboxListing listing = new MailboxListing();
+
+    /**
+     * The copy of the current maildrop listing made for the MailboxCache, or null
+     */
+    private MailboxCapture mailboxCapture;
+
+    /**
+     * The cached listing checked with the Server during the session, or null
+     */
+    private MailboxSnapshot currentMailbox;
+
     /**
      * The read-write buffer to interact with the Client
      */
@@ -66,36 +154,311 @@ public class Connection {
     private SocketChannel server;
 
     /**
-     * Create a connection with the Client Selector and the SocketChannel to which the client is connected
+     * If the connection to the Server is being established
+     */
+    private boolean connecting;
+
+    /**
+     * The task closing the connection to the Server if it is not established in time, or null
+     */
+    private ScheduledFuture<?> connectTimeout;
+
+    /**
+     * The reasons the Server is not being read, none if zero
+     */
+    private int serverPauses;
+
+    /**
+     * The reasons the Client is not being read, none if zero
+     */
+    private int clientPauses;
+
+    /**
+     * If the connection was closed
+     */
+    private boolean closed;
+
+    /**
+     * Create a connection with the event loop Selector and the SocketChannel to which the client is connected
      * @param client The SocketChannel to which the client is connected
-     * @param selector The Client Selector
+     * @param selector The Selector of the event loop owning the connection
+     * @param loop The event loop owning the connection
      * @throws IOException
      */
-    public Connection(SocketChannel client, Selector selector) throws IOException{
+    public Connection(SocketChannel client, Selector selector, Executor loop) throws IOException{
         this.selector = selector;
+        this.loop = loop;
         this.state = State.AUTHORIZATION_USER;
         this.lastCommand = Command.UNKNOWN;
 
-        this.clientBuffer = new DoubleBuffer(Configuration.getInstance().getBufferSize());
+        this.clientBuffer = new DoubleBuffer(Configuration.getInstance().getReadBufferSize());
         this.client = client;
-
-        this.mail = new Mail();
     }
 
     /**
      * Connect to server creating a read-write buffer and storing the SocketChannel to which the server is connected
+     * Until the connection is established, messages to the Server are queued in its write buffer. A Server already
+     * used, when the Client sends USER again, is closed and its buffer released
      * @param server The SocketChannel to which the server is connected
      */
     public void connectToServer(SocketChannel server){
-        this.serverBuffer = new DoubleBuffer(Configuration.getInstance().getBufferSize());
+        disconnectServer();
+        this.serverBuffer = new DoubleBuffer(Configuration.getInstance().getReadBufferSize());
+        this.server = server;
+        this.connecting = true;
+        this.awaitingGreeting = true;
+    }
+
+    /**
+     * Use an authenticated Server session, which sends no greeting, closing a Server already used
+     * @param server The SocketChannel to which the server is connected
+     * @param serverBuffer The read-write buffer to interact with the Server
+     * @param loginTime The time the Server session logged in
+     */
+    public void adoptServer(SocketChannel server, DoubleBuffer serverBuffer, long loginTime) {
+        disconnectServer();
+        this.serverBuffer = serverBuffer;
         this.server = server;
+        this.loginTime = loginTime;
     }
 
     /**
-     * Get the current Mail being transferred
+     * Stop using the Server side of the connection without closing it, once it was handed to the UpstreamPool
+     */
+    public void detachServer() {
+        this.server = null;
+        this.serverBuffer = null;
+    }
+
+    /**
+     * Mark the connection to the Server as established, cancelling its timeout
+     */
+    public void serverConnected() {
+        this.connecting = false;
+        setConnectTimeout(null);
+    }
+
+    /**
+     * Close the SocketChannel to which the Server is connected, discarding the messages queued for it
+     */
+    public void disconnectServer() {
+        setConnectTimeout(null);
+        connecting = false;
+        if (server != null) {
+            SelectionKey serverKey = server.keyFor(selector);
+            if (serverKey != null) {
+                serverKey.cancel();
+            }
+            try {
+                server.close();
+            } catch (IOException e) {
+                LOGGER.error("Error closing socket");
+            }
+            server = null;
+        }
+        if (serverBuffer != null) {
+            serverBuffer.release();
+            serverBuffer = null;
+        }
+    }
+
+    /**
+     * Check if the connection to the Server is being established
+     * @return If messages to the Server are queued until it is connected
+     */
+    public boolean isConnecting() {
+        return connecting;
+    }
+
+    /**
+     * Set the task closing the connection to the Server if it is not established in time, cancelling the previous one
+     * @param connectTimeout The timeout task, or null
+     */
+    public void setConnectTimeout(ScheduledFuture<?> connectTimeout) {
+        if (this.connectTimeout != null) {
+            this.connectTimeout.cancel(false);
+        }
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Get the event loop owning both the Client and the Server channels
+     * @return The event loop owning the connection
+     */
+    public Executor getLoop() {
+        return loop;
+    }
+
+    /**
+     * Stop reading from the Server
+     * Must be called from the event loop owning the connection
+     * @param reason The reason to stop, TRANSFORMATIONS_FULL, PEER_BACKLOG or TRANSFORMING
+     */
+    public void pauseServer(int reason) {
+        serverPauses |= reason;
+        setReadable(server, false);
+    }
+
+    /**
+     * Check if the Server is not read for a reason
+     * @param reason The reason, TRANSFORMATIONS_FULL, PEER_BACKLOG or TRANSFORMING
+     * @return If the Server is paused for that reason
+     */
+    public boolean isServerPaused(int reason) {
+        return (serverPauses & reason) != 0;
+    }
+
+    /**
+     * Read again from the Server once no reason to stop is left
+     * Must be called from the event loop owning the connection
+     * @param reason The reason that no longer holds
+     */
+    public void resumeServer(int reason) {
+        serverPauses &= ~reason;
+        if (serverPauses == 0) {
+            setReadable(server, true);
+        }
+    }
+
+    /**
+     * Stop reading from the Client
+     * Must be called from the event loop owning the connection
+     * @param reason The reason to stop, PEER_BACKLOG or CHECKING_MAILBOX
+     */
+    public void pauseClient(int reason) {
+        clientPauses |= reason;
+        setReadable(client, false);
+    }
+
+    /**
+     * Check if the Client is not read for a reason
+     * @param reason The reason, PEER_BACKLOG or CHECKING_MAILBOX
+     * @return If the Client is paused for that reason
+     */
+    public boolean isClientPaused(int reason) {
+        return (clientPauses & reason) != 0;
+    }
+
+    /**
+     * Read again from the Client once no reason to stop is left
+     * Must be called from the event loop owning the connection
+     * @param reason The reason that no longer holds
+     */
+    public void resumeClient(int reason) {
+        clientPauses &= ~reason;
+        if (clientPauses == 0) {
+            setReadable(client, true);
+        }
+    }
+
+    /**
+     * Pause reading from the Server if the bytes queued for the Client reached the high-water mark
+     * Must be called from the event loop owning the connection after queueing for the Client
+     */
+    public void clientQueued() {
+        if ((serverPauses & PEER_BACKLOG) == 0
+                && clientBuffer.getWriteBuffer().size() > Configuration.getInstance().getWriteHighWaterMark()) {
+            pauseServer(PEER_BACKLOG);
+        }
+    }
+
+    /**
+     * Resume reading from the Server if the bytes queued for the Client fell to the low-water mark
+     * Must be called from the event loop owning the connection after writing to the Client
+     */
+    public void clientWritten() {
+        if ((serverPauses & PEER_BACKLOG) != 0
+                && clientBuffer.getWriteBuffer().size() <= Configuration.getInstance().getWriteLowWaterMark()) {
+            resumeServer(PEER_BACKLOG);
+        }
+    }
+
+    /**
+     * Pause reading from the Client if the bytes queued for the Server reached the high-water mark
+     * Must be called from the event loop owning the connection after queueing for the Server
+     */
+    public void serverQueued() {
+        if ((clientPauses & PEER_BACKLOG) == 0
+                && serverBuffer.getWriteBuffer().size() > Configuration.getInstance().getWriteHighWaterMark()) {
+            pauseClient(PEER_BACKLOG);
+        }
+    }
+
+    /**
+     * Resume reading from the Client if the bytes queued for the Server fell to the low-water mark
+     * Must be called from the event loop owning the connection after writing to the Server
+     */
+    public void serverWritten() {
+        if ((clientPauses & PEER_BACKLOG) != 0
+                && serverBuffer.getWriteBuffer().size() <= Configuration.getInstance().getWriteLowWaterMark()) {
+            resumeClient(PEER_BACKLOG);
+        }
+    }
+
+    /**
+     * Add or remove the interest in reading from a channel, keeping the interest in writing
+     * @param channel The channel, ignored if null or closed
+     * @param readable If the channel should be read
+     */
+    private void setReadable(SocketChannel channel, boolean readable) {
+        if (channel == null || !channel.isOpen()) {
+            return;
+        }
+        SelectionKey key = channel.keyFor(selector);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        if (readable) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Make the event loop write what another Thread queued for the Client
+     * The event loop is woken once per batch: until it takes the request, later calls only queue
+     */
+    public void requestClientWrite() {
+        final OutboundQueue queue = clientBuffer.getWriteBuffer();
+        if (!queue.requestWrite()) {
+            return;
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                queue.clearWriteRequest();
+                if (!client.isOpen()) {
+                    // Closed meanwhile, free what was queued after the Connection released its buffers
+                    queue.discard();
+                    return;
+                }
+                SelectionKey key = client.keyFor(selector);
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    clientQueued();
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the Selector of the event loop owning both the Client and the Server channels
+     * @return The Selector of the event loop owning the connection
+     */
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Get the current Mail being transferred, creating it if there is none
      * @return The current Mail being transferred
+     * @throws IOException
      */
-    public Mail getMail() {
+    public Mail getMail() throws IOException {
+        if (mail == null) {
+            mail = new Mail();
+        }
         return mail;
     }
 
@@ -107,6 +470,94 @@ public class Connection {
         this.mail = mail;
     }
 
+    /**
+     * Check if the current retrieval is relayed to the Client as it arrives
+     * @return If the current retrieval is relayed to the Client as it arrives
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Set if the current retrieval is relayed to the Client as it arrives instead of being spooled
+     * @param streaming If the current retrieval is relayed to the Client as it arrives
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Get the pipeline transforming the current retrieval as it arrives
+     * @return The pipeline, or null if the retrieval is not transformed as it arrives
+     */
+    public TransformationPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Set the pipeline transforming the current retrieval as it arrives
+     * @param pipeline The pipeline, or null if the retrieval is not transformed as it arrives
+     */
+    public void setPipeline(TransformationPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Get the copy of the current retrieval made for the MessageCache
+     * @return The capture, or null if the retrieval is not cached
+     */
+    public MessageCapture getCapture() {
+        return capture;
+    }
+
+    /**
+     * Set the copy of the current retrieval made for the MessageCache
+     * @param capture The capture, or null if the retrieval is not cached
+     */
+    public void setCapture(MessageCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Get the unique ids and sizes the Server listed during the session
+     * @return The listing of the maildrop
+     */
+    public MailboxListing getListing() {
+        return listing;
+    }
+
+    /**
+     * Get the copy of the current maildrop listing made for the MailboxCache
+     * @return The capture, or null if no listing is being read
+     */
+    public MailboxCapture getMailboxCapture() {
+        return mailboxCapture;
+    }
+
+    /**
+     * Set the copy of the current maildrop listing made for the MailboxCache
+     * @param mailboxCapture The capture, or null if no listing is being read
+     */
+    public void setMailboxCapture(MailboxCapture mailboxCapture) {
+        this.mailboxCapture = mailboxCapture;
+    }
+
+    /**
+     * Get the cached listing checked with the Server during the session
+     * @return The snapshot, or null if none was checked or the maildrop changed since
+     */
+    public MailboxSnapshot getCurrentMailbox() {
+        return currentMailbox;
+    }
+
+    /**
+     * Set the cached listing checked with the Server during the session
+     * @param currentMailbox The snapshot, or null if the maildrop changed
+     */
+    public void setCurrentMailbox(MailboxSnapshot currentMailbox) {
+        this.currentMailbox = currentMailbox;
+    }
+
     /**
      * Get the SocketChannel to which the Client is connected
      * @return The SocketChannel to which the Client is connected
@@ -157,7 +608,7 @@ public class Connection {
 
     /**
      * Get the last Command that the client sent
-     * @return The last Command that the client sent
+     * @return The last Command that the client sent, the one a PASS must follow
      */
     public Command getLastCommand() {
         return lastCommand;
@@ -172,26 +623,188 @@ public class Connection {
     }
 
     /**
-     * Get The last Mail marked for deletion
-     * @return The last Mail marked for deletion
+     * Queue a Command sent to the Server, or a reply of the proxy, behind the pending ones
+     * @param command The pending Command
+     */
+    public void addPending(PendingCommand command) {
+        pending.addLast(command);
+    }
+
+    /**
+     * Get the oldest pending Command, the one the next response belongs to
+     * @return The oldest pending Command, or null if there is none
+     */
+    public PendingCommand getPending() {
+        return pending.peekFirst();
+    }
+
+    /**
+     * Drop the oldest pending Command, once it was answered
+     */
+    public void completePending() {
+        pending.pollFirst();
+    }
+
+    /**
+     * Check if a Command is waiting for a response
+     * @return If there are pending Commands
+     */
+    public boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Drop every pending Command, when the Server is gone
+     */
+    public void clearPending() {
+        for (PendingCommand command : pending) {
+            command.release();
+        }
+        pending.clear();
+    }
+
+    /**
+     * Get the user the Client logged in as
+     * @return The username
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * Set the user the Client logged in as
+     * @param user The username
+     */
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    /**
+     * Get the Server the user is proxied to
+     * @return The Server the user is proxied to
+     */
+    public Server getUpstream() {
+        return upstream;
+    }
+
+    /**
+     * Set the Server the user is proxied to
+     * @param upstream The Server the user is proxied to
+     */
+    public void setUpstream(Server upstream) {
+        this.upstream = upstream;
+    }
+
+    /**
+     * Get the digest of the credentials the user logged in with
+     * @return The credentials digest, or null if the session can not be pooled
+     */
+    public String getPasswordDigest() {
+        return passwordDigest;
+    }
+
+    /**
+     * Set the digest of the credentials the user logged in with
+     * @param passwordDigest The credentials digest, or null if the session can not be pooled
+     */
+    public void setPasswordDigest(String passwordDigest) {
+        this.passwordDigest = passwordDigest;
+    }
+
+    /**
+     * Get the time the Server session logged in
+     * @return The time in milliseconds
      */
-    public String getMailToDelete() {
-        return mailToDelete;
+    public long getLoginTime() {
+        return loginTime;
     }
 
     /**
-     * Set the last Mail marked for deletion
-     * @param mailToDelete The last Mail marked for deletion
+     * Set the time the Server session logged in
+     * @param loginTime The time in milliseconds
      */
-    public void setMailToDelete(String mailToDelete) {
-        this.mailToDelete = mailToDelete;
+    public void setLoginTime(long loginTime) {
+        this.loginTime = loginTime;
+    }
+
+    /**
+     * Check if the USER command was answered by the proxy
+     * @return If the login expects a pooled session to be used
+     */
+    public boolean isPooledLogin() {
+        return pooledLogin;
+    }
+
+    /**
+     * Set if the USER command was answered by the proxy
+     * @param pooledLogin If the login expects a pooled session to be used
+     */
+    public void setPooledLogin(boolean pooledLogin) {
+        this.pooledLogin = pooledLogin;
+    }
+
+    /**
+     * Check if the maildrop may have been changed during the session
+     * @return If the maildrop may have been changed
+     */
+    public boolean isMailboxModified() {
+        return mailboxModified;
+    }
+
+    /**
+     * Set if the maildrop may have been changed during the session
+     * @param mailboxModified If the maildrop may have been changed
+     */
+    public void setMailboxModified(boolean mailboxModified) {
+        this.mailboxModified = mailboxModified;
+    }
+
+    /**
+     * Check if the greeting of the Server was not read yet
+     * @return If the next line from the Server is its greeting
+     */
+    public boolean isAwaitingGreeting() {
+        return awaitingGreeting;
+    }
+
+    /**
+     * Set if the greeting of the Server was not read yet
+     * @param awaitingGreeting If the next line from the Server is its greeting
+     */
+    public void setAwaitingGreeting(boolean awaitingGreeting) {
+        this.awaitingGreeting = awaitingGreeting;
+    }
+
+    /**
+     * Close the connection once everything queued for the Client was written
+     * Must be called from the event loop owning the connection
+     */
+    public void closeWhenWritten() {
+        clientBuffer.getWriteBuffer().addTask(new Runnable() {
+            @Override
+            public void run() {
+                // Not while the queue is being written
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        close();
+                    }
+                });
+            }
+        });
     }
 
     /**
      * Close the SocketChannels corresponding to the Client and the Server
-     * Cancel the keys associated with the Client Selector
+     * Cancel the keys associated with the event loop Selector, closing an already closed connection does nothing.
+     * The buffers, the spooled Mail and the retrieval being transformed or captured are released
      */
     public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        setConnectTimeout(null);
         try {
             SelectionKey clientKey = client.keyFor(selector);
             if (clientKey != null) {
@@ -208,6 +821,27 @@ public class Connection {
         } catch (IOException e) {
             LOGGER.error("Error closing socket");
         }
+        clientBuffer.release();
+        if (serverBuffer != null) {
+            serverBuffer.release();
+        }
+        if (mail != null) {
+            mail.release();
+        }
+        if (capture != null) {
+            capture.release();
+        }
+        if (pipeline != null) {
+            pipeline.release();
+            pipeline = null;
+        }
+        if (mailboxCapture != null) {
+            mailboxCapture.clear();
+            mailboxCapture = null;
+        }
+        for (PendingCommand command : pending) {
+            command.release();
+        }
     }
 
 }
\ No newline at end of file
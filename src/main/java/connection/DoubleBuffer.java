@@ -6,29 +6,29 @@ package connection;
 public class DoubleBuffer {
 
     /**
-     * The read Buffer
+     * The read Buffer, framing the bytes read into lines
      */
-	private StringBuffer readBuffer;
+	private LineDecoder readBuffer;
 
     /**
      * The write Buffer
      */
-    private StringBuffer writeBuffer;
+    private OutboundQueue writeBuffer;
 
     /**
-     * Create both buffers
-     * @param n The Buffer size
+     * Create both buffers, the read Buffer leases its memory from the BufferPool and the write Buffer queues on demand
+     * @param n The size of the buffer leased for a read
      */
 	public DoubleBuffer(int n){
-		readBuffer = new StringBuffer(n);
-		writeBuffer = new StringBuffer(n);
+		readBuffer = new LineDecoder(n);
+		writeBuffer = new OutboundQueue();
 	}
 
     /**
      * Get the read Buffer
      * @return The read Buffer
      */
-	public StringBuffer getReadBuffer() {
+	public LineDecoder getReadBuffer() {
 		return readBuffer;
 	}
 
@@ -36,9 +36,15 @@ public class DoubleBuffer {
      * Get the write Buffer
      * @return The write Buffer
      */
-	public StringBuffer getWriteBuffer() {
+	public OutboundQueue getWriteBuffer() {
 		return writeBuffer;
 	}
-	
-	
+
+    /**
+     * Give back the memory leased by the buffers, dropping what was not written
+     */
+	public void release() {
+		readBuffer.release();
+		writeBuffer.discard();
+	}
 }
@@ -0,0 +1,173 @@
+package connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A CRLF framing decoder scanning a pooled ByteBuffer
+ * The buffer is leased for a read and given back as soon as every line was handed out, so idle
+ * connections hold no buffer. Lines are handed out as views of the buffer, including their terminator,
+ * and are only valid until the next call to the decoder
+ */
+public class LineDecoder {
+
+    /**
+     * The size of the buffer leased for a read
+     */
+    private int initialSize;
+
+    /**
+     * The buffer holding the bytes read, in write mode, or null if no buffer is leased
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * The view over the buffer used to hand out lines
+     */
+    private ByteBuffer line;
+
+    /**
+     * The index where the next line starts
+     */
+    private int lineStart;
+
+    /**
+     * The index up to which the buffer was scanned without finding a terminator
+     */
+    private int scanned;
+
+    /**
+     * Create the decoder with the size of the buffer leased for a read
+     * Lines longer than the largest buffer of the pool are handed out in fragments
+     * @param initialSize The size of the buffer leased for a read
+     */
+    public LineDecoder(int initialSize) {
+        this.initialSize = initialSize;
+    }
+
+    /**
+     * Read from a channel, discarding the lines already handed out
+     * @param channel The channel to read from
+     * @return The number of bytes read, or -1 if the channel reached end-of-stream
+     * @throws IOException
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        if (buffer == null) {
+            lease(BufferPool.getInstance().acquire(initialSize));
+        } else {
+            compact();
+            if (!buffer.hasRemaining()) {
+                grow();
+            }
+        }
+        int bytesRead = channel.read(buffer);
+        if (!hasRemaining()) {
+            release();
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Get the next complete line
+     * @return A view of the next line including its terminator, or null if there is no complete line
+     */
+    public ByteBuffer nextLine() {
+        if (buffer == null) {
+            return null;
+        }
+        int end = buffer.position();
+        for (int i = scanned; i < end; i++) {
+            if (buffer.get(i) == '\n') {
+                return slice(i + 1);
+            }
+        }
+        scanned = end;
+        if (lineStart == 0 && end == buffer.capacity() && end >= BufferPool.getInstance().getMaxSize()) {
+            return slice(end);
+        }
+        if (!hasRemaining()) {
+            release();
+        }
+        return null;
+    }
+
+    /**
+     * Get the incomplete line left once the channel reached end-of-stream
+     * @return A view of the bytes not handed out yet, or null if there are none
+     */
+    public ByteBuffer remainder() {
+        if (!hasRemaining()) {
+            return null;
+        }
+        return slice(buffer.position());
+    }
+
+    /**
+     * Check if there are bytes read that were not handed out yet
+     * @return If there is an incomplete line in the buffer
+     */
+    public boolean hasRemaining() {
+        return buffer != null && buffer.position() > lineStart;
+    }
+
+    /**
+     * Give back the leased buffer, discarding any incomplete line
+     */
+    public void release() {
+        if (buffer != null) {
+            BufferPool.getInstance().release(buffer);
+            buffer = null;
+            line = null;
+            lineStart = 0;
+            scanned = 0;
+        }
+    }
+
+    /**
+     * Start using a leased buffer
+     * @param leased The buffer to use
+     */
+    private void lease(ByteBuffer leased) {
+        buffer = leased;
+        line = leased.duplicate();
+    }
+
+    /**
+     * Move the incomplete line to a buffer of the next size class
+     */
+    private void grow() {
+        ByteBuffer old = buffer;
+        lease(BufferPool.getInstance().acquire(BufferPool.getInstance().nextSize(old.capacity())));
+        old.flip();
+        buffer.put(old);
+        BufferPool.getInstance().release(old);
+    }
+
+    /**
+     * Point the line view to the bytes between the start of the line and an index
+     * @param end The index where the line ends
+     * @return The line view
+     */
+    private ByteBuffer slice(int end) {
+        line.limit(end);
+        line.position(lineStart);
+        lineStart = end;
+        scanned = end;
+        return line;
+    }
+
+    /**
+     * Move the incomplete line to the beginning of the buffer
+     */
+    private void compact() {
+        if (lineStart == 0) {
+            return;
+        }
+        buffer.limit(buffer.position());
+        buffer.position(lineStart);
+        buffer.compact();
+        scanned -= lineStart;
+        lineStart = 0;
+    }
+}
@@ -0,0 +1,128 @@
+package connection;
+
+import config.Configuration;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection between the proxy and a scraper of the metrics, answered once its request was read
+ */
+public class MetricsConnection {
+
+    /**
+     * The class Logger
+     */
+    private static transient Logger LOGGER = Logger.getLogger(MetricsConnection.class);
+
+    /**
+     * The read-write buffer to interact with the scraper
+     */
+    private DoubleBuffer buffer;
+
+    /**
+     * The SocketChannel to which the scraper is connected
+     */
+    private SocketChannel channel;
+
+    /**
+     * The request line, or null until it was read
+     */
+    private String requestLine;
+
+    /**
+     * The number of header lines read
+     */
+    private int headerLines;
+
+    /**
+     * If the response was queued
+     */
+    private boolean answered;
+
+    /**
+     * If the connection was closed
+     */
+    private boolean closed;
+
+    /**
+     * Create a connection with the SocketChannel to which the scraper is connected
+     * @param channel The SocketChannel to which the scraper is connected
+     */
+    public MetricsConnection(SocketChannel channel) {
+        this.buffer = new DoubleBuffer(Configuration.getInstance().getReadBufferSize());
+        this.channel = channel;
+    }
+
+    /**
+     * Get the SocketChannel to which the scraper is connected
+     * @return The SocketChannel to which the scraper is connected
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Get the read-write buffer to interact with the scraper
+     * @return The read-write buffer to interact with the scraper
+     */
+    public DoubleBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the request line
+     * @return The request line, or null until it was read
+     */
+    public String getRequestLine() {
+        return requestLine;
+    }
+
+    /**
+     * Set the request line
+     * @param requestLine The request line, without its terminator
+     */
+    public void setRequestLine(String requestLine) {
+        this.requestLine = requestLine;
+    }
+
+    /**
+     * Count a header line read
+     * @return The number of header lines read
+     */
+    public int addHeaderLine() {
+        return ++headerLines;
+    }
+
+    /**
+     * Check if the response was queued
+     * @return If the response was queued
+     */
+    public boolean isAnswered() {
+        return answered;
+    }
+
+    /**
+     * Record that the response was queued, nothing else is read
+     */
+    public void setAnswered() {
+        this.answered = true;
+    }
+
+    /**
+     * Close the SocketChannel, cancelling its key, and release the buffers
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.error("Error closing metrics socket.");
+        }
+        buffer.release();
+    }
+}
@@ -0,0 +1,608 @@
+package connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The bytes waiting to be written to a channel, in order
+ * Besides bytes, the queue holds regions of files, sent to the channel without passing through the heap,
+ * tasks run once everything queued before them was written, and placeholders for bytes given later, which stop the
+ * writes until they are.
+ * Any Thread may queue items without locking, only the event loop of the channel writes them. Copied bytes
+ * are held in chunks leased from the BufferPool, consecutive chunks are written with a single gathering write.
+ * The event loop appends the bytes it copies to the last chunk while it has room, so short lines share chunks.
+ * Any other item closes that chunk first, so it is never appended to behind a later item
+ */
+public class OutboundQueue {
+
+    /**
+     * The maximum number of chunks written at once
+     */
+    private static final int GATHER_LIMIT = 64;
+
+    /**
+     * The items not completely written yet, the first one being written
+     */
+    private Queue<Item> items = new ConcurrentLinkedQueue<>();
+
+    /**
+     * If a Thread other than the event loop asked it to write the queue and it did not yet
+     */
+    private AtomicBoolean writePending = new AtomicBoolean();
+
+    /**
+     * The memory held by the items not written yet: the capacity of the leased chunks and the bytes of the others
+     */
+    private AtomicLong size = new AtomicLong();
+
+    /**
+     * The last chunk queued, if the event loop may still append to it
+     */
+    private AtomicReference<Bytes> tail = new AtomicReference<>();
+
+    /**
+     * The Thread writing the queue, the only one appending to its last chunk
+     */
+    private volatile Thread writer;
+
+    /**
+     * The chunks of a gathering write, only used by the event loop
+     */
+    private ByteBuffer[] gather = new ByteBuffer[GATHER_LIMIT];
+
+    /**
+     * Queue a message, one byte per char
+     * @param text The message to write
+     */
+    public void add(CharSequence text) {
+        int length = text.length();
+        int i = 0;
+        boolean append = Thread.currentThread() == writer;
+        while (i < length) {
+            Bytes chunk = append ? tail.get() : null;
+            ByteBuffer fill = chunk != null ? chunk.fill() : null;
+            if (fill == null) {
+                chunk = new Bytes(BufferPool.getInstance().acquire(length - i));
+                fill = chunk.fill();
+            }
+            int start = fill.position();
+            int end = Math.min(length, i + fill.remaining());
+            for (int j = i; j < end; j++) {
+                char c = text.charAt(j);
+                fill.put(c <= 0xff ? (byte) c : (byte) '?');
+            }
+            if (queue(chunk, fill, append)) {
+                i = end;
+            } else {
+                // The chunk was closed meanwhile, the bytes go to a new one
+                fill.position(start);
+            }
+        }
+    }
+
+    /**
+     * Queue a copy of some bytes
+     * @param bytes The bytes to write, left untouched
+     */
+    public void add(ByteBuffer bytes) {
+        ByteBuffer source = bytes.duplicate();
+        boolean append = Thread.currentThread() == writer;
+        while (source.hasRemaining()) {
+            Bytes chunk = append ? tail.get() : null;
+            ByteBuffer fill = chunk != null ? chunk.fill() : null;
+            if (fill == null) {
+                chunk = new Bytes(BufferPool.getInstance().acquire(source.remaining()));
+                fill = chunk.fill();
+            }
+            int start = fill.position();
+            int position = source.position();
+            int limit = source.limit();
+            source.limit(position + Math.min(source.remaining(), fill.remaining()));
+            fill.put(source);
+            source.limit(limit);
+            if (!queue(chunk, fill, append)) {
+                // The chunk was closed meanwhile, the bytes go to a new one
+                fill.position(start);
+                source.position(position);
+            }
+        }
+    }
+
+    /**
+     * Publish the bytes put in a chunk, queueing the chunk if it is new
+     * A new chunk stays open to the event loop, the chunks of other Threads are closed at once
+     * @param chunk The chunk
+     * @param fill The view of the chunk the bytes were put in
+     * @param append If the caller is the event loop
+     * @return If the bytes were published, false if the last chunk was closed before they were
+     */
+    private boolean queue(Bytes chunk, ByteBuffer fill, boolean append) {
+        if (chunk.isQueued()) {
+            return chunk.extend(fill.position());
+        }
+        chunk.extend(fill.position());
+        if (!append) {
+            chunk.close();
+        }
+        addItem(chunk, append ? chunk : null);
+        return true;
+    }
+
+    /**
+     * Queue some bytes without copying them
+     * The buffer must not be touched until a task queued after it runs
+     * @param buffer The bytes to write
+     */
+    public void addBuffer(ByteBuffer buffer) {
+        addItem(new Bytes(buffer, null), null);
+    }
+
+    /**
+     * Queue a region of a file, transferred to the channel by the kernel when possible
+     * The file must stay open until a task queued after it runs
+     * @param file The file to write from
+     * @param position The position of the region in the file
+     * @param count The length of the region
+     */
+    public void addRegion(FileChannel file, long position, long count) {
+        addItem(new Region(file, position, position + count), null);
+    }
+
+    /**
+     * Queue a task, run once everything queued before it was written or the queue was discarded
+     * @param task The task to run
+     */
+    public void addTask(Runnable task) {
+        addItem(new Task(task), null);
+    }
+
+    /**
+     * Queue a place for bytes given later by any Thread, the items queued after it waiting until they are
+     * @return The placeholder, to fill once
+     */
+    public Placeholder addPlaceholder() {
+        Placeholder placeholder = new Placeholder();
+        addItem(placeholder, null);
+        return placeholder;
+    }
+
+    /**
+     * Write as much as the channel accepts
+     * Must be called from the event loop of the channel
+     * @param channel The channel to write to
+     * @return If the queue is empty
+     * @throws IOException
+     */
+    public boolean write(SocketChannel channel) throws IOException {
+        writer = Thread.currentThread();
+        Item item;
+        while ((item = items.peek()) != null) {
+            if (item instanceof Bytes) {
+                if (!writeChunks(channel)) {
+                    return false;
+                }
+                continue;
+            }
+            if (item instanceof Placeholder && !((Placeholder) item).isFilled()) {
+                return false;
+            }
+            long before = item.queued();
+            boolean done = item.write(channel);
+            size.addAndGet(item.queued() - before);
+            if (!done) {
+                return false;
+            }
+            items.poll();
+        }
+        return true;
+    }
+
+    /**
+     * Write the chunks at the head of the queue with a single gathering write, releasing those fully written
+     * @param channel The channel to write to
+     * @return If every chunk gathered was written
+     * @throws IOException
+     */
+    private boolean writeChunks(SocketChannel channel) throws IOException {
+        int count = 0;
+        for (Item item : items) {
+            if (!(item instanceof Bytes) || count == GATHER_LIMIT) {
+                break;
+            }
+            gather[count++] = ((Bytes) item).view();
+        }
+        try {
+            channel.write(gather, 0, count);
+            for (int i = 0; i < count; i++) {
+                if (gather[i].hasRemaining()) {
+                    return false;
+                }
+                // Only this Thread appends, so nothing was added to the chunk since it was gathered
+                Bytes chunk = (Bytes) items.poll();
+                chunk.close();
+                tail.compareAndSet(chunk, null);
+                size.addAndGet(-chunk.queued());
+                chunk.discard();
+            }
+            return true;
+        } finally {
+            Arrays.fill(gather, 0, count, null);
+        }
+    }
+
+    /**
+     * Check if the writes stopped at a placeholder not filled yet, so the channel need not be watched until it is
+     * @return If the first item waits for its bytes
+     */
+    public boolean isWaiting() {
+        Item item = items.peek();
+        return item instanceof Placeholder && !((Placeholder) item).isFilled();
+    }
+
+    /**
+     * Record that a Thread other than the event loop queued items
+     * @return If the event loop must be asked to write, false if it was already asked and did not yet
+     */
+    public boolean requestWrite() {
+        return writePending.compareAndSet(false, true);
+    }
+
+    /**
+     * Record that the event loop took the request to write, before it looks at the queue
+     */
+    public void clearWriteRequest() {
+        writePending.set(false);
+    }
+
+    /**
+     * Get the memory held by the items not written yet, compared to the water marks
+     * Copied bytes count for the whole capacity of their chunks, so many short lines weigh what they hold in memory
+     * @return The size of the queue, in bytes
+     */
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * Check if there is nothing left to write
+     * @return If the queue is empty
+     */
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    /**
+     * Drop everything not written yet, running the queued tasks
+     * Must be called from the event loop of the channel
+     */
+    public void discard() {
+        Item item;
+        while ((item = items.poll()) != null) {
+            size.addAndGet(-item.queued());
+            if (item instanceof Bytes) {
+                ((Bytes) item).close();
+                tail.compareAndSet((Bytes) item, null);
+            }
+            item.discard();
+        }
+    }
+
+    /**
+     * Queue an item after closing the last chunk, so nothing is appended to it behind the item
+     * @param item The item
+     * @param open The chunk the event loop may append to after the item, or null
+     */
+    private void addItem(Item item, Bytes open) {
+        Bytes last = tail.getAndSet(open);
+        if (last != null) {
+            last.close();
+        }
+        size.addAndGet(item.queued());
+        items.add(item);
+    }
+
+    /**
+     * An item of the queue
+     */
+    private interface Item {
+
+        /**
+         * Write the item to a channel
+         * @param channel The channel to write to
+         * @return If the item was completely written
+         * @throws IOException
+         */
+        boolean write(SocketChannel channel) throws IOException;
+
+        /**
+         * Get the bytes the item counts for in the size of the queue
+         * @return The bytes of the item not written yet, or the capacity of a leased chunk until it is written
+         */
+        long queued();
+
+        /**
+         * Drop the item, written or not
+         */
+        void discard();
+    }
+
+    /**
+     * Bytes held in a buffer
+     * A leased chunk may be appended to by the event loop until it is closed: the bytes are put past the end of the
+     * chunk, then published by moving the end, which fails once the chunk is closed
+     */
+    private static class Bytes implements Item {
+
+        /**
+         * The bit of the end set once the chunk may not be appended to
+         */
+        private static final int CLOSED = Integer.MIN_VALUE;
+
+        /**
+         * The bytes not written yet, up to the end
+         */
+        private ByteBuffer buffer;
+
+        /**
+         * The view of a leased chunk the bytes are put in, or null if the buffer is not leased
+         */
+        private ByteBuffer fill;
+
+        /**
+         * The position after the last byte published, with the CLOSED bit
+         */
+        private AtomicInteger end = new AtomicInteger();
+
+        /**
+         * If the chunk was queued
+         */
+        private boolean queued;
+
+        /**
+         * The bytes the item counts for in the size of the queue
+         */
+        private long weight;
+
+        /**
+         * Create an empty chunk over a leased buffer, filled before it is queued
+         * @param chunk The cleared leased buffer
+         */
+        Bytes(ByteBuffer chunk) {
+            this(chunk, chunk.duplicate());
+        }
+
+        /**
+         * Create an item over bytes that are not copied
+         * @param buffer The bytes to write
+         * @param fill The view to put bytes in if the buffer is leased, or null
+         */
+        private Bytes(ByteBuffer buffer, ByteBuffer fill) {
+            this.buffer = buffer;
+            this.fill = fill;
+            if (fill == null) {
+                end.set(buffer.limit() | CLOSED);
+                weight = buffer.remaining();
+            } else {
+                end.set(buffer.position());
+                weight = buffer.capacity();
+            }
+        }
+
+        /**
+         * Get the view to put bytes in
+         * @return The view, positioned at the end, or null if the chunk is closed or full
+         */
+        ByteBuffer fill() {
+            if (fill == null || end.get() < 0 || !fill.hasRemaining()) {
+                return null;
+            }
+            return fill;
+        }
+
+        /**
+         * Publish the bytes put before a position
+         * @param position The new end
+         * @return If the bytes were published, false if the chunk was closed
+         */
+        boolean extend(int position) {
+            int current = end.get();
+            queued = true;
+            return current >= 0 && end.compareAndSet(current, position);
+        }
+
+        /**
+         * Check if the chunk was queued
+         * @return If the chunk was queued
+         */
+        boolean isQueued() {
+            return queued;
+        }
+
+        /**
+         * Forbid appending to the chunk
+         */
+        void close() {
+            int current;
+            while ((current = end.get()) >= 0 && !end.compareAndSet(current, current | CLOSED)) {
+                // Appended to meanwhile, close it after the new bytes
+            }
+        }
+
+        /**
+         * Get the bytes to write, up to the end
+         * @return The buffer, its limit at the end
+         */
+        ByteBuffer view() {
+            buffer.limit(end.get() & ~CLOSED);
+            return buffer;
+        }
+
+        @Override
+        public boolean write(SocketChannel channel) throws IOException {
+            channel.write(view());
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public long queued() {
+            return weight;
+        }
+
+        @Override
+        public void discard() {
+            if (fill != null) {
+                BufferPool.getInstance().release(buffer);
+            }
+        }
+    }
+
+    /**
+     * A region of a file
+     */
+    private static class Region implements Item {
+
+        /**
+         * The file to write from
+         */
+        private FileChannel file;
+
+        /**
+         * The position of the first byte not written yet
+         */
+        private long position;
+
+        /**
+         * The position where the region ends
+         */
+        private long end;
+
+        /**
+         * Queue a region of a file
+         * @param file The file to write from
+         * @param position The position where the region starts
+         * @param end The position where the region ends
+         */
+        Region(FileChannel file, long position, long end) {
+            this.file = file;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public boolean write(SocketChannel channel) throws IOException {
+            long transferred = file.transferTo(position, end - position, channel);
+            if (transferred == 0 && position >= file.size()) {
+                throw new IOException("Spool file truncated");
+            }
+            position += transferred;
+            return position == end;
+        }
+
+        @Override
+        public long queued() {
+            return end - position;
+        }
+
+        @Override
+        public void discard() {
+        }
+    }
+
+    /**
+     * A place for bytes given later
+     * The Thread filling it must then ask the event loop to write, as for any item it queues
+     */
+    public class Placeholder implements Item {
+
+        /**
+         * The bytes not written yet, or null before the placeholder is filled
+         */
+        private volatile ByteBuffer bytes;
+
+        /**
+         * If the queue was discarded, so the bytes are not wanted
+         */
+        private volatile boolean discarded;
+
+        /**
+         * Give the bytes of the placeholder, without copying them
+         * @param buffer The bytes to write, not touched afterwards
+         */
+        public void fill(ByteBuffer buffer) {
+            if (discarded) {
+                return;
+            }
+            size.addAndGet(buffer.remaining());
+            bytes = buffer;
+        }
+
+        /**
+         * Check if the placeholder was filled
+         * @return If the bytes were given
+         */
+        boolean isFilled() {
+            return bytes != null;
+        }
+
+        @Override
+        public boolean write(SocketChannel channel) throws IOException {
+            channel.write(bytes);
+            return !bytes.hasRemaining();
+        }
+
+        @Override
+        public long queued() {
+            ByteBuffer buffer = bytes;
+            return buffer == null ? 0 : buffer.remaining();
+        }
+
+        @Override
+        public void discard() {
+            discarded = true;
+        }
+    }
+
+    /**
+     * A task run once the items before it were written
+     */
+    private static class Task implements Item {
+
+        /**
+         * The task to run
+         */
+        private Runnable task;
+
+        /**
+         * Queue a task
+         * @param task The task to run
+         */
+        Task(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public boolean write(SocketChannel channel) {
+            task.run();
+            return true;
+        }
+
+        @Override
+        public long queued() {
+            return 0;
+        }
+
+        @Override
+        public void discard() {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package connection;
+
+import config.Configuration;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton
+ * A pool of authenticated Server sessions, keyed by Server and user, reused across Client sessions
+ * Idle sessions stay registered to the event loop that released them, which sends the NOOP keepalives and
+ * reads their replies. A pooled session keeps the maildrop snapshot taken when it logged in, so messages
+ * that arrive meanwhile are only seen by a new login: however often it is reused, a session is not pooled
+ * again nor handed out once it logged in longer ago than the maximum lifetime
+ */
+public class UpstreamPool {
+
+    /**
+     * The class Logger
+     */
+    private static transient Logger LOGGER = Logger.getLogger(UpstreamPool.class);
+
+    /**
+     * The UpstreamPool instance
+     */
+    private static UpstreamPool instance;
+
+    /**
+     * The period of the sweep expiring and keeping alive idle sessions, in milliseconds
+     */
+    private static final long SWEEP_PERIOD = 1000;
+
+    /**
+     * Bytes of the messages exchanged with idle sessions
+     */
+    private static final byte[] NOOP = "NOOP\r\n".getBytes(BufferUtils.CHARSET), QUIT = "QUIT\r\n".getBytes(BufferUtils.CHARSET),
+            OK = "+OK".getBytes(BufferUtils.CHARSET);
+
+    /**
+     * The idle sessions of every key, the most recently released first
+     */
+    private ConcurrentMap<String, Deque<UpstreamSession>> idle = new ConcurrentHashMap<>();
+
+    /**
+     * The number of idle sessions
+     */
+    private AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * The maximum number of idle sessions
+     */
+    private int maxIdle;
+
+    /**
+     * The time a session may stay idle, in milliseconds
+     */
+    private long idleTime;
+
+    /**
+     * The time after its login beyond which a session is no longer reused, in milliseconds
+     */
+    private long maxLifetime;
+
+    /**
+     * The time without messages after which an idle session is sent a NOOP, in milliseconds
+     */
+    private long keepAlive;
+
+    /**
+     * The number of logins served with a pooled session
+     */
+    private AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of logins that found no matching pooled session
+     */
+    private AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of sessions closed by the pool
+     */
+    private AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Load the limits of the pool and start the sweep if it is enabled
+     */
+    private UpstreamPool() {
+        Configuration configuration = Configuration.getInstance();
+        this.maxIdle = configuration.getUpstreamPoolMaxIdle();
+        this.idleTime = configuration.getUpstreamPoolIdleTime();
+        this.maxLifetime = configuration.getUpstreamPoolMaxLifetime();
+        this.keepAlive = configuration.getUpstreamPoolKeepAlive();
+        if (isEnabled()) {
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "upstream-pool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sweep();
+                }
+            }, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get singleton
+     * @return The UpstreamPool instance
+     */
+    public static synchronized UpstreamPool getInstance() {
+        if (instance == null) {
+            instance = new UpstreamPool();
+        }
+        return instance;
+    }
+
+    /**
+     * Check if Server sessions are pooled
+     * @return If the pool is enabled
+     */
+    public static boolean isEnabled() {
+        return Configuration.getInstance().isUpstreamPool();
+    }
+
+    /**
+     * Get the key of the sessions of a user on a Server
+     * @param server The Server
+     * @param user The username
+     * @return The pool key
+     */
+    public static String key(Server server, String user) {
+        return server.getName() + ":" + server.getPort() + "/" + user;
+    }
+
+    /**
+     * Get the digest of the credentials of a user, so passwords are never kept
+     * @param user The username
+     * @param password The password
+     * @return The SHA-256 digest of the credentials
+     */
+    public static String digest(String user, String password) {
+        return DigestUtils.sha256Hex(user + "\0" + password);
+    }
+
+    /**
+     * Check if there is an idle session for a key
+     * @param key The pool key
+     * @return If a login with this key may be served by the pool
+     */
+    public boolean hasIdle(String key) {
+        Deque<UpstreamSession> sessions = idle.get(key);
+        return sessions != null && !sessions.isEmpty();
+    }
+
+    /**
+     * Take an idle session authenticated with the given credentials
+     * @param key The pool key
+     * @param digest The digest of the credentials
+     * @return The session, that should be handed to the Client with {@link #handOff}, or null
+     */
+    public UpstreamSession acquire(String key, String digest) {
+        Deque<UpstreamSession> sessions = idle.get(key);
+        if (sessions != null) {
+            for (UpstreamSession session : sessions) {
+                // An expired session is left to the sweep
+                if (session.getDigest().equals(digest) && !isExpired(session.getLoginTime()) && sessions.remove(session)) {
+                    idleCount.decrementAndGet();
+                    hits.incrementAndGet();
+                    return session;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Hand a taken session to the event loop of a Client, once the replies to its keepalives were read
+     * The task finds the channel closed if the session failed meanwhile
+     * @param session The session taken from the pool
+     * @param loop The event loop of the Client
+     * @param task The task adopting the session, run on the event loop of the Client
+     */
+    public void handOff(final UpstreamSession session, final Executor loop, final Runnable task) {
+        session.getLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                session.setHandOff(loop, task);
+                if (session.getPendingNoops() == 0 || session.isDetached()) {
+                    completeHandOff(session);
+                }
+            }
+        });
+    }
+
+    /**
+     * Keep the Server side of a Connection for a later login of the same user
+     * Must be called from the event loop owning the Connection
+     * @param connection The authenticated Connection whose Client is leaving
+     * @return If the session was pooled, otherwise the Connection is left untouched
+     */
+    public boolean release(Connection connection) {
+        if (isExpired(connection.getLoginTime())) {
+            // Logged out by the Client QUIT, so the next login sees the current maildrop
+            return false;
+        }
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return false;
+        }
+        SocketChannel channel = connection.getServer();
+        String key = key(connection.getUpstream(), connection.getUser());
+        UpstreamSession session = new UpstreamSession(key, connection.getPasswordDigest(), channel, connection.getServerBuffer(),
+                connection.getSelector(), connection.getLoop(), connection.getLoginTime());
+        connection.detachServer();
+        SelectionKey selectionKey = channel.keyFor(session.getSelector());
+        selectionKey.attach(session);
+        selectionKey.interestOps(SelectionKey.OP_READ);
+        Deque<UpstreamSession> sessions = idle.get(key);
+        if (sessions == null) {
+            idle.putIfAbsent(key, new ConcurrentLinkedDeque<UpstreamSession>());
+            sessions = idle.get(key);
+        }
+        sessions.offerFirst(session);
+        LOGGER.info("Pooled session " + key);
+        return true;
+    }
+
+    /**
+     * Read the replies of an idle session, closing it on anything but the reply to a keepalive
+     * @param key The key of the idle session
+     */
+    public void handleRead(SelectionKey key) {
+        UpstreamSession session = (UpstreamSession) key.attachment();
+        LineDecoder readBuffer = session.getBuffer().getReadBuffer();
+        int bytesRead;
+        try {
+            bytesRead = readBuffer.read(session.getChannel());
+        } catch (IOException e) {
+            bytesRead = -1;
+        }
+        if (bytesRead == -1) {
+            evict(session);
+            return;
+        }
+        ByteBuffer line;
+        while ((line = readBuffer.nextLine()) != null) {
+            if (session.getPendingNoops() == 0 || !BufferUtils.startsWith(line, OK)) {
+                evict(session);
+                return;
+            }
+            session.noopReplied();
+        }
+        if (session.getPendingNoops() == 0 && session.getHandOff() != null) {
+            completeHandOff(session);
+        }
+    }
+
+    /**
+     * Close a session, telling the Server to end it
+     * Must be called from the event loop the session is registered to, or once it was handed off
+     * @param session The session to close
+     */
+    public void evict(UpstreamSession session) {
+        Deque<UpstreamSession> sessions = idle.get(session.getPoolKey());
+        if (sessions != null && sessions.remove(session)) {
+            idleCount.decrementAndGet();
+        }
+        if (session.getChannel().isOpen()) {
+            evictions.incrementAndGet();
+            LOGGER.info("Closing pooled session " + session.getPoolKey());
+            SelectionKey key = session.getChannel().keyFor(session.getSelector());
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                session.getChannel().write(ByteBuffer.wrap(QUIT));
+                session.getChannel().close();
+            } catch (IOException e) {
+                LOGGER.error("Error closing socket");
+            }
+            session.getBuffer().release();
+        }
+        if (session.getHandOff() != null && !session.isDetached()) {
+            completeHandOff(session);
+        }
+        session.detach();
+    }
+
+    /**
+     * Move a session to the event loop of the Client adopting it
+     * Must be called from the event loop the session is registered to
+     * @param session The session to hand off
+     */
+    private void completeHandOff(UpstreamSession session) {
+        session.detach();
+        if (session.getHandOffLoop() == session.getLoop()) {
+            session.getHandOff().run();
+            return;
+        }
+        SelectionKey key = session.getChannel().keyFor(session.getSelector());
+        if (key != null) {
+            key.cancel();
+        }
+        session.getHandOffLoop().execute(session.getHandOff());
+    }
+
+    /**
+     * Check if a session logged in longer ago than the maximum lifetime
+     * @param loginTime The time the session logged in
+     * @return If the session must not be reused
+     */
+    private boolean isExpired(long loginTime) {
+        return System.currentTimeMillis() - loginTime >= maxLifetime;
+    }
+
+    /**
+     * Expire the sessions idle for too long or logged in longer ago than the maximum lifetime, and keep alive the others
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Deque<UpstreamSession> sessions : idle.values()) {
+            for (final UpstreamSession session : sessions) {
+                if (now - session.getIdleSince() >= idleTime || isExpired(session.getLoginTime())) {
+                    if (sessions.remove(session)) {
+                        idleCount.decrementAndGet();
+                        session.getLoop().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                evict(session);
+                            }
+                        });
+                    }
+                } else if (now - session.getLastActivity() >= keepAlive) {
+                    session.getLoop().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            keepAlive(session);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a NOOP to an idle session
+     * Must be called from the event loop the session is registered to
+     * @param session The session to keep alive
+     */
+    private void keepAlive(UpstreamSession session) {
+        if (session.isDetached() || session.getHandOff() != null
+                || System.currentTimeMillis() - session.getLastActivity() < keepAlive) {
+            return;
+        }
+        try {
+            ByteBuffer noop = ByteBuffer.wrap(NOOP);
+            session.getChannel().write(noop);
+            if (noop.hasRemaining()) {
+                throw new IOException("Could not write keepalive");
+            }
+            session.noopSent();
+        } catch (IOException e) {
+            evict(session);
+        }
+    }
+
+    /**
+     * Get the number of logins served with a pooled session
+     * @return The number of pool hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of logins that found no matching pooled session
+     * @return The number of pool misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of sessions closed by the pool
+     * @return The number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of idle sessions
+     * @return The number of pooled sessions
+     */
+    public int getIdle() {
+        return idleCount.get();
+    }
+}
@@ -0,0 +1,236 @@
+package connection;
+
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * An authenticated connection to a Server kept by the UpstreamPool between Client sessions
+ * Except for the timestamps, its state is only touched by the event loop it is registered to
+ */
+public class UpstreamSession {
+
+    /**
+     * The key of the pool the session belongs to
+     */
+    private String poolKey;
+
+    /**
+     * The digest of the credentials used to authenticate the session
+     */
+    private String digest;
+
+    /**
+     * The SocketChannel to which the Server is connected
+     */
+    private SocketChannel channel;
+
+    /**
+     * The read-write buffer to interact with the Server
+     */
+    private DoubleBuffer buffer;
+
+    /**
+     * The Selector of the event loop the session is registered to while idle
+     */
+    private Selector selector;
+
+    /**
+     * The event loop the session is registered to while idle
+     */
+    private Executor loop;
+
+    /**
+     * The time the session logged in to the Server, kept across the Client sessions reusing it
+     */
+    private long loginTime;
+
+    /**
+     * The time the session last entered the pool
+     */
+    private volatile long idleSince;
+
+    /**
+     * The time of the last message sent to the Server
+     */
+    private volatile long lastActivity;
+
+    /**
+     * The number of NOOP commands whose reply was not read yet
+     */
+    private int pendingNoops;
+
+    /**
+     * The task to run once the session can be handed to a Client, or null
+     */
+    private Runnable handOff;
+
+    /**
+     * The event loop the hand off task runs on
+     */
+    private Executor handOffLoop;
+
+    /**
+     * If the session left the event loop it was registered to
+     */
+    private boolean detached;
+
+    /**
+     * Create an idle session from the Server side of a Connection
+     * @param poolKey The key of the pool the session belongs to
+     * @param digest The digest of the credentials used to authenticate the session
+     * @param channel The SocketChannel to which the Server is connected
+     * @param buffer The read-write buffer to interact with the Server
+     * @param selector The Selector of the event loop the session is registered to
+     * @param loop The event loop the session is registered to
+     * @param loginTime The time the session logged in to the Server
+     */
+    public UpstreamSession(String poolKey, String digest, SocketChannel channel, DoubleBuffer buffer, Selector selector, Executor loop,
+            long loginTime) {
+        this.poolKey = poolKey;
+        this.digest = digest;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.selector = selector;
+        this.loop = loop;
+        this.loginTime = loginTime;
+        this.idleSince = System.currentTimeMillis();
+        this.lastActivity = idleSince;
+    }
+
+    /**
+     * Get the key of the pool the session belongs to
+     * @return The pool key
+     */
+    public String getPoolKey() {
+        return poolKey;
+    }
+
+    /**
+     * Get the digest of the credentials used to authenticate the session
+     * @return The credentials digest
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Get the SocketChannel to which the Server is connected
+     * @return The SocketChannel to which the Server is connected
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Get the read-write buffer to interact with the Server
+     * @return The read-write buffer to interact with the Server
+     */
+    public DoubleBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Get the Selector of the event loop the session is registered to while idle
+     * @return The Selector of the event loop
+     */
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Get the event loop the session is registered to while idle
+     * @return The event loop
+     */
+    public Executor getLoop() {
+        return loop;
+    }
+
+    /**
+     * Get the time the session logged in to the Server, which its maildrop snapshot dates from
+     * @return The time in milliseconds
+     */
+    public long getLoginTime() {
+        return loginTime;
+    }
+
+    /**
+     * Get the time the session last entered the pool
+     * @return The time in milliseconds
+     */
+    public long getIdleSince() {
+        return idleSince;
+    }
+
+    /**
+     * Get the time of the last message sent to the Server
+     * @return The time in milliseconds
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Record that a NOOP was sent to the Server
+     */
+    public void noopSent() {
+        pendingNoops++;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Record that the reply to a NOOP was read
+     */
+    public void noopReplied() {
+        pendingNoops--;
+    }
+
+    /**
+     * Get the number of NOOP commands whose reply was not read yet
+     * @return The number of pending NOOP replies
+     */
+    public int getPendingNoops() {
+        return pendingNoops;
+    }
+
+    /**
+     * Get the task to run once the session can be handed to a Client
+     * @return The hand off task, or null
+     */
+    public Runnable getHandOff() {
+        return handOff;
+    }
+
+    /**
+     * Get the event loop the hand off task runs on
+     * @return The event loop of the Client
+     */
+    public Executor getHandOffLoop() {
+        return handOffLoop;
+    }
+
+    /**
+     * Set the task to run once the session can be handed to a Client
+     * @param handOffLoop The event loop the task runs on
+     * @param handOff The hand off task
+     */
+    public void setHandOff(Executor handOffLoop, Runnable handOff) {
+        this.handOffLoop = handOffLoop;
+        this.handOff = handOff;
+    }
+
+    /**
+     * Check if the session left the event loop it was registered to
+     * @return If the session was handed off or closed
+     */
+    public boolean isDetached() {
+        return detached;
+    }
+
+    /**
+     * Mark that the session left the event loop it was registered to
+     */
+    public void detach() {
+        this.detached = true;
+    }
+}
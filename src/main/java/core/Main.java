@@ -3,12 +3,13 @@ package core;
 import admin.Admin;
 import config.Configuration;
 import connection.AdminConnection;
-import connection.Connection;
+import connection.MetricsConnection;
 import connection.Server;
 import handler.*;
 import org.apache.log4j.Logger;
 import proxy.ClientProxy;
 import proxy.ServerProxy;
+import statistics.MetricsExposition;
 
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
@@ -45,31 +46,39 @@ public class Main {
 		// Create selectors to multiplex listening sockets and connections
         try {
             Selector clientSelector = Selector.open();
-            Selector serverSelector = Selector.open();
             Selector adminSelector = Selector.open();
 		
             userToServerMap = new ConcurrentHashMap<>();
             finished = new AtomicBoolean(false);
+            ReactorPool reactors = new ReactorPool(Configuration.getInstance().getReactorThreads(), finished);
             Admin admin = new Admin(userToServerMap, adminSelector, finished);
-            ClientProxy clientProxy = new ClientProxy(userToServerMap, clientSelector, serverSelector);
-            ServerProxy serverProxy = new ServerProxy(userToServerMap, clientSelector, serverSelector);
+            ClientProxy clientProxy = new ClientProxy(userToServerMap);
+            ServerProxy serverProxy = new ServerProxy(userToServerMap);
+            serverProxy.setClientProxy(clientProxy);
 
             // Create handlers that will implement the protocol
-            ProxyHandler clientHandler = new ClientHandler(clientSelector, clientProxy, userToServerMap);
-            ProxyHandler serverHandler = new ServerHandler(serverSelector, serverProxy);
+            ClientHandler clientHandler = new ClientHandler(reactors, clientProxy, userToServerMap);
+            ServerHandler serverHandler = new ServerHandler(serverProxy);
             ProxyHandler adminHandler = new AdminHandler(adminSelector, admin);
+            Handler adminLoopHandler = adminHandler;
+            int metricsPort = Configuration.getInstance().getMetricsPort();
+            if (metricsPort > 0) {
+                // The metrics are served by the Admin event loop, next to the Admin connections
+                MetricsHandler metricsHandler = new MetricsHandler(adminSelector, new MetricsExposition());
+                metricsHandler.listen(metricsPort);
+                adminLoopHandler = new AdminLoopHandler(adminHandler, metricsHandler);
+            }
 
-            // Create threads that will solve the requests & responses
+            // Create threads that will accept connections, the event loops will solve the requests & responses
             ProxyThread clientThread = new ProxyThread(clientSelector, clientHandler, Configuration.getInstance().getDefaultListenerClientPort(), finished);
-            ProxyThread serverThread = new ProxyThread(serverSelector, serverHandler, Configuration.getInstance().getDefaultListenerServerPort(), finished);
-            ProxyThread adminThread = new ProxyThread(adminSelector, adminHandler, Configuration.getInstance().getDefaultListenerAdminPort(), finished);
+            ProxyThread adminThread = new ProxyThread(adminSelector, adminLoopHandler, Configuration.getInstance().getDefaultListenerAdminPort(), finished);
 
 
             // Run threads previously created
+            LOGGER.info("Starting client and server event loops.");
+            reactors.start(new ReactorHandler(clientHandler, serverHandler));
             LOGGER.info("Starting client-side listeners.");
             clientThread.start();
-            LOGGER.info("Starting server-side listeners.");
-            serverThread.start();
             LOGGER.info("Starting Admin listeners.");
             adminThread.start();
             LOGGER.info("Proxy ready!");
@@ -77,25 +86,14 @@ public class Main {
             try {
                 adminThread.join();
                 clientThread.join();
-                serverThread.join();
-                for (SelectionKey key : clientSelector.keys()) {
-                    Connection connection = ((Connection) key.attachment());
-                    if (connection != null) {
-                        key.cancel();
-                    }
-                }
-                clientSelector.keys();
-                for (SelectionKey key : serverSelector.keys()) {
-                    Connection connection = ((Connection) key.attachment());
-                    if (connection != null) {
-                        key.cancel();
-                    }
-                }
-                serverSelector.close();
+                reactors.join();
+                clientSelector.close();
+                reactors.close();
                 for (SelectionKey key : adminSelector.keys()) {
-                    AdminConnection connection = ((AdminConnection) key.attachment());
-                    if (connection != null) {
+                    if (key.attachment() instanceof AdminConnection) {
                         key.cancel();
+                    } else if (key.attachment() instanceof MetricsConnection) {
+                        ((MetricsConnection) key.attachment()).close();
                     }
                 }
                 adminSelector.close();
@@ -1,5 +1,10 @@
 package core;
 
+import connection.AdminConnection;
+import connection.Connection;
+import connection.MetricsConnection;
+import connection.UpstreamPool;
+import connection.UpstreamSession;
 import handler.Handler;
 import org.apache.log4j.Logger;
 
@@ -8,12 +13,16 @@ import java.net.InetSocketAddress;
 import java.nio.channels.*;
 import java.text.ParseException;
 import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A Thread to represent a service of the Proxy
+ * Tasks submitted through {@link #execute(Runnable)} run on this Thread between two selections
  */
-public class ProxyThread extends Thread {
+public class ProxyThread extends Thread implements Executor {
 
     /**
      * The class Logger
@@ -40,6 +49,23 @@ public class ProxyThread extends Thread {
      */
     private AtomicBoolean finished;
 
+    /**
+     * Tasks waiting to be run on this Thread
+     */
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Create Thread with the Selector and Handler corresponding to this service, without a listening socket
+     * @param selector The Selector corresponding to this service
+     * @param handler The Handler corresponding to this service
+     * @param finished A variable indicating that the execution should halt
+     */
+    public ProxyThread(Selector selector, Handler handler, AtomicBoolean finished) {
+        this.selector = selector;
+        this.handler = handler;
+        this.finished = finished;
+    }
+
     /**
      * Create Thread with the Selector, Handler and Port corresponding to this service
      * @param selector The Selector corresponding to this service
@@ -47,9 +73,7 @@ public class ProxyThread extends Thread {
      * @param port The Port corresponding to this service
      */
 	public ProxyThread(Selector selector, Handler handler, int port, AtomicBoolean finished) {
-		this.selector = selector;
-		this.handler = handler;
-        this.finished = finished;
+        this(selector, handler, finished);
         try {
             initializeSocketChannel(port);
         } catch (IOException e) {
@@ -71,34 +95,132 @@ public class ProxyThread extends Thread {
 	}
 
     /**
-     * Handle the keys registered to the Selector
+     * Get the Selector corresponding to this service
+     * @return The Selector corresponding to this service
+     */
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Run a task on this Thread, waking up the Selector so it is not delayed until the next timeout
+     * @param task The task to run
+     */
+    @Override
+    public void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Register a SocketChannel to the Selector from any Thread
+     * @param channel The SocketChannel to register
+     * @param ops The interest set of the new key
+     * @param attachment The object to attach to the new key
+     */
+    public void register(final SocketChannel channel, final int ops, final Object attachment) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(selector, ops, attachment);
+                } catch (ClosedChannelException e) {
+                    LOGGER.info("Channel closed before registration: " + channel);
+                }
+            }
+        });
+    }
+
+    /**
+     * Run the tasks submitted to this Thread, a failing task not keeping the others from running
+     */
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Task failed on " + getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Handle the keys registered to the Selector, closing the connection of a key whose handling fails
      * @param selector The Selector corresponding to this service
      * @param handler The Handler corresponding to this service
-     * @throws IOException
-     * @throws InterruptedException
-     * @throws ParseException
      */
-	private void handleKeys(Selector selector, Handler handler) throws IOException, InterruptedException, ParseException {
+	private void handleKeys(Selector selector, Handler handler) {
 
 		// Get iterator on set of keys with I/O to process
 		Iterator<SelectionKey> keyIter = selector.selectedKeys().iterator();
 
 		while (keyIter.hasNext()) {
 			SelectionKey key = keyIter.next(); // Key is bit mask
+			keyIter.remove(); // remove from set before handling, a failing key is not handled again
+
+			// Only the channels of a failing key are lost, the other sessions of the loop go on
+			try {
+				handleKey(key, handler);
+			} catch (IOException | CancelledKeyException e) {
+				LOGGER.info("Closing " + key.channel() + ": " + e);
+				closeKey(key);
+			} catch (InterruptedException | ParseException | RuntimeException e) {
+				LOGGER.error("Closing " + key.channel() + " after an unexpected error", e);
+				closeKey(key);
+			}
+		}
+	}
 
-			// Server socket channel has pending connection requests
-			if (key.isValid() && key.isAcceptable())
-				handler.handleAccept(key);
-
-			// Client socket channel has pending data
-			if (key.isValid() && key.isReadable())
-				handler.handleRead(key);
-			
-			// Client socket channel is available for writing
-			if (key.isValid() && key.isWritable())
-				handler.handleWrite(key);
-			
-			keyIter.remove(); // remove from set after handling
+    /**
+     * Handle the operations a key is ready for
+     * @param key The key to handle
+     * @param handler The Handler corresponding to this service
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ParseException
+     */
+	private void handleKey(SelectionKey key, Handler handler) throws IOException, InterruptedException, ParseException {
+
+		// Server socket channel has pending connection requests
+		if (key.isValid() && key.isAcceptable())
+			handler.handleAccept(key);
+
+		// Server socket channel finished connecting
+		if (key.isValid() && key.isConnectable())
+			handler.handleConnect(key);
+
+		// Client socket channel has pending data
+		if (key.isValid() && key.isReadable())
+			handler.handleRead(key);
+
+		// Client socket channel is available for writing
+		if (key.isValid() && key.isWritable())
+			handler.handleWrite(key);
+	}
+
+    /**
+     * Close what a key whose handling failed belongs to
+     * A listening socket is kept open, only the connection it was accepting is lost
+     * @param key The key whose handling failed
+     */
+	private void closeKey(SelectionKey key) {
+		Object attachment = key.attachment();
+		try {
+			if (attachment instanceof Connection) {
+				((Connection) attachment).close();
+			} else if (attachment instanceof UpstreamSession) {
+				UpstreamPool.getInstance().evict((UpstreamSession) attachment);
+			} else if (attachment instanceof MetricsConnection) {
+				((MetricsConnection) attachment).close();
+			} else if (attachment instanceof AdminConnection) {
+				((AdminConnection) attachment).close();
+			} else if (!(key.channel() instanceof ServerSocketChannel)) {
+				key.cancel();
+				key.channel().close();
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.error("Error closing " + key.channel() + ": " + e.getMessage());
 		}
 	}
 
@@ -110,17 +232,17 @@ public class ProxyThread extends Thread {
         try {
             while (!finished.get()) { 		// Run forever, processing available I/O operations
                 // Wait for some channel to be ready (or timeout)
-                if (selector.select(TIMEOUT) == 0) { // returns # of ready chans
+                int ready = selector.select(TIMEOUT); // returns # of ready chans
+                runPendingTasks();
+                if (ready == 0) {
                     continue;
                 }
                 handleKeys(selector, handler);
             }
-        } catch (CancelledKeyException cke) {
-
         } catch (ClosedSelectorException cse) {
-
-        } catch (Exception e) {
-            e.printStackTrace();
+            // The proxy is shutting down
+        } catch (IOException e) {
+            LOGGER.error("Event loop " + getName() + " ended: selection failed", e);
         }
     }
 
@@ -0,0 +1,95 @@
+package core;
+
+import handler.Handler;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of event loops, each one owning its own Selector
+ * Client connections, and the server connections paired with them, are spread across the loops
+ */
+public class ReactorPool {
+
+    /**
+     * The class Logger
+     */
+    private static transient Logger LOGGER = Logger.getLogger(ReactorPool.class);
+
+    /**
+     * The event loops of the pool
+     */
+    private ProxyThread[] reactors;
+
+    /**
+     * The index of the next event loop to hand out
+     */
+    private AtomicInteger next = new AtomicInteger();
+
+    /**
+     * A variable indicating that the execution should halt
+     */
+    private AtomicBoolean finished;
+
+    /**
+     * Create the pool with the number of event loops to run
+     * @param size The number of event loops
+     * @param finished A variable indicating that the execution should halt
+     */
+    public ReactorPool(int size, AtomicBoolean finished) {
+        this.reactors = new ProxyThread[size];
+        this.finished = finished;
+    }
+
+    /**
+     * Open a Selector for every event loop and start them
+     * @param handler The Handler shared by all the event loops
+     * @throws IOException
+     */
+    public void start(Handler handler) throws IOException {
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new ProxyThread(Selector.open(), handler, finished);
+            reactors[i].setName("reactor-" + i);
+            reactors[i].start();
+        }
+        LOGGER.info("Started " + reactors.length + " reactors.");
+    }
+
+    /**
+     * Get the event loop that should own the next connection
+     * @return The next event loop, in round robin order
+     */
+    public ProxyThread next() {
+        return reactors[(next.getAndIncrement() & Integer.MAX_VALUE) % reactors.length];
+    }
+
+    /**
+     * Wait for every event loop to finish
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        for (ProxyThread reactor : reactors) {
+            reactor.join();
+        }
+    }
+
+    /**
+     * Close the connections registered to every event loop and their Selectors
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        for (ProxyThread reactor : reactors) {
+            Selector selector = reactor.getSelector();
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    key.cancel();
+                }
+            }
+            selector.close();
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package core;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import config.Configuration;
+import connection.Connection;
+
+/**
+ * Singleton
+ * Runs the transformations of spooled Mails, and the rotations of the images of streamed ones, on a fixed number of Threads
+ * Waiting tasks are taken from the users in turns, so a user retrieving many Mails does not delay the others.
+ * The queue is bounded: once it is full, the Server of a Connection submitting a task is no longer read and its
+ * task waits outside the queue, until the queue drains to half its capacity.
+ * The gauges are only written holding the lock, and read without it
+ */
+public class TransformationScheduler {
+
+    /**
+     * The class Logger
+     */
+    private static transient Logger LOGGER = Logger.getLogger(TransformationScheduler.class);
+
+    /**
+     * The TransformationScheduler instance
+     */
+    private static TransformationScheduler instance;
+
+    /**
+     * The lock guarding the queue
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when a task is queued
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * The queued tasks of every user
+     */
+    private Map<String, Deque<Entry>> queues = new HashMap<>();
+
+    /**
+     * The users with queued tasks, in the order they are served
+     */
+    private Deque<String> turns = new ArrayDeque<>();
+
+    /**
+     * The tasks submitted while the queue was full, whose Server is not read
+     */
+    private Deque<Entry> paused = new ArrayDeque<>();
+
+    /**
+     * The pool transforming the parts of a Mail at the same time, or null if they are transformed one after another
+     */
+    private ForkJoinPool partPool;
+
+    /**
+     * The number of tasks waiting outside the full queue
+     */
+    private volatile int pausedCount;
+
+    /**
+     * The maximum number of queued tasks
+     */
+    private int capacity;
+
+    /**
+     * The number of queued tasks
+     */
+    private volatile int depth;
+
+    /**
+     * The number of tasks submitted
+     */
+    private volatile long submitted;
+
+    /**
+     * The number of times a Server was paused because the queue was full
+     */
+    private volatile long pauses;
+
+    /**
+     * The number of tasks started
+     */
+    private volatile long started;
+
+    /**
+     * The total time the started tasks waited, in nanoseconds
+     */
+    private volatile long totalWait;
+
+    /**
+     * The longest time a started task waited, in nanoseconds
+     */
+    private volatile long maxWait;
+
+    /**
+     * Start the transformation Threads
+     */
+    private TransformationScheduler() {
+        Configuration configuration = Configuration.getInstance();
+        this.capacity = configuration.getTransformationQueueSize();
+        for (int i = 0; i < configuration.getTransformationThreads(); i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "transformation-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        if (configuration.getTransformationParallelism() > 1) {
+            // The Thread running a task transforms parts too, so the pool only adds the others
+            this.partPool = new ForkJoinPool(configuration.getTransformationThreads());
+        }
+    }
+
+    /**
+     * Get singleton
+     * @return The TransformationScheduler instance
+     */
+    public static synchronized TransformationScheduler getInstance() {
+        if (instance == null) {
+            instance = new TransformationScheduler();
+        }
+        return instance;
+    }
+
+    /**
+     * Submit the transformation of a Mail retrieved by a Connection
+     * Must be called from the event loop owning the Connection
+     * @param connection The Connection the Mail belongs to
+     * @param task The task transforming the Mail
+     */
+    public void submit(Connection connection, Runnable task) {
+        Entry entry = new Entry(connection, task);
+        lock.lock();
+        try {
+            submitted++;
+            if (depth < capacity && paused.isEmpty()) {
+                enqueue(entry);
+                return;
+            }
+            paused.addLast(entry);
+            pausedCount = paused.size();
+            pauses++;
+        } finally {
+            lock.unlock();
+        }
+        LOGGER.info("Transformation queue full, pausing server of " + connection.getUser());
+        connection.pauseServer(Connection.TRANSFORMATIONS_FULL);
+    }
+
+    /**
+     * Get the pool transforming the parts of a Mail at the same time
+     * @return The pool, or null if parts are transformed one after another
+     */
+    public ForkJoinPool getPartPool() {
+        return partPool;
+    }
+
+    /**
+     * Run the queued tasks until the process ends
+     */
+    private void work() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                entry.task.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Transformation failed", e);
+            }
+        }
+    }
+
+    /**
+     * Take the next task, from the user following the one served last
+     * @return The queued entry
+     * @throws InterruptedException
+     */
+    private Entry take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (depth == 0) {
+                notEmpty.await();
+            }
+            String user = turns.pollFirst();
+            Deque<Entry> queue = queues.get(user);
+            Entry entry = queue.pollFirst();
+            if (queue.isEmpty()) {
+                queues.remove(user);
+            } else {
+                turns.addLast(user);
+            }
+            depth--;
+            long wait = System.nanoTime() - entry.submitted;
+            started++;
+            totalWait += wait;
+            maxWait = Math.max(maxWait, wait);
+            if (!paused.isEmpty() && depth <= capacity / 2) {
+                while (!paused.isEmpty() && depth < capacity) {
+                    Entry resumed = paused.pollFirst();
+                    pausedCount = paused.size();
+                    enqueue(resumed);
+                    resume(resumed.connection);
+                }
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a task behind the other tasks of its user
+     * Must be called holding the lock
+     * @param entry The entry to queue
+     */
+    private void enqueue(Entry entry) {
+        Deque<Entry> queue = queues.get(entry.user);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            queues.put(entry.user, queue);
+            turns.addLast(entry.user);
+        }
+        queue.addLast(entry);
+        depth++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Read again from the Server of a Connection whose task was queued
+     * @param connection The paused Connection
+     */
+    private void resume(final Connection connection) {
+        connection.getLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                connection.resumeServer(Connection.TRANSFORMATIONS_FULL);
+            }
+        });
+    }
+
+    /**
+     * Get the number of queued tasks
+     * @return The queue depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Get the number of tasks waiting outside the full queue
+     * @return The number of paused Servers
+     */
+    public int getPaused() {
+        return pausedCount;
+    }
+
+    /**
+     * Get the number of tasks submitted
+     * @return The number of tasks submitted
+     */
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * Get the number of times a Server was paused because the queue was full
+     * @return The number of pauses
+     */
+    public long getPauses() {
+        return pauses;
+    }
+
+    /**
+     * Get the average time the started tasks waited
+     * @return The average wait, in milliseconds
+     */
+    public long getAverageWait() {
+        return started == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWait / started);
+    }
+
+    /**
+     * Get the longest time a started task waited
+     * @return The longest wait, in milliseconds
+     */
+    public long getMaxWait() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWait);
+    }
+
+    /**
+     * A submitted task
+     */
+    private static class Entry {
+
+        /**
+         * The Connection the task belongs to
+         */
+        private Connection connection;
+
+        /**
+         * The user the task is queued for
+         */
+        private String user;
+
+        /**
+         * The task
+         */
+        private Runnable task;
+
+        /**
+         * The time the task was submitted, in nanoseconds
+         */
+        private long submitted;
+
+        /**
+         * Create an entry submitted now
+         * @param connection The Connection the task belongs to
+         * @param task The task
+         */
+        Entry(Connection connection, Runnable task) {
+            this.connection = connection;
+            this.user = connection.getUser() == null ? "" : connection.getUser();
+            this.task = task;
+            this.submitted = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import cache.MessageCache;
+import cache.MessageKey;
+import mail.Mail;
+import org.apache.log4j.Logger;
+import statistics.Statistics;
+import transformations.PartRewriter;
+import transformations.StreamTransformer;
+import transformations.Transformer;
+import config.Configuration;
+import connection.Connection;
+
+/**
+ * A task applying Transformations to a Mail, run by the TransformationScheduler
+ */
+public class TransformationTask implements Runnable {
+
+    /**
+     * The class Logger
+     */
+    private static transient Logger LOGGER = Logger.getLogger(TransformationTask.class);
+
+    /**
+     * The List of transformers that should be applied
+     */
+    private List<Transformer> transformers;
+
+    /**
+     * The Connection between Client and Server to which the Mail being transformed belongs
+     */
+    private Connection connection;
+
+    /**
+     * The Mail being transformed
+     */
+    private Mail mail;
+
+    /**
+     * The key the transformed Mail is cached with, or null if it is not cached
+     */
+    private MessageKey key;
+
+    /**
+     * Create the task with the Connection and the Transformers to apply
+     * @param connection The Connection between Client and Server to which the Mail being transformed belongs
+     * @param mail The Mail to transform, already completely received
+     * @param transformers The List of transformers that should be applied
+     * @param key The key the transformed Mail is cached with, or null if it is not cached
+     */
+    public TransformationTask(Connection connection, Mail mail, List<Transformer> transformers, MessageKey key) {
+        this.connection = connection;
+        this.mail = mail;
+        this.transformers = transformers;
+        this.key = key;
+    }
+
+    /**
+     * Start transforming mail
+     */
+    @Override
+    public void run() {
+        try {
+            List<StreamTransformer> streamTransformers = streamTransformers();
+            if (streamTransformers != null) {
+                new PartRewriter(mail, streamTransformers, TransformationScheduler.getInstance().getPartPool(),
+                        Configuration.getInstance().getTransformationParallelism()).rewrite();
+            } else {
+                for (Transformer transformer : transformers) {
+                    transformer.transform(mail);
+                }
+            }
+            if (key != null) {
+                MessageCache.getInstance().put(key, mail.getSpool());
+            }
+            writeMail(connection);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Could not transform mail: " + e.getMessage());
+            mail.release();
+            // The Client still gets a response, the ones after it stay matched to their Commands
+            connection.getClientBuffer().getWriteBuffer().add("-ERR could not retrieve message\r\n");
+            connection.requestClientWrite();
+        }
+    }
+
+    /**
+     * Get the transformers as StreamTransformers, if the parts of the Mail may be transformed in parallel
+     * @return The transformers, or null if parts are transformed one at a time or a transformer rewrites the whole Mail
+     */
+    private List<StreamTransformer> streamTransformers() {
+        ForkJoinPool pool = TransformationScheduler.getInstance().getPartPool();
+        if (pool == null) {
+            return null;
+        }
+        List<StreamTransformer> streamTransformers = new ArrayList<>(transformers.size());
+        for (Transformer transformer : transformers) {
+            if (!(transformer instanceof StreamTransformer)) {
+                return null;
+            }
+            streamTransformers.add((StreamTransformer) transformer);
+        }
+        return streamTransformers;
+    }
+
+    /**
+     * Write mail to client, queueing its Spool from this Thread and waking the event loop of the Connection
+     * @param connection The Connection between Client and Server to which the Mail being transformed belongs
+     * @throws IOException
+     */
+    private void writeMail(Connection connection) throws IOException {
+        long size = mail.sendTo(connection.getClientBuffer().getWriteBuffer());
+        connection.requestClientWrite();
+        Statistics.getInstance().processResponse(size);
+    }
+}
@@ -3,7 +3,8 @@ package handler;
 import admin.Admin;
 import config.Configuration;
 import connection.AdminConnection;
-import connection.BufferUtils;
+import connection.LineDecoder;
+import connection.OutboundQueue;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
@@ -60,7 +61,7 @@ public class AdminHandler extends ProxyHandler {
         adminChannel.configureBlocking(false);
        LOGGER.info("Accepted Admin connection -> " + adminChannel.socket().getRemoteSocketAddress());
         AdminConnection adminConnection = new AdminConnection(adminChannel, selector);
-        adminConnection.getBuffer().getWriteBuffer().append(CONNECTED);
+        adminConnection.getBuffer().getWriteBuffer().add(CONNECTED);
         adminChannel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, adminConnection);
     }
 
@@ -75,26 +76,18 @@ public class AdminHandler extends ProxyHandler {
         // Client socket channel has pending data
         SocketChannel channel = (SocketChannel) key.channel();
         AdminConnection connection = ((AdminConnection) key.attachment());
-        StringBuffer readBuffer = connection.getBuffer().getReadBuffer();
+        LineDecoder readBuffer = connection.getBuffer().getReadBuffer();
 
-        ByteBuffer buf = ByteBuffer.allocate(bufferSize);
-        long bytesRead = channel.read(buf);
-        buf.flip();
+        long bytesRead = readBuffer.read(channel);
         //If the other end disconnected close everything and finish
         if (bytesRead == -1) {
             LOGGER.info("Client disconnected:" + channel.socket().getRemoteSocketAddress());
             channel.close();
             connection.close();
         } else if (bytesRead > 0) {
-            String line = BufferUtils.bufferToString(buf);
-            readBuffer.append(line);
-            if (!line.endsWith("\n")) {
-                return;
-            }
-            line = readBuffer.toString();
-            readBuffer.delete(0, readBuffer.length());
-            for(String s: line.split("\r\n")) {
-                admin.parse(s, connection);
+            ByteBuffer line;
+            while ((line = readBuffer.nextLine()) != null) {
+                admin.parse(line, connection);
             }
         }
     }
@@ -107,17 +100,11 @@ public class AdminHandler extends ProxyHandler {
     public void handleWrite(SelectionKey key) throws IOException {
         AdminConnection connection = (AdminConnection) key.attachment();
         SocketChannel channel = connection.getChannel();
-        StringBuffer writeBuffer = connection.getBuffer().getWriteBuffer();
-        ByteBuffer buf = ByteBuffer.wrap(writeBuffer.toString().getBytes());
-        int bytesWritten = channel.write(buf);
-        // Buffer completely written?
-        if (!buf.hasRemaining()) {
+        OutboundQueue writeBuffer = connection.getBuffer().getWriteBuffer();
+        // Queue completely written?
+        if (writeBuffer.write(channel)) {
             // Nothing left, so no longer interested in writes
             key.interestOps(SelectionKey.OP_READ);
         }
-        writeBuffer.delete(0, bytesWritten);
-        // Make room for more data to be read in
-        buf.compact();
-        buf.clear();
     }
 }
@@ -0,0 +1,86 @@
+package handler;
+
+import connection.MetricsConnection;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.text.ParseException;
+
+/**
+ * A Handler for the admin event loop when it also serves the metrics
+ * Keys of the metrics listener and connections are dispatched to the metrics Handler, the others to the Admin Handler
+ */
+public class AdminLoopHandler implements Handler {
+
+    /**
+     * The Handler for the admin protocol
+     */
+    private Handler adminHandler;
+
+    /**
+     * The Handler serving the metrics
+     */
+    private MetricsHandler metricsHandler;
+
+    /**
+     * Create the Handler with the Admin and metrics Handlers to dispatch to
+     * @param adminHandler The Handler for the admin protocol
+     * @param metricsHandler The Handler serving the metrics
+     */
+    public AdminLoopHandler(Handler adminHandler, MetricsHandler metricsHandler) {
+        this.adminHandler = adminHandler;
+        this.metricsHandler = metricsHandler;
+    }
+
+    /**
+     * Get the Handler corresponding to the attachment of a key
+     * @param key The key to handle
+     * @return The metrics Handler if the key belongs to the metrics, the Admin Handler otherwise
+     */
+    private Handler handlerFor(SelectionKey key) {
+        Object attachment = key.attachment();
+        if (attachment instanceof MetricsHandler || attachment instanceof MetricsConnection) {
+            return metricsHandler;
+        }
+        return adminHandler;
+    }
+
+    /**
+     * Handle accept requests dispatching them to the Handler of the listener
+     * @param key The key to handle
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void handleAccept(SelectionKey key) throws IOException, InterruptedException {
+        handlerFor(key).handleAccept(key);
+    }
+
+    /**
+     * Handle read requests dispatching them to the Handler of the connection
+     * @param key The key to handle
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ParseException
+     */
+    public void handleRead(SelectionKey key) throws IOException, InterruptedException, ParseException {
+        handlerFor(key).handleRead(key);
+    }
+
+    /**
+     * Handle the completion of connect requests dispatching them to the Handler of the connection
+     * @param key The key to handle
+     * @throws IOException
+     */
+    public void handleConnect(SelectionKey key) throws IOException {
+        handlerFor(key).handleConnect(key);
+    }
+
+    /**
+     * Handle write requests dispatching them to the Handler of the connection
+     * @param key The key to handle
+     * @throws IOException
+     */
+    public void handleWrite(SelectionKey key) throws IOException {
+        handlerFor(key).handleWrite(key);
+    }
+}
@@ -1,20 +1,21 @@
 package handler;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.text.ParseException;
 import java.util.Map;
 
 import connection.Server;
+import core.ProxyThread;
+import core.ReactorPool;
 import org.apache.log4j.Logger;
 import proxy.ClientProxy;
 import config.Configuration;
-import connection.BufferUtils;
 import connection.Connection;
+import connection.LineDecoder;
+import connection.OutboundQueue;
 import statistics.Statistics;
 
 /**
@@ -38,21 +39,26 @@ public class ClientHandler extends ProxyHandler {
     Map<String, Server> userToServer;
 
     /**
-     * Create the Handler with the Selector corresponding to the Client Service, the Client Proxy
+     * The event loops to which accepted connections are handed out
+     */
+    private ReactorPool reactors;
+
+    /**
+     * Create the Handler with the event loops serving the Client Service, the Client Proxy
      * and the map from usernames to Servers
-     * @param selector The Client Selector
+     * @param reactors The event loops to which accepted connections are handed out
      * @param proxy The Client Proxy
      * @param userToServer The map from usernames to Servers
      */
-    public ClientHandler(Selector selector, ClientProxy proxy, Map<String, Server> userToServer) {
-        this.selector = selector;
+    public ClientHandler(ReactorPool reactors, ClientProxy proxy, Map<String, Server> userToServer) {
+        this.reactors = reactors;
         this.proxy = proxy;
         this.userToServer = userToServer;
         this.bufferSize = Configuration.getInstance().getBufferSize();
     }
 
     /**
-     * Handle accept requests accepting connections from clients
+     * Handle accept requests accepting connections from clients and handing them out to an event loop
      * @param key The key to handle
      * @throws IOException
      */
@@ -66,11 +72,14 @@ public class ClientHandler extends ProxyHandler {
         //Connect to proxy service
         clientChannel.configureBlocking(false);
         clientChannel.socket().setKeepAlive(true);
+        // Writes are already gathered, waiting for acknowledgements would only delay the end of every response
+        clientChannel.socket().setTcpNoDelay(true);
         LOGGER.info("Accepted connection -> " + clientChannel.socket().getRemoteSocketAddress());
-        Connection connection = new Connection(clientChannel, selector);
-        connection.getClientBuffer().getWriteBuffer().append(CONNECTED);
+        ProxyThread reactor = reactors.next();
+        Connection connection = new Connection(clientChannel, reactor.getSelector(), reactor);
+        connection.getClientBuffer().getWriteBuffer().add(CONNECTED);
         Statistics.getInstance().addConnection();
-        clientChannel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, connection);
+        reactor.register(clientChannel, SelectionKey.OP_READ | SelectionKey.OP_WRITE, connection);
     }
 
     /**
@@ -84,27 +93,16 @@ public class ClientHandler extends ProxyHandler {
         // Client socket channel has pending data
         SocketChannel channel = (SocketChannel) key.channel();
         Connection connection = ((Connection) key.attachment());
-        StringBuffer readBuffer = connection.getClientBuffer().getReadBuffer();
+        LineDecoder readBuffer = connection.getClientBuffer().getReadBuffer();
 
-        ByteBuffer buf = ByteBuffer.allocate(bufferSize);
-        long bytesRead = channel.read(buf);
-        buf.flip();
+        long bytesRead = readBuffer.read(channel);
         //If the other end disconnected close everything and finish
         if (bytesRead == -1) {
             LOGGER.info("Client disconnected:" + channel.socket().getRemoteSocketAddress());
             channel.close();
             connection.close();
         } else if (bytesRead > 0) {
-            String line = BufferUtils.bufferToString(buf);
-            readBuffer.append(line);
-            if (!line.endsWith("\n")) {
-                return;
-            }
-            line = readBuffer.toString();
-            readBuffer.delete(0, readBuffer.length());
-            for(String s: line.split("\r\n")){
-                proxy.proxy(s.concat("\r\n"), connection);
-            }
+            ((ClientProxy) proxy).proxyBuffered(connection);
         }
     }
 
@@ -116,18 +114,13 @@ public class ClientHandler extends ProxyHandler {
     public void handleWrite(SelectionKey key) throws IOException {
         Connection connection = (Connection) key.attachment();
         SocketChannel channel = connection.getClient();
-        StringBuffer writeBuffer = connection.getClientBuffer().getWriteBuffer();
-        ByteBuffer buf = ByteBuffer.wrap(writeBuffer.toString().getBytes());
-        int bytesWritten = channel.write(buf);
-        // Buffer completely written?
-        if (!buf.hasRemaining()) {
-            // Nothing left, so no longer interested in writes
-            key.interestOps(SelectionKey.OP_READ);
+        OutboundQueue writeBuffer = connection.getClientBuffer().getWriteBuffer();
+        // Queue completely written, or waiting for a part transformed on another Thread?
+        if (writeBuffer.write(channel) || writeBuffer.isWaiting()) {
+            // Nothing to write, so no longer interested in writes until more is queued
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
         }
-        writeBuffer.delete(0, bytesWritten);
-        // Make room for more data to be read in
-        buf.compact();
-        buf.clear();
+        connection.clientWritten();
     }
 
 }
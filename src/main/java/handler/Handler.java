@@ -26,6 +26,13 @@ public interface Handler {
      */
       void handleRead(SelectionKey key) throws IOException, InterruptedException, ParseException;
 
+    /**
+     * Handle the completion of connect requests
+     * @param key The key to handle
+     * @throws IOException
+     */
+      void handleConnect(SelectionKey key) throws IOException;
+
     /**
      * Handle write requests
      * @param key The key to handle
@@ -0,0 +1,166 @@
+package handler;
+
+import connection.BufferUtils;
+import connection.LineDecoder;
+import connection.MetricsConnection;
+import connection.OutboundQueue;
+import org.apache.log4j.Logger;
+import statistics.MetricsExposition;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A Handler serving the metrics over HTTP, without blocking the event loop it runs on
+ * Every connection is answered once its request headers were read and closed once the response was written
+ */
+public class MetricsHandler implements Handler {
+
+    /**
+     * The class Logger
+     */
+    private static transient Logger LOGGER = Logger.getLogger(MetricsHandler.class);
+
+    /**
+     * The maximum number of header lines of a request
+     */
+    private static final int MAX_HEADER_LINES = 100;
+
+    /**
+     * The Selector of the event loop serving the metrics
+     */
+    private Selector selector;
+
+    /**
+     * The renderer of the metrics
+     */
+    private MetricsExposition exposition;
+
+    /**
+     * Create the Handler with the Selector of the event loop serving the metrics
+     * @param selector The Selector of the event loop
+     * @param exposition The renderer of the metrics
+     */
+    public MetricsHandler(Selector selector, MetricsExposition exposition) {
+        this.selector = selector;
+        this.exposition = exposition;
+    }
+
+    /**
+     * Listen for scrapers on a port, the key of the listening socket being attached to this Handler
+     * @param port The port to listen on
+     * @throws IOException
+     */
+    public void listen(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_ACCEPT, this);
+        LOGGER.info("Serving metrics on port " + port);
+    }
+
+    /**
+     * Handle accept requests accepting connections from scrapers
+     * @param key The key to handle
+     * @throws IOException
+     */
+    public void handleAccept(SelectionKey key) throws IOException {
+        SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new MetricsConnection(channel));
+    }
+
+    /**
+     * Handle read requests reading the request, then queueing the response
+     * A scraper resetting, timing out or sending undecodable headers only closes its own connection
+     * @param key The key to handle
+     */
+    public void handleRead(SelectionKey key) {
+        MetricsConnection connection = (MetricsConnection) key.attachment();
+        LineDecoder readBuffer = connection.getBuffer().getReadBuffer();
+        try {
+            if (readBuffer.read(connection.getChannel()) == -1) {
+                connection.close();
+                return;
+            }
+            ByteBuffer line;
+            while (!connection.isAnswered() && (line = readBuffer.nextLine()) != null) {
+                String text = BufferUtils.lineToString(line).trim();
+                if (connection.getRequestLine() == null) {
+                    connection.setRequestLine(text);
+                } else if (text.isEmpty()) {
+                    answer(key, connection);
+                } else if (connection.addHeaderLine() > MAX_HEADER_LINES) {
+                    respond(key, connection, "431 Request Header Fields Too Large", "text/plain", "");
+                }
+            }
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Queue the response to a request whose headers were read
+     * @param key The key of the connection
+     * @param connection The connection of the scraper
+     */
+    private void answer(SelectionKey key, MetricsConnection connection) {
+        String[] request = connection.getRequestLine().split(" ");
+        if (request.length < 2 || !request[0].equals("GET")) {
+            respond(key, connection, "405 Method Not Allowed", "text/plain", "");
+        } else if (request[1].equals("/metrics") || request[1].equals("/")) {
+            respond(key, connection, "200 OK", MetricsExposition.CONTENT_TYPE, exposition.render());
+        } else {
+            respond(key, connection, "404 Not Found", "text/plain", "");
+        }
+    }
+
+    /**
+     * Queue a response, then only wait to write it
+     * @param key The key of the connection
+     * @param connection The connection of the scraper
+     * @param status The status code and reason
+     * @param contentType The type of the body
+     * @param body The body, ASCII
+     */
+    private void respond(SelectionKey key, MetricsConnection connection, String status, String contentType, String body) {
+        OutboundQueue writeBuffer = connection.getBuffer().getWriteBuffer();
+        writeBuffer.add("HTTP/1.1 " + status + "\r\nContent-Type: " + contentType + "\r\nContent-Length: "
+                + body.length() + "\r\nConnection: close\r\n\r\n");
+        writeBuffer.add(body);
+        connection.setAnswered();
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Handle the completion of connect requests ignoring them, the metrics are only served
+     * @param key The key to handle
+     */
+    public void handleConnect(SelectionKey key) {
+
+    }
+
+    /**
+     * Handle write requests writing the response, then closing the connection
+     * @param key The key to handle
+     * @throws IOException
+     */
+    public void handleWrite(SelectionKey key) throws IOException {
+        MetricsConnection connection = (MetricsConnection) key.attachment();
+        try {
+            if (connection.getBuffer().getWriteBuffer().write(connection.getChannel())) {
+                connection.close();
+            }
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+}
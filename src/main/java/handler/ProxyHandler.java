@@ -2,6 +2,8 @@ package handler;
 
 import proxy.Pop3Proxy;
 
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 
 /**
@@ -24,4 +26,13 @@ public abstract class ProxyHandler implements Handler {
      */
     protected int bufferSize;
 
+    /**
+     * Handle the completion of connect requests ignoring them
+     * @param key The key to handle
+     * @throws IOException
+     */
+    public void handleConnect(SelectionKey key) throws IOException {
+
+    }
+
 }
@@ -0,0 +1,94 @@
+package handler;
+
+import connection.Connection;
+import connection.UpstreamPool;
+import connection.UpstreamSession;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.text.ParseException;
+
+/**
+ * A Handler for an event loop that owns both the Client and the Server side of its connections
+ * Every key is dispatched to the Client or Server Handler depending on its channel
+ */
+public class ReactorHandler implements Handler {
+
+    /**
+     * The Handler for messages from and to the Client
+     */
+    private ClientHandler clientHandler;
+
+    /**
+     * The Handler for messages from and to the Server
+     */
+    private ServerHandler serverHandler;
+
+    /**
+     * Create the Handler with the Client and Server Handlers to dispatch to
+     * @param clientHandler The Handler for messages from and to the Client
+     * @param serverHandler The Handler for messages from and to the Server
+     */
+    public ReactorHandler(ClientHandler clientHandler, ServerHandler serverHandler) {
+        this.clientHandler = clientHandler;
+        this.serverHandler = serverHandler;
+    }
+
+    /**
+     * Get the Handler corresponding to the channel of a key
+     * @param key The key to handle
+     * @return The Server Handler if the key belongs to a Server channel, the Client Handler otherwise
+     */
+    private Handler handlerFor(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        if (key.channel() == connection.getServer()) {
+            return serverHandler;
+        }
+        return clientHandler;
+    }
+
+    /**
+     * Handle accept requests ignoring them, connections are accepted by the Client listener
+     * @param key The key to handle
+     */
+    public void handleAccept(SelectionKey key) {
+
+    }
+
+    /**
+     * Handle read requests dispatching them to the Client or Server Handler
+     * @param key The key to handle
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ParseException
+     */
+    public void handleRead(SelectionKey key) throws IOException, InterruptedException, ParseException {
+        if (key.attachment() instanceof UpstreamSession) {
+            // An idle Server session, only keepalive replies are expected
+            UpstreamPool.getInstance().handleRead(key);
+            return;
+        }
+        handlerFor(key).handleRead(key);
+    }
+
+    /**
+     * Handle the completion of connect requests dispatching them to the Server Handler, only Server channels connect
+     * @param key The key to handle
+     * @throws IOException
+     */
+    public void handleConnect(SelectionKey key) throws IOException {
+        serverHandler.handleConnect(key);
+    }
+
+    /**
+     * Handle write requests dispatching them to the Client or Server Handler
+     * @param key The key to handle
+     * @throws IOException
+     */
+    public void handleWrite(SelectionKey key) throws IOException {
+        if (key.attachment() instanceof UpstreamSession) {
+            return;
+        }
+        handlerFor(key).handleWrite(key);
+    }
+}
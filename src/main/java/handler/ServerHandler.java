@@ -1,15 +1,14 @@
 package handler;
 
 import config.Configuration;
-import connection.BufferUtils;
 import connection.Connection;
+import connection.LineDecoder;
+import connection.OutboundQueue;
 import org.apache.log4j.Logger;
 import proxy.ServerProxy;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.text.ParseException;
 
@@ -23,13 +22,17 @@ public class ServerHandler extends ProxyHandler {
     private static transient Logger LOGGER = Logger.getLogger(ServerHandler.class);
 
     /**
-     * Create the Handler with the Selector corresponding to the Server Service, the Server Proxy
-     * @param selector The Server Selector
+     * The Server Proxy, processing the responses read until one has to wait
+     */
+    private ServerProxy serverProxy;
+
+    /**
+     * Create the Handler with the Server Proxy
      * @param proxy The Server Proxy
      */
-    public ServerHandler(Selector selector, ServerProxy proxy) {
-        this.selector = selector;
+    public ServerHandler(ServerProxy proxy) {
         this.proxy = proxy;
+        this.serverProxy = proxy;
         this.bufferSize = Configuration.getInstance().getBufferSize();
     }
 
@@ -41,6 +44,25 @@ public class ServerHandler extends ProxyHandler {
 
     }
 
+    /**
+     * Handle the completion of the connection to the Server
+     * @param key The key to handle
+     * @throws IOException
+     */
+    @Override
+    public void handleConnect(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (!connection.getServer().finishConnect()) {
+                return;
+            }
+        } catch (IOException e) {
+            proxy.connectFailed(connection, e);
+            return;
+        }
+        proxy.serverConnected(connection);
+    }
+
     /**
      * Handle read requests reading information from server
      * @param key The key to handle
@@ -51,27 +73,23 @@ public class ServerHandler extends ProxyHandler {
     public void handleRead(SelectionKey key) throws IOException, InterruptedException, ParseException {
         SocketChannel channel = (SocketChannel) key.channel();
         Connection connection = ((Connection) key.attachment());
-        StringBuffer readBuffer = connection.getServerBuffer().getReadBuffer();
+        LineDecoder readBuffer = connection.getServerBuffer().getReadBuffer();
 
-        ByteBuffer buf = ByteBuffer.allocate(bufferSize);
-        long bytesRead = channel.read(buf);
-        buf.flip();
+        long bytesRead;
+        try {
+            bytesRead = readBuffer.read(channel);
+        } catch (IOException e) {
+            // A reset Server only ends its own connection, not the event loop
+            LOGGER.info("Server connection failed: " + e.getMessage());
+            bytesRead = -1;
+        }
 
         //If the other end disconnected close everything and finish
         if (bytesRead == -1) {
             LOGGER.info("Server disconnected: " + connection.getClient().socket().getRemoteSocketAddress());
             connection.close();
         } else if (bytesRead > 0) {
-            String line = BufferUtils.bufferToString(buf);
-            readBuffer.append(line);
-            if (!line.endsWith("\r\n")) {
-                return;
-            }
-            line = readBuffer.toString();
-            readBuffer.delete(0, readBuffer.length());
-            for(String s: line.split("\r\n")){
-                proxy.proxy(s.concat("\r\n"), connection);
-            }
+            serverProxy.proxyBuffered(connection);
         }
 
     }
@@ -84,17 +102,12 @@ public class ServerHandler extends ProxyHandler {
     public void handleWrite(SelectionKey key) throws IOException {
         Connection connection = (Connection) key.attachment();
         SocketChannel channel = connection.getServer();
-        StringBuffer writeBuffer = connection.getServerBuffer().getWriteBuffer();
-        ByteBuffer buf = ByteBuffer.wrap(writeBuffer.toString().getBytes());
-        int bytesWritten = channel.write(buf);
-        // Buffer completely written?
-        if (!buf.hasRemaining()) {
+        OutboundQueue writeBuffer = connection.getServerBuffer().getWriteBuffer();
+        // Queue completely written?
+        if (writeBuffer.write(channel)) {
             // Nothing left, so no longer interested in writes
-            key.interestOps(SelectionKey.OP_READ);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
         }
-        writeBuffer.delete(0, bytesWritten);
-        // Make room for more data to be read in
-        buf.compact();
-        buf.clear();
+        connection.serverWritten();
     }
 }
@@ -0,0 +1,22 @@
+package mail;
+
+import connection.BufferUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A Spool writing lines through its byte interface
+ */
+public abstract class AbstractSpool implements Spool {
+
+    /**
+     * Append a line to the spool, one byte per char
+     * @param line The line to append, including its terminator
+     * @throws IOException
+     */
+    @Override
+    public void write(String line) throws IOException {
+        write(ByteBuffer.wrap(line.getBytes(BufferUtils.CHARSET)));
+    }
+}
@@ -0,0 +1,187 @@
+package mail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.log4j.Logger;
+
+import connection.BufferPool;
+import connection.OutboundQueue;
+
+/**
+ * A Spool held in a file of its own, written through a buffer and read through memory mappings
+ * The bytes of the file reach the heap only when a transformer reads them, sending them to a Client
+ * is left to the kernel
+ */
+public class FileSpool extends AbstractSpool {
+
+    /**
+     * The class Logger
+     */
+    private static transient Logger LOGGER = Logger.getLogger(FileSpool.class);
+
+    /**
+     * The size of the write buffer
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The size of the region of the file mapped at a time while reading
+     */
+    private static final long MAP_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The file holding the spool
+     */
+    private File file;
+
+    /**
+     * The channel reading and writing the file
+     */
+    private FileChannel channel;
+
+    /**
+     * The bytes not written to the file yet, leased from the BufferPool
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * The number of bytes written
+     */
+    private long size;
+
+    /**
+     * Create an empty spool in a new file
+     * @param directory The directory of the file
+     * @throws IOException
+     */
+    public FileSpool(File directory) throws IOException {
+        this.file = File.createTempFile("mail", ".spool", directory);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = BufferPool.getInstance().acquire(BUFFER_SIZE);
+    }
+
+    @Override
+    public void write(ByteBuffer bytes) throws IOException {
+        size += bytes.remaining();
+        if (bytes.remaining() > buffer.remaining()) {
+            flush();
+            if (bytes.remaining() >= buffer.capacity()) {
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                return;
+            }
+        }
+        buffer.put(bytes);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        flush();
+        return new InputStream() {
+            private long mapped;
+            private MappedByteBuffer current;
+
+            @Override
+            public int read() throws IOException {
+                if (!advance()) {
+                    return -1;
+                }
+                return current.get() & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!advance()) {
+                    return -1;
+                }
+                int n = Math.min(len, current.remaining());
+                current.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = 0;
+                if (current != null && n > 0) {
+                    skipped = Math.min(n, current.remaining());
+                    current.position(current.position() + (int) skipped);
+                }
+                if (skipped < n) {
+                    // Nothing left of the current region, the next one is mapped further
+                    long left = Math.min(n - skipped, size - mapped);
+                    mapped += left;
+                    skipped += left;
+                    current = null;
+                }
+                return skipped;
+            }
+
+            /**
+             * Map the next region of the file once the current one was read
+             * @return If there are bytes left
+             * @throws IOException
+             */
+            private boolean advance() throws IOException {
+                if (current != null && current.hasRemaining()) {
+                    return true;
+                }
+                if (mapped == size) {
+                    return false;
+                }
+                long length = Math.min(MAP_SIZE, size - mapped);
+                current = channel.map(FileChannel.MapMode.READ_ONLY, mapped, length);
+                mapped += length;
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public void sendTo(OutboundQueue queue) throws IOException {
+        flush();
+        queue.addRegion(channel, 0, size);
+    }
+
+    @Override
+    public void release() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        BufferPool.getInstance().release(buffer);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.error("Error closing spool " + file);
+        }
+        if (!file.delete()) {
+            LOGGER.error("Could not delete spool " + file);
+        }
+    }
+
+    /**
+     * Write the buffered bytes to the file
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -1,39 +1,19 @@
 package mail;
 
-import org.apache.log4j.Logger;
+import connection.OutboundQueue;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.Set;
-
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Mail {
 
     /**
-     * The class Logger
-     */
-    private static transient Logger LOGGER = Logger.getLogger(Mail.class);
-
-    /**
-     * Headers constants used for parsing
-     */
-	private static final String FROM = "From:", DATE = "Date: ", MULTIPART = "Content-Type: multipart", CONTENTTYPE = "Content-Type: ",
-			TEXT = "Content-Type: text/plain", CTE = "Content-Transfer-Encoding: ", PIC = "Content-Type: image",
-			CONTENTDISP = "Content-Disposition: ", HTML = "Content-Type: text/html", Q_PRINT = "Content-Transfer-Encoding: quoted-printable";
-
-    /**
-     * The Mail serial number
-     */
-   	private static int serial;
-
-    /**
-     * The maximum mails that can be stored to disk
+     * The Mail serial number, shared by every event loop
      */
-	public static int cantMails = 100;
+   	private static AtomicInteger serial = new AtomicInteger();
 
     /**
      * The Mail id
@@ -41,254 +21,101 @@ public class Mail {
 	private int id;
 
     /**
-     * The Mail sender
-     */
-	private String from;
-
-    /**
-     * Lists of Content Types and Dispositions
-     */
-	private Set<String> contentTypes = new HashSet<String>(), contentDispositions = new HashSet<String>();
-
-    /**
-     * The location of important HTML tags
-     */
-	private int bodyIndex, bodyEnd, htmlBeg, htmlEnd;
-
-    /**
-     * The list of images contained in the Mail
+     * The Spool holding the Mail
      */
-	private List<Image> photos = new ArrayList<Image>();
+	private Spool spool;
 
     /**
-     * The files used to dump the Mail to disk
+     * The index of the parts of the Mail, built while it is received
      */
-	private RandomAccessFile reader, writer;
-
-    /**
-     * A Quoted-Printable character
-     */
-	private boolean quotedPrint;
-
-    /**
-     * A Mail header
-     */
-	private String header = "";
+	private MailIndex index = new MailIndex();
 
     /**
      * Create new mail
      * @throws IOException
      */
 	public Mail() throws IOException {
-        File mailDirectory = new File("mails");
-        if(!mailDirectory.exists()) {
-            mailDirectory.mkdir();
-        }
-		id = (serial++) % cantMails;
-		File f = new File("mails/mail" +id+".txt");
-		f.delete();
-		f.createNewFile();
-		reader = new RandomAccessFile("mails/mail" +id+".txt", "r");
-		writer = new RandomAccessFile("mails/mail" +id+".txt", "rw");
+		id = serial.getAndIncrement();
+		spool = SpoolStore.getInstance().create();
 	}
 
     /**
      * Write a new line to the Mail
-     * @param line The line to write
+     * @param line The line to write, left untouched
      * @throws IOException
      */
-	public void add(String line) throws IOException {
-		writer.write((line).getBytes());
+	public void add(ByteBuffer line) throws IOException {
+		index.line(line);
+		spool.write(line.duplicate());
 	}
 
     /**
-     * Parse the Mail
+     * Open a stream over the bytes of the Mail
+     * @return The stream, from the first byte of the Mail
      * @throws IOException
      */
-	public void parse() throws IOException {
-		LOGGER.info("Parsing mail...");
-		boolean flag = false;
-		Set<String> bounds = new HashSet<String>();
-		int i = 0;
-		writer.close();
-		String line;
-		while ((line = reader.readLine()) != null) {
-			header += line+"\r\n";
-			if (line.toLowerCase().startsWith(FROM.toLowerCase())) {
-				from = line.split(FROM)[1];
-			} else if (line.toLowerCase().startsWith(DATE.toLowerCase())) {
-				String[] d2 = line.split(" ");
-			} else if (line.toLowerCase().startsWith(CONTENTTYPE.toLowerCase())) {
-				contentTypes.add(line.split(CONTENTTYPE)[1]);
-				if (line.startsWith(MULTIPART)) {
-					String b;
-					while (line != null && !line.contains("boundary")) {
-						i++;
-						header += line+"\r\n";
-						line = reader.readLine();
-					}
-					header += line + "\r\n";
-					b = line.split("boundary=")[1];
-					if (b.contains("\"")) {
-						b = b.split("\"")[1];
-					}
-					bounds.add(b);
-				} else if (line.toLowerCase().startsWith(TEXT.toLowerCase())) {
-					while (line != null & !line.equals("")) {
-						if (line.toLowerCase().startsWith(CONTENTDISP.toLowerCase())) {
-							String disp = line.split(CONTENTDISP)[1];
-							disp = disp.split(";")[0];
-							contentDispositions.add(disp);
-						}
-						if (line.toLowerCase().contains(Q_PRINT.toLowerCase())) {
-							quotedPrint = true;
-						}
-						header += line + "\r\n";
-						i++;
-						line = reader.readLine();
-					}
-					header += line+"\r\n";
-					bodyIndex = ++i;
-					line = reader.readLine();
-					flag = false;
-					while (!flag && line != null && !line.equals("--=20")) {
-						for (String b: bounds) {
-							if (line.startsWith("--"+b) || line.equals(b)) {
-								flag = true;
-								break;
-							}
-						}
-						if (!flag) {
-							line = reader.readLine();
-							i++;
-						}
-					}
-					bodyEnd = i;
-				} else if (line.toLowerCase().startsWith(PIC.toLowerCase())) {
-					i++;
-					line = reader.readLine();
-					while (line!=null && !line.equals("")) {
-						if (line.toLowerCase().startsWith(CONTENTDISP.toLowerCase())) {
-							String disp = line.split(CONTENTDISP)[1];
-							disp = disp.split(";")[0];
-							contentDispositions.add(disp);
-						}
-						header += line + "\r\n";
-						i++;
-						line = reader.readLine();
-					}
-					header += line+"\r\n";
-					i++;
-					line = reader.readLine();
-					Image image = new Image();
-					image.setStartLine(i);;
-					while (line != null && !line.contains("--") && !line.equals("")) {
-						i++;
-						line = reader.readLine();
-					}
-					image.setEndLine(i-1);
-					photos.add(image);
-				} else if (line.toLowerCase().startsWith(HTML.toLowerCase())) {
-					while (line != null && !line.equals("")) {
-						if (line.toLowerCase().contains(Q_PRINT.toLowerCase())) {
-							quotedPrint=true;
-						}
-						if (line.toLowerCase().startsWith(CONTENTDISP.toLowerCase())) {
-							String disp = line.split(CONTENTDISP)[1];
-							disp = disp.split(";")[0];
-							contentDispositions.add(disp);
-						}
-						header += line + "\r\n";
-						i++;
-						line = reader.readLine();
-					}
-					header += line + "\r\n";
-					htmlBeg = i++;
-					flag = false;
-					while (!flag && line != null && !line.equals("--=20")) {
-						for(String b: bounds) {
-							if(line.startsWith("--"+b) || line.equals(b)) {
-								flag = true;
-								break;
-							}
-						}
-						if (!flag) {
-							line = reader.readLine();
-							i++;
-						}
-					}
-					htmlEnd = i - 1;
-				} else {
-					while (line != null && !line.equals("")) {
-						if (line.toLowerCase().startsWith(CONTENTDISP.toLowerCase())) {
-							String disp = line.split(CONTENTDISP)[1];
-							disp = disp.split(";")[0];
-							contentDispositions.add(disp);
-						}
-						header += line+"\r\n";
-						i++;
-						line = reader.readLine();
-					}
-					while (line != null && line.equals("")) {
-						line = reader.readLine();
-					}
-					boolean bound = false;
-					while (line != null && !line.equals("") && !bound) {
-						for (String b: bounds) {
-							if (line.startsWith("--"+b) || line.equals(b)) {
-								bound = true;
-								break;
-							}
-						}
-						i++;
-						line = reader.readLine();
-					}
-				}
-			}
-			i++;
-		}
-		reader.close();
+	public InputStream openStream() throws IOException {
+		return spool.openStream();
 	}
 
+    /**
+     * Get the Spool holding the Mail
+     * @return The Spool, owned by the Mail
+     */
+	public Spool getSpool() {
+		return spool;
+	}
 
     /**
-     * Get the index of the HTML body tag
-     * @return The index of the HTML body tag
+     * Create an empty Spool to write a transformed copy of the Mail
+     * @return The Spool, to be set with {@link #replace(Spool)}
+     * @throws IOException
      */
-	public int getBodyIndex() {
-		return bodyIndex;
+	public Spool createSpool() throws IOException {
+		return SpoolStore.getInstance().create();
 	}
 
     /**
-     * Get the index of the HTML body closing tag
-     * @return The index of the HTML body closing tag
+     * Replace the content of the Mail, releasing the previous Spool
+     * @param transformed The Spool holding the new content
      */
-	public int getBodyEnd() {
-		return bodyEnd;
+	public void replace(Spool transformed) {
+		spool.release();
+		spool = transformed;
 	}
 
     /**
-     * Get the index of the HTML tag
-     * @return The index of the HTML tag
+     * Queue the Mail to be sent to a channel, handing over its Spool
+     * The Spool is released once it was sent, the Mail must not be used afterwards
+     * @param queue The queue of the channel
+     * @return The number of bytes queued
+     * @throws IOException
      */
-	public int getHtmlBeg() {
-		return htmlBeg;
+	public long sendTo(OutboundQueue queue) throws IOException {
+		final Spool sent = spool;
+		sent.sendTo(queue);
+		queue.addTask(new Runnable() {
+			@Override
+			public void run() {
+				sent.release();
+			}
+		});
+		return sent.size();
 	}
 
     /**
-     * Get the index of the HTML closing tag
-     * @return The index of the HTML closing tag
+     * Free the Spool holding the Mail
      */
-	public int getHtmlEnd() {
-		return htmlEnd;
+	public void release() {
+		spool.release();
 	}
 
     /**
-     * Get the list of Images contained in the Mail
-     * @return The list of Images contained in the Mail
+     * Get the bodies of the parts that are not multiparts, once the whole Mail was added
+     * @return The sections of the Mail, in order
      */
-	public List<Image> getImages() {
-		return photos;
+	public List<MimeSection> getSections() {
+		return index.getSections();
 	}
 
     /**
@@ -296,7 +123,7 @@ public class Mail {
      * @return The Mail sender
      */
 	public String getFrom(){
-		return from;
+		return index.getFrom();
 	}
 
     /**
@@ -306,12 +133,4 @@ public class Mail {
 	public int id(){
 		return id;
 	}
-
-    /**
-     * Check if the Mail has Quoted-Printable characters
-     * @return If the Mail contains Quoted-Printable characters
-     */
-	public boolean hasQP() {
-		return quotedPrint;
-	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,136 @@
+package mail;
+
+import connection.BufferUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An index of the parts of a Mail, built with a MimeParser while the Mail is received
+ * It records where the body of every part that is not a multipart lies in the Mail, so transformers
+ * can go straight to the parts they change and the Mail is never parsed again
+ */
+public class MailIndex implements MimeListener {
+
+    /**
+     * The header of the sender, in lower case
+     */
+    private static final byte[] FROM = "from:".getBytes(BufferUtils.CHARSET);
+
+    /**
+     * The line ending a multi-line response
+     */
+    private static final byte[] END_LINE = ".\r\n".getBytes(BufferUtils.CHARSET);
+
+    /**
+     * The parser reporting the structure of the Mail
+     */
+    private MimeParser parser = new MimeParser(this);
+
+    /**
+     * The bodies found, in the order they appear in the Mail
+     */
+    private List<MimeSection> sections = new ArrayList<>();
+
+    /**
+     * The body being read, or null
+     */
+    private MimeSection open;
+
+    /**
+     * The offset in the Mail of the line being indexed
+     */
+    private long lineStart;
+
+    /**
+     * The offset in the Mail of the byte after the line being indexed
+     */
+    private long lineEnd;
+
+    /**
+     * If the status line of the response was read
+     */
+    private boolean statusRead;
+
+    /**
+     * If the line ending the response was read
+     */
+    private boolean ended;
+
+    /**
+     * The Mail sender
+     */
+    private String from;
+
+    /**
+     * Index a line of the RETR response holding the Mail
+     * The status line and the line ending the response are not part of the Mail but are counted in the offsets
+     * @param line The line, including its terminator
+     * @throws IOException
+     */
+    public void line(ByteBuffer line) throws IOException {
+        lineStart = lineEnd;
+        lineEnd += line.remaining();
+        if (!statusRead) {
+            statusRead = true;
+        } else if (ended) {
+            return;
+        } else if (BufferUtils.equals(line, END_LINE)) {
+            ended = true;
+            parser.end();
+        } else {
+            parser.line(line);
+        }
+    }
+
+    @Override
+    public void header(MimePart part, ByteBuffer line) throws IOException {
+        if (from == null && part.getParent() == null && BufferUtils.startsWithIgnoreCase(line, FROM)) {
+            ByteBuffer value = line.duplicate();
+            value.position(value.position() + FROM.length);
+            from = BufferUtils.lineToString(value).trim();
+        }
+    }
+
+    @Override
+    public void startBody(MimePart part) {
+        if (!part.isMultipart()) {
+            open = new MimeSection(part, lineEnd);
+        }
+    }
+
+    @Override
+    public void body(MimePart part, ByteBuffer line) {
+    }
+
+    @Override
+    public void boundary(MimePart multipart, ByteBuffer line) {
+    }
+
+    @Override
+    public void endPart(MimePart part) {
+        if (open != null && open.getPart() == part) {
+            open.setEnd(lineStart);
+            sections.add(open);
+            open = null;
+        }
+    }
+
+    /**
+     * Get the bodies of the parts that are not multiparts, available once the whole Mail was indexed
+     * @return The sections, in the order they appear in the Mail
+     */
+    public List<MimeSection> getSections() {
+        return sections;
+    }
+
+    /**
+     * Get the Mail sender
+     * @return The value of the From header, or null
+     */
+    public String getFrom() {
+        return from;
+    }
+}
@@ -0,0 +1,145 @@
+package mail;
+
+import connection.BufferPool;
+import connection.OutboundQueue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Spool held off-heap in buffers leased from the BufferPool
+ */
+public class MemorySpool extends AbstractSpool {
+
+    /**
+     * The size of the buffers leased
+     */
+    private int chunkSize;
+
+    /**
+     * The buffers holding the bytes, in write mode
+     */
+    private List<ByteBuffer> chunks = new ArrayList<>();
+
+    /**
+     * The number of bytes written
+     */
+    private long size;
+
+    /**
+     * Create an empty spool
+     * @param chunkSize The size of the buffers leased
+     */
+    public MemorySpool(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void write(ByteBuffer bytes) {
+        size += bytes.remaining();
+        while (bytes.hasRemaining()) {
+            ByteBuffer last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (last == null || !last.hasRemaining()) {
+                last = BufferPool.getInstance().acquire(chunkSize);
+                chunks.add(last);
+            }
+            int limit = bytes.limit();
+            bytes.limit(bytes.position() + Math.min(bytes.remaining(), last.remaining()));
+            last.put(bytes);
+            bytes.limit(limit);
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Copy the bytes written to another spool
+     * @param target The spool to copy to
+     * @throws IOException
+     */
+    public void writeTo(Spool target) throws IOException {
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer content = chunk.duplicate();
+            content.flip();
+            target.write(content);
+        }
+    }
+
+    @Override
+    public InputStream openStream() {
+        return new InputStream() {
+            private int index;
+            private ByteBuffer current;
+
+            @Override
+            public int read() {
+                if (!advance()) {
+                    return -1;
+                }
+                return current.get() & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!advance()) {
+                    return -1;
+                }
+                int n = Math.min(len, current.remaining());
+                current.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = 0;
+                while (skipped < n && advance()) {
+                    int count = (int) Math.min(n - skipped, current.remaining());
+                    current.position(current.position() + count);
+                    skipped += count;
+                }
+                return skipped;
+            }
+
+            /**
+             * Move to the next chunk with bytes left
+             * @return If there are bytes left
+             */
+            private boolean advance() {
+                while (current == null || !current.hasRemaining()) {
+                    if (index == chunks.size()) {
+                        return false;
+                    }
+                    current = chunks.get(index++).duplicate();
+                    current.flip();
+                }
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public void sendTo(OutboundQueue queue) {
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer content = chunk.duplicate();
+            content.flip();
+            queue.addBuffer(content);
+        }
+    }
+
+    @Override
+    public void release() {
+        for (ByteBuffer chunk : chunks) {
+            BufferPool.getInstance().release(chunk);
+        }
+        chunks.clear();
+    }
+}
@@ -0,0 +1,49 @@
+package mail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the events of a MimeParser
+ * Every line is reported exactly once, as a header, body or boundary line
+ */
+public interface MimeListener {
+
+    /**
+     * A header line of a part, including the blank line ending the headers
+     * @param part The part the header belongs to
+     * @param line The header line
+     * @throws IOException
+     */
+    void header(MimePart part, ByteBuffer line) throws IOException;
+
+    /**
+     * The headers of a part were read, its content type and encoding are known
+     * @param part The part whose body starts
+     * @throws IOException
+     */
+    void startBody(MimePart part) throws IOException;
+
+    /**
+     * A body line of a part, for a multipart the lines of its preamble and epilogue
+     * @param part The part the line belongs to
+     * @param line The body line
+     * @throws IOException
+     */
+    void body(MimePart part, ByteBuffer line) throws IOException;
+
+    /**
+     * A delimiter line of a multipart
+     * @param multipart The multipart the delimiter belongs to
+     * @param line The delimiter line
+     * @throws IOException
+     */
+    void boundary(MimePart multipart, ByteBuffer line) throws IOException;
+
+    /**
+     * The last line of a part was read
+     * @param part The part that ended
+     * @throws IOException
+     */
+    void endPart(MimePart part) throws IOException;
+}
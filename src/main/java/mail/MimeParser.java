@@ -0,0 +1,200 @@
+package mail;
+
+import connection.BufferUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An incremental MIME parser fed one line at a time
+ * It keeps only the stack of open parts and the header being unfolded, so the memory used does not
+ * depend on the size of the message. Lines are reported to a MimeListener as they are fed
+ */
+public class MimeParser {
+
+    /**
+     * The header names the parser looks for, in lower case
+     */
+    private static final byte[] CONTENT_TYPE = "content-type:".getBytes(BufferUtils.CHARSET),
+            CONTENT_TRANSFER_ENCODING = "content-transfer-encoding:".getBytes(BufferUtils.CHARSET);
+
+    /**
+     * The listener receiving the events
+     */
+    private MimeListener listener;
+
+    /**
+     * The innermost open part
+     */
+    private MimePart part;
+
+    /**
+     * If the headers of the current part are being read
+     */
+    private boolean inHeaders = true;
+
+    /**
+     * The value of the Content-* header being unfolded, or null
+     */
+    private StringBuilder field;
+
+    /**
+     * The name of the Content-* header being unfolded
+     */
+    private byte[] fieldName;
+
+    /**
+     * Create a parser for a message
+     * @param listener The listener receiving the events
+     */
+    public MimeParser(MimeListener listener) {
+        this.listener = listener;
+        this.part = new MimePart(null);
+    }
+
+    /**
+     * Feed a line of the message
+     * @param line The line, including its terminator
+     * @throws IOException
+     */
+    public void line(ByteBuffer line) throws IOException {
+        if (inHeaders) {
+            header(line);
+        } else {
+            body(line);
+        }
+    }
+
+    /**
+     * End the message, closing every open part
+     * @throws IOException
+     */
+    public void end() throws IOException {
+        if (inHeaders) {
+            flushField();
+        }
+        while (part != null) {
+            listener.endPart(part);
+            part = part.getParent();
+        }
+    }
+
+    /**
+     * Process a header line of the current part
+     * @param line The header line
+     * @throws IOException
+     */
+    private void header(ByteBuffer line) throws IOException {
+        int length = contentLength(line);
+        if (length == 0) {
+            flushField();
+            listener.header(part, line);
+            inHeaders = false;
+            listener.startBody(part);
+            return;
+        }
+        byte first = line.get(line.position());
+        if (first == ' ' || first == '\t') {
+            if (field != null) {
+                append(line, 0, length);
+            }
+        } else {
+            flushField();
+            if (BufferUtils.startsWithIgnoreCase(line, CONTENT_TYPE)) {
+                startField(CONTENT_TYPE, line, length);
+            } else if (BufferUtils.startsWithIgnoreCase(line, CONTENT_TRANSFER_ENCODING)) {
+                startField(CONTENT_TRANSFER_ENCODING, line, length);
+            }
+        }
+        listener.header(part, line);
+    }
+
+    /**
+     * Process a body line, looking for the delimiters of the open multiparts
+     * @param line The body line
+     * @throws IOException
+     */
+    private void body(ByteBuffer line) throws IOException {
+        for (MimePart multipart = part; multipart != null; multipart = multipart.getParent()) {
+            int match = multipart.matchBoundary(line);
+            if (match != MimePart.NO_BOUNDARY) {
+                boundary(multipart, line, match == MimePart.CLOSE_DELIMITER);
+                return;
+            }
+        }
+        listener.body(part, line);
+    }
+
+    /**
+     * Process a delimiter, ending the parts nested in its multipart
+     * @param multipart The multipart the delimiter belongs to
+     * @param line The delimiter line
+     * @param close If it is the close delimiter
+     * @throws IOException
+     */
+    private void boundary(MimePart multipart, ByteBuffer line, boolean close) throws IOException {
+        while (part != multipart) {
+            listener.endPart(part);
+            part = part.getParent();
+        }
+        listener.boundary(multipart, line);
+        if (close) {
+            multipart.close();
+        } else {
+            part = new MimePart(multipart);
+            inHeaders = true;
+        }
+    }
+
+    /**
+     * Start unfolding a Content-* header
+     * @param name The header name
+     * @param line The first line of the header
+     * @param length The length of the line without its terminator
+     */
+    private void startField(byte[] name, ByteBuffer line, int length) {
+        field = new StringBuilder();
+        fieldName = name;
+        append(line, name.length, length);
+    }
+
+    /**
+     * Append part of a line to the header being unfolded
+     * @param line The line
+     * @param from The offset to start from
+     * @param to The offset to end at
+     */
+    private void append(ByteBuffer line, int from, int to) {
+        for (int i = from; i < to; i++) {
+            field.append((char) (line.get(line.position() + i) & 0xff));
+        }
+    }
+
+    /**
+     * Apply the header being unfolded to the current part
+     */
+    private void flushField() {
+        if (field == null) {
+            return;
+        }
+        if (fieldName == CONTENT_TYPE) {
+            part.setContentType(field.toString());
+        } else {
+            part.setTransferEncoding(field.toString());
+        }
+        field = null;
+    }
+
+    /**
+     * Get the length of a line without its terminator
+     * @param line The line
+     * @return The number of bytes before the terminator
+     */
+    private static int contentLength(ByteBuffer line) {
+        int end = line.limit();
+        while (end > line.position() && (line.get(end - 1) == '\n' || line.get(end - 1) == '\r')) {
+            end--;
+        }
+        return end - line.position();
+    }
+}
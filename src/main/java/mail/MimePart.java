@@ -0,0 +1,173 @@
+package mail;
+
+import connection.BufferUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * A part of a MIME message, described by its headers
+ */
+public class MimePart {
+
+    /**
+     * Values returned when matching a boundary
+     */
+    public static final int NO_BOUNDARY = 0, DELIMITER = 1, CLOSE_DELIMITER = 2;
+
+    /**
+     * The multipart containing this part, or null for the message itself
+     */
+    private MimePart parent;
+
+    /**
+     * The media type, without parameters and in lower case
+     */
+    private String contentType = "text/plain";
+
+    /**
+     * The Content-Transfer-Encoding, in lower case
+     */
+    private String transferEncoding = "7bit";
+
+    /**
+     * The delimiter of the parts of a multipart, the boundary preceded by two hyphens
+     */
+    private byte[] delimiter;
+
+    /**
+     * If the close delimiter of a multipart was found
+     */
+    private boolean closed;
+
+    /**
+     * Create a part
+     * @param parent The multipart containing this part, or null for the message itself
+     */
+    public MimePart(MimePart parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Set the media type and boundary from the value of a Content-Type header
+     * @param value The value of the Content-Type header
+     */
+    public void setContentType(String value) {
+        String[] params = value.split(";");
+        this.contentType = params[0].trim().toLowerCase(Locale.ROOT);
+        for (int i = 1; i < params.length; i++) {
+            int equals = params[i].indexOf('=');
+            if (equals < 0 || !params[i].substring(0, equals).trim().equalsIgnoreCase("boundary")) {
+                continue;
+            }
+            String boundary = params[i].substring(equals + 1).trim();
+            if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                boundary = boundary.substring(1, boundary.length() - 1);
+            }
+            this.delimiter = ("--" + boundary).getBytes(BufferUtils.CHARSET);
+        }
+    }
+
+    /**
+     * Set the Content-Transfer-Encoding from the value of its header
+     * @param value The value of the Content-Transfer-Encoding header
+     */
+    public void setTransferEncoding(String value) {
+        this.transferEncoding = value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Check if a line is a delimiter of this multipart
+     * @param line The line to check
+     * @return NO_BOUNDARY, DELIMITER or CLOSE_DELIMITER
+     */
+    public int matchBoundary(ByteBuffer line) {
+        if (delimiter == null || closed || !BufferUtils.startsWith(line, delimiter)) {
+            return NO_BOUNDARY;
+        }
+        int i = line.position() + delimiter.length;
+        int result = DELIMITER;
+        if (i + 1 < line.limit() && line.get(i) == '-' && line.get(i + 1) == '-') {
+            result = CLOSE_DELIMITER;
+            i += 2;
+        }
+        for (; i < line.limit(); i++) {
+            byte b = line.get(i);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return NO_BOUNDARY;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the multipart containing this part
+     * @return The multipart containing this part, or null for the message itself
+     */
+    public MimePart getParent() {
+        return parent;
+    }
+
+    /**
+     * Get the media type, without parameters and in lower case
+     * @return The media type
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Get the Content-Transfer-Encoding, in lower case
+     * @return The Content-Transfer-Encoding
+     */
+    public String getTransferEncoding() {
+        return transferEncoding;
+    }
+
+    /**
+     * Check if the part contains other parts
+     * @return If the part is a multipart with a boundary
+     */
+    public boolean isMultipart() {
+        return delimiter != null;
+    }
+
+    /**
+     * Check if the close delimiter of this multipart was found
+     * @return If the close delimiter was found
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Mark that the close delimiter of this multipart was found
+     */
+    public void close() {
+        this.closed = true;
+    }
+
+    /**
+     * Check if the part is an image
+     * @return If the media type is image
+     */
+    public boolean isImage() {
+        return contentType.startsWith("image/");
+    }
+
+    /**
+     * Check if the part is base64 encoded
+     * @return If the part is base64 encoded
+     */
+    public boolean isBase64() {
+        return "base64".equals(transferEncoding);
+    }
+
+    /**
+     * Check if the part is quoted-printable encoded
+     * @return If the part is quoted-printable encoded
+     */
+    public boolean isQuotedPrintable() {
+        return "quoted-printable".equals(transferEncoding);
+    }
+}
@@ -0,0 +1,65 @@
+package mail;
+
+/**
+ * The bytes of the body of a part in a Mail, from the line after its headers up to the line that ends it
+ */
+public class MimeSection {
+
+    /**
+     * The part the body belongs to
+     */
+    private MimePart part;
+
+    /**
+     * The offset in the Mail of the first byte of the body
+     */
+    private long start;
+
+    /**
+     * The offset in the Mail of the byte after the body
+     */
+    private long end;
+
+    /**
+     * Create a section whose end is not known yet
+     * @param part The part the body belongs to
+     * @param start The offset in the Mail of the first byte of the body
+     */
+    public MimeSection(MimePart part, long start) {
+        this.part = part;
+        this.start = start;
+        this.end = start;
+    }
+
+    /**
+     * Get the part the body belongs to
+     * @return The part
+     */
+    public MimePart getPart() {
+        return part;
+    }
+
+    /**
+     * Get the offset in the Mail of the first byte of the body
+     * @return The start offset
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Get the offset in the Mail of the byte after the body
+     * @return The end offset
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Set the offset in the Mail of the byte after the body
+     * @param end The end offset
+     */
+    public void setEnd(long end) {
+        this.end = end;
+    }
+}
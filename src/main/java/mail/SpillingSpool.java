@@ -0,0 +1,78 @@
+package mail;
+
+import connection.OutboundQueue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A Spool held in memory until it grows above a threshold, then moved to a file
+ */
+public class SpillingSpool extends AbstractSpool {
+
+    /**
+     * The size above which the spool is moved to a file
+     */
+    private long threshold;
+
+    /**
+     * The directory of the file
+     */
+    private File directory;
+
+    /**
+     * The spool holding the bytes
+     */
+    private Spool spool;
+
+    /**
+     * If the spool was moved to a file
+     */
+    private boolean spilled;
+
+    /**
+     * Create an empty spool in memory
+     * @param threshold The size above which the spool is moved to a file
+     * @param chunkSize The size of the buffers leased while in memory
+     * @param directory The directory of the file
+     */
+    public SpillingSpool(long threshold, int chunkSize, File directory) {
+        this.threshold = threshold;
+        this.directory = directory;
+        this.spool = new MemorySpool(chunkSize);
+    }
+
+    @Override
+    public void write(ByteBuffer bytes) throws IOException {
+        if (!spilled && spool.size() + bytes.remaining() > threshold) {
+            FileSpool file = new FileSpool(directory);
+            ((MemorySpool) spool).writeTo(file);
+            spool.release();
+            spool = file;
+            spilled = true;
+        }
+        spool.write(bytes);
+    }
+
+    @Override
+    public long size() {
+        return spool.size();
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        return spool.openStream();
+    }
+
+    @Override
+    public void sendTo(OutboundQueue queue) throws IOException {
+        spool.sendTo(queue);
+    }
+
+    @Override
+    public void release() {
+        spool.release();
+    }
+}
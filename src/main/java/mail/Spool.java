@@ -0,0 +1,55 @@
+package mail;
+
+import connection.OutboundQueue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The store of the bytes of a Mail while it is received and transformed
+ * A spool is written by one Thread at a time and read once it is complete
+ */
+public interface Spool {
+
+    /**
+     * Append bytes to the spool
+     * @param bytes The bytes to append, consumed by the call
+     * @throws IOException
+     */
+    void write(ByteBuffer bytes) throws IOException;
+
+    /**
+     * Append a line to the spool, one byte per char
+     * @param line The line to append, including its terminator
+     * @throws IOException
+     */
+    void write(String line) throws IOException;
+
+    /**
+     * Get the number of bytes written
+     * @return The size of the spool
+     */
+    long size();
+
+    /**
+     * Open a stream over the bytes written
+     * @return A stream from the first byte of the spool
+     * @throws IOException
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * Queue the bytes written to be sent to a channel, without copying them
+     * The spool must not be released before a task queued afterwards runs
+     * @param queue The queue of the channel
+     * @throws IOException
+     */
+    void sendTo(OutboundQueue queue) throws IOException;
+
+    /**
+     * Free the memory or file holding the spool
+     * It must not be used afterwards
+     */
+    void release();
+}
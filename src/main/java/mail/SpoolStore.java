@@ -0,0 +1,79 @@
+package mail;
+
+import config.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Singleton
+ * Creates the Spools of the Mails, of the kind set in the configuration
+ */
+public class SpoolStore {
+
+    /**
+     * The SpoolStore instance
+     */
+    private static SpoolStore instance;
+
+    /**
+     * The kind of Spool created: memory, file or spill
+     */
+    private String kind;
+
+    /**
+     * The size above which a spilling Spool is moved to a file
+     */
+    private long threshold;
+
+    /**
+     * The size of the buffers leased by memory Spools
+     */
+    private int chunkSize;
+
+    /**
+     * The directory of the file Spools
+     */
+    private File directory;
+
+    /**
+     * Load the kind of Spool and create the directory of file Spools
+     */
+    private SpoolStore() {
+        Configuration configuration = Configuration.getInstance();
+        this.kind = configuration.getSpoolStore();
+        this.threshold = configuration.getSpoolMemoryThreshold();
+        this.chunkSize = configuration.getReadBufferSize();
+        this.directory = new File(configuration.getSpoolDirectory());
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+    }
+
+    /**
+     * Get singleton
+     * @return The SpoolStore instance
+     */
+    public static synchronized SpoolStore getInstance() {
+        if (instance == null) {
+            instance = new SpoolStore();
+        }
+        return instance;
+    }
+
+    /**
+     * Create an empty Spool
+     * @return The new Spool
+     * @throws IOException
+     */
+    public Spool create() throws IOException {
+        switch (kind) {
+            case "memory":
+                return new MemorySpool(chunkSize);
+            case "file":
+                return new FileSpool(directory);
+            default:
+                return new SpillingSpool(threshold, chunkSize, directory);
+        }
+    }
+}
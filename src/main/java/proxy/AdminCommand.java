@@ -1,5 +1,5 @@
 package proxy;
 
 public enum AdminCommand {
-    AUTH, LISTUSERS, SETSERVER, RETRSTATS, TOGGLELEET, TOGGLEROTATION, FINALIZE, QUIT, UNKNOWN
+    AUTH, LISTUSERS, SETSERVER, RETRSTATS, LATENCY, TOGGLELEET, TOGGLEROTATION, FINALIZE, QUIT, UNKNOWN
 }
@@ -1,14 +1,26 @@
 package proxy;
 
+import cache.CachedMessage;
+import cache.MailboxCache;
+import cache.MailboxCheck;
+import cache.MailboxSnapshot;
+import cache.MessageCache;
+import cache.MessageKey;
 import config.Configuration;
+import connection.BufferUtils;
 import connection.Connection;
+import connection.LineDecoder;
 import connection.Server;
 import connection.State;
+import connection.UpstreamPool;
+import connection.UpstreamSession;
 import org.apache.log4j.Logger;
 import statistics.Statistics;
+import statistics.StatusCode;
 
 import java.io.IOException;
-import java.nio.channels.Selector;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 import java.util.Map;
 
 /**
@@ -19,149 +31,220 @@ public class ClientProxy extends Pop3Proxy {
     private static transient Logger LOGGER = Logger.getLogger(ClientProxy.class);
 
     /**
-     * Create the Proxy with a map from usernames to Servers, the Client Selector and the Server Selector
+     * The parser of every event loop, the ClientProxy being shared by all of them
+     */
+    private static final ThreadLocal<CommandParser<Command>> PARSER = new ThreadLocal<CommandParser<Command>>() {
+        @Override
+        protected CommandParser<Command> initialValue() {
+            return new CommandParser<>(Command.class, Command.UNKNOWN);
+        }
+    };
+
+    /**
+     * Create the Proxy with a map from usernames to Servers
      * @param serverMap A map from usernames to Servers
-     * @param clientSelector The Client Selector
-     * @param serverSelector The Server Selector
      * @throws IOException
      */
-    public ClientProxy(Map<String, Server> serverMap, Selector clientSelector, Selector serverSelector) throws IOException {
+    public ClientProxy(Map<String, Server> serverMap) throws IOException {
         this.serverMap = serverMap;
-        this.clientSelector = clientSelector;
-        this.serverSelector = serverSelector;
+    }
+
+    /**
+     * Process the requests already read from the Client, until one has to wait for the check of a cached listing
+     * @param connection The Connection between Client and Server whose requests are processed
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void proxyBuffered(Connection connection) throws IOException, InterruptedException {
+        LineDecoder readBuffer = connection.getClientBuffer().getReadBuffer();
+        ByteBuffer line;
+        while (!connection.isClientPaused(Connection.CHECKING_MAILBOX) && connection.getClient().isOpen()
+                && (line = readBuffer.nextLine()) != null) {
+            proxy(line, connection);
+        }
     }
 
     /**
      * Process POP3 requests and forward them to Servers
+     * The request is parsed and forwarded from the bytes read, it is only decoded to log it or read a username or password
      * @param line The message to process
      * @param connection The Connection between Client and Server to which the message belongs to
      * @throws IOException
      * @throws InterruptedException
      */
     @Override
-    public void proxy(String line, Connection connection) throws IOException, InterruptedException {
-
-        String command[] = line.split(" ");
-        Command com;
+    public void proxy(ByteBuffer line, Connection connection) throws IOException, InterruptedException {
 
-        try {
-            com = Command.valueOf(command[0].trim().toUpperCase());
-        } catch(IllegalArgumentException e) {
-            com = Command.UNKNOWN;
+        CommandParser<Command> command = PARSER.get();
+        Command com = command.parse(line);
+        Statistics.getInstance().addRequest(com);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Received request -> " + BufferUtils.lineToString(line));
         }
-        Statistics.getInstance().addRequest();
-        LOGGER.info("Received request -> " + line.trim());
         switch(com) {
 
             case USER:
                 if (isValidAuthentication(command, connection)) {
-                    LOGGER.info("Authentication Request: " + command[1].trim());
-                    Server server = serverMap.get(command[1].trim());
+                    String user = command.getArgument(0);
+                    LOGGER.info("Authentication Request: " + user);
+                    Server server = serverMap.get(user);
                     if (server == null) {
                         server = Configuration.getInstance().getDefaultServer();
                     }
-                    connectToServer(connection, server);
+                    connection.setUser(user);
+                    connection.setUpstream(server);
+                    connection.getListing().clear();
                     connection.setState(State.AUTHORIZATION_PASS);
                     connection.setLastCommand(Command.USER);
-                    writeToServer(connection, line);
+                    if (UpstreamPool.isEnabled() && UpstreamPool.getInstance().hasIdle(UpstreamPool.key(server, connection.getUser()))) {
+                        // PASS decides if the pooled session is used
+                        connection.setPooledLogin(true);
+                        reply(connection, OK + "\r\n");
+                        break;
+                    }
+                    connectToServer(connection, server);
+                    forward(connection, line, com, false);
 
                 } else {
-                    writeToClient(connection, "-ERR\r\n");
+                    reply(connection, "-ERR\r\n");
                 }
                 break;
 
             case PASS:
-                if (connection.getState() != State.AUTHORIZATION_PASS || connection.getLastCommand() != Command.USER || command.length != 2) {
+                if (connection.getState() != State.AUTHORIZATION_PASS || connection.getLastCommand() != Command.USER || command.getArgumentCount() != 1) {
                     unknownCommand(line, connection);
                     return;
                 }
-                LOGGER.info("Authentication Password: " + command[1].trim());
-                writeToServer(connection, line);
+                String password = command.getArgument(0);
+                LOGGER.info("Authentication Password: " + password);
+                if (UpstreamPool.isEnabled()) {
+                    connection.setPasswordDigest(UpstreamPool.digest(connection.getUser(), password));
+                }
                 connection.setLastCommand(com);
+                if (connection.isPooledLogin()) {
+                    // Sent later, once the line read is gone
+                    pooledLogin(connection, "PASS " + password + "\r\n");
+                } else {
+                    forward(connection, line, com, false);
+                }
                 break;
 
             case LIST:
-                if (connection.getState() != State.TRANSACTION || command.length > 3) {
+                if (connection.getState() != State.TRANSACTION || command.getArgumentCount() > 2) {
                     unknownCommand(line, connection);
                     return;
                 }
                 LOGGER.info("Listing Emails");
-                writeToServer(connection, line);
+                if (command.getArgumentCount() == 0 && MailboxCache.isEnabled() && listFromCache(connection, line, Command.LIST_MULTI)) {
+                    connection.setLastCommand(com);
+                    break;
+                }
+                // Without a message number every message is listed
+                forward(connection, line, command.getArgumentCount() == 0 ? Command.LIST_MULTI : com, command.getArgumentCount() == 0);
                 connection.setLastCommand(com);
                 break;
 
             case RETR:
-                if (connection.getState() != State.TRANSACTION || command.length != 2) {
+                if (connection.getState() != State.TRANSACTION || command.getArgumentCount() != 1) {
                     unknownCommand(line, connection);
                     return;
                 }
-                LOGGER.info("Retrieving Email: " + command[1].trim());
-                command[1] = command[1].trim();
-                writeToServer(connection, line);
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Retrieving Email: " + command.getArgument(0));
+                }
+                MessageKey key = MessageCache.isEnabled() ? messageKey(connection, command.getNumber(0)) : null;
+                CachedMessage cached = key != null ? MessageCache.getInstance().get(key) : null;
+                if (cached != null) {
+                    // Neither the Server nor the transformers are needed
+                    reply(connection, new PendingCommand(com, cached));
+                } else {
+                    forward(connection, line, com, true).setKey(key);
+                }
                 connection.setLastCommand(com);
                 break;
 
             case DELE :
-                if (connection.getState() != State.TRANSACTION || command.length != 2) {
+                if (connection.getState() != State.TRANSACTION || command.getArgumentCount() != 1) {
                     unknownCommand(line, connection);
                     return;
                 }
-                try {
-                    Integer.parseInt(command[1].trim());
-                } catch(Exception e){
+                if (command.getNumber(0) == -1) {
                     unknownCommand(line, connection);
                     return;
                 }
-                writeToServer(connection, "RETR " + command[1]);
-                LOGGER.info("Deleting Email: " + command[1].trim());
-                connection.setMailToDelete(command[1].trim());
+                forward(connection, line, com, false);
+                connection.setMailboxModified(true);
+                connection.getListing().remove(command.getNumber(0));
+                if (MailboxCache.isEnabled()) {
+                    MailboxCache.getInstance().invalidate(MailboxCache.key(connection.getUpstream(), connection.getUser()));
+                    connection.setCurrentMailbox(null);
+                }
+                LOGGER.info("Deleting Email: " + command.getNumber(0));
                 connection.setLastCommand(com);
                 break;
 
             case APOP:
-                if (connection.getState() != State.TRANSACTION || command.length != 1) {
+                if (connection.getState() != State.TRANSACTION || command.getArgumentCount() != 0) {
                     unknownCommand(line, connection);
                     return;
                 }
-                writeToServer(connection, line);
+                forward(connection, line, com, false);
                 connection.setLastCommand(com);
                 break;
 
             case TOP:
-                if (connection.getState() != State.TRANSACTION || command.length != 3) {
+                if (connection.getState() != State.TRANSACTION || command.getArgumentCount() != 2) {
                     unknownCommand(line, connection);
                     return;
                 }
-                writeToServer(connection, line);
-                command[1] = command[1].trim();
-                command[2] = command[2].trim();
+                forward(connection, line, com, true);
                 connection.setLastCommand(com);
                 break;
 
             case UIDL:
-                if (connection.getState() != State.TRANSACTION || command.length > 2) {
+                if (connection.getState() != State.TRANSACTION || command.getArgumentCount() > 1) {
                     unknownCommand(line, connection);
                     return;
                 }
-                writeToServer(connection, line);
-                if (command.length == 2) {
-                    command[1] = command[1].trim();
+                if (command.getArgumentCount() == 0 && MailboxCache.isEnabled() && listFromCache(connection, line, Command.UIDL_MULTI)) {
                     connection.setLastCommand(com);
+                    break;
+                }
+                // Without a message number every message is listed
+                forward(connection, line, command.getArgumentCount() == 0 ? Command.UIDL_MULTI : com, command.getArgumentCount() == 0);
+                connection.setLastCommand(com);
+                break;
+
+            case CAPA:
+                if (command.getArgumentCount() != 0) {
+                    unknownCommand(line, connection);
+                    return;
+                }
+                if (connection.getServer() == null) {
+                    // No Server to ask yet, the proxy lists what it supports itself
+                    reply(connection, CAPABILITIES);
                 } else {
-                    connection.setLastCommand(Command.UIDL_MULTI);
+                    forward(connection, line, com, true);
                 }
+                connection.setLastCommand(com);
                 break;
 
             case QUIT:
-                if (command.length != 1 ) {
+                if (command.getArgumentCount() != 0) {
                     unknownCommand(line, connection);
                     return;
                 }
-                if (connection.getState() == State.AUTHORIZATION_USER) {
-                    writeToClient(connection, OK);
-                    connection.close();
+                if (connection.getState() == State.AUTHORIZATION_USER || connection.getServer() == null) {
+                    reply(connection, new PendingCommand(com, OK + "\r\n"));
+                } else if (isPoolable(connection) && UpstreamPool.getInstance().release(connection)) {
+                    // Nothing to commit, the Server session is kept for the next login
+                    reply(connection, new PendingCommand(com, OK + "\r\n"));
                 } else {
-                    writeToServer(connection, line);
+                    if (MailboxCache.isEnabled() && connection.isMailboxModified()) {
+                        // The deletions are committed by the Server once it answers
+                        MailboxCache.getInstance().invalidate(MailboxCache.key(connection.getUpstream(), connection.getUser()));
+                    }
+                    forward(connection, line, com, false);
                     connection.setLastCommand(com);
                 }
                 break;
@@ -171,15 +254,147 @@ public class ClientProxy extends Pop3Proxy {
             case NOOP:
 
             case RSET:
-                writeToServer(connection, line);
+                if (connection.getState() != State.TRANSACTION) {
+                    unknownCommand(line, connection);
+                    return;
+                }
+                forward(connection, line, com, false);
                 connection.setLastCommand(com);
                 break;
             default:
                 if (connection.getState() == State.AUTHORIZATION_USER) {
-                    writeToClient(connection, ERR + " invalid command\r\n");
+                    reply(connection, ERR + " invalid command\r\n");
                 } else {
                     unknownCommand(line, connection);
                 }
         }
     }
+
+    /**
+     * Answer a listing of every message from the MailboxCache
+     * A snapshot already checked during the session is used as is. Otherwise the Server is asked for STAT and the unique
+     * id of the last message, and the Client is not read until they tell if the snapshot or the Server answers
+     * @param connection The Connection whose Client asked for the listing
+     * @param line The listing Command
+     * @param kind LIST_MULTI or UIDL_MULTI
+     * @return If the listing is answered from the cache, false if it must be forwarded
+     * @throws IOException
+     */
+    private boolean listFromCache(Connection connection, ByteBuffer line, Command kind) throws IOException {
+        if (connection.isMailboxModified()) {
+            return false;
+        }
+        MailboxSnapshot snapshot = connection.getCurrentMailbox();
+        if (snapshot != null) {
+            MailboxCache.getInstance().hit();
+            reply(connection, new PendingCommand(kind, snapshot.getResponse(kind)));
+            return true;
+        }
+        snapshot = MailboxCache.getInstance().get(MailboxCache.key(connection.getUpstream(), connection.getUser()));
+        if (snapshot == null) {
+            return false;
+        }
+        MailboxCheck check = new MailboxCheck(snapshot, kind, BufferUtils.bufferToString(line));
+        writeToServer(connection, "STAT\r\n");
+        PendingCommand stat = new PendingCommand(Command.STAT_CHECK, false);
+        stat.setCheck(check);
+        connection.addPending(stat);
+        if (snapshot.getCount() > 0) {
+            writeToServer(connection, "UIDL " + snapshot.getCount() + "\r\n");
+            PendingCommand uid = new PendingCommand(Command.UIDL_CHECK, false);
+            uid.setCheck(check);
+            connection.addPending(uid);
+        }
+        // The Commands after the listing are read once the Server answered the check
+        connection.pauseClient(Connection.CHECKING_MAILBOX);
+        return true;
+    }
+
+    /**
+     * Get the key a transformed message would be cached with
+     * @param connection The Connection retrieving the message
+     * @param message The message number
+     * @return The key, or null if no transformation is enabled or the Server did not list the message
+     */
+    private MessageKey messageKey(Connection connection, int message) {
+        String transformers = MessageKey.activeTransformers();
+        String uid = connection.getListing().getUid(message);
+        long size = connection.getListing().getSize(message);
+        if (transformers == null || uid == null || size < 0) {
+            return null;
+        }
+        return new MessageKey(connection.getUpstream(), connection.getUser(), uid, size, transformers);
+    }
+
+    /**
+     * Check if the Server session of a Connection can be kept for another login once the Client quits
+     * @param connection The Connection whose Client is quitting
+     * @return If the session is authenticated, idle and its maildrop was not changed
+     */
+    private boolean isPoolable(Connection connection) {
+        if (!UpstreamPool.isEnabled() || connection.getState() != State.TRANSACTION || connection.getPasswordDigest() == null
+                || connection.isMailboxModified() || connection.isConnecting() || connection.hasPending()) {
+            // A response may still be arriving
+            return false;
+        }
+        return connection.getServerBuffer().getWriteBuffer().isEmpty()
+                && !connection.getServerBuffer().getReadBuffer().hasRemaining();
+    }
+
+    /**
+     * Log in with a pooled Server session, or with a new one if none matches the credentials
+     * @param connection The Connection whose USER command was answered by the proxy
+     * @param line The PASS command
+     * @throws IOException
+     */
+    private void pooledLogin(final Connection connection, final String line) throws IOException {
+        // Whichever session is used, the Commands pipelined after the PASS are answered after it
+        connection.addPending(new PendingCommand(Command.PASS, false));
+        final UpstreamSession session = UpstreamPool.getInstance().acquire(UpstreamPool.key(connection.getUpstream(), connection.getUser()),
+                connection.getPasswordDigest());
+        if (session == null) {
+            freshLogin(connection, line);
+            return;
+        }
+        UpstreamPool.getInstance().handOff(session, connection.getLoop(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!connection.getClient().isOpen()) {
+                        UpstreamPool.getInstance().evict(session);
+                        return;
+                    }
+                    if (!session.getChannel().isOpen()) {
+                        freshLogin(connection, line);
+                        return;
+                    }
+                    LOGGER.info("Reusing pooled session " + session.getPoolKey());
+                    connection.adoptServer(session.getChannel(), session.getBuffer(), session.getLoginTime());
+                    session.getChannel().register(connection.getSelector(), SelectionKey.OP_READ, connection);
+                    connection.setPooledLogin(false);
+                    connection.setState(State.TRANSACTION);
+                    Statistics.getInstance().addAuth(StatusCode.OK);
+                    writeToClient(connection, OK + " maildrop ready\r\n");
+                    complete(connection);
+                } catch (IOException e) {
+                    LOGGER.error("Could not reuse pooled session " + session.getPoolKey());
+                    connection.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Log in with a new Server session after the USER command was answered by the proxy
+     * The PASS is already pending, the reply to the USER sent before it is dropped
+     * @param connection The Connection whose USER command was answered by the proxy
+     * @param line The PASS command
+     * @throws IOException
+     */
+    private void freshLogin(Connection connection, String line) throws IOException {
+        connectToServer(connection, connection.getUpstream());
+        // The reply to USER is not relayed, the one to PASS is
+        writeToServer(connection, "USER " + connection.getUser() + "\r\n");
+        writeToServer(connection, line);
+    }
 }
@@ -2,7 +2,10 @@ package proxy;
 
 /**
  * Valid POP3 Commands
+ * Constants holding an underscore are kinds of the Commands sent to the Server, never read from Clients:
+ * the proxy sends STAT_CHECK and UIDL_CHECK itself to check that a cached mailbox listing is current
  */
 public enum Command {
-    USER, PASS, LIST, RETR, QUIT, UIDL, DELE, STAT, NOOP, RSET, APOP, TOP, UNKNOWN, LIST_MULTI, UIDL_MULTI
+    USER, PASS, LIST, RETR, QUIT, UIDL, DELE, STAT, NOOP, RSET, APOP, TOP, UNKNOWN, LIST_MULTI, UIDL_MULTI, CAPA,
+    STAT_CHECK, UIDL_CHECK
 }
@@ -0,0 +1,220 @@
+package proxy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import connection.BufferUtils;
+
+/**
+ * Recognizes the Command of a line and splits its arguments straight from the bytes that were read
+ * Verbs are matched regardless of case against the constants of a Command enum, without decoding the line:
+ * arguments are only located, and read as numbers or Strings when asked for.
+ * A parser keeps the last line it parsed, so it must only be used by one Thread
+ * @param <C> The enum of the Commands
+ */
+public class CommandParser<C extends Enum<C>> {
+
+    /**
+     * The number of arguments whose position is kept, the others are only counted
+     */
+    private static final int MAX_ARGUMENTS = 8;
+
+    /**
+     * The Commands by the first letter of their verb, upper case
+     */
+    private Object[][] commands = new Object[26][];
+
+    /**
+     * The verbs of the Commands by the first letter of their verb, upper case
+     */
+    private byte[][][] verbs = new byte[26][][];
+
+    /**
+     * The Command of the lines with an unknown verb
+     */
+    private C unknown;
+
+    /**
+     * The line parsed last
+     */
+    private ByteBuffer line;
+
+    /**
+     * The Command of the line parsed last
+     */
+    private C command;
+
+    /**
+     * The number of arguments of the line parsed last
+     */
+    private int count;
+
+    /**
+     * The positions of the arguments in the line
+     */
+    private int[] starts = new int[MAX_ARGUMENTS];
+
+    /**
+     * The positions after the arguments in the line
+     */
+    private int[] ends = new int[MAX_ARGUMENTS];
+
+    /**
+     * Create a parser recognizing the constants of a Command enum
+     * Constants holding an underscore are not verbs and are never recognized
+     * @param type The enum of the Commands
+     * @param unknown The Command of the lines with an unknown verb
+     */
+    public CommandParser(Class<C> type, C unknown) {
+        this.unknown = unknown;
+        List<List<C>> byLetter = new ArrayList<>();
+        for (int i = 0; i < 26; i++) {
+            byLetter.add(new ArrayList<C>());
+        }
+        for (C constant : type.getEnumConstants()) {
+            String name = constant.name();
+            if (constant != unknown && name.indexOf('_') == -1) {
+                byLetter.get(name.charAt(0) - 'A').add(constant);
+            }
+        }
+        for (int i = 0; i < 26; i++) {
+            List<C> letter = byLetter.get(i);
+            commands[i] = letter.toArray();
+            verbs[i] = new byte[letter.size()][];
+            for (int j = 0; j < letter.size(); j++) {
+                verbs[i][j] = letter.get(j).name().getBytes(BufferUtils.CHARSET);
+            }
+        }
+    }
+
+    /**
+     * Parse a line, split on single spaces like the verb and arguments of a POP3 command
+     * The line terminator is not part of the last argument, and empty arguments at the end are dropped
+     * @param line The line, including its terminator, left untouched; it must not change until the next parse
+     * @return The Command of the line, or the unknown one
+     */
+    public C parse(ByteBuffer line) {
+        this.line = line;
+        int start = line.position();
+        int end = line.limit();
+        if (end > start && line.get(end - 1) == '\n') {
+            end--;
+            if (end > start && line.get(end - 1) == '\r') {
+                end--;
+            }
+        }
+        while (end > start && line.get(end - 1) == ' ') {
+            end--;
+        }
+        int verbEnd = start;
+        while (verbEnd < end && line.get(verbEnd) != ' ') {
+            verbEnd++;
+        }
+        command = match(line, start, verbEnd);
+        count = 0;
+        int position = verbEnd;
+        while (position < end) {
+            int argumentStart = ++position;
+            while (position < end && line.get(position) != ' ') {
+                position++;
+            }
+            if (count < MAX_ARGUMENTS) {
+                starts[count] = argumentStart;
+                ends[count] = position;
+            }
+            count++;
+        }
+        return command;
+    }
+
+    /**
+     * Find the Command of a verb, regardless of case
+     * @param line The line holding the verb
+     * @param start The position of the verb
+     * @param end The position after the verb
+     * @return The Command, or the unknown one
+     */
+    @SuppressWarnings("unchecked")
+    private C match(ByteBuffer line, int start, int end) {
+        if (start == end) {
+            return unknown;
+        }
+        int letter = (line.get(start) & 0xDF) - 'A';
+        if (letter < 0 || letter >= 26) {
+            return unknown;
+        }
+        byte[][] candidates = verbs[letter];
+        int length = end - start;
+        for (int i = 0; i < candidates.length; i++) {
+            byte[] verb = candidates[i];
+            if (verb.length != length) {
+                continue;
+            }
+            int j = 1;
+            // Clearing the bit of lower case only turns letters into upper case letters
+            while (j < length && (line.get(start + j) & 0xDF) == verb[j]) {
+                j++;
+            }
+            if (j == length) {
+                return (C) commands[letter][i];
+            }
+        }
+        return unknown;
+    }
+
+    /**
+     * Get the Command of the line parsed last
+     * @return The Command, or the unknown one
+     */
+    public C getCommand() {
+        return command;
+    }
+
+    /**
+     * Get the number of arguments of the line parsed last
+     * @return The number of arguments, the verb excluded
+     */
+    public int getArgumentCount() {
+        return count;
+    }
+
+    /**
+     * Read an argument of the line parsed last as a number
+     * @param index The index of the argument, the verb excluded
+     * @return The number, or -1 if the argument is not a decimal number in the range of an int
+     */
+    public int getNumber(int index) {
+        if (index >= count || index >= MAX_ARGUMENTS || starts[index] == ends[index]) {
+            return -1;
+        }
+        long number = 0;
+        for (int i = starts[index]; i < ends[index]; i++) {
+            int digit = line.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            number = number * 10 + digit;
+            if (number > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) number;
+    }
+
+    /**
+     * Decode an argument of the line parsed last
+     * @param index The index of the argument, the verb excluded
+     * @return The argument, or null if there is no such argument
+     */
+    public String getArgument(int index) {
+        if (index >= count || index >= MAX_ARGUMENTS) {
+            return null;
+        }
+        byte[] bytes = new byte[ends[index] - starts[index]];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = line.get(starts[index] + i);
+        }
+        return new String(bytes, BufferUtils.CHARSET);
+    }
+}
@@ -0,0 +1,205 @@
+package proxy;
+
+import cache.CachedMessage;
+import cache.MailboxCheck;
+import cache.MessageKey;
+
+/**
+ * A Command sent to the Server whose response was not completely relayed yet, or a reply of the proxy
+ * queued behind such Commands
+ * Clients may pipeline Commands, so a Connection keeps them in the order they were sent and every
+ * response is matched to the oldest one
+ */
+public class PendingCommand {
+
+    /**
+     * The Command sent to the Server
+     */
+    private Command command;
+
+    /**
+     * If a successful response spans several lines, ended by a line holding a single dot
+     */
+    private boolean multiLine;
+
+    /**
+     * If the first line of the response was read
+     */
+    private boolean started;
+
+    /**
+     * The reply of the proxy, or null if the Command was sent to the Server
+     */
+    private String reply;
+
+    /**
+     * The response of the proxy found in the MessageCache, or null
+     */
+    private CachedMessage cached;
+
+    /**
+     * The key the transformed response of a RETR is cached with, or null if it is not cached
+     */
+    private MessageKey key;
+
+    /**
+     * The check of a cached listing a STAT_CHECK or UIDL_CHECK belongs to, or null
+     */
+    private MailboxCheck check;
+
+    /**
+     * The time the Command was read from the Client, in nanoseconds
+     */
+    private long received;
+
+    /**
+     * The time the first line of the response was read, in nanoseconds
+     */
+    private long firstByte;
+
+    /**
+     * Create a Command sent to the Server
+     * @param command The Command sent to the Server
+     * @param multiLine If a successful response spans several lines
+     */
+    public PendingCommand(Command command, boolean multiLine) {
+        this.command = command;
+        this.multiLine = multiLine;
+        this.received = System.nanoTime();
+    }
+
+    /**
+     * Create a reply of the proxy, sent to the Client once the Commands before it were answered
+     * @param command The Command answered by the proxy
+     * @param reply The reply
+     */
+    public PendingCommand(Command command, String reply) {
+        this.command = command;
+        this.reply = reply;
+    }
+
+    /**
+     * Create a reply of the proxy found in the MessageCache, sent to the Client once the Commands before it were answered
+     * @param command The Command answered by the proxy
+     * @param cached The cached response
+     */
+    public PendingCommand(Command command, CachedMessage cached) {
+        this.command = command;
+        this.cached = cached;
+    }
+
+    /**
+     * Get the Command sent to the Server, or answered by the proxy
+     * @return The Command
+     */
+    public Command getCommand() {
+        return command;
+    }
+
+    /**
+     * Check if a successful response spans several lines
+     * @return If the response is multi-line
+     */
+    public boolean isMultiLine() {
+        return multiLine;
+    }
+
+    /**
+     * Check if the first line of the response was read
+     * @return If the response started
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Record that the first line of the response was read
+     */
+    public void start() {
+        if (!started) {
+            this.started = true;
+            this.firstByte = System.nanoTime();
+        }
+    }
+
+    /**
+     * Get the time the Command was read from the Client
+     * @return The time, in nanoseconds
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Get the time the first line of the response was read
+     * @return The time, in nanoseconds
+     */
+    public long getFirstByte() {
+        return firstByte;
+    }
+
+    /**
+     * Check if this is a reply of the proxy
+     * @return If there is nothing to wait from the Server
+     */
+    public boolean isReply() {
+        return reply != null || cached != null;
+    }
+
+    /**
+     * Get the reply of the proxy
+     * @return The reply, or null if the Command was sent to the Server
+     */
+    public String getReply() {
+        return reply;
+    }
+
+    /**
+     * Get the reply of the proxy found in the MessageCache
+     * @return The cached response, or null
+     */
+    public CachedMessage getCached() {
+        return cached;
+    }
+
+    /**
+     * Get the key the transformed response is cached with
+     * @return The key, or null if the response is not cached
+     */
+    public MessageKey getKey() {
+        return key;
+    }
+
+    /**
+     * Set the key the transformed response is cached with
+     * @param key The key, or null if the response is not cached
+     */
+    public void setKey(MessageKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Get the check of a cached listing the Command belongs to
+     * @return The check, or null if the Command was sent by the Client
+     */
+    public MailboxCheck getCheck() {
+        return check;
+    }
+
+    /**
+     * Set the check of a cached listing the Command belongs to
+     * @param check The check
+     */
+    public void setCheck(MailboxCheck check) {
+        this.check = check;
+    }
+
+    /**
+     * Drop the cached response of a reply that will not be sent
+     */
+    public void release() {
+        if (cached != null) {
+            cached.release();
+        }
+    }
+}
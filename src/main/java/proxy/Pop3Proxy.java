@@ -2,17 +2,45 @@ package proxy;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.text.ParseException;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import cache.CachedMessage;
+import cache.MessageCapture;
+import cache.MessageKey;
+import config.Configuration;
+import connection.BufferUtils;
 import connection.Server;
 import connection.Connection;
+import connection.OutboundQueue;
 import connection.State;
+import core.TransformationScheduler;
 import org.apache.log4j.Logger;
+import statistics.Latencies;
 import statistics.Statistics;
+import transformations.Deferred;
+import transformations.DeferringSink;
+import transformations.Leetifier;
+import transformations.Rotation;
+import transformations.StreamTransformer;
+import transformations.TransformationPipeline;
 
 /**
  * A proxy for POP3 requests and responses
@@ -30,29 +58,43 @@ public abstract class Pop3Proxy {
     protected static final String OK="+OK", ERR="-ERR", END=".", CONNECTED="+OK POP3 ready\r\n";
 
     /**
-     * A map from usernames to Servers
+     * The capabilities the proxy adds to the ones of the Server, and the list it answers CAPA with when there is no Server
      */
-	protected Map<String, Server> serverMap;
+    protected static final String PIPELINING = "PIPELINING\r\n",
+            CAPABILITIES = OK + " Capability list follows\r\nUSER\r\n" + PIPELINING + END + "\r\n";
+
+    /**
+     * Bytes corresponding to standard POP3 messages, to match lines without decoding them
+     */
+    protected static final byte[] OK_BYTES = OK.getBytes(BufferUtils.CHARSET), ERR_BYTES = ERR.getBytes(BufferUtils.CHARSET),
+            END_LINE = (END + "\r\n").getBytes(BufferUtils.CHARSET), CONNECTED_BYTES = CONNECTED.getBytes(BufferUtils.CHARSET),
+            PIPELINING_BYTES = PIPELINING.getBytes(BufferUtils.CHARSET);
 
     /**
-     * The Selector corresponding to the Client service
+     * The Threads resolving Server names, so lookups never block an event loop
+     * Both the Threads and the names waiting for them are bounded, a connection that finds the queue full fails at once
      */
-    protected Selector clientSelector;
+    private static final ExecutorService RESOLVER = newResolver();
 
     /**
-     * The Selector corresponding to the Server service
+     * The Thread firing the timeouts of connections to Servers
      */
-    protected Selector serverSelector;
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(daemonThreads("connect-timeout"));
+
+    /**
+     * A map from usernames to Servers
+     */
+	protected Map<String, Server> serverMap;
 
     /**
      * Process message and forward it to destination
-     * @param line The message to process
+     * @param line The message to process, a view of the read buffer that is only valid during the call
      * @param connection The Connection between Client and Server to which the message belongs to
      * @throws IOException
      * @throws InterruptedException
      * @throws ParseException
      */
-    public abstract void proxy(String line, Connection connection) throws IOException, InterruptedException, ParseException;
+    public abstract void proxy(ByteBuffer line, Connection connection) throws IOException, InterruptedException, ParseException;
 
     /**
      * Process a message unknown to the proxy
@@ -61,28 +103,105 @@ public abstract class Pop3Proxy {
      * @throws IOException
      * @throws InterruptedException
      */
-    protected void unknownCommand(String line, Connection connection) throws IOException, InterruptedException {
-		LOGGER.info("Received unknown or invalid command: " + line);
+    protected void unknownCommand(ByteBuffer line, Connection connection) throws IOException, InterruptedException {
+		LOGGER.info("Received unknown or invalid command: " + BufferUtils.lineToString(line));
         if (connection.getState() != State.AUTHORIZATION_USER && connection.getState() != State.AUTHORIZATION_PASS) {
             //Pass it to server without processing
-            writeToServer(connection, line);
+            forward(connection, line, Command.UNKNOWN, false);
+            connection.setMailboxModified(true);
             connection.setLastCommand(Command.UNKNOWN);
         } else {
-            writeToClient(connection, ERR + " incorrect state\r\n");
+            reply(connection, ERR + " incorrect state\r\n");
         }
 	}
 
+    /**
+     * Send a Command to the Server, expecting its response after the ones of the pending Commands
+     * @param connection The Connection between Client and Server to which the Command belongs to
+     * @param line The Command, left untouched
+     * @param command The kind of Command
+     * @param multiLine If a successful response spans several lines
+     * @return The pending Command
+     * @throws IOException
+     */
+    protected PendingCommand forward(Connection connection, ByteBuffer line, Command command, boolean multiLine) throws IOException {
+        writeToServer(connection, line);
+        PendingCommand pending = new PendingCommand(command, multiLine);
+        connection.addPending(pending);
+        return pending;
+    }
+
+    /**
+     * Answer a Command without the Server, once the pending Commands were answered
+     * @param connection The Connection between Client and Server to which the Command belongs to
+     * @param reply The reply to write to the Client
+     * @throws IOException
+     */
+    protected void reply(Connection connection, String reply) throws IOException {
+        reply(connection, new PendingCommand(Command.UNKNOWN, reply));
+    }
+
+    /**
+     * Answer a Command without the Server, once the pending Commands were answered
+     * @param connection The Connection between Client and Server to which the Command belongs to
+     * @param reply The reply of the proxy, closing the Connection once written if it answers a QUIT
+     * @throws IOException
+     */
+    protected void reply(Connection connection, PendingCommand reply) throws IOException {
+        if (connection.hasPending()) {
+            connection.addPending(reply);
+        } else {
+            answer(connection, reply);
+        }
+    }
+
+    /**
+     * Write a reply of the proxy to the Client
+     * @param connection The Connection between Client and Server to which the reply belongs to
+     * @param reply The reply of the proxy
+     * @throws IOException
+     */
+    private void answer(Connection connection, PendingCommand reply) throws IOException {
+        if (reply.getCached() != null) {
+            writeToClient(connection, reply.getCached());
+            return;
+        }
+        writeToClient(connection, reply.getReply());
+        if (reply.getCommand() == Command.QUIT) {
+            connection.disconnectServer();
+            connection.closeWhenWritten();
+        }
+    }
+
+    /**
+     * Drop the oldest pending Command once its response was relayed, writing the replies of the proxy queued behind it
+     * @param connection The Connection between Client and Server to which the Command belongs to
+     * @throws IOException
+     */
+    protected void complete(Connection connection) throws IOException {
+        PendingCommand done = connection.getPending();
+        if (done != null && done.isStarted()) {
+            Latencies.getInstance().record(done.getCommand(), connection.getUpstream(), done.getReceived(), done.getFirstByte(), System.nanoTime());
+        }
+        connection.completePending();
+        PendingCommand next;
+        while ((next = connection.getPending()) != null && next.isReply()) {
+            connection.completePending();
+            answer(connection, next);
+        }
+    }
+
     /**
      * Verifies if a command is a valid authentication
-     * @param command The POP3 command
+     * @param command The parser holding the POP3 command
      * @param connection The Connection between Client and Server to which the command belongs to
      * @return If the authorization is valid
      * @throws IOException
      * @throws InterruptedException
      */
-    protected boolean isValidAuthentication(String command[], Connection connection) throws IOException, InterruptedException{
+    protected boolean isValidAuthentication(CommandParser<Command> command, Connection connection) throws IOException, InterruptedException{
         boolean correctState = connection.getState().equals(State.AUTHORIZATION_USER);
-        boolean correctParamNumber = command.length == 2;
+        boolean correctParamNumber = command.getArgumentCount() == 1;
 
         return (correctState && correctParamNumber);
     }
@@ -92,55 +211,301 @@ public abstract class Pop3Proxy {
      * @param connection The Connection between Client and Server to which the message belongs to
      * @param line The Message to write to the Client
      * @throws IOException
-     * @throws InterruptedException
      */
-    protected void writeToClient(Connection connection, String line) throws IOException, InterruptedException {
-        writeToChannel(connection.getClient(), line, connection.getClientBuffer().getWriteBuffer(), clientSelector);
+    protected void writeToClient(Connection connection, String line) throws IOException {
+        writeToChannel(connection.getClient(), line, connection.getClientBuffer().getWriteBuffer(), connection.getSelector());
+        connection.clientQueued();
         Statistics.getInstance().processResponse(line.length());
     }
 
     /**
-     * Write a message to the Server
+     * Write a message to the Client without decoding it
      * @param connection The Connection between Client and Server to which the message belongs to
      * @param line The Message to write to the Client
      * @throws IOException
-     * @throws InterruptedException
      */
-    protected void writeToServer(Connection connection, String line) throws IOException, InterruptedException {
-        writeToChannel(connection.getServer(), line, connection.getServerBuffer().getWriteBuffer(), serverSelector);
+    protected void writeToClient(Connection connection, ByteBuffer line) throws IOException {
+        writeToChannel(connection.getClient(), line, connection.getClientBuffer().getWriteBuffer(), connection.getSelector());
+        connection.clientQueued();
+        Statistics.getInstance().processResponse(line.remaining());
+    }
+
+    /**
+     * Write a response found in the MessageCache to the Client, without copying it
+     * @param connection The Connection between Client and Server to which the response belongs to
+     * @param cached The cached response
+     * @throws IOException
+     */
+    protected void writeToClient(Connection connection, CachedMessage cached) throws IOException {
+        SelectionKey key = connection.getClient().keyFor(connection.getSelector());
+        long size = cached.size();
+        cached.sendTo(connection.getClientBuffer().getWriteBuffer());
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        connection.clientQueued();
+        Statistics.getInstance().processResponse(size);
+    }
+
+    /**
+     * Write a message to the Server, queueing it if the connection is not established yet
+     * @param connection The Connection between Client and Server to which the message belongs to
+     * @param line The Message to write to the Client
+     * @throws IOException
+     */
+    protected void writeToServer(Connection connection, String line) throws IOException {
+        if (connection.isConnecting()) {
+            // Flushed once the connection is established
+            connection.getServerBuffer().getWriteBuffer().add(line);
+        } else {
+            writeToChannel(connection.getServer(), line, connection.getServerBuffer().getWriteBuffer(), connection.getSelector());
+        }
+        connection.serverQueued();
         Statistics.getInstance().processRequest(line.length());
     }
 
+    /**
+     * Write a message to the Server without decoding it, queueing it if the connection is not established yet
+     * @param connection The Connection between Client and Server to which the message belongs to
+     * @param line The Message to write to the Server
+     * @throws IOException
+     */
+    protected void writeToServer(Connection connection, ByteBuffer line) throws IOException {
+        if (connection.isConnecting()) {
+            // Flushed once the connection is established
+            connection.getServerBuffer().getWriteBuffer().add(line);
+        } else {
+            writeToChannel(connection.getServer(), line, connection.getServerBuffer().getWriteBuffer(), connection.getSelector());
+        }
+        connection.serverQueued();
+        Statistics.getInstance().processRequest(line.remaining());
+    }
+
     /**
      * Write a Message to a Channel
      * @param channel The Channel to write to
      * @param line The Message to write to the Client
      * @param buffer The Buffer to write to
      * @param selector The Selector corresponding to the Channel to write to
-     * @throws InterruptedException
      * @throws IOException
      */
-    protected void writeToChannel(SocketChannel channel, String line, StringBuffer buffer, Selector selector) throws InterruptedException, IOException{
+    protected void writeToChannel(SocketChannel channel, CharSequence line, OutboundQueue buffer, Selector selector) throws IOException{
+        SelectionKey key = channel.keyFor(selector);
+        buffer.add(line);
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Write a copy of some bytes to a Channel
+     * @param channel The Channel to write to
+     * @param line The bytes to write, left untouched
+     * @param buffer The Buffer to write to
+     * @param selector The Selector corresponding to the Channel to write to
+     * @throws IOException
+     */
+    protected void writeToChannel(SocketChannel channel, ByteBuffer line, OutboundQueue buffer, Selector selector) throws IOException{
         SelectionKey key = channel.keyFor(selector);
-        buffer.append(line);
-        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        buffer.add(line);
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Create a pipeline applying the enabled transformations to a RETR response as it is relayed to the Client
+     * The images to rotate are rotated on the TransformationScheduler, their place in the queue of the Client
+     * waiting for them while the rest of the response is relayed
+     * @param connection The Connection between Client and Server retrieving the message
+     * @param key The key the transformed response is cached with, or null if it is not cached
+     * @return The pipeline writing to the Client
+     * @throws IOException
+     */
+    protected TransformationPipeline newPipeline(final Connection connection, MessageKey key) throws IOException {
+        List<StreamTransformer> transformers = new LinkedList<>();
+        if (Leetifier.enabled.get()) {
+            transformers.add(new Leetifier());
+        }
+        if (Rotation.enabled.get()) {
+            transformers.add(new Rotation());
+        }
+        DeferringSink sink = new DeferringSink() {
+            @Override
+            public void write(ByteBuffer lines) throws IOException {
+                writeToClient(connection, lines);
+            }
+
+            @Override
+            public Deferred defer() {
+                final OutboundQueue.Placeholder placeholder = connection.getClientBuffer().getWriteBuffer().addPlaceholder();
+                return new Deferred() {
+                    @Override
+                    public void fill(ByteBuffer lines) {
+                        int size = lines.remaining();
+                        placeholder.fill(lines);
+                        connection.requestClientWrite();
+                        Statistics.getInstance().processResponse(size);
+                    }
+                };
+            }
+        };
+        if (key != null) {
+            MessageCapture capture = new MessageCapture(key, sink);
+            connection.setCapture(capture);
+            sink = capture;
+        }
+        return new TransformationPipeline(transformers, sink, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                TransformationScheduler.getInstance().submit(connection, task);
+            }
+        });
     }
 
     /**
-     * Create a connection to a Server
+     * Start a connection to a Server, registered to the event loop owning the Client connection
+     * The name is resolved on a resolver Thread and the connection is completed by the event loop, messages to the
+     * Server are queued until then. The connect timeout starts before the name is resolved
      * @param connection The Connection between Client and Server to establish
      * @param server The Server to connect to
      * @throws IOException
      */
-    protected void connectToServer(Connection connection, Server server) throws IOException{
+    protected void connectToServer(final Connection connection, final Server server) throws IOException{
         LOGGER.info("Server: "+ server.getName() +" port: "+ server.getPort());
-        SocketChannel serverSocketChannel = SocketChannel.open(new InetSocketAddress(server.getName(), server.getPort()));
+        final SocketChannel serverSocketChannel = SocketChannel.open();
         serverSocketChannel.configureBlocking(false); // Must be nonblocking to register
-        LOGGER.info("Creating connection -> " + serverSocketChannel.socket().getRemoteSocketAddress());
+        serverSocketChannel.socket().setTcpNoDelay(true);
         connection.connectToServer(serverSocketChannel);
-        serverSocketChannel.register(serverSelector, SelectionKey.OP_READ, connection);
+        // The deadline covers the lookup too, a resolver that is slow or backed up fails the connection in time
+        connection.setConnectTimeout(TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connection.getLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (connection.isConnecting() && connection.getServer() == serverSocketChannel) {
+                            connectFailed(connection, new SocketTimeoutException("Connect timed out"));
+                        }
+                    }
+                });
+            }
+        }, Configuration.getInstance().getConnectTimeout(), TimeUnit.MILLISECONDS));
+        try {
+            RESOLVER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final InetSocketAddress address = new InetSocketAddress(server.getName(), server.getPort());
+                    connection.getLoop().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            startConnect(connection, serverSocketChannel, address);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Failed once the Command needing the Server is pending, as if the name could not be resolved
+            connection.getLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (connection.isConnecting() && connection.getServer() == serverSocketChannel) {
+                        connectFailed(connection, new IOException("Too many server names being resolved"));
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Connect to a resolved address, on the event loop owning the Connection
+     * @param connection The Connection between Client and Server to establish
+     * @param channel The SocketChannel to connect
+     * @param address The address of the Server
+     */
+    private void startConnect(Connection connection, SocketChannel channel, InetSocketAddress address) {
+        if (connection.getServer() != channel || !channel.isOpen()) {
+            // The Connection was closed or timed out while resolving
+            return;
+        }
+        try {
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(address.getHostString());
+            }
+            if (channel.connect(address)) {
+                serverConnected(connection);
+                return;
+            }
+            channel.register(connection.getSelector(), SelectionKey.OP_CONNECT, connection);
+        } catch (IOException e) {
+            connectFailed(connection, e);
+        }
+    }
+
+    /**
+     * Complete the connection to a Server, flushing the messages queued for it
+     * @param connection The Connection between Client and Server that was established
+     * @throws IOException
+     */
+    public void serverConnected(Connection connection) throws IOException {
+        SocketChannel serverSocketChannel = connection.getServer();
+        connection.serverConnected();
+        LOGGER.info("Creating connection -> " + serverSocketChannel.socket().getRemoteSocketAddress());
+        int ops = SelectionKey.OP_READ;
+        if (!connection.getServerBuffer().getWriteBuffer().isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        serverSocketChannel.register(connection.getSelector(), ops, connection);
         LOGGER.info("client:" + connection.getClient());
         LOGGER.info("host:" + serverSocketChannel);
     }
 
+    /**
+     * Abort a connection to a Server that could not be established, answering every pending Command of the Client
+     * @param connection The Connection between Client and Server that failed
+     * @param cause The reason of the failure
+     */
+    public void connectFailed(Connection connection, IOException cause) {
+        LOGGER.info("Could not connect to server: " + cause);
+        connection.disconnectServer();
+        connection.setState(State.AUTHORIZATION_USER);
+        connection.setLastCommand(Command.UNKNOWN);
+        try {
+            // Every Command pipelined behind the one that needed the Server is answered, in order
+            PendingCommand pending;
+            while ((pending = connection.getPending()) != null) {
+                connection.completePending();
+                if (pending.isReply()) {
+                    answer(connection, pending);
+                } else if (pending.getCheck() == null) {
+                    writeToClient(connection, ERR + " could not connect to server\r\n");
+                }
+            }
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Create the pool of resolver Threads, which stop when idle
+     * @return The pool, with a bounded queue
+     */
+    private static ExecutorService newResolver() {
+        Configuration configuration = Configuration.getInstance();
+        ThreadPoolExecutor resolver = new ThreadPoolExecutor(configuration.getResolverThreads(), configuration.getResolverThreads(),
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(configuration.getResolverQueueSize()), daemonThreads("resolver"));
+        resolver.allowCoreThreadTimeOut(true);
+        return resolver;
+    }
+
+    /**
+     * Create a ThreadFactory of daemon Threads, so they do not keep the proxy running
+     * @param name The name of the Threads
+     * @return The ThreadFactory
+     */
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
 }
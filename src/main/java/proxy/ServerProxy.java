@@ -1,10 +1,18 @@
 package proxy;
 
+import cache.MailboxCache;
+import cache.MailboxCapture;
+import cache.MailboxCheck;
+import cache.MailboxSnapshot;
+import cache.MessageCache;
+import cache.MessageKey;
+import config.Configuration;
+import connection.BufferUtils;
 import connection.Connection;
 import connection.Server;
 import connection.State;
-import core.TransformationThread;
-import mail.Mail;
+import core.TransformationScheduler;
+import core.TransformationTask;
 import org.apache.log4j.Logger;
 import statistics.Statistics;
 import statistics.StatusCode;
@@ -13,13 +21,11 @@ import transformations.Rotation;
 import transformations.Transformer;
 
 import java.io.IOException;
-import java.nio.channels.Selector;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * A proxy for POP3 responses
@@ -32,21 +38,25 @@ public class ServerProxy extends Pop3Proxy {
     private static transient Logger LOGGER = Logger.getLogger(ServerProxy.class);
 
     /**
-     * A Thread Pool to handle Transformations
+     * The Client Proxy, reading the Commands that waited for the check of a cached listing
      */
-    private final ExecutorService threadPool = Executors.newFixedThreadPool(10);
+    private ClientProxy clientProxy;
 
     /**
-     * Create the Proxy with a map from usernames to Servers, the Client Selector and the Server Selector
+     * Create the Proxy with a map from usernames to Servers
      * @param serverMap A map from usernames to Servers
-     * @param clientSelector The Client Selector
-     * @param serverSelector The Server Selector
      * @throws IOException
      */
-    public ServerProxy(Map<String, Server> serverMap, Selector clientSelector, Selector serverSelector) throws IOException {
+    public ServerProxy(Map<String, Server> serverMap) throws IOException {
         this.serverMap = serverMap;
-        this.clientSelector = clientSelector;
-        this.serverSelector = serverSelector;
+    }
+
+    /**
+     * Set the Client Proxy reading the Commands that waited for the check of a cached listing
+     * @param clientProxy The Client Proxy
+     */
+    public void setClientProxy(ClientProxy clientProxy) {
+        this.clientProxy = clientProxy;
     }
 
     /**
@@ -58,117 +68,292 @@ public class ServerProxy extends Pop3Proxy {
      * @throws ParseException
      */
     @Override
-    public void proxy(String line, Connection connection) throws IOException, InterruptedException, ParseException {
-        if (line.startsWith(ERR)) {
+    public void proxy(ByteBuffer line, Connection connection) throws IOException, InterruptedException, ParseException {
+        if (connection.isAwaitingGreeting()) {
+            connection.setAwaitingGreeting(false);
+            if (!BufferUtils.startsWith(line, ERR_BYTES)) {
+                // The Client was already greeted by the proxy
+                return;
+            }
+        }
+        if (BufferUtils.startsWith(line, ERR_BYTES)) {
             Statistics.getInstance().addResponse(StatusCode.ERR);
-        } else if (!CONNECTED.equals(line)) {
+        } else if (!BufferUtils.equals(line, CONNECTED_BYTES)) {
             Statistics.getInstance().addResponse(StatusCode.OK);
         }
 
-        LOGGER.debug("Received response -> " + line.trim());
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Received response -> " + BufferUtils.lineToString(line));
+        }
+
+        PendingCommand pending = connection.getPending();
+        if (pending == null) {
+            // Not the response to a Command, such as a notice before the Server closes
+            writeToClient(connection, line);
+            return;
+        }
+        boolean first = !pending.isStarted();
+        pending.start();
 
-        switch(connection.getLastCommand()) {
+        switch(pending.getCommand()) {
 
             case USER:
-                if (line.startsWith(ERR)) {
+                if (BufferUtils.startsWith(line, ERR_BYTES)) {
                     LOGGER.info("Access failure: " + connection.getClient());
                     Statistics.getInstance().addAuth(StatusCode.ERR);
                 }
-                if(CONNECTED.equals(line)) {
+                if (BufferUtils.equals(line, CONNECTED_BYTES)) {
                     // Skip initial connection message
                     break;
                 }
                 writeToClient(connection, line);
+                complete(connection);
                 break;
 
             case PASS:
-                if (line.startsWith(OK)) {
+                if (connection.isPooledLogin()) {
+                    // The reply to the USER sent along, the Client was already answered
+                    connection.setPooledLogin(false);
+                    break;
+                }
+                if (BufferUtils.startsWith(line, OK_BYTES)) {
                     connection.setState(State.TRANSACTION);
+                    connection.setLoginTime(System.currentTimeMillis());
                     Statistics.getInstance().addAuth(StatusCode.OK);
-                } else if (line.startsWith(ERR)) {
+                } else if (BufferUtils.startsWith(line, ERR_BYTES)) {
                     connection.setState(State.AUTHORIZATION_USER);
                     Statistics.getInstance().addAuth(StatusCode.ERR);
                 }
                 writeToClient(connection, line);
-                break;
-
-            case LIST:
-                writeToClient(connection, line);
-                break;
-
-            case LIST_MULTI:
-                if (line.equals(END)) {
-                    connection.setLastCommand(Command.UNKNOWN);
-                }
-                writeToClient(connection, line);
+                complete(connection);
                 break;
 
             case RETR:
-                connection.getMail().add(line);
-                if(line.equals(END+"\r\n")){
-                    List<Transformer> transformers = new LinkedList<>();
-                    if (Leetifier.enabled.get()) {
-                        transformers.add(new Leetifier());
+                if (first) {
+                    if (BufferUtils.startsWith(line, ERR_BYTES)) {
+                        writeToClient(connection, line);
+                        complete(connection);
+                        break;
                     }
-                    if (Rotation.enabled.get()) {
-                        transformers.add(new Rotation());
+                    boolean transform = Leetifier.enabled.get() || Rotation.enabled.get();
+                    if (pending.getKey() != null && !pending.getKey().getTransformers().equals(MessageKey.activeTransformers())) {
+                        // The transformations were toggled since the RETR was read
+                        pending.setKey(null);
                     }
-                    threadPool.execute(new TransformationThread(connection, clientSelector, transformers));
+                    connection.setStreaming(!transform);
+                    boolean pipeline = transform && Configuration.getInstance().isStreamingTransformations();
+                    connection.setPipeline(pipeline ? newPipeline(connection, pending.getKey()) : null);
+                }
+                if (connection.isStreaming()) {
+                    // No transformation to apply, relay the response as it arrives
+                    writeToClient(connection, line);
+                    if (BufferUtils.equals(line, END_LINE)) {
+                        complete(connection);
+                    }
+                    break;
+                }
+                if (connection.getPipeline() != null) {
+                    if (connection.getPipeline().line(line)) {
+                        connection.setPipeline(null);
+                        if (connection.getCapture() != null) {
+                            connection.getCapture().commit();
+                            connection.setCapture(null);
+                        }
+                        complete(connection);
+                    }
+                    break;
                 }
-                break;
-
-            case DELE:
                 connection.getMail().add(line);
-                if (line.equals(END+"\r\n")) {
-                    connection.getMail().parse();
-                    LOGGER.info("Marking mail as deleted");
-                    writeToServer(connection, "DELE " + connection.getMailToDelete() + "\r\n");
-                    connection.setLastCommand(Command.UNKNOWN);
-                    connection.setMail(new Mail());
+                if (BufferUtils.equals(line, END_LINE)) {
+                    transform(connection, pending.getKey());
                 }
                 break;
 
-            case STAT:
-
-            case NOOP:
-
-            case RSET:
+            case CAPA:
+                if (first && BufferUtils.startsWith(line, ERR_BYTES)) {
+                    // The Server lists no capabilities, the proxy lists its own
+                    writeToClient(connection, CAPABILITIES);
+                    complete(connection);
+                } else if (BufferUtils.equals(line, END_LINE)) {
+                    writeToClient(connection, PIPELINING);
+                    writeToClient(connection, line);
+                    complete(connection);
+                } else if (!BufferUtils.equals(line, PIPELINING_BYTES)) {
+                    // Listed once, by the proxy, whether the Server supports it or not
+                    writeToClient(connection, line);
+                }
+                break;
 
-            case APOP:
+            case QUIT:
+                if (connection.getState() == State.TRANSACTION) {
+                    connection.setState(State.UPDATE);
+                }
                 writeToClient(connection, line);
+                // Nothing else is expected from the Server, the Client is closed once it got the reply
+                connection.disconnectServer();
+                connection.closeWhenWritten();
                 break;
 
-            case TOP:
-                if (line.equals(END)) {
-                    connection.setLastCommand(Command.UNKNOWN);
+            case STAT_CHECK:
+                pending.getCheck().stat(BufferUtils.lineToString(line));
+                complete(connection);
+                if (pending.getCheck().getSnapshot().getCount() == 0) {
+                    checked(connection, pending.getCheck());
                 }
-                writeToClient(connection, line);
                 break;
 
-            case UIDL:
-                writeToClient(connection, line);
+            case UIDL_CHECK:
+                pending.getCheck().uid(BufferUtils.lineToString(line));
+                complete(connection);
+                checked(connection, pending.getCheck());
                 break;
 
-            case UIDL_MULTI:
-                if (line.equals(END)) {
-                    connection.setLastCommand(Command.UNKNOWN);
+            default:
+                if (MessageCache.isEnabled() || MailboxCache.isEnabled()) {
+                    list(pending.getCommand(), line, first, connection);
                 }
                 writeToClient(connection, line);
+                if (!pending.isMultiLine() || (first ? BufferUtils.startsWith(line, ERR_BYTES) : BufferUtils.equals(line, END_LINE))) {
+                    complete(connection);
+                }
+        }
+    }
 
-                break;
+    /**
+     * Answer the listing a cached snapshot was checked for, from the snapshot if it is current or from the Server,
+     * then read the Commands that waited for it
+     * @param connection The Connection whose Client asked for the listing
+     * @param check The check, whose replies were all read
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void checked(Connection connection, MailboxCheck check) throws IOException, InterruptedException {
+        MailboxCache cache = MailboxCache.getInstance();
+        cache.checked(check.isCurrent());
+        if (check.isCurrent()) {
+            cache.hit();
+            connection.setCurrentMailbox(check.getSnapshot());
+            connection.getListing().load(check.getSnapshot());
+            writeToClient(connection, check.getSnapshot().getResponse(check.getCommand()));
+        } else {
+            LOGGER.info("Cached listing outdated: " + MailboxCache.key(connection.getUpstream(), connection.getUser()));
+            cache.invalidate(MailboxCache.key(connection.getUpstream(), connection.getUser()));
+            writeToServer(connection, check.getLine());
+            connection.addPending(new PendingCommand(check.getCommand(), true));
+        }
+        connection.resumeClient(Connection.CHECKING_MAILBOX);
+        clientProxy.proxyBuffered(connection);
+    }
 
-            case QUIT:
-                if (connection.getState() == State.TRANSACTION) {
-                    connection.setState(State.UPDATE);
+    /**
+     * Record the unique ids and sizes listed by the Server, so RETR responses can be found in the MessageCache,
+     * and collect the listings of the whole maildrop for the MailboxCache
+     * @param command The Command the line answers
+     * @param line A line of the response
+     * @param first If it is the first line of the response
+     * @param connection The Connection between Client and Server to which the response belongs to
+     * @throws IOException
+     */
+    private void list(Command command, ByteBuffer line, boolean first, Connection connection) throws IOException {
+        if (MailboxCache.isEnabled() && (command == Command.LIST_MULTI || command == Command.UIDL_MULTI) && !connection.isMailboxModified()) {
+            if (connection.getMailboxCapture() == null) {
+                connection.setMailboxCapture(new MailboxCapture());
+            }
+            MailboxSnapshot snapshot = connection.getMailboxCapture().line(command, line, first);
+            if (snapshot != null) {
+                MailboxCache.getInstance().put(MailboxCache.key(connection.getUpstream(), connection.getUser()), snapshot);
+                connection.setCurrentMailbox(snapshot);
+            }
+        }
+        if (BufferUtils.startsWith(line, ERR_BYTES)) {
+            return;
+        }
+        switch (command) {
+            case UIDL:
+                connection.getListing().uidLine(BufferUtils.lineToString(line));
+                break;
+            case LIST:
+                connection.getListing().sizeLine(BufferUtils.lineToString(line));
+                break;
+            case UIDL_MULTI:
+                if (!first && !BufferUtils.equals(line, END_LINE)) {
+                    connection.getListing().uidLine(BufferUtils.lineToString(line));
+                }
+                break;
+            case LIST_MULTI:
+                if (!first && !BufferUtils.equals(line, END_LINE)) {
+                    connection.getListing().sizeLine(BufferUtils.lineToString(line));
                 }
-                writeToClient(connection, line);
-                connection.close();
                 break;
-
             default:
+        }
+    }
 
-            case UNKNOWN:
-                writeToClient(connection, line);
+    /**
+     * Process the responses already read from the Server, until one has to wait for a transformation
+     * @param connection The Connection between Client and Server whose responses are processed
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ParseException
+     */
+    public void proxyBuffered(Connection connection) throws IOException, InterruptedException, ParseException {
+        ByteBuffer line;
+        while (!connection.isServerPaused(Connection.TRANSFORMING) && connection.getServer() != null && connection.getServer().isOpen()
+                && (line = connection.getServerBuffer().getReadBuffer().nextLine()) != null) {
+            proxy(line, connection);
+        }
+    }
+
+    /**
+     * Transform the spooled Mail of a Connection on the TransformationScheduler
+     * The responses after it wait until the transformed Mail is queued for the Client, so they reach it in order
+     * @param connection The Connection whose RETR response was completely spooled
+     * @param key The key the transformed Mail is cached with, or null if it is not cached
+     * @throws IOException
+     */
+    private void transform(final Connection connection, MessageKey key) throws IOException {
+        List<Transformer> transformers = new LinkedList<>();
+        if (Leetifier.enabled.get()) {
+            transformers.add(new Leetifier());
+        }
+        if (Rotation.enabled.get()) {
+            transformers.add(new Rotation());
+        }
+        final TransformationTask task = new TransformationTask(connection, connection.getMail(), transformers, key);
+        connection.setMail(null);
+        connection.pauseServer(Connection.TRANSFORMING);
+        TransformationScheduler.getInstance().submit(connection, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    connection.getLoop().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            transformed(connection);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Relay the responses that waited for the transformation of a Mail, on the event loop owning the Connection
+     * @param connection The Connection whose transformed Mail was queued for the Client
+     */
+    private void transformed(Connection connection) {
+        if (!connection.getClient().isOpen()) {
+            return;
+        }
+        connection.resumeServer(Connection.TRANSFORMING);
+        try {
+            complete(connection);
+            proxyBuffered(connection);
+        } catch (IOException | InterruptedException | ParseException e) {
+            LOGGER.error("Could not relay responses after a transformation: " + e.getMessage());
+            connection.close();
         }
     }
 }
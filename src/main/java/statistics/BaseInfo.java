@@ -2,50 +2,40 @@ package statistics;
 
 /**
  * Gathers the base information regarding Requests and Responses for the
- * Statistics modules
+ * Statistics modules, as taken in a snapshot
  */
 public class BaseInfo {
 	
 	/**
 	 * Number of calls to gather data
 	 */
-	private int count = 0;
+	private long count;
 	/**
 	 * Total number of connections established
 	 */
-	private int connections = 0;
+	private long connections;
 	/**
 	 * Total number of bytes transfered
 	 */
-	private int bytesTransf = 0;
+	private long bytesTransf;
 	
 	/**
-	 * Adds a call
+	 * Creates the information taken in a snapshot
+	 * @param count number of requests or responses
+	 * @param connections number of connections established
+	 * @param bytesTransf number of bytes transfered
 	 */
-	public void addCall() {
-		count++;
-	}
-	
-	/**
-	 * Adds a connection
-	 */
-	public void addConnection() {
-		connections++;
-	}
-	
-	/**
-	 * Adds the bytes to the gathered data
-	 * @param size number of bytes transfered
-	 */
-	public void addBytes(int size) {
-		bytesTransf += size;
+	public BaseInfo(long count, long connections, long bytesTransf) {
+		this.count = count;
+		this.connections = connections;
+		this.bytesTransf = bytesTransf;
 	}
 	
 	/**
 	 * Gets the number requests or responses
 	 * @return number of requests or responses
 	 */
-	public int getCount() {
+	public long getCount() {
 		return count;
 	}
 	
@@ -53,7 +43,7 @@ public class BaseInfo {
 	 * Gets the number of connections established
 	 * @return number of connections established
 	 */
-	public int getConnections() {
+	public long getConnections() {
 		return connections;
 	}
 	
@@ -61,7 +51,7 @@ public class BaseInfo {
 	 * Gets the number of bytes transfered in total thus far
 	 * @return total number of bytes transfered
 	 */
-	public int getBytesTransf() {
+	public long getBytesTransf() {
 		return bytesTransf;
 	}
 	
@@ -2,21 +2,21 @@ package statistics;
 
 /**
  * Gathers extra information regarding Status Codes for the
- * Statistics modules
+ * Statistics modules, as taken in a snapshot
  */
 public class ExtraInfo {
 	
 	/**
 	 * Structure gathering the number of responses with each Status Code
 	 */
-	private int[] codesCount = new int[StatusCode.values().length];
+	private long[] codesCount;
 
 	/**
-	 * Adds the Status Code used to the gathered data
-	 * @param code Status Code used
+	 * Creates the information taken in a snapshot
+	 * @param codesCount number of responses with each Status Code, by ordinal
 	 */
-	public void add(StatusCode code) {
-		codesCount[code.ordinal()]++;
+	public ExtraInfo(long[] codesCount) {
+		this.codesCount = codesCount;
 	}
 
 	/**
@@ -24,8 +24,8 @@ public class ExtraInfo {
 	 * @return String containing the information gathered
 	 */
 	public StringBuffer getHistogram() {
-		int sum = 0; 
-		for(int i : codesCount)
+		long sum = 0; 
+		for(long i : codesCount)
 			sum += i;
 		
 		StringBuffer str = new StringBuffer();
@@ -0,0 +1,184 @@
+package statistics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import connection.Server;
+import proxy.Command;
+
+/**
+ * Singleton
+ * Latency histograms of the Commands sent to the Servers, by Command and by Server
+ * Every Command is measured from the moment the Client line was read to the first line of the response, and
+ * to the moment the whole response was relayed. Servers are told apart by instance, and grouped by name and port
+ * when printed
+ */
+public class Latencies {
+
+	/**
+	 * The percentiles printed
+	 */
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 100 };
+
+	/**
+	 * The Latencies instance
+	 */
+	private static final Latencies instance = new Latencies();
+
+	/**
+	 * The histograms of the times to first byte, by Command
+	 */
+	private LatencyHistogram[] commandFirstByte = new LatencyHistogram[Command.values().length];
+
+	/**
+	 * The histograms of the times to the complete response, by Command
+	 */
+	private LatencyHistogram[] commandComplete = new LatencyHistogram[Command.values().length];
+
+	/**
+	 * The histograms of the times to first byte and to the complete response, by Server
+	 */
+	private ConcurrentMap<Server, LatencyHistogram[]> servers = new ConcurrentHashMap<>();
+
+	/**
+	 * Create the histograms of every Command
+	 */
+	private Latencies() {
+		for (int i = 0; i < commandFirstByte.length; i++) {
+			commandFirstByte[i] = new LatencyHistogram();
+			commandComplete[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Get Singleton
+	 * @return the Latencies instance
+	 */
+	public static Latencies getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Record the latencies of a Command whose response was relayed
+	 * @param command The Command
+	 * @param server The Server that answered it, or null if unknown
+	 * @param received The time the Command was read, in nanoseconds
+	 * @param firstByte The time the first line of the response was read, in nanoseconds
+	 * @param complete The time the response was relayed, in nanoseconds
+	 */
+	public void record(Command command, Server server, long received, long firstByte, long complete) {
+		commandFirstByte[command.ordinal()].record(firstByte - received);
+		commandComplete[command.ordinal()].record(complete - received);
+		if (server != null) {
+			LatencyHistogram[] histograms = servers.get(server);
+			if (histograms == null) {
+				LatencyHistogram[] created = { new LatencyHistogram(), new LatencyHistogram() };
+				histograms = servers.putIfAbsent(server, created);
+				if (histograms == null) {
+					histograms = created;
+				}
+			}
+			histograms[0].record(firstByte - received);
+			histograms[1].record(complete - received);
+		}
+	}
+
+	/**
+	 * Retrieves the percentiles of every latency measured thus far
+	 * Every line holds a name, first or complete, the number of Commands and the percentiles 50, 90, 99, 99.9 and 100,
+	 * in milliseconds
+	 * @return String containing the information gathered
+	 */
+	public String getCondensedLatencies() {
+		StringBuilder str = new StringBuilder();
+		str.append("LATENCYSTART \r\n");
+		str.append("Commands: \r\n");
+		for (Command command : Command.values()) {
+			append(str, command.name(), commandFirstByte[command.ordinal()].snapshot(), commandComplete[command.ordinal()].snapshot());
+		}
+		Map<String, long[][]> byName = getServerSnapshots();
+		str.append("Servers: \r\n");
+		for (Map.Entry<String, long[][]> entry : byName.entrySet()) {
+			append(str, entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+		}
+		str.append("LATENCYEND \r\n");
+		return str.toString();
+	}
+
+	/**
+	 * Get the histogram of the times to first byte of a Command
+	 * @param command The Command
+	 * @return The histogram
+	 */
+	public LatencyHistogram getFirstByte(Command command) {
+		return commandFirstByte[command.ordinal()];
+	}
+
+	/**
+	 * Get the histogram of the times to the complete response of a Command
+	 * @param command The Command
+	 * @return The histogram
+	 */
+	public LatencyHistogram getComplete(Command command) {
+		return commandComplete[command.ordinal()];
+	}
+
+	/**
+	 * Take snapshots of the histograms of the Servers, merging the Servers with the same name and port
+	 * @return By name:port, the snapshots of the times to first byte and to the complete response, followed by
+	 * the sums of both in microseconds
+	 */
+	public Map<String, long[][]> getServerSnapshots() {
+		Map<String, long[][]> byName = new TreeMap<>();
+		for (Map.Entry<Server, LatencyHistogram[]> entry : servers.entrySet()) {
+			String name = entry.getKey().getName() + ":" + entry.getKey().getPort();
+			long[] firstByte = entry.getValue()[0].snapshot();
+			long[] complete = entry.getValue()[1].snapshot();
+			long[] totals = { entry.getValue()[0].getTotal(), entry.getValue()[1].getTotal() };
+			long[][] merged = byName.get(name);
+			if (merged == null) {
+				byName.put(name, new long[][] { firstByte, complete, totals });
+			} else {
+				for (int i = 0; i < firstByte.length; i++) {
+					merged[0][i] += firstByte[i];
+					merged[1][i] += complete[i];
+				}
+				merged[2][0] += totals[0];
+				merged[2][1] += totals[1];
+			}
+		}
+		return byName;
+	}
+
+	/**
+	 * Append the lines of the latencies of a name, unless nothing was measured
+	 * @param str The destination
+	 * @param name The name of the Command or Server
+	 * @param firstByte The snapshot of the times to first byte
+	 * @param complete The snapshot of the times to the complete response
+	 */
+	private void append(StringBuilder str, String name, long[] firstByte, long[] complete) {
+		if (LatencyHistogram.count(complete) == 0) {
+			return;
+		}
+		append(str, name, "first", firstByte);
+		append(str, name, "complete", complete);
+	}
+
+	/**
+	 * Append the line of the percentiles of a histogram
+	 * @param str The destination
+	 * @param name The name of the Command or Server
+	 * @param stage first or complete
+	 * @param snapshot The snapshot of the histogram
+	 */
+	private void append(StringBuilder str, String name, String stage, long[] snapshot) {
+		str.append(name).append(' ').append(stage).append(' ').append(LatencyHistogram.count(snapshot));
+		for (double percentile : PERCENTILES) {
+			str.append(' ').append(String.format("%.3f", LatencyHistogram.percentile(snapshot, percentile) / 1000.0));
+		}
+		str.append("\r\n");
+	}
+}
@@ -0,0 +1,150 @@
+package statistics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with buckets of logarithmic width, in the manner of HdrHistogram
+ * Durations are kept in microseconds with a relative error under 1/64, up to about 19 hours. Recording a duration
+ * increments one counter and allocates nothing, so it may be done from any Thread on every response
+ */
+public class LatencyHistogram {
+
+	/**
+	 * The bits of a bucket: durations below 2^SUB_BITS microseconds are exact
+	 */
+	private static final int SUB_BITS = 7;
+
+	/**
+	 * The number of exact durations
+	 */
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	/**
+	 * The number of counters of every bucket after the exact durations
+	 */
+	private static final int HALF_COUNT = SUB_COUNT / 2;
+
+	/**
+	 * The longest duration kept, in microseconds, longer ones are counted as this one
+	 */
+	private static final long MAX_VALUE = (1L << 36) - 1;
+
+	/**
+	 * The number of durations in every bucket
+	 */
+	private AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+
+	/**
+	 * The sum of the durations, in microseconds
+	 */
+	private AtomicLong total = new AtomicLong();
+
+	/**
+	 * Record a duration
+	 * @param nanos The duration, in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, Math.min(MAX_VALUE, nanos / 1000));
+		counts.getAndIncrement(index(micros));
+		total.getAndAdd(micros);
+	}
+
+	/**
+	 * Get the sum of the durations recorded
+	 * @return The sum, in microseconds
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * Copy the counts of the buckets
+	 * The copy may miss durations recorded while it is taken
+	 * @return The number of durations in every bucket
+	 */
+	public long[] snapshot() {
+		long[] snapshot = new long[counts.length()];
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Find the bucket of a duration
+	 * @param micros The duration, in microseconds
+	 * @return The index of its counter
+	 */
+	private static int index(long micros) {
+		if (micros < SUB_COUNT) {
+			return (int) micros;
+		}
+		// Every bucket after the exact durations covers twice the range of the previous one with as many counters
+		int shift = 64 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+		return shift * HALF_COUNT + (int) (micros >>> shift);
+	}
+
+	/**
+	 * Get the longest duration counted in a bucket
+	 * @param index The index of the counter of the bucket
+	 * @return The duration, in microseconds
+	 */
+	private static long highestValue(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int shift = index / HALF_COUNT - 1;
+		long sub = index - shift * HALF_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * Count the durations of a snapshot
+	 * @param snapshot The counts of the buckets
+	 * @return The number of durations
+	 */
+	public static long count(long[] snapshot) {
+		long count = 0;
+		for (long bucket : snapshot) {
+			count += bucket;
+		}
+		return count;
+	}
+
+	/**
+	 * Count the durations of a snapshot up to a bound, to the precision of the buckets
+	 * @param snapshot The counts of the buckets
+	 * @param micros The bound, in microseconds
+	 * @return The number of durations in the buckets whose durations are all at most the bound
+	 */
+	public static long countAtMost(long[] snapshot, long micros) {
+		long count = 0;
+		for (int i = 0; i < snapshot.length && highestValue(i) <= micros; i++) {
+			count += snapshot[i];
+		}
+		return count;
+	}
+
+	/**
+	 * Find a percentile of a snapshot
+	 * @param snapshot The counts of the buckets
+	 * @param percentile The percentile, between 0 and 100
+	 * @return The duration at or below which that percentage of durations are, in microseconds, or 0 if empty
+	 */
+	public static long percentile(long[] snapshot, double percentile) {
+		long count = count(snapshot);
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return highestValue(i);
+			}
+		}
+		return highestValue(snapshot.length - 1);
+	}
+}
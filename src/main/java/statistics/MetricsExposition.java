@@ -0,0 +1,219 @@
+package statistics;
+
+import java.util.Map;
+
+import cache.MailboxCache;
+import cache.MessageCache;
+import connection.BufferPool;
+import connection.UpstreamPool;
+import core.TransformationScheduler;
+import proxy.Command;
+
+/**
+ * Renders the Statistics, the pools, the transformation queue and the Latencies in the Prometheus text format
+ * Every value is read without locking, so the metrics may be scraped often while the proxy is loaded
+ */
+public class MetricsExposition {
+
+	/**
+	 * The content type of the exposition
+	 */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/**
+	 * The prefix of every metric
+	 */
+	private static final String PREFIX = "pop3proxy_";
+
+	/**
+	 * The bounds of the latency buckets, in microseconds
+	 */
+	private static final long[] BUCKETS = { 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+			1000000, 2500000, 5000000, 10000000 };
+
+	/**
+	 * The buffer pool, fetched once since its getter is synchronized
+	 */
+	private BufferPool bufferPool = BufferPool.getInstance();
+
+	/**
+	 * The transformation queue, fetched once since its getter is synchronized
+	 */
+	private TransformationScheduler scheduler = TransformationScheduler.getInstance();
+
+	/**
+	 * The pool of Server sessions, or null if pooling is disabled
+	 */
+	private UpstreamPool upstreamPool = UpstreamPool.isEnabled() ? UpstreamPool.getInstance() : null;
+
+	/**
+	 * The cache of transformed messages, or null if it is disabled
+	 */
+	private MessageCache messageCache = MessageCache.isEnabled() ? MessageCache.getInstance() : null;
+
+	/**
+	 * The cache of maildrop listings, or null if it is disabled
+	 */
+	private MailboxCache mailboxCache = MailboxCache.isEnabled() ? MailboxCache.getInstance() : null;
+
+	/**
+	 * Render every metric
+	 * @return The exposition, lines ended by a line feed
+	 */
+	public String render() {
+		StringBuilder str = new StringBuilder(8192);
+		Statistics.Snapshot statistics = Statistics.getInstance().snapshot();
+		header(str, "connections_total", "counter", "Client connections accepted");
+		sample(str, "connections_total", null, statistics.getConnections());
+		header(str, "requests_total", "counter", "Client commands received, by command");
+		for (Command command : Command.values()) {
+			long count = statistics.getRequests(command);
+			if (count > 0) {
+				sample(str, "requests_total", "command=\"" + command.name() + "\"", count);
+			}
+		}
+		header(str, "request_bytes_total", "counter", "Bytes of the client commands sent to the servers");
+		sample(str, "request_bytes_total", null, statistics.getRequestBytes());
+		header(str, "responses_total", "counter", "Server response lines, by status");
+		for (StatusCode code : StatusCode.values()) {
+			sample(str, "responses_total", "code=\"" + code.name() + "\"", statistics.getResponses(code));
+		}
+		header(str, "response_bytes_total", "counter", "Bytes written to the clients");
+		sample(str, "response_bytes_total", null, statistics.getResponseBytes());
+		header(str, "authentications_total", "counter", "Client authentications, by status");
+		for (StatusCode code : StatusCode.values()) {
+			sample(str, "authentications_total", "code=\"" + code.name() + "\"", statistics.getAuths(code));
+		}
+
+		header(str, "transformation_queue_depth", "gauge", "Mails and image parts waiting for a transformation thread");
+		sample(str, "transformation_queue_depth", null, scheduler.getDepth());
+		header(str, "transformation_paused_servers", "gauge", "Servers not read because the transformation queue is full");
+		sample(str, "transformation_paused_servers", null, scheduler.getPaused());
+		header(str, "transformations_submitted_total", "counter", "Transformations submitted");
+		sample(str, "transformations_submitted_total", null, scheduler.getSubmitted());
+		header(str, "transformation_queue_full_total", "counter", "Times a server was paused by a full transformation queue");
+		sample(str, "transformation_queue_full_total", null, scheduler.getPauses());
+
+		header(str, "buffer_pool_hits_total", "counter", "Buffer leases served from the pool");
+		sample(str, "buffer_pool_hits_total", null, bufferPool.getHits());
+		header(str, "buffer_pool_misses_total", "counter", "Buffer leases that allocated a buffer");
+		sample(str, "buffer_pool_misses_total", null, bufferPool.getMisses());
+		header(str, "buffer_pool_free_bytes", "gauge", "Bytes of the free buffers kept by the pool");
+		sample(str, "buffer_pool_free_bytes", null, bufferPool.getPooledBytes());
+
+		if (upstreamPool != null) {
+			header(str, "upstream_pool_hits_total", "counter", "Logins served with a pooled server session");
+			sample(str, "upstream_pool_hits_total", null, upstreamPool.getHits());
+			header(str, "upstream_pool_misses_total", "counter", "Logins that connected to the server");
+			sample(str, "upstream_pool_misses_total", null, upstreamPool.getMisses());
+			header(str, "upstream_pool_evictions_total", "counter", "Pooled server sessions closed");
+			sample(str, "upstream_pool_evictions_total", null, upstreamPool.getEvictions());
+			header(str, "upstream_pool_idle", "gauge", "Idle pooled server sessions");
+			sample(str, "upstream_pool_idle", null, upstreamPool.getIdle());
+		}
+
+		if (messageCache != null) {
+			header(str, "message_cache_hits_total", "counter", "RETR responses served from the message cache, by tier");
+			sample(str, "message_cache_hits_total", "tier=\"memory\"", messageCache.getHits());
+			sample(str, "message_cache_hits_total", "tier=\"disk\"", messageCache.getDiskHits());
+			header(str, "message_cache_misses_total", "counter", "Cacheable RETR commands not found in the message cache");
+			sample(str, "message_cache_misses_total", null, messageCache.getMisses());
+			header(str, "message_cache_evictions_total", "counter", "Messages dropped from a tier of the message cache");
+			sample(str, "message_cache_evictions_total", "tier=\"memory\"", messageCache.getEvictions());
+			sample(str, "message_cache_evictions_total", "tier=\"disk\"", messageCache.getDiskEvictions());
+			header(str, "message_cache_bytes", "gauge", "Bytes of the messages held by a tier of the message cache");
+			sample(str, "message_cache_bytes", "tier=\"memory\"", messageCache.getMemoryBytes());
+			sample(str, "message_cache_bytes", "tier=\"disk\"", messageCache.getDiskBytes());
+		}
+
+		if (mailboxCache != null) {
+			header(str, "mailbox_cache_hits_total", "counter", "LIST and UIDL responses served from the mailbox cache");
+			sample(str, "mailbox_cache_hits_total", null, mailboxCache.getHits());
+			header(str, "mailbox_cache_checks_total", "counter", "Cached listings checked with the server, by outcome");
+			sample(str, "mailbox_cache_checks_total", "outcome=\"current\"", mailboxCache.getChecks() - mailboxCache.getStale());
+			sample(str, "mailbox_cache_checks_total", "outcome=\"stale\"", mailboxCache.getStale());
+			header(str, "mailbox_cache_invalidations_total", "counter", "Cached listings dropped because a session deleted messages");
+			sample(str, "mailbox_cache_invalidations_total", null, mailboxCache.getInvalidations());
+			header(str, "mailbox_cache_entries", "gauge", "Maildrops whose listings are cached");
+			sample(str, "mailbox_cache_entries", null, mailboxCache.size());
+		}
+
+		Latencies latencies = Latencies.getInstance();
+		header(str, "command_latency_seconds", "histogram", "Time from a client command to the first line and to the end of its response, by command");
+		for (Command command : Command.values()) {
+			LatencyHistogram complete = latencies.getComplete(command);
+			long[] completeSnapshot = complete.snapshot();
+			if (LatencyHistogram.count(completeSnapshot) == 0) {
+				continue;
+			}
+			LatencyHistogram firstByte = latencies.getFirstByte(command);
+			histogram(str, "command_latency_seconds", "command=\"" + command.name() + "\",stage=\"first\"",
+					firstByte.snapshot(), firstByte.getTotal());
+			histogram(str, "command_latency_seconds", "command=\"" + command.name() + "\",stage=\"complete\"",
+					completeSnapshot, complete.getTotal());
+		}
+		header(str, "server_latency_seconds", "histogram", "Time from a client command to the first line and to the end of its response, by server");
+		for (Map.Entry<String, long[][]> entry : latencies.getServerSnapshots().entrySet()) {
+			String server = "server=\"" + escape(entry.getKey()) + "\"";
+			long[][] snapshots = entry.getValue();
+			histogram(str, "server_latency_seconds", server + ",stage=\"first\"", snapshots[0], snapshots[2][0]);
+			histogram(str, "server_latency_seconds", server + ",stage=\"complete\"", snapshots[1], snapshots[2][1]);
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Append the help and type lines of a metric
+	 * @param str The destination
+	 * @param name The name of the metric, without the prefix
+	 * @param type The type of the metric
+	 * @param help The description of the metric
+	 */
+	private void header(StringBuilder str, String name, String type, String help) {
+		str.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+		str.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Append a sample
+	 * @param str The destination
+	 * @param name The name of the sample, without the prefix
+	 * @param labels The labels of the sample, or null
+	 * @param value The value
+	 */
+	private void sample(StringBuilder str, String name, String labels, long value) {
+		str.append(PREFIX).append(name);
+		if (labels != null) {
+			str.append('{').append(labels).append('}');
+		}
+		str.append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Append the cumulative buckets, sum and count of a latency histogram
+	 * @param str The destination
+	 * @param name The name of the histogram, without the prefix
+	 * @param labels The labels of the histogram
+	 * @param snapshot The counts of the buckets of the LatencyHistogram
+	 * @param total The sum of the latencies, in microseconds
+	 */
+	private void histogram(StringBuilder str, String name, String labels, long[] snapshot, long total) {
+		for (long bound : BUCKETS) {
+			str.append(PREFIX).append(name).append("_bucket{").append(labels).append(",le=\"").append(bound / 1e6)
+					.append("\"} ").append(LatencyHistogram.countAtMost(snapshot, bound)).append('\n');
+		}
+		long count = LatencyHistogram.count(snapshot);
+		str.append(PREFIX).append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+		str.append(PREFIX).append(name).append("_sum{").append(labels).append("} ").append(total / 1e6).append('\n');
+		str.append(PREFIX).append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+	}
+
+	/**
+	 * Escape a label value
+	 * @param value The value
+	 * @return The value with backslashes and quotes escaped
+	 */
+	private String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
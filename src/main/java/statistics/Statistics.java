@@ -1,115 +1,245 @@
 package statistics;
 
+import java.util.Arrays;
+
+import connection.BufferPool;
+import connection.UpstreamPool;
+import core.TransformationScheduler;
+import proxy.Command;
+
 /**
  * Singleton
  * Statistics gathering and processing
+ * Counters are striped so the event loops and the transformation Threads update them without contending.
+ * Requests are only counted by Command, and responses and authentications by Status Code, so a snapshot never
+ * holds a response without its Status Code
  */
 public class Statistics {
 
 	/**
-	 * The Statistics instance
-	 */
-	private static Statistics instance;
-	/**
-	 * The Requests information
+	 * The indexes of the counters: the requests by Command, then the Status Codes of the responses and of the
+	 * authentications follow the others
 	 */
-	private BaseInfo reqInfo;
-	/**
-	 * The Responses information
-	 */
-	private BaseInfo resInfo;
+	private static final int REQUEST_BYTES = 0, CONNECTIONS = 1, RESPONSE_BYTES = 2, COMMANDS = 3,
+			CODES = COMMANDS + Command.values().length, AUTHS = CODES + StatusCode.values().length,
+			COUNTERS = AUTHS + StatusCode.values().length;
+
 	/**
-	 * The Status Codes information
+	 * The Statistics instance, created eagerly since it is fetched for every request and response
 	 */
-	private ExtraInfo codesInfo;
+	private static final Statistics instance = new Statistics();
 	/**
-	 * The Status Codes information
+	 * The counters of the information gathered
 	 */
-	private ExtraInfo authInfo;
+	private StripedCounters counters = new StripedCounters(COUNTERS);
 	
 	/**
-	 * Creates the classes which hold the information required for the statistics
+	 * Not instantiable
 	 */
 	private Statistics() {
-		this.reqInfo = new BaseInfo();
-		this.resInfo = new BaseInfo();
-		this.codesInfo = new ExtraInfo();
-		this.authInfo = new ExtraInfo();
 	}
 	
 	/**
 	 * Get Singleton
 	 * @return the Statistics instance
 	 */
-	public synchronized static Statistics getInstance() {
-		if (instance == null) {
-            instance = new Statistics();
-        }
-        return instance;
+	public static Statistics getInstance() {
+		return instance;
 	}
 	
 	/**
-	 * Adds the call to the information gathered
+	 * Adds the call to the information gathered with its corresponding Command
+	 * @param command the Command requested
 	 */
-	public synchronized void addRequest() {
-		reqInfo.addCall();
+	public void addRequest(Command command) {
+		counters.add(COMMANDS + command.ordinal(), 1);
 	}
 	
 	/**
 	 * Adds the call to the information gathered with its corresponding Status Code
 	 */
-	public synchronized void addResponse(StatusCode code) {
-		resInfo.addCall();
-		codesInfo.add(code);
+	public void addResponse(StatusCode code) {
+		counters.add(CODES + code.ordinal(), 1);
 	}
 	
 	/**
 	 * Adds an established connection to the gathered data
 	 */
-	public synchronized void addConnection() {
-		reqInfo.addConnection();
+	public void addConnection() {
+		counters.add(CONNECTIONS, 1);
 	}
 	
 	/**
 	 * Process the request to the information gathered
 	 * @param size size in bytes of the request
 	 */
-	public synchronized void processRequest(int size) {
-		reqInfo.addBytes(size);
+	public void processRequest(long size) {
+		counters.add(REQUEST_BYTES, size);
 	}
 	
 	/**
 	 * Process the response to the information gathered
 	 * @param size size in bytes of the response
 	 */
-	public synchronized void processResponse(int size) {
-		resInfo.addBytes(size);
+	public void processResponse(long size) {
+		counters.add(RESPONSE_BYTES, size);
 	}
 	
 	/**
 	 * Adds the authentication Status Code from the connection to the gathered data
 	 */
-	public synchronized void addAuth(StatusCode code) {
-		authInfo.add(code);
+	public void addAuth(StatusCode code) {
+		counters.add(AUTHS + code.ordinal(), 1);
 	}
 	
 	/**
 	 * Retrieves the information gathered thus far in a condensed way
 	 * @return String containing the information gathered
 	 */
-	public synchronized String getCondensedStatistics() {
+	public String getCondensedStatistics() {
+		Snapshot snapshot = consistentSnapshot();
+		BaseInfo reqInfo = new BaseInfo(snapshot.getRequests(), snapshot.getConnections(), snapshot.getRequestBytes());
+		BaseInfo resInfo = new BaseInfo(snapshot.getResponses(), snapshot.getConnections(), snapshot.getResponseBytes());
+		ExtraInfo codesInfo = new ExtraInfo(Arrays.copyOfRange(snapshot.totals, CODES, AUTHS));
+		ExtraInfo authInfo = new ExtraInfo(Arrays.copyOfRange(snapshot.totals, AUTHS, COUNTERS));
 		StringBuffer str = new StringBuffer();
-		int totalCount = reqInfo.getCount() + resInfo.getCount();
-		int totalBytes = reqInfo.getBytesTransf() + resInfo.getBytesTransf();
+		long totalCount = reqInfo.getCount() + resInfo.getCount();
+		long totalBytes = reqInfo.getBytesTransf() + resInfo.getBytesTransf();
 		str.append("STATSSTART \r\n");
 		str.append("Totals: \r\n" + totalCount + "\r\n" + totalBytes + "\r\n" + reqInfo.getConnections() + "\r\n");
 		str.append("Requests: \r\n" + reqInfo.getCount() + "\r\n" + reqInfo.getBytesTransf() + "\r\n");
 		str.append("Responses: \r\n" + resInfo.getCount() + "\r\n" + resInfo.getBytesTransf() + "\r\n");
 		str.append("StatusCodes Histogram: \r\n" + codesInfo.getHistogram());
 		str.append("Un/Authenticated connections Histogram: \r\n" + authInfo.getHistogram());
+		BufferPool pool = BufferPool.getInstance();
+		str.append("Buffer pool: \r\n" + pool.getHits() + "\r\n" + pool.getMisses() + "\r\n" + pool.getPooledBytes() + "\r\n");
+		if (UpstreamPool.isEnabled()) {
+			UpstreamPool upstream = UpstreamPool.getInstance();
+			str.append("Upstream pool: \r\n" + upstream.getHits() + "\r\n" + upstream.getMisses() + "\r\n"
+					+ upstream.getEvictions() + "\r\n" + upstream.getIdle() + "\r\n");
+		}
+		TransformationScheduler scheduler = TransformationScheduler.getInstance();
+		str.append("Transformation queue: \r\n" + scheduler.getDepth() + "\r\n" + scheduler.getPaused() + "\r\n"
+				+ scheduler.getSubmitted() + "\r\n" + scheduler.getPauses() + "\r\n" + scheduler.getAverageWait() + "\r\n"
+				+ scheduler.getMaxWait() + "\r\n");
 		str.append("STATSEND \r\n");
 		
 		return str.toString();
 	}
-	
+
+	/**
+	 * Read every counter without stopping the Threads updating them
+	 * @return the totals gathered thus far
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(counters.snapshot());
+	}
+
+	/**
+	 * Read every counter at one instant, reading again while they are updated rather than making the updates wait
+	 * @return the totals gathered thus far, agreeing with each other
+	 */
+	public Snapshot consistentSnapshot() {
+		return new Snapshot(counters.consistentSnapshot());
+	}
+
+	/**
+	 * The totals of the information gathered, read at once
+	 */
+	public static class Snapshot {
+
+		/**
+		 * The totals, by index of counter
+		 */
+		private long[] totals;
+
+		/**
+		 * Creates the snapshot of the totals read
+		 * @param totals the totals, by index of counter
+		 */
+		private Snapshot(long[] totals) {
+			this.totals = totals;
+		}
+
+		/**
+		 * Sums a range of counters
+		 * @param from the index of the first counter
+		 * @param to the index after the last counter
+		 * @return the sum
+		 */
+		private long sum(int from, int to) {
+			long sum = 0;
+			for (int i = from; i < to; i++) {
+				sum += totals[i];
+			}
+			return sum;
+		}
+
+		/**
+		 * Gets the number of connections established
+		 * @return number of connections established
+		 */
+		public long getConnections() {
+			return totals[CONNECTIONS];
+		}
+
+		/**
+		 * Gets the number of requests
+		 * @return number of requests
+		 */
+		public long getRequests() {
+			return sum(COMMANDS, CODES);
+		}
+
+		/**
+		 * Gets the number of requests of a Command
+		 * @param command the Command
+		 * @return number of requests
+		 */
+		public long getRequests(Command command) {
+			return totals[COMMANDS + command.ordinal()];
+		}
+
+		/**
+		 * Gets the number of bytes of the requests
+		 * @return number of bytes
+		 */
+		public long getRequestBytes() {
+			return totals[REQUEST_BYTES];
+		}
+
+		/**
+		 * Gets the number of responses
+		 * @return number of responses
+		 */
+		public long getResponses() {
+			return sum(CODES, AUTHS);
+		}
+
+		/**
+		 * Gets the number of responses with a Status Code
+		 * @param code the Status Code
+		 * @return number of responses
+		 */
+		public long getResponses(StatusCode code) {
+			return totals[CODES + code.ordinal()];
+		}
+
+		/**
+		 * Gets the number of bytes of the responses
+		 * @return number of bytes
+		 */
+		public long getResponseBytes() {
+			return totals[RESPONSE_BYTES];
+		}
+
+		/**
+		 * Gets the number of authentications with a Status Code
+		 * @param code the Status Code
+		 * @return number of authentications
+		 */
+		public long getAuths(StatusCode code) {
+			return totals[AUTHS + code.ordinal()];
+		}
+	}
 }
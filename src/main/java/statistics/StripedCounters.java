@@ -0,0 +1,180 @@
+package statistics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed set of long counters updated from many Threads without a shared lock
+ * Every counter is split in stripes, each Thread adding to the stripe it was last assigned and moving to another one
+ * when it finds it contended, so Threads rarely write the same cache line. A stripe is guarded by a sequence, odd
+ * while a writer owns it for a single addition. Readers never own a stripe, so writers never wait for them: a
+ * consistent snapshot reads every sequence, then the stripes, then the sequences again, and reads again if any
+ * changed, so it holds the totals of one instant. A plain snapshot reads the stripes once: a total holds every
+ * addition made before it was read, and maybe some made while it was read
+ */
+public class StripedCounters {
+
+	/**
+	 * The longs in a cache line
+	 */
+	private static final int LINE = 8;
+
+	/**
+	 * The maximum number of stripes
+	 */
+	private static final int MAX_STRIPES = 64;
+
+	/**
+	 * The stripe probe of every Thread, moved when its stripe is contended
+	 */
+	private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			// Spread consecutive ids like the hash of a HashMap does
+			long id = Thread.currentThread().getId();
+			int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+			hash ^= hash >>> 16;
+			// The xorshift moving a probe never leaves zero
+			return new int[] { hash == 0 ? 1 : hash };
+		}
+	};
+
+	/**
+	 * The stripes: the counters, the sequence of the stripe then padding, with a cache line before the first
+	 */
+	private AtomicLongArray cells;
+
+	/**
+	 * The number of longs of a stripe
+	 */
+	private int stride;
+
+	/**
+	 * The number of stripes minus one, a power of two minus one
+	 */
+	private int mask;
+
+	/**
+	 * The number of counters
+	 */
+	private int counters;
+
+	/**
+	 * Create the counters, with twice as many stripes as processors
+	 * @param counters The number of counters
+	 */
+	public StripedCounters(int counters) {
+		this.counters = counters;
+		int stripes = 1;
+		while (stripes < Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors() * 2)) {
+			stripes <<= 1;
+		}
+		this.mask = stripes - 1;
+		// A whole spare line after every stripe, since the array is not aligned to cache lines
+		this.stride = ((counters + 1 + LINE - 1) / LINE + 1) * LINE;
+		this.cells = new AtomicLongArray(LINE + stripes * stride);
+	}
+
+	/**
+	 * Add to a counter, owning a stripe for the time of the addition
+	 * @param counter The index of the counter
+	 * @param delta The amount to add
+	 */
+	public void add(int counter, long delta) {
+		int[] probe = PROBE.get();
+		while (true) {
+			int base = LINE + (probe[0] & mask) * stride;
+			long sequence = cells.get(base + counters);
+			if ((sequence & 1) == 0 && cells.compareAndSet(base + counters, sequence, sequence + 1)) {
+				// Nobody else writes the stripe until the sequence is even again, which publishes the addition
+				cells.lazySet(base + counter, cells.get(base + counter) + delta);
+				cells.lazySet(base + counters, sequence + 2);
+				return;
+			}
+			probe[0] = next(probe[0]);
+		}
+	}
+
+	/**
+	 * Move a probe to another stripe, with a xorshift as LongAdder does
+	 * @param probe The probe
+	 * @return The moved probe
+	 */
+	private static int next(int probe) {
+		probe ^= probe << 13;
+		probe ^= probe >>> 17;
+		probe ^= probe << 5;
+		return probe;
+	}
+
+	/**
+	 * Get the totals of every counter without stopping the writers
+	 * Every total is exact for some instant while it was read, but the totals may not agree with each other
+	 * @return The totals, by index of counter
+	 */
+	public long[] snapshot() {
+		long[] totals = new long[counters];
+		for (int stripe = 0; stripe <= mask; stripe++) {
+			int base = LINE + stripe * stride;
+			for (int counter = 0; counter < counters; counter++) {
+				totals[counter] += cells.get(base + counter);
+			}
+		}
+		return totals;
+	}
+
+	/**
+	 * Get the totals of every counter at one instant, reading again while additions end in the middle of the read
+	 * Writers never wait for this snapshot, but it may read several times while they add, so it is not meant to be
+	 * taken often
+	 * @return The totals, by index of counter
+	 */
+	public long[] consistentSnapshot() {
+		long[] sequences = new long[mask + 1];
+		long[] totals = new long[counters];
+		while (true) {
+			if (readSequences(sequences)) {
+				Arrays.fill(totals, 0);
+				for (int stripe = 0; stripe <= mask; stripe++) {
+					int base = LINE + stripe * stride;
+					for (int counter = 0; counter < counters; counter++) {
+						totals[counter] += cells.get(base + counter);
+					}
+				}
+				if (sequencesUnchanged(sequences)) {
+					return totals;
+				}
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Read the sequence of every stripe
+	 * @param sequences The sequences read, by stripe
+	 * @return If no stripe was owned by a writer
+	 */
+	private boolean readSequences(long[] sequences) {
+		for (int stripe = 0; stripe <= mask; stripe++) {
+			sequences[stripe] = cells.get(LINE + stripe * stride + counters);
+			if ((sequences[stripe] & 1) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check that no addition started since the sequences were read
+	 * @param sequences The sequences read before the stripes, by stripe
+	 * @return If every sequence is still the same
+	 */
+	private boolean sequencesUnchanged(long[] sequences) {
+		for (int stripe = 0; stripe <= mask; stripe++) {
+			if (cells.get(LINE + stripe * stride + counters) != sequences[stripe]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
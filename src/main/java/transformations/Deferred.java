@@ -0,0 +1,17 @@
+package transformations;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A place kept in a DeferringSink for lines given later
+ */
+public interface Deferred {
+
+    /**
+     * Give the lines of the place, from any Thread
+     * @param lines The lines, including their terminators, never modified afterwards
+     * @throws IOException
+     */
+    void fill(ByteBuffer lines) throws IOException;
+}
@@ -0,0 +1,17 @@
+package transformations;
+
+import java.io.IOException;
+
+/**
+ * A LineSink that may keep a place for lines given later, by another Thread
+ * The lines written after the place follow it, whenever it is filled
+ */
+public interface DeferringSink extends LineSink {
+
+    /**
+     * Keep a place for lines given later
+     * @return The place, filled exactly once
+     * @throws IOException
+     */
+    Deferred defer() throws IOException;
+}
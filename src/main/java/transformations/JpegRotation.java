@@ -0,0 +1,1027 @@
+package transformations;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Rotates JPEG images by 180 degrees without decoding their pixels
+ * The quantized DCT coefficients are entropy decoded, every block is moved to the opposite corner of the image and the
+ * sign of its odd frequencies is flipped, then the coefficients are entropy coded again with Huffman tables built for them.
+ * Nothing is quantized again, so the rotated image is the original one turned around, without any loss
+ * Only sequential Huffman coded images in a single scan whose sides are whole MCUs are rotated this way: the partial
+ * MCUs of the right and bottom edges would otherwise end up on the left and top ones
+ */
+public class JpegRotation {
+
+    /**
+     * The JPEG markers used
+     */
+    private static final int SOI = 0xD8, EOI = 0xD9, SOS = 0xDA, DHT = 0xC4, DRI = 0xDD, RST0 = 0xD0, TEM = 0x01;
+
+    /**
+     * The sign a coefficient takes in a block turned around, by zigzag index: odd frequencies change sign
+     */
+    private static final int[] SIGN = new int[64];
+
+    static {
+        // The natural order position of every zigzag index, row by row
+        int[] natural = { 0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5, 12, 19, 26, 33, 40, 48, 41, 34, 27,
+                20, 13, 6, 7, 14, 21, 28, 35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51, 58, 59, 52, 45,
+                38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63 };
+        for (int k = 0; k < 64; k++) {
+            SIGN[k] = ((natural[k] / 8 + natural[k] % 8) & 1) == 0 ? 1 : -1;
+        }
+    }
+
+    /**
+     * The image
+     */
+    private byte[] in;
+
+    /**
+     * The components of the scan, in scan order
+     */
+    private Component[] components;
+
+    /**
+     * The number of MCUs between restart markers, none if zero
+     */
+    private int restartInterval;
+
+    /**
+     * The number of MCUs of a row and of a column, or zero for a scan of a single component
+     */
+    private int mcusX, mcusY;
+
+    /**
+     * The Huffman tables defined by the image, by class (DC, AC) and id
+     */
+    private HuffmanTable[][] tables = new HuffmanTable[2][4];
+
+    /**
+     * The number of times every symbol is coded with every table, by class and id
+     */
+    private int[][][] frequencies = new int[2][4][];
+
+    /**
+     * Create a rotation of an image
+     * @param in The image
+     */
+    private JpegRotation(byte[] in) {
+        this.in = in;
+    }
+
+    /**
+     * Check if an image is a JPEG
+     * @param image The image bytes
+     * @return If it starts with a start of image marker
+     */
+    public static boolean isJpeg(byte[] image) {
+        return image.length > 3 && (image[0] & 0xff) == 0xFF && (image[1] & 0xff) == SOI;
+    }
+
+    /**
+     * Rotate a JPEG image by 180 degrees
+     * @param image The image bytes
+     * @return The rotated image, or null if it is not sequential, not Huffman coded, spans several scans or its sides are
+     * not whole MCUs
+     * @throws IOException If the image is malformed
+     */
+    public static byte[] rotate(byte[] image) throws IOException {
+        if (!isJpeg(image)) {
+            return null;
+        }
+        try {
+            return new JpegRotation(image).rotate();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated JPEG", e);
+        }
+    }
+
+    /**
+     * Copy the segments before the scan, rotate the scan and write it back
+     * @return The rotated image, or null if it can not be rotated without loss
+     * @throws IOException If the image is malformed
+     */
+    private byte[] rotate() throws IOException {
+        BitWriter out = new BitWriter(in.length + 1024);
+        out.write(0xFF);
+        out.write(SOI);
+        Component[] frame = null;
+        int width = 0, height = 0;
+        int pos = 2;
+        while (true) {
+            pos = nextMarker(pos);
+            int marker = in[pos + 1] & 0xff;
+            if (marker == TEM || (marker >= RST0 && marker < RST0 + 8)) {
+                pos += 2;
+                continue;
+            }
+            if (marker == EOI || marker == SOI) {
+                throw new IOException("No scan in the JPEG");
+            }
+            int end = pos + 2 + u16(pos + 2);
+            if (end > in.length) {
+                throw new IOException("Truncated JPEG");
+            }
+            if (marker == DHT) {
+                // Replaced by the tables built for the rotated image
+                readTables(pos + 4, end);
+                pos = end;
+                continue;
+            }
+            if (marker == 0xC0 || marker == 0xC1) {
+                if ((in[pos + 4] & 0xff) != 8) {
+                    return null;
+                }
+                height = u16(pos + 5);
+                width = u16(pos + 7);
+                frame = new Component[in[pos + 9] & 0xff];
+                for (int i = 0; i < frame.length; i++) {
+                    int offset = pos + 10 + i * 3;
+                    frame[i] = new Component(in[offset] & 0xff, (in[offset + 1] & 0xff) >> 4, in[offset + 1] & 0x0f);
+                }
+            } else if (marker >= 0xC2 && marker <= 0xCF) {
+                // Progressive, lossless, hierarchical or arithmetic coded
+                return null;
+            } else if (marker == DRI) {
+                restartInterval = u16(pos + 4);
+            } else if (marker == SOS) {
+                if (frame == null || !readScan(pos, frame, width, height)) {
+                    return null;
+                }
+                int next = decode(end);
+                if (next < 0) {
+                    return null;
+                }
+                buildTables();
+                writeTables(out);
+                out.write(in, pos, end - pos);
+                encode(out);
+                out.write(0xFF);
+                out.write(EOI);
+                out.write(in, next + 2, in.length - next - 2);
+                return out.toByteArray();
+            }
+            out.write(in, pos, end - pos);
+            pos = end;
+        }
+    }
+
+    /**
+     * Read the components of the scan and lay out their blocks
+     * @param pos The offset of the scan header
+     * @param frame The components of the frame
+     * @param width The width of the image
+     * @param height The height of the image
+     * @return If the scan can be rotated without loss
+     * @throws IOException If the scan refers to unknown components or tables
+     */
+    private boolean readScan(int pos, Component[] frame, int width, int height) throws IOException {
+        int count = in[pos + 4] & 0xff;
+        int offset = pos + 5 + count * 2;
+        if (count != frame.length || (in[offset] & 0xff) != 0 || (in[offset + 1] & 0xff) != 63 || in[offset + 2] != 0) {
+            // Not every component in the scan, or not a sequential one
+            return false;
+        }
+        components = new Component[count];
+        int maxH = 1, maxV = 1;
+        for (Component component : frame) {
+            maxH = Math.max(maxH, component.h);
+            maxV = Math.max(maxV, component.v);
+        }
+        for (int i = 0; i < count; i++) {
+            int id = in[pos + 5 + i * 2] & 0xff;
+            int selectors = in[pos + 6 + i * 2] & 0xff;
+            for (Component component : frame) {
+                if (component.id == id) {
+                    components[i] = component;
+                }
+            }
+            if (components[i] == null || (selectors >> 4) > 3 || (selectors & 0x0f) > 3) {
+                throw new IOException("Bad JPEG scan header");
+            }
+            components[i].dc = selectors >> 4;
+            components[i].ac = selectors & 0x0f;
+            if (tables[0][components[i].dc] == null || tables[1][components[i].ac] == null) {
+                throw new IOException("Undefined Huffman table");
+            }
+            for (int kind = 0; kind < 2; kind++) {
+                int table = kind == 0 ? components[i].dc : components[i].ac;
+                if (frequencies[kind][table] == null) {
+                    frequencies[kind][table] = new int[257];
+                }
+            }
+        }
+        if (count == 1) {
+            // A single component is not interleaved, its blocks are its own
+            if (width % 8 != 0 || height % 8 != 0 || height == 0) {
+                return false;
+            }
+            components[0].layout(width / 8, height / 8);
+            return true;
+        }
+        if (width % (8 * maxH) != 0 || height % (8 * maxV) != 0 || height == 0) {
+            return false;
+        }
+        mcusX = width / (8 * maxH);
+        mcusY = height / (8 * maxV);
+        for (Component component : components) {
+            component.layout(mcusX * component.h, mcusY * component.v);
+        }
+        return true;
+    }
+
+    /**
+     * Read the Huffman tables of a segment
+     * @param pos The offset of the first table
+     * @param end The offset after the segment
+     * @throws IOException If a table is malformed
+     */
+    private void readTables(int pos, int end) throws IOException {
+        while (pos < end) {
+            int kind = in[pos] & 0xff;
+            if ((kind >> 4) > 1 || (kind & 0x0f) > 3) {
+                throw new IOException("Bad Huffman table");
+            }
+            int[] bits = new int[17];
+            int total = 0;
+            for (int i = 1; i <= 16; i++) {
+                bits[i] = in[pos + i] & 0xff;
+                total += bits[i];
+            }
+            if (total > 256 || pos + 17 + total > end) {
+                throw new IOException("Bad Huffman table");
+            }
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = in[pos + 17 + i] & 0xff;
+            }
+            tables[kind >> 4][kind & 0x0f] = new HuffmanTable(bits, values);
+            pos += 17 + total;
+        }
+    }
+
+    /**
+     * Entropy decode the scan, storing every block turned around at the opposite corner
+     * @param pos The offset of the entropy coded data
+     * @return The offset of the end of image marker after the scan, or -1 if another segment follows it
+     * @throws IOException If the data is malformed
+     */
+    private int decode(int pos) throws IOException {
+        BitReader reader = new BitReader(in, pos);
+        int mcus = mcusX == 0 ? components[0].blocks() : mcusX * mcusY;
+        for (int mcu = 0; mcu < mcus; mcu++) {
+            if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                reader.restart();
+                for (Component component : components) {
+                    component.predictor = 0;
+                }
+            }
+            if (mcusX == 0) {
+                decodeBlock(reader, components[0], mcu);
+                continue;
+            }
+            int x = mcu % mcusX, y = mcu / mcusX;
+            for (Component component : components) {
+                for (int v = 0; v < component.v; v++) {
+                    for (int h = 0; h < component.h; h++) {
+                        decodeBlock(reader, component, (y * component.v + v) * component.width + x * component.h + h);
+                    }
+                }
+            }
+        }
+        int next = nextMarker(reader.end());
+        return (in[next + 1] & 0xff) == EOI ? next : -1;
+    }
+
+    /**
+     * Decode a block, storing it turned around at the opposite corner
+     * @param reader The entropy coded data
+     * @param component The component of the block
+     * @param block The index of the block in the component
+     * @throws IOException If the data is malformed
+     */
+    private void decodeBlock(BitReader reader, Component component, int block) throws IOException {
+        short[] coefficients = component.coefficients;
+        int offset = (component.blocks() - 1 - block) * 64;
+        int size = reader.decode(tables[0][component.dc]);
+        if (size > 11) {
+            throw new IOException("Bad DC difference");
+        }
+        component.predictor += size == 0 ? 0 : extend(reader.bits(size), size);
+        coefficients[offset] = (short) component.predictor;
+        HuffmanTable ac = tables[1][component.ac];
+        // Turning a block around only changes signs, so its AC symbols are counted as they are decoded
+        int[] frequency = frequencies[1][component.ac];
+        for (int k = 1; k < 64; k++) {
+            int symbol = reader.decode(ac);
+            frequency[symbol]++;
+            int run = symbol >> 4;
+            size = symbol & 0x0f;
+            if (size == 0) {
+                if (run != 15) {
+                    break;
+                }
+                k += 15;
+                continue;
+            }
+            k += run;
+            if (k > 63) {
+                throw new IOException("Bad AC run");
+            }
+            coefficients[offset + k] = (short) (SIGN[k] * extend(reader.bits(size), size));
+        }
+    }
+
+    /**
+     * Count the DC symbols of the rotated scan, whose differences depend on the new order of the blocks, then build
+     * optimal Huffman tables for the symbols counted
+     * @throws IOException
+     */
+    private void buildTables() throws IOException {
+        encode(null);
+        for (int kind = 0; kind < 2; kind++) {
+            for (int id = 0; id < 4; id++) {
+                if (frequencies[kind][id] != null) {
+                    tables[kind][id] = optimalTable(frequencies[kind][id]);
+                }
+            }
+        }
+        for (Component component : components) {
+            component.dcCodes = tables[0][component.dc].codes();
+            component.acCodes = tables[1][component.ac].codes();
+        }
+    }
+
+    /**
+     * Write the Huffman tables built for the rotated scan
+     * @param out The destination
+     */
+    private void writeTables(BitWriter out) {
+        int length = 2;
+        for (int kind = 0; kind < 2; kind++) {
+            for (int id = 0; id < 4; id++) {
+                if (frequencies[kind][id] != null) {
+                    length += 17 + tables[kind][id].values.length;
+                }
+            }
+        }
+        out.write(0xFF);
+        out.write(DHT);
+        out.write(length >> 8);
+        out.write(length & 0xff);
+        for (int kind = 0; kind < 2; kind++) {
+            for (int id = 0; id < 4; id++) {
+                if (frequencies[kind][id] != null) {
+                    out.write(kind << 4 | id);
+                    for (int i = 1; i <= 16; i++) {
+                        out.write(tables[kind][id].bits[i]);
+                    }
+                    for (int value : tables[kind][id].values) {
+                        out.write(value);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Entropy code the rotated scan, in the order of its MCUs
+     * @param out The destination, or null to count the DC symbols coded
+     */
+    private void encode(BitWriter out) {
+        int mcus = mcusX == 0 ? components[0].blocks() : mcusX * mcusY;
+        for (Component component : components) {
+            component.predictor = 0;
+        }
+        for (int mcu = 0; mcu < mcus; mcu++) {
+            if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                if (out != null) {
+                    out.restart((mcu / restartInterval - 1) & 7);
+                }
+                for (Component component : components) {
+                    component.predictor = 0;
+                }
+            }
+            if (mcusX == 0) {
+                encodeBlock(out, components[0], mcu);
+                continue;
+            }
+            int x = mcu % mcusX, y = mcu / mcusX;
+            for (Component component : components) {
+                for (int v = 0; v < component.v; v++) {
+                    for (int h = 0; h < component.h; h++) {
+                        encodeBlock(out, component, (y * component.v + v) * component.width + x * component.h + h);
+                    }
+                }
+            }
+        }
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Entropy code a block
+     * @param out The destination, or null to count the DC symbol coded
+     * @param component The component of the block
+     * @param block The index of the block in the component
+     */
+    private void encodeBlock(BitWriter out, Component component, int block) {
+        short[] coefficients = component.coefficients;
+        int offset = block * 64;
+        int difference = coefficients[offset] - component.predictor;
+        component.predictor = coefficients[offset];
+        if (out == null) {
+            frequencies[0][component.dc][size(difference)]++;
+            return;
+        }
+        out.symbol(component.dcCodes, size(difference), difference);
+        int[] codes = component.acCodes;
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = coefficients[offset + k];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                out.symbol(codes, 0xF0, 0);
+                run -= 16;
+            }
+            out.symbol(codes, run << 4 | size(value), value);
+            run = 0;
+        }
+        if (run > 0) {
+            out.symbol(codes, 0, 0);
+        }
+    }
+
+    /**
+     * Build the Huffman table of optimal code lengths, limited to 16 bits, for the frequencies of the symbols
+     * The all ones code is never assigned, as the standard requires
+     * @param counts The frequency of every symbol, and a spare entry
+     * @return The table
+     * @throws IOException If no code lengths fit
+     */
+    private static HuffmanTable optimalTable(int[] counts) throws IOException {
+        int[] frequency = Arrays.copyOf(counts, 257);
+        // Reserves the all ones code, the longest one
+        frequency[256] = 1;
+        int[] codeSize = new int[257];
+        int[] others = new int[257];
+        Arrays.fill(others, -1);
+        // Only the symbols used are searched, the others never join a tree
+        int[] used = new int[257];
+        int count = 0;
+        for (int i = 0; i <= 256; i++) {
+            if (frequency[i] != 0) {
+                used[count++] = i;
+            }
+        }
+        while (true) {
+            int first = -1, second = -1;
+            long least = Long.MAX_VALUE;
+            for (int j = 0; j < count; j++) {
+                int i = used[j];
+                if (frequency[i] != 0 && frequency[i] <= least) {
+                    least = frequency[i];
+                    first = i;
+                }
+            }
+            least = Long.MAX_VALUE;
+            for (int j = 0; j < count; j++) {
+                int i = used[j];
+                if (frequency[i] != 0 && frequency[i] <= least && i != first) {
+                    least = frequency[i];
+                    second = i;
+                }
+            }
+            if (second < 0) {
+                break;
+            }
+            frequency[first] += frequency[second];
+            frequency[second] = 0;
+            codeSize[first]++;
+            while (others[first] >= 0) {
+                first = others[first];
+                codeSize[first]++;
+            }
+            others[first] = second;
+            codeSize[second]++;
+            while (others[second] >= 0) {
+                second = others[second];
+                codeSize[second]++;
+            }
+        }
+        int[] bits = new int[33];
+        for (int i = 0; i <= 256; i++) {
+            if (codeSize[i] > 32) {
+                throw new IOException("Huffman code too long");
+            }
+            if (codeSize[i] > 0) {
+                bits[codeSize[i]]++;
+            }
+        }
+        // Shortens the codes longer than 16 bits, taking a prefix from a shorter one
+        for (int i = 32; i > 16; i--) {
+            while (bits[i] > 0) {
+                int j = i - 2;
+                while (bits[j] == 0) {
+                    j--;
+                }
+                bits[i] -= 2;
+                bits[i - 1]++;
+                bits[j + 1] += 2;
+                bits[j]--;
+            }
+        }
+        int longest = 16;
+        while (bits[longest] == 0) {
+            longest--;
+        }
+        bits[longest]--;
+        int total = 0;
+        for (int i = 1; i <= 16; i++) {
+            total += bits[i];
+        }
+        int[] values = new int[total];
+        int p = 0;
+        for (int size = 1; size <= 32; size++) {
+            for (int symbol = 0; symbol < 256; symbol++) {
+                if (codeSize[symbol] == size) {
+                    values[p++] = symbol;
+                }
+            }
+        }
+        return new HuffmanTable(Arrays.copyOf(bits, 17), values);
+    }
+
+    /**
+     * Get the number of bits of the magnitude of a value
+     * @param value The value
+     * @return The size of the value
+     */
+    private static int size(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * Get the value coded by bits of a given size
+     * @param bits The bits
+     * @param size The number of bits
+     * @return The value, negative if the first bit is zero
+     */
+    private static int extend(int bits, int size) {
+        return bits < 1 << (size - 1) ? bits - (1 << size) + 1 : bits;
+    }
+
+    /**
+     * Find the next marker, skipping its fill bytes
+     * @param pos The offset to search from
+     * @return The offset of the marker
+     * @throws IOException If there is none
+     */
+    private int nextMarker(int pos) throws IOException {
+        while (pos + 1 < in.length) {
+            if ((in[pos] & 0xff) == 0xFF) {
+                int marker = in[pos + 1] & 0xff;
+                if (marker != 0 && marker != 0xFF) {
+                    return pos;
+                }
+                if (marker == 0) {
+                    pos++;
+                }
+            }
+            pos++;
+        }
+        throw new IOException("Truncated JPEG");
+    }
+
+    /**
+     * Read a big endian unsigned 16 bit value
+     * @param pos The offset of the value
+     * @return The value
+     */
+    private int u16(int pos) {
+        return (in[pos] & 0xff) << 8 | (in[pos + 1] & 0xff);
+    }
+
+    /**
+     * A component of the image and its blocks of coefficients, in zigzag order
+     */
+    private static class Component {
+
+        /**
+         * The id of the component
+         */
+        private int id;
+
+        /**
+         * The sampling factors of the component
+         */
+        private int h, v;
+
+        /**
+         * The ids of the DC and AC Huffman tables of the component
+         */
+        private int dc, ac;
+
+        /**
+         * The number of blocks of a row
+         */
+        private int width;
+
+        /**
+         * The DC value of the last block coded
+         */
+        private int predictor;
+
+        /**
+         * The coefficients of every block, row by row
+         */
+        private short[] coefficients;
+
+        /**
+         * The codes of the DC and AC symbols in the tables built for the rotated image, see HuffmanTable.codes
+         */
+        private int[] dcCodes, acCodes;
+
+        /**
+         * Create a component
+         * @param id The id of the component
+         * @param h The horizontal sampling factor
+         * @param v The vertical sampling factor
+         */
+        private Component(int id, int h, int v) {
+            this.id = id;
+            this.h = Math.max(1, h);
+            this.v = Math.max(1, v);
+        }
+
+        /**
+         * Allocate the blocks of the component
+         * @param width The number of blocks of a row
+         * @param height The number of blocks of a column
+         */
+        private void layout(int width, int height) {
+            this.width = width;
+            this.coefficients = new short[width * height * 64];
+        }
+
+        /**
+         * Get the number of blocks of the component
+         * @return The number of blocks
+         */
+        private int blocks() {
+            return coefficients.length / 64;
+        }
+    }
+
+    /**
+     * A Huffman table, with a lookup of the codes up to 8 bits long
+     */
+    private static class HuffmanTable {
+
+        /**
+         * The number of codes of every length, from 1 to 16
+         */
+        private int[] bits;
+
+        /**
+         * The symbols, by increasing code
+         */
+        private int[] values;
+
+        /**
+         * The largest and smallest code of every length, and the index of the symbol of the smallest one
+         */
+        private int[] maxCode = new int[18], minCode = new int[17], index = new int[17];
+
+        /**
+         * The length and symbol of every code up to 8 bits long, by its bits padded to 8, or zero
+         */
+        private int[] lookup = new int[256];
+
+        /**
+         * Build the table
+         * @param bits The number of codes of every length, from 1 to 16
+         * @param values The symbols, by increasing code
+         * @throws IOException If the lengths do not make a prefix code
+         */
+        private HuffmanTable(int[] bits, int[] values) throws IOException {
+            this.bits = bits;
+            this.values = values;
+            int code = 0, k = 0;
+            for (int length = 1; length <= 16; length++) {
+                minCode[length] = code;
+                index[length] = k;
+                for (int i = 0; i < bits[length]; i++, k++, code++) {
+                    if (length <= 8) {
+                        int first = code << (8 - length);
+                        for (int j = 0; j < 1 << (8 - length); j++) {
+                            lookup[first + j] = length << 8 | values[k];
+                        }
+                    }
+                }
+                if (code > 1 << length) {
+                    throw new IOException("Bad Huffman table");
+                }
+                maxCode[length] = bits[length] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+
+        /**
+         * Get the code and length of every symbol
+         * @return The code of every symbol shifted left by 8 bits above its length, by symbol
+         */
+        private int[] codes() {
+            int[] codes = new int[256];
+            int code = 0, k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length]; i++, k++, code++) {
+                    codes[values[k]] = code << 8 | length;
+                }
+                code <<= 1;
+            }
+            return codes;
+        }
+    }
+
+    /**
+     * Reads the bits of entropy coded data, removing the stuffed bytes and stopping at markers
+     */
+    private static class BitReader {
+
+        /**
+         * The image
+         */
+        private byte[] in;
+
+        /**
+         * The offset of the next byte
+         */
+        private int pos;
+
+        /**
+         * The bits read and not consumed yet, the last ones being the low bits
+         */
+        private long buffer;
+
+        /**
+         * The number of bits read and not consumed yet
+         */
+        private int count;
+
+        /**
+         * If a marker was reached, after which only zero bits are read
+         */
+        private boolean marker;
+
+        /**
+         * Create a reader
+         * @param in The image
+         * @param pos The offset of the entropy coded data
+         */
+        private BitReader(byte[] in, int pos) {
+            this.in = in;
+            this.pos = pos;
+        }
+
+        /**
+         * Read bytes until there are more than 48 bits
+         * @throws IOException If the image ends before a marker
+         */
+        private void fill() throws IOException {
+            while (count <= 48) {
+                int b = 0;
+                if (!marker) {
+                    if (pos >= in.length) {
+                        throw new IOException("Truncated JPEG");
+                    }
+                    b = in[pos] & 0xff;
+                    if (b != 0xFF) {
+                        pos++;
+                    } else if (pos + 1 < in.length && in[pos + 1] == 0) {
+                        pos += 2;
+                    } else {
+                        marker = true;
+                        b = 0;
+                    }
+                }
+                buffer = buffer << 8 | b;
+                count += 8;
+            }
+        }
+
+        /**
+         * Consume bits
+         * @param size The number of bits, at most 16
+         * @return The bits
+         * @throws IOException If the image ends before a marker
+         */
+        private int bits(int size) throws IOException {
+            if (count < size) {
+                fill();
+            }
+            count -= size;
+            return (int) (buffer >>> count) & ((1 << size) - 1);
+        }
+
+        /**
+         * Consume a Huffman code
+         * @param table The table of the code
+         * @return The symbol
+         * @throws IOException If the code is not in the table
+         */
+        private int decode(HuffmanTable table) throws IOException {
+            if (count < 16) {
+                fill();
+            }
+            int entry = table.lookup[(int) (buffer >>> (count - 8)) & 0xff];
+            if (entry != 0) {
+                count -= entry >> 8;
+                return entry & 0xff;
+            }
+            for (int length = 9; length <= 16; length++) {
+                int code = (int) (buffer >>> (count - length)) & ((1 << length) - 1);
+                if (code <= table.maxCode[length]) {
+                    count -= length;
+                    return table.values[table.index[length] + code - table.minCode[length]];
+                }
+            }
+            throw new IOException("Bad Huffman code");
+        }
+
+        /**
+         * Skip the restart marker ending an interval
+         * @throws IOException If there is none
+         */
+        private void restart() throws IOException {
+            buffer = 0;
+            count = 0;
+            while (pos + 1 < in.length && (in[pos] & 0xff) == 0xFF && (in[pos + 1] & 0xff) == 0xFF) {
+                pos++;
+            }
+            if (pos + 1 >= in.length || (in[pos] & 0xff) != 0xFF || (in[pos + 1] & 0xf8) != RST0) {
+                throw new IOException("Missing restart marker");
+            }
+            pos += 2;
+            marker = false;
+        }
+
+        /**
+         * Get the offset after the entropy coded data
+         * @return The offset of the first byte not read
+         */
+        private int end() {
+            return pos;
+        }
+    }
+
+    /**
+     * Writes bytes and the bits of entropy coded data, stuffing a zero after every 0xFF byte of it
+     */
+    private static class BitWriter {
+
+        /**
+         * The bytes written
+         */
+        private byte[] bytes;
+
+        /**
+         * The number of bytes written
+         */
+        private int size;
+
+        /**
+         * The bits not written yet, the last ones being the low bits
+         */
+        private long buffer;
+
+        /**
+         * The number of bits not written yet, less than 32 between calls
+         */
+        private int count;
+
+        /**
+         * Create a writer
+         * @param capacity The expected number of bytes
+         */
+        private BitWriter(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        /**
+         * Write a byte
+         * @param b The byte
+         */
+        private void write(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        /**
+         * Write bytes
+         * @param src The bytes
+         * @param offset The offset of the first byte
+         * @param length The number of bytes
+         */
+        private void write(byte[] src, int offset, int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+            }
+            System.arraycopy(src, offset, bytes, size, length);
+            size += length;
+        }
+
+        /**
+         * Write a Huffman code followed by the bits of a value
+         * @param codes The code of every symbol shifted left by 8 bits above its length
+         * @param symbol The symbol
+         * @param value The value, whose size in bits is the low nibble of the symbol
+         */
+        private void symbol(int[] codes, int symbol, int value) {
+            int size = symbol & 0x0f;
+            int code = codes[symbol];
+            bits((code >>> 8) << size | ((value < 0 ? value - 1 : value) & ((1 << size) - 1)), (code & 0xff) + size);
+        }
+
+        /**
+         * Write bits of entropy coded data, 32 at a time
+         * @param bits The bits
+         * @param length The number of bits, at most 27
+         */
+        private void bits(int bits, int length) {
+            buffer = buffer << length | (bits & 0xffffffffL);
+            count += length;
+            if (count < 32) {
+                return;
+            }
+            count -= 32;
+            int word = (int) (buffer >>> count);
+            buffer &= (1L << count) - 1;
+            if (size + 8 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            int inverse = ~word;
+            if (((inverse - 0x01010101) & ~inverse & 0x80808080) == 0) {
+                // No 0xFF byte to stuff
+                bytes[size] = (byte) (word >>> 24);
+                bytes[size + 1] = (byte) (word >>> 16);
+                bytes[size + 2] = (byte) (word >>> 8);
+                bytes[size + 3] = (byte) word;
+                size += 4;
+                return;
+            }
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                int b = (word >>> shift) & 0xff;
+                bytes[size++] = (byte) b;
+                if (b == 0xFF) {
+                    bytes[size++] = 0;
+                }
+            }
+        }
+
+        /**
+         * Pad the last byte of entropy coded data with one bits and write the bits left
+         */
+        private void flush() {
+            int padding = (8 - count % 8) % 8;
+            buffer = buffer << padding | ((1L << padding) - 1);
+            count += padding;
+            while (count > 0) {
+                count -= 8;
+                int b = (int) (buffer >>> count) & 0xff;
+                write(b);
+                if (b == 0xFF) {
+                    write(0);
+                }
+            }
+            buffer = 0;
+        }
+
+        /**
+         * End an interval with a restart marker
+         * @param number The number of the marker, from 0 to 7
+         */
+        private void restart(int number) {
+            flush();
+            write(0xFF);
+            write(RST0 + number);
+        }
+
+        /**
+         * Get the bytes written
+         * @return A copy of the bytes written
+         */
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+}
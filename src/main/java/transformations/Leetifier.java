@@ -1,17 +1,17 @@
 package transformations;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import mail.Mail;
+import mail.MimePart;
 import org.apache.log4j.Logger;
 
 /**
  * A Transformer to Leetify a Text in a Mail
  */
-public class Leetifier implements Transformer {
+public class Leetifier implements Transformer, StreamTransformer {
 
     /**
      * Indicates if the transformer class is enabled
@@ -24,110 +24,209 @@ public class Leetifier implements Transformer {
     private static transient Logger LOGGER = Logger.getLogger(Leetifier.class);
 
     /**
-     * Leetify a Text
+     * The states of the bytes: outside or inside a tag, and in a quoted-printable escape after the equals sign, after
+     * a 3 or after another digit, the tag bit kept
+     */
+    private static final int TEXT = 0, TAG = 1, ESCAPE = 2, ESCAPE_3 = 4, ESCAPE_DIGIT = 6;
+
+    /**
+     * The letters replaced outside tags, in lower case
+     */
+    private static final String LETTERS = "aeioc";
+
+    /**
+     * The replacements of the letters, in the same order
+     */
+    private static final String DIGITS = "4310<";
+
+    /**
+     * The tables of the TEXT and TAG states for parts that are not quoted-printable
+     */
+    private static final int[][] TABLES = { table(false, false), table(true, false) };
+
+    /**
+     * The tables of the TEXT and TAG states for quoted-printable parts
+     */
+    private static final int[][] QP_TABLES = { table(false, true), table(true, true) };
+
+    /**
+     * The size of the chunks of direct buffers leetified at a time
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * The state after the last byte leetified in the current part
+     */
+    private int state = TEXT;
+
+    /**
+     * The heap copy of the chunk of a direct buffer being leetified, allocated on first use
+     */
+    private byte[] chunk;
+
+    /**
+     * Leetify the text parts of a Mail
      * @param mail
      * @throws IOException
      */
 	public void transform(Mail mail) throws IOException {
         LOGGER.info("Leetifying text");
-		File file = new File("mails/mail" + mail.id() + "T.txt");
-		file.createNewFile();
-		File file2 = new File("mails/mail" + mail.id() + ".txt");
-		RandomAccessFile reader = new RandomAccessFile("mails/mail" + mail.id()
-				+ ".txt", "r");
-		RandomAccessFile writer = new RandomAccessFile("mails/mail" + mail.id()
-				+ "T.txt", "rw");
-		String line;
-		int i = 1;
-		writer.write((reader.readLine() + "\r\n").getBytes());
-		int bodyEnd = mail.getBodyEnd();
-		int bodyBeg = mail.getBodyIndex();
-		int htmlEnd = mail.getHtmlEnd();
-		int htmlBeg = mail.getHtmlBeg();
-		while ((line = reader.readLine()) != null) {
-			if (i == bodyBeg) {
-				while (i < bodyEnd) {
-					if (line == null) {
-						file2.delete();
-						file.renameTo(file2);
-						reader.close();
-						writer.close();
-						return;
-					}
-					writer.write((leet(line) + "\r\n").getBytes());
-					i++;
-					line = reader.readLine();
-				}
+		new MailRewriter(mail, this).rewrite();
+	}
+
+    /**
+     * Leetify the text parts that are not base64 encoded
+     * @param part The part to check
+     * @return If the part is plain text or HTML
+     */
+	@Override
+	public boolean accepts(MimePart part) {
+		String type = part.getContentType();
+		return (type.equals("text/plain") || type.equals("text/html")) && !part.isBase64();
+	}
+
+    /**
+     * Leetify a line in place and write it
+     * @param part The part the line belongs to
+     * @param line The line to leetify
+     * @param sink The destination of the leetified line
+     * @throws IOException
+     */
+	@Override
+	public void transform(MimePart part, ByteBuffer line, LineSink sink) throws IOException {
+		if (!part.getContentType().equals("text/html")) {
+			// Only HTML tags may span lines, a stray bracket in plain text only spares the rest of its line
+			state = TEXT;
+		}
+		leet(line, part.isQuotedPrintable());
+		sink.write(line);
+	}
+
+	@Override
+	public void endPart(MimePart part, LineSink sink) {
+		state = TEXT;
+	}
+
+	@Override
+	public StreamTransformer fork() {
+		return new Leetifier();
+	}
+
+	@Override
+	public boolean holdsPart() {
+		return false;
+	}
+
+    /**
+     * Leetify the remaining bytes of a ByteBuffer in place, going on from the state left by the previous bytes
+     * Heap buffers are leetified in their array, direct ones a chunk at a time through a heap array
+     * @param bytes The bytes to leetify, which may be a line or any run of bytes of a part
+     * @param quotedPrintable If the bytes are quoted-printable, so that the digits of escapes are left as they are
+     */
+	public void leet(ByteBuffer bytes, boolean quotedPrintable) {
+		if (bytes.hasArray()) {
+			int offset = bytes.arrayOffset();
+			state = leet(bytes.array(), offset + bytes.position(), offset + bytes.limit(), state, quotedPrintable);
+			return;
+		}
+		if (chunk == null) {
+			chunk = new byte[CHUNK_SIZE];
+		}
+		ByteBuffer window = bytes.duplicate();
+		while (window.hasRemaining()) {
+			int position = window.position();
+			int n = Math.min(chunk.length, window.remaining());
+			window.get(chunk, 0, n);
+			state = leet(chunk, 0, n, state, quotedPrintable);
+			window.position(position);
+			window.put(chunk, 0, n);
+		}
+	}
+
+    /**
+     * Leetify bytes in place
+     * Between two bytes that change the state, every byte is translated by a single lookup in the table of the state
+     * @param bytes The array holding the bytes
+     * @param from The index of the first byte
+     * @param to The index after the last byte
+     * @param state The state before the first byte
+     * @param quotedPrintable If the bytes are quoted-printable
+     * @return The state after the last byte
+     */
+	static int leet(byte[] bytes, int from, int to, int state, boolean quotedPrintable) {
+		int[][] tables = quotedPrintable ? QP_TABLES : TABLES;
+		int i = from;
+		while (i < to) {
+			if (state > TAG) {
+				state = escape(state, bytes[i++]);
+				continue;
 			}
-			if (i == htmlBeg) {
-				while (i < htmlEnd) {
-					if (line == null) {
-						file2.delete();
-						file.renameTo(file2);
-						reader.close();
-						writer.close();
-						return;
-					}
-					writer.write((leet(line) + "\r\n").getBytes());
-					i++;
-					line = reader.readLine();
-				}
+			int[] table = tables[state];
+			int replacement;
+			while (i < to && (replacement = table[bytes[i] & 0xFF]) >= 0) {
+				bytes[i++] = (byte) replacement;
 			}
-			i++;
-			if (line != null) {
-				writer.write((line + "\r\n").getBytes());
+			if (i < to) {
+				byte b = bytes[i++];
+				state = b == '<' ? TAG : b == '>' ? TEXT : state | ESCAPE;
 			}
 		}
-		file2.delete();
-		file.renameTo(file2);
-		reader.close();
-		writer.close();
+		return state;
 	}
 
     /**
-     * Leetify a String
-     * @param line The String to leetify
-     * @return The leetified String
-     */
-	private String leet(String line) {
-		boolean inTag = false;
-		char[] c = line.toCharArray();
-		for (int i = 0; i < c.length; i++) {
-			switch (c[i]) {
-			case '<':
-				inTag = true;
-				break;
-			case '>':
-				inTag = false;
-				break;
-			case 'a':
-			case 'A':
-				if (!inTag)
-					c[i] = '4';
-				break;
-			case 'e':
-			case 'E':
-				if (!inTag)
-					c[i] = '3';
-				break;
-			case 'i':
-			case 'I':
-				if (!inTag)
-					c[i] = '1';
-				break;
-			case 'o':
-			case 'O':
-				if (!inTag)
-					c[i] = '0';
-				break;
-			case 'c':
-			case 'C':
-				if (!inTag)
-					c[i] = '<';
+     * Move through a quoted-printable escape, which is left as it is
+     * The escapes of the brackets open and close tags like the brackets, a line break ends a soft line break
+     * @param state The state before the byte, inside an escape
+     * @param b The byte
+     * @return The state after the byte
+     */
+	private static int escape(int state, byte b) {
+		int tag = state & TAG;
+		if (b == '\n') {
+			return tag;
+		}
+		switch (state & ~TAG) {
+		case ESCAPE:
+			return tag | (b == '3' ? ESCAPE_3 : ESCAPE_DIGIT);
+		case ESCAPE_3:
+			if (b == 'C' || b == 'c') {
+				return TAG;
 			}
+			if (b == 'E' || b == 'e') {
+				return TEXT;
+			}
+			return tag;
+		default:
+			return tag;
 		}
-		return new String(c);
+	}
 
+    /**
+     * Build the table of a state: every byte maps to its replacement, or to -1 if it changes the state
+     * @param tag If the table is used inside a tag, where bytes are kept
+     * @param quotedPrintable If escapes change the state
+     * @return The table
+     */
+	private static int[] table(boolean tag, boolean quotedPrintable) {
+		int[] table = new int[256];
+		for (int b = 0; b < table.length; b++) {
+			table[b] = b;
+		}
+		if (tag) {
+			table['>'] = -1;
+		} else {
+			table['<'] = -1;
+			for (int i = 0; i < LETTERS.length(); i++) {
+				char letter = LETTERS.charAt(i);
+				table[letter] = DIGITS.charAt(i);
+				table[Character.toUpperCase(letter)] = DIGITS.charAt(i);
+			}
+		}
+		if (quotedPrintable) {
+			table['='] = -1;
+		}
+		return table;
 	}
 
 	@Override
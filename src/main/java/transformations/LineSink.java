@@ -0,0 +1,17 @@
+package transformations;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A destination for the lines of a transformed message
+ */
+public interface LineSink {
+
+    /**
+     * Write complete lines
+     * @param lines The lines to write, including their terminators, only read during the call
+     * @throws IOException
+     */
+    void write(ByteBuffer lines) throws IOException;
+}
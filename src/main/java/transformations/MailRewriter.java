@@ -0,0 +1,168 @@
+package transformations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import mail.Mail;
+import mail.MimeSection;
+import mail.Spool;
+import connection.LineDecoder;
+
+/**
+ * Applies a StreamTransformer to a Mail that was completely received
+ * The index of the Mail tells where the parts the transformer accepts are: only their lines are framed
+ * and handed to the transformer, every other byte is copied as it is
+ */
+public class MailRewriter {
+
+    /**
+     * The size of the chunks copied and framed at a time
+     */
+    private static final int COPY_SIZE = 8192;
+
+    /**
+     * The Mail being rewritten
+     */
+    private Mail mail;
+
+    /**
+     * The transformer to apply
+     */
+    private StreamTransformer transformer;
+
+    /**
+     * The stream over the Mail
+     */
+    private InputStream in;
+
+    /**
+     * The offset in the Mail of the next byte of the stream
+     */
+    private long position;
+
+    /**
+     * The chunk copied at a time
+     */
+    private byte[] chunk = new byte[COPY_SIZE];
+
+    /**
+     * Create a rewriter applying a transformer to a Mail
+     * @param mail The Mail, completely received
+     * @param transformer The transformer to apply
+     */
+    public MailRewriter(Mail mail, StreamTransformer transformer) {
+        this.mail = mail;
+        this.transformer = transformer;
+    }
+
+    /**
+     * Count the parts of the Mail the transformer accepts
+     * @return The number of parts to transform
+     */
+    public int countParts() {
+        int count = 0;
+        for (MimeSection section : mail.getSections()) {
+            if (transformer.accepts(section.getPart())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Rewrite the Mail, replacing its content with the transformed one
+     * @throws IOException
+     */
+    public void rewrite() throws IOException {
+        final Spool writer = mail.createSpool();
+        LineSink sink = new LineSink() {
+            @Override
+            public void write(ByteBuffer lines) throws IOException {
+                writer.write(lines);
+            }
+        };
+        in = mail.openStream();
+        position = 0;
+        try {
+            for (MimeSection section : mail.getSections()) {
+                if (transformer.accepts(section.getPart())) {
+                    copy(section.getStart() - position, writer);
+                    transform(section, sink);
+                }
+            }
+            copy(Long.MAX_VALUE, writer);
+        } catch (IOException | RuntimeException e) {
+            writer.release();
+            throw e;
+        } finally {
+            in.close();
+        }
+        mail.replace(writer);
+    }
+
+    /**
+     * Copy the next bytes of the Mail as they are
+     * @param count The number of bytes to copy, the copy stops early at the end of the Mail
+     * @param writer The spool to copy to
+     * @throws IOException
+     */
+    private void copy(long count, Spool writer) throws IOException {
+        int n;
+        while (count > 0 && (n = in.read(chunk, 0, (int) Math.min(chunk.length, count))) != -1) {
+            writer.write(ByteBuffer.wrap(chunk, 0, n));
+            position += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Hand the lines of a body to the transformer
+     * @param section The body to transform
+     * @param sink The destination of the transformed lines
+     * @throws IOException
+     */
+    private void transform(final MimeSection section, LineSink sink) throws IOException {
+        ReadableByteChannel body = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                long left = section.getEnd() - position;
+                if (left <= 0) {
+                    return -1;
+                }
+                int n = in.read(chunk, 0, (int) Math.min(Math.min(chunk.length, dst.remaining()), left));
+                if (n == -1) {
+                    return -1;
+                }
+                dst.put(chunk, 0, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        LineDecoder lines = new LineDecoder(COPY_SIZE);
+        try {
+            ByteBuffer line;
+            while (lines.read(body) != -1) {
+                while ((line = lines.nextLine()) != null) {
+                    transformer.transform(section.getPart(), line, sink);
+                }
+            }
+            if ((line = lines.remainder()) != null) {
+                transformer.transform(section.getPart(), line, sink);
+            }
+        } finally {
+            lines.release();
+        }
+        transformer.endPart(section.getPart(), sink);
+    }
+}
@@ -0,0 +1,409 @@
+package transformations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mail.Mail;
+import mail.MimePart;
+import mail.MimeSection;
+import mail.Spool;
+import connection.LineDecoder;
+
+/**
+ * Applies StreamTransformers to the parts of a Mail that was completely received, several parts at a time
+ * Every part accepted by a transformer is read from its own stream and goes through its own chain of transformers into its
+ * own Spool. Workers of a ForkJoinPool, and the calling Thread, take the parts in turns, at most a given number of them
+ * for a Mail. The Mail is then rewritten in order, copying the bytes between the parts and the transformed parts
+ */
+public class PartRewriter {
+
+    /**
+     * The size of the chunks copied and framed at a time
+     */
+    private static final int COPY_SIZE = 8192;
+
+    /**
+     * The Mail being rewritten
+     */
+    private Mail mail;
+
+    /**
+     * The transformers to apply, in order
+     */
+    private List<StreamTransformer> transformers;
+
+    /**
+     * The pool of the workers
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * The largest number of parts transformed at the same time
+     */
+    private int parallelism;
+
+    /**
+     * Create a rewriter applying transformers to a Mail
+     * @param mail The Mail, completely received
+     * @param transformers The transformers to apply, in order
+     * @param pool The pool of the workers
+     * @param parallelism The largest number of parts transformed at the same time, including by the calling Thread
+     */
+    public PartRewriter(Mail mail, List<StreamTransformer> transformers, ForkJoinPool pool, int parallelism) {
+        this.mail = mail;
+        this.transformers = transformers;
+        this.pool = pool;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Transform the parts, then rewrite the Mail replacing its content with the transformed one
+     * @throws IOException If a part could not be transformed
+     */
+    public void rewrite() throws IOException {
+        List<Part> parts = new ArrayList<>();
+        for (MimeSection section : mail.getSections()) {
+            for (StreamTransformer transformer : transformers) {
+                if (transformer.accepts(section.getPart())) {
+                    // Opened here, the spool may not be opened from several Threads at once
+                    parts.add(new Part(section, mail.openStream()));
+                    break;
+                }
+            }
+        }
+        if (parts.isEmpty()) {
+            return;
+        }
+        AtomicInteger next = new AtomicInteger();
+        List<ForkJoinTask<?>> forked = new ArrayList<>();
+        try {
+            for (int i = 1; i < Math.min(parallelism, parts.size()); i++) {
+                forked.add(pool.submit(new Worker(parts, next)));
+            }
+            new Worker(parts, next).invoke();
+            for (ForkJoinTask<?> task : forked) {
+                task.join();
+            }
+            for (Part part : parts) {
+                if (part.failure != null) {
+                    throw part.failure;
+                }
+            }
+            stitch(parts);
+        } finally {
+            for (Part part : parts) {
+                part.release();
+            }
+        }
+    }
+
+    /**
+     * Rewrite the Mail, copying the bytes between the parts and the transformed parts
+     * @param parts The transformed parts, in order
+     * @throws IOException
+     */
+    private void stitch(List<Part> parts) throws IOException {
+        Spool writer = mail.createSpool();
+        byte[] chunk = new byte[COPY_SIZE];
+        long position = 0;
+        try (InputStream in = mail.openStream()) {
+            for (Part part : parts) {
+                copy(in, part.section.getStart() - position, writer, chunk);
+                try (InputStream transformed = part.spool.openStream()) {
+                    copy(transformed, Long.MAX_VALUE, writer, chunk);
+                }
+                skip(in, part.section.getEnd() - part.section.getStart());
+                position = part.section.getEnd();
+            }
+            copy(in, Long.MAX_VALUE, writer, chunk);
+        } catch (IOException | RuntimeException e) {
+            writer.release();
+            throw e;
+        }
+        mail.replace(writer);
+    }
+
+    /**
+     * Copy bytes of a stream to a spool
+     * @param in The stream
+     * @param count The number of bytes to copy, the copy stops early at the end of the stream
+     * @param writer The spool to copy to
+     * @param chunk The chunk copied at a time
+     * @throws IOException
+     */
+    private static void copy(InputStream in, long count, Spool writer, byte[] chunk) throws IOException {
+        int n;
+        while (count > 0 && (n = in.read(chunk, 0, (int) Math.min(chunk.length, count))) != -1) {
+            writer.write(ByteBuffer.wrap(chunk, 0, n));
+            count -= n;
+        }
+    }
+
+    /**
+     * Skip bytes of a stream
+     * @param in The stream
+     * @param count The number of bytes to skip
+     * @throws IOException If the stream ends first
+     */
+    private static void skip(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long n = in.skip(count);
+            if (n <= 0) {
+                throw new IOException("Mail ended inside a part");
+            }
+            count -= n;
+        }
+    }
+
+    /**
+     * Build the chain of transformers a part goes through, each with no part in progress
+     * @param part The part
+     * @param sink The destination of the last transformer
+     * @return The transformers accepting the part and the destination of each one, in order
+     */
+    private List<Stage> chain(MimePart part, LineSink sink) {
+        List<Stage> stages = new ArrayList<>();
+        LineSink next = sink;
+        for (int i = transformers.size() - 1; i >= 0; i--) {
+            if (transformers.get(i).accepts(part)) {
+                Stage stage = new Stage(transformers.get(i).fork(), part, next);
+                stages.add(0, stage);
+                next = stage;
+            }
+        }
+        return stages;
+    }
+
+    /**
+     * Transform a part into its own spool
+     * @param part The part
+     * @throws IOException
+     */
+    private void transform(Part part) throws IOException {
+        final Spool spool = mail.createSpool();
+        part.spool = spool;
+        MimeSection section = part.section;
+        List<Stage> stages = chain(section.getPart(), new LineSink() {
+            @Override
+            public void write(ByteBuffer lines) throws IOException {
+                spool.write(lines);
+            }
+        });
+        skip(part.in, section.getStart());
+        InputStream body = new BoundedStream(part.in, section.getEnd() - section.getStart());
+        LineDecoder lines = new LineDecoder(COPY_SIZE);
+        try {
+            ByteBuffer line;
+            while (lines.read(Channels.newChannel(body)) != -1) {
+                while ((line = lines.nextLine()) != null) {
+                    stages.get(0).write(line);
+                }
+            }
+            if ((line = lines.remainder()) != null) {
+                stages.get(0).write(line);
+            }
+        } finally {
+            lines.release();
+        }
+        for (Stage stage : stages) {
+            stage.transformer.endPart(section.getPart(), stage.next);
+        }
+    }
+
+    /**
+     * A part to transform and its result
+     */
+    private static class Part {
+
+        /**
+         * The body of the part in the Mail
+         */
+        private MimeSection section;
+
+        /**
+         * The stream the part is read from, from the first byte of the Mail
+         */
+        private InputStream in;
+
+        /**
+         * The transformed part, or null before it is transformed
+         */
+        private Spool spool;
+
+        /**
+         * The reason the part could not be transformed, or null
+         */
+        private IOException failure;
+
+        /**
+         * Create a part
+         * @param section The body of the part in the Mail
+         * @param in The stream the part is read from
+         */
+        Part(MimeSection section, InputStream in) {
+            this.section = section;
+            this.in = in;
+        }
+
+        /**
+         * Close the stream and free the transformed part
+         */
+        void release() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing held
+            }
+            if (spool != null) {
+                spool.release();
+                spool = null;
+            }
+        }
+    }
+
+    /**
+     * A worker transforming the parts nobody took yet, one at a time
+     */
+    private class Worker extends RecursiveAction {
+
+        /**
+         * The version of the serialized form, workers are never serialized
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The parts of the Mail
+         */
+        private List<Part> parts;
+
+        /**
+         * The index of the next part nobody took
+         */
+        private AtomicInteger next;
+
+        /**
+         * Create a worker
+         * @param parts The parts of the Mail
+         * @param next The index of the next part nobody took, shared by the workers of the Mail
+         */
+        Worker(List<Part> parts, AtomicInteger next) {
+            this.parts = parts;
+            this.next = next;
+        }
+
+        @Override
+        protected void compute() {
+            int i;
+            while ((i = next.getAndIncrement()) < parts.size()) {
+                Part part = parts.get(i);
+                try {
+                    transform(part);
+                } catch (IOException e) {
+                    part.failure = e;
+                } catch (RuntimeException e) {
+                    part.failure = new IOException("Could not transform part", e);
+                }
+                if (part.failure != null) {
+                    // The Mail can not be rewritten, the other parts are left
+                    next.set(parts.size());
+                }
+            }
+        }
+    }
+
+    /**
+     * A transformer applied to a part, writing to the next one
+     */
+    private static class Stage implements LineSink {
+
+        /**
+         * The transformer of the stage
+         */
+        private StreamTransformer transformer;
+
+        /**
+         * The part being transformed
+         */
+        private MimePart part;
+
+        /**
+         * The destination of the lines transformed by the stage
+         */
+        private LineSink next;
+
+        /**
+         * Create a stage
+         * @param transformer The transformer of the stage
+         * @param part The part being transformed
+         * @param next The destination of the lines transformed by the stage
+         */
+        Stage(StreamTransformer transformer, MimePart part, LineSink next) {
+            this.transformer = transformer;
+            this.part = part;
+            this.next = next;
+        }
+
+        @Override
+        public void write(ByteBuffer lines) throws IOException {
+            transformer.transform(part, lines, next);
+        }
+    }
+
+    /**
+     * A stream reading at most a number of bytes of another one
+     */
+    private static class BoundedStream extends InputStream {
+
+        /**
+         * The stream read
+         */
+        private InputStream in;
+
+        /**
+         * The number of bytes left
+         */
+        private long left;
+
+        /**
+         * Create a bounded stream
+         * @param in The stream read
+         * @param length The number of bytes to read
+         */
+        BoundedStream(InputStream in, long length) {
+            this.in = in;
+            this.left = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (left <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                left--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, left));
+            if (n > 0) {
+                left -= n;
+            }
+            return n;
+        }
+    }
+}
@@ -1,29 +1,35 @@
 package transformations;
 
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
-import mail.Image;
 import mail.Mail;
+import mail.MimePart;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64OutputStream;
 import org.apache.log4j.Logger;
 
 /**
  * A Transformer to Rotate an Image in a Mail
  */
-public class Rotation implements Transformer {
+public class Rotation implements Transformer, StreamTransformer {
 
     /**
      * Indicates if the transformer class is enabled
@@ -35,89 +41,216 @@ public class Rotation implements Transformer {
      */
     private static transient Logger LOGGER = Logger.getLogger(Rotation.class);
 
+    /**
+     * The bytes of a blank line
+     */
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * The base64 alphabet
+     */
+    private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    /**
+     * The number of bytes encoded in a line of 76 chars
+     */
+    private static final int LINE_BYTES = 57;
+
+    /**
+     * The number of encoded lines written to the sink at a time
+     */
+    private static final int LINES_PER_WRITE = 64;
+
+    /**
+     * The bytes of the image part being received, to write them back if it can not be rotated
+     */
+    private ByteArrayOutputStream original = new ByteArrayOutputStream();
+
+    /**
+     * The decoded bytes of the image part being received
+     */
+    private ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+
+    /**
+     * Decodes the lines of the image part into the decoded bytes as they are received, or null before the first one
+     */
+    private Base64OutputStream decoder;
+
+    /**
+     * The bytes of the line being received
+     */
+    private byte[] scratch = new byte[128];
+
+    /**
+     * The number of blank lines after the base64 content
+     */
+    private int blankLines;
+
 	/** Rotate an Image
 	 * @param mail the image to convert in String base64 format
 	 * @throws IOException 
 	 */
 	public void transform(Mail mail) throws FileNotFoundException, IOException {
-		int cant = mail.getImages().size();
+		MailRewriter rewriter = new MailRewriter(mail, this);
+		int cant = rewriter.countParts();
 		LOGGER.info("Images to rotate: " + cant);
 		if(cant==0){
 			return;
 		}
-
-		File file = new File("./mails/mail"+mail.id()+"T.txt");
-		file.createNewFile();
-		File file2 = new File("./mails/mail"+mail.id()+".txt");
-		RandomAccessFile reader = new RandomAccessFile("./mails/mail"+mail.id()+".txt", "r");
-		RandomAccessFile writer = new RandomAccessFile("./mails/mail"+mail.id()+"T.txt", "rw");
-		String line="";
-		int i = 0;
-		Iterator<Image> iter = mail.getImages().iterator();
-		while(iter.hasNext()){
-			Image image = iter.next();
-			int beg = image.getStartLine();
-			int end = image.getEndLine();
-			while( i<beg-1 && (line=reader.readLine())!=null){
-				writer.write((line+"\r\n").getBytes());
-				i++;
-			}
-			StringBuilder sBuilder = new StringBuilder();
-			while( i<=end && (line=reader.readLine())!=null){
-				sBuilder.append(line);
-				i++;
-			}
-			String rotated = imageRotation(sBuilder.toString());
-			writer.write((rotated+"\r\n").getBytes());
-			writer.write((line+"\n\r").getBytes());
-		}
-		while((line=reader.readLine())!=null){
-			writer.write((line+"\r\n").getBytes());
-		}
-		file2.delete();
-		file.renameTo(file2);
-		reader.close();
-		writer.close();
+		rewriter.rewrite();
 	}
 
+    /**
+     * Rotate a base64 encoded Image
+     * @param image The image in base64
+     * @return The rotated image in base64, or the same image if it could not be rotated
+     */
 	public String imageRotation(String image) {
-
-		byte[] b  = decodeBase64(image);
-
-		ByteArrayInputStream in = new ByteArrayInputStream(b);
-
-		BufferedImage img = null;
 		try {
-			img = ImageIO.read(in);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		BufferedImage outputImg =rotateImage(img,180);
-
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		try {
-			ImageIO.write( outputImg, "jpg", bos);
+			return encodeBase64(imageRotation(decodeBase64(image)));
 		} catch (IOException e) {
 			e.printStackTrace();
 			return image;
 		}
-		try {
-			bos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-			return image;
+	}
+
+    /**
+     * Rotate an Image by 180 degrees, in its own format
+     * Baseline JPEG images whose sides are whole MCUs are rotated without decoding their pixels nor any loss. The others
+     * are decoded, their raster is reversed and they are encoded again, other JPEG images being recompressed
+     * @param image The image bytes
+     * @return The rotated image
+     * @throws IOException If the image could not be read or written
+     */
+	public byte[] imageRotation(byte[] image) throws IOException {
+		byte[] rotated = JpegRotation.rotate(image);
+		if (rotated != null) {
+			return rotated;
 		}
+		ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(image));
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext()) {
+			throw new IOException("Unsupported image format");
+		}
+		ImageReader reader = readers.next();
+		BufferedImage img;
+		String format;
 		try {
-			bos.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-			return image;
+			reader.setInput(in, true, true);
+			img = reader.read(0);
+			format = reader.getFormatName();
+		} finally {
+			reader.dispose();
+		}
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("Rotating " + format + " image, height: " + img.getHeight() + " width: " + img.getWidth());
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(image.length);
+		if (!ImageIO.write(rotateImage(img), format, bos)) {
+			throw new IOException("No " + format + " writer for the image");
 		}
+		return bos.toByteArray();
+	}
+
+    /**
+     * Rotate the base64 encoded image parts
+     * @param part The part to check
+     * @return If the part is a base64 image
+     */
+	@Override
+	public boolean accepts(MimePart part) {
+		return part.isImage() && part.isBase64();
+	}
 
-		byte[] o = bos.toByteArray();
+    /**
+     * Hold back a line of the image until the part ends
+     * @param part The part the line belongs to
+     * @param line The line of the image
+     * @param sink The destination of the rotated image
+     */
+	@Override
+	public void transform(MimePart part, ByteBuffer line, LineSink sink) throws IOException {
+		int length = line.remaining();
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		line.duplicate().get(scratch, 0, length);
+		original.write(scratch, 0, length);
+		if (decoder == null) {
+			decoder = new Base64OutputStream(decoded, false);
+		}
+		decoder.write(scratch, 0, length);
+		for (int i = 0; i < length; i++) {
+			byte b = scratch[i];
+			if (b != '\r' && b != '\n' && b != ' ' && b != '\t') {
+				blankLines = 0;
+				return;
+			}
+		}
+		blankLines++;
+	}
 
-		return encodeBase64(o);
+    /**
+     * Rotate the image and write it in lines of 76 chars, or write it back as received if it can not be rotated
+     * The image was decoded as its lines were received, and is encoded straight into the sink
+     * @param part The part that ended
+     * @param sink The destination of the rotated image
+     * @throws IOException
+     */
+	@Override
+	public void endPart(MimePart part, LineSink sink) throws IOException {
+		try {
+			if (decoder != null) {
+				decoder.close();
+			}
+			byte[] rotated = imageRotation(decoded.toByteArray());
+			encodeLines(rotated, sink);
+			for (int i = 0; i < blankLines; i++) {
+				sink.write(ByteBuffer.wrap(CRLF));
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.info("Could not rotate image, sending it unchanged: " + e.getMessage());
+			sink.write(ByteBuffer.wrap(original.toByteArray()));
+		}
+		original.reset();
+		decoded.reset();
+		decoder = null;
+		blankLines = 0;
+	}
 
+    /**
+     * Write bytes in base64, in lines of 76 chars ended by CRLF
+     * @param bytes The bytes to encode
+     * @param sink The destination of the lines
+     * @throws IOException
+     */
+	private void encodeLines(byte[] bytes, LineSink sink) throws IOException {
+		ByteBuffer lines = ByteBuffer.allocate(LINES_PER_WRITE * (LINE_BYTES / 3 * 4 + 2));
+		for (int start = 0; start < bytes.length; start += LINE_BYTES) {
+			int end = Math.min(bytes.length, start + LINE_BYTES);
+			int i = start;
+			for (; i + 3 <= end; i += 3) {
+				int group = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+				lines.put(ALPHABET[group >> 18]).put(ALPHABET[(group >> 12) & 0x3f]).put(ALPHABET[(group >> 6) & 0x3f])
+						.put(ALPHABET[group & 0x3f]);
+			}
+			if (i < end) {
+				// The last one or two bytes, padded
+				int group = (bytes[i] & 0xff) << 16 | (i + 1 < end ? (bytes[i + 1] & 0xff) << 8 : 0);
+				lines.put(ALPHABET[group >> 18]).put(ALPHABET[(group >> 12) & 0x3f])
+						.put(i + 1 < end ? ALPHABET[(group >> 6) & 0x3f] : (byte) '=').put((byte) '=');
+			}
+			lines.put(CRLF);
+			if (lines.remaining() < LINE_BYTES / 3 * 4 + 2) {
+				lines.flip();
+				sink.write(lines);
+				lines.clear();
+			}
+		}
+		if (lines.position() > 0) {
+			lines.flip();
+			sink.write(lines);
+		}
 	}
 
     /**
@@ -139,25 +272,65 @@ public class Rotation implements Transformer {
 	}
 
     /**
-     * Rotate an image
+     * Rotate an image by 180 degrees, reversing the order of its pixels in place
+     * Rasters of interleaved bytes or packed ints are reversed a pixel at a time, any other one through its data elements
      * @param image The Image to rotate
-     * @param angle The angle to rotate it at
-     * @return The rotated Image
+     * @return The same Image, rotated
      */
-	public static BufferedImage rotateImage(BufferedImage image, double angle) {
-		AffineTransform tx = new AffineTransform();
-
-		tx.translate(image.getWidth()/2, image.getHeight()/2);
-
-		tx.rotate(Math.PI); // 1 radians (180 degrees)
+	public static BufferedImage rotateImage(BufferedImage image) {
+		WritableRaster raster = image.getRaster();
+		int width = raster.getWidth(), height = raster.getHeight();
+		int pixels = width * height;
+		DataBuffer buffer = raster.getDataBuffer();
+		boolean whole = raster.getParent() == null && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+				&& buffer.getNumBanks() == 1 && buffer.getOffset() == 0;
+		if (whole && buffer instanceof DataBufferByte && raster.getSampleModel() instanceof ComponentSampleModel) {
+			ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+			int stride = model.getPixelStride();
+			boolean interleaved = model.getScanlineStride() == width * stride;
+			for (int offset : model.getBandOffsets()) {
+				interleaved &= offset < stride;
+			}
+			if (interleaved) {
+				byte[] data = ((DataBufferByte) buffer).getData();
+				for (int i = 0, j = (pixels - 1) * stride; i < j; i += stride, j -= stride) {
+					for (int k = 0; k < stride; k++) {
+						byte b = data[i + k];
+						data[i + k] = data[j + k];
+						data[j + k] = b;
+					}
+				}
+				return image;
+			}
+		}
+		if (whole && buffer instanceof DataBufferInt && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+				&& ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width) {
+			int[] data = ((DataBufferInt) buffer).getData();
+			for (int i = 0, j = pixels - 1; i < j; i++, j--) {
+				int pixel = data[i];
+				data[i] = data[j];
+				data[j] = pixel;
+			}
+			return image;
+		}
+		Object first = null, last = null;
+		for (int i = 0, j = pixels - 1; i < j; i++, j--) {
+			first = raster.getDataElements(i % width, i / width, first);
+			last = raster.getDataElements(j % width, j / width, last);
+			raster.setDataElements(i % width, i / width, last);
+			raster.setDataElements(j % width, j / width, first);
+		}
+		return image;
+	}
 
-		// first - center image at the origin so rotate works OK
-		tx.translate(-image.getWidth()/2,-image.getHeight()/2);
+	@Override
+	public StreamTransformer fork() {
+		return new Rotation();
+	}
 
-		AffineTransformOp op = new AffineTransformOp(tx, AffineTransformOp.TYPE_BILINEAR);
-		LOGGER.info("Height: " + image.getHeight() + " width: " + image.getWidth());
-		BufferedImage outputImage =new BufferedImage(image.getWidth(), image.getHeight(), image.getType());
-		return op.filter(image, outputImage);
+	@Override
+	public boolean holdsPart() {
+		return true;
 	}
 
 	@Override
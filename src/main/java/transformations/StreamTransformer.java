@@ -0,0 +1,49 @@
+package transformations;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import mail.MimePart;
+
+/**
+ * An object to apply a Transformation to the parts of a Mail as its lines arrive
+ * A new instance is used for every message, so it may keep state between the lines of a part
+ */
+public interface StreamTransformer {
+
+    /**
+     * Check if the body of a part should go through the transformation
+     * @param part The part, with its headers already read
+     * @return If the transformer applies to the part
+     */
+    boolean accepts(MimePart part);
+
+    /**
+     * Transform a body line of an accepted part
+     * @param part The part the line belongs to
+     * @param line The line, which may be modified in place
+     * @param sink The destination of the transformed lines
+     * @throws IOException
+     */
+    void transform(MimePart part, ByteBuffer line, LineSink sink) throws IOException;
+
+    /**
+     * End an accepted part, writing anything held back
+     * @param part The part that ended
+     * @param sink The destination of the transformed lines
+     * @throws IOException
+     */
+    void endPart(MimePart part, LineSink sink) throws IOException;
+
+    /**
+     * Check if the transformer holds back the whole body of a part until it ends, so ending it may take long
+     * @return If the transformed part is only written when it ends
+     */
+    boolean holdsPart();
+
+    /**
+     * Create a transformer of the same kind with no part in progress, to transform another part of the message at the same time
+     * @return The new transformer
+     */
+    StreamTransformer fork();
+}
@@ -0,0 +1,277 @@
+package transformations;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.Logger;
+
+import connection.BufferUtils;
+import mail.MimeListener;
+import mail.MimeParser;
+import mail.MimePart;
+
+/**
+ * Applies StreamTransformers to a RETR response as its lines arrive
+ * Lines outside the parts accepted by a transformer go to the sink untouched, so only the part being
+ * transformed is ever held in memory.
+ * Given an Executor, a part held back by a transformer until it ends is ended there instead: its place is kept in
+ * the sink and filled once it is transformed, the lines after it going on meanwhile
+ */
+public class TransformationPipeline implements MimeListener {
+
+    /**
+     * The class Logger
+     */
+    private static transient Logger LOGGER = Logger.getLogger(TransformationPipeline.class);
+
+    /**
+     * Bytes of the lines delimiting the response
+     */
+    private static final byte[] ERR = "-ERR".getBytes(BufferUtils.CHARSET), END_LINE = ".\r\n".getBytes(BufferUtils.CHARSET);
+
+    /**
+     * The transformers to apply
+     */
+    private List<StreamTransformer> transformers;
+
+    /**
+     * The destination of the transformed response
+     */
+    private LineSink sink;
+
+    /**
+     * The Executor ending the held parts, or null to end them on the calling Thread
+     */
+    private Executor executor;
+
+    /**
+     * The parser of the message
+     */
+    private MimeParser parser = new MimeParser(this);
+
+    /**
+     * If the status line of the response is still expected
+     */
+    private boolean status = true;
+
+    /**
+     * The part whose body goes through the stages, or null
+     */
+    private MimePart transformed;
+
+    /**
+     * The stages the current part goes through, in order
+     */
+    private List<Stage> stages = new ArrayList<>();
+
+    /**
+     * The output of the stages of the current part if it is ended by the Executor, or null
+     */
+    private HeldPart held;
+
+    /**
+     * Create a pipeline for a RETR response
+     * @param transformers The transformers to apply, in order
+     * @param sink The destination of the transformed response
+     */
+    public TransformationPipeline(List<StreamTransformer> transformers, LineSink sink) {
+        this.transformers = transformers;
+        this.sink = sink;
+    }
+
+    /**
+     * Create a pipeline for a RETR response, ending the parts held back by a transformer on an Executor
+     * @param transformers The transformers to apply, in order
+     * @param sink The destination of the transformed response
+     * @param executor The Executor ending the held parts
+     */
+    public TransformationPipeline(List<StreamTransformer> transformers, DeferringSink sink, Executor executor) {
+        this(transformers, sink);
+        this.executor = executor;
+    }
+
+    /**
+     * Feed a line of the response
+     * @param line The line, including its terminator
+     * @return If it was the last line of the response
+     * @throws IOException
+     */
+    public boolean line(ByteBuffer line) throws IOException {
+        if (status) {
+            status = false;
+            sink.write(line);
+            return BufferUtils.startsWith(line, ERR);
+        }
+        if (BufferUtils.equals(line, END_LINE)) {
+            parser.end();
+            sink.write(line);
+            return true;
+        }
+        parser.line(line);
+        return false;
+    }
+
+    /**
+     * Drop the part in progress and what its transformers hold, once the response will not be completed
+     * A part already ended on the Executor is still filled, its place being discarded with the queue of the Client
+     */
+    public void release() {
+        stages.clear();
+        held = null;
+        transformed = null;
+    }
+
+    @Override
+    public void header(MimePart part, ByteBuffer line) throws IOException {
+        sink.write(line);
+    }
+
+    @Override
+    public void startBody(MimePart part) throws IOException {
+        boolean holds = false;
+        for (StreamTransformer transformer : transformers) {
+            holds |= transformer.accepts(part) && transformer.holdsPart();
+        }
+        if (holds && executor != null) {
+            held = new HeldPart();
+        }
+        LineSink next = held != null ? held : sink;
+        for (int i = transformers.size() - 1; i >= 0; i--) {
+            StreamTransformer transformer = transformers.get(i);
+            if (transformer.accepts(part)) {
+                // A part ended by the Executor may still be transformed while the next one is
+                Stage stage = new Stage(held != null ? transformer.fork() : transformer, part, next);
+                stages.add(0, stage);
+                next = stage;
+            }
+        }
+        if (!stages.isEmpty()) {
+            transformed = part;
+        }
+    }
+
+    @Override
+    public void body(MimePart part, ByteBuffer line) throws IOException {
+        if (part == transformed) {
+            stages.get(0).write(line);
+        } else {
+            sink.write(line);
+        }
+    }
+
+    @Override
+    public void boundary(MimePart multipart, ByteBuffer line) throws IOException {
+        sink.write(line);
+    }
+
+    @Override
+    public void endPart(MimePart part) throws IOException {
+        if (part != transformed) {
+            return;
+        }
+        if (held != null) {
+            held.end(part, new ArrayList<>(stages), ((DeferringSink) sink).defer());
+            held = null;
+        } else {
+            for (Stage stage : stages) {
+                stage.transformer.endPart(part, stage.next);
+            }
+        }
+        stages.clear();
+        transformed = null;
+    }
+
+    /**
+     * The output of the stages of a part ended by the Executor
+     */
+    private class HeldPart implements LineSink {
+
+        /**
+         * The lines written by the stages
+         */
+        private byte[] bytes = new byte[0];
+
+        /**
+         * The number of bytes written
+         */
+        private int count;
+
+        @Override
+        public void write(ByteBuffer lines) throws IOException {
+            int length = lines.remaining();
+            if (bytes.length - count < length) {
+                bytes = Arrays.copyOf(bytes, Math.max(count + length, bytes.length * 2));
+            }
+            lines.duplicate().get(bytes, count, length);
+            count += length;
+        }
+
+        /**
+         * End the stages of the part on the Executor, then fill its place with their output
+         * @param part The part that ended
+         * @param ended The stages of the part, in order
+         * @param place The place of the part in the sink
+         */
+        void end(final MimePart part, final List<Stage> ended, final Deferred place) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (Stage stage : ended) {
+                            stage.transformer.endPart(part, stage.next);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.error("Could not end transformed part", e);
+                    }
+                    try {
+                        place.fill(ByteBuffer.wrap(bytes, 0, count));
+                    } catch (IOException e) {
+                        LOGGER.error("Could not write transformed part", e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * A transformer applied to a part, writing to the next stage
+     */
+    private static class Stage implements LineSink {
+
+        /**
+         * The transformer of the stage
+         */
+        private StreamTransformer transformer;
+
+        /**
+         * The part being transformed
+         */
+        private MimePart part;
+
+        /**
+         * The destination of the lines transformed by the stage
+         */
+        private LineSink next;
+
+        /**
+         * Create a stage
+         * @param transformer The transformer of the stage
+         * @param part The part being transformed
+         * @param next The destination of the lines transformed by the stage
+         */
+        Stage(StreamTransformer transformer, MimePart part, LineSink next) {
+            this.transformer = transformer;
+            this.part = part;
+            this.next = next;
+        }
+
+        @Override
+        public void write(ByteBuffer lines) throws IOException {
+            transformer.transform(part, lines, next);
+        }
+    }
+}